@@ -11,6 +11,7 @@ import java.io.*;
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.fileaccess.*;
@@ -20,6 +21,12 @@ import com.google.common.collect.*;
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * All the stored properties are loaded in memory when the service is created
+ * and the reads are served from there without locking, the database is only
+ * written to. The enumerations by prefix and suffix are answered by a
+ * {@link PropertyNameIndex}. The changes are written through to the
+ * database before they become visible to the readers.
  * 
  * @author Ingo Bauersachs
  */
@@ -64,6 +71,18 @@ public final class JdbcConfigService
     private Map<String, String> defaultProperties
         = new HashMap<String, String>();
 
+    /**
+     * The properties stored in the database.
+     */
+    private final ConcurrentMap<String, String> storedProperties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The index of the names of the properties stored in the database.
+     */
+    private final PropertyNameIndex storedPropertyNames
+        = new PropertyNameIndex();
+
     /**
      * Registered property change listeners that may veto a change.
      */
@@ -82,8 +101,6 @@ public final class JdbcConfigService
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -116,24 +133,31 @@ public final class JdbcConfigService
             migrate = true;
         }
 
-        // open the connection
+        // open the connection and load what is already stored
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        loadStoredProperties();
 
         // then do the actual migration
         if (migrate)
         {
             Properties p = new Properties();
-            p.load(new FileInputStream(oldProps));
+            InputStream in = new FileInputStream(oldProps);
+            try
+            {
+                p.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
 
-            this.connection.setAutoCommit(false);
+            Map<String, Object> migrated = new HashMap<String, Object>();
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
-                this.setProperty(e.getKey().toString(), e.getValue(), false);
+                migrated.put(e.getKey().toString(), e.getValue());
             }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            this.setProperties(migrated);
         }
 
         // and finally load the (mandatory) system properties
@@ -191,10 +215,6 @@ public final class JdbcConfigService
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -206,6 +226,36 @@ public final class JdbcConfigService
             "DELETE FROM Props WHERE k=?");
     }
 
+    /**
+     * Loads all the properties stored in the database in memory.
+     *
+     * @throws SQLException if the properties cannot be read
+     */
+    private void loadStoredProperties() throws SQLException
+    {
+        storedProperties.clear();
+        storedPropertyNames.clear();
+
+        ResultSet q = this.selectAll.executeQuery();
+        try
+        {
+            while (q.next())
+            {
+                String key = q.getString(1);
+                String value = q.getString(2);
+                if (key != null && value != null)
+                {
+                    storedProperties.put(key, value);
+                    storedPropertyNames.add(key);
+                }
+            }
+        }
+        finally
+        {
+            q.close();
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -271,6 +321,7 @@ public final class JdbcConfigService
                     this.insertOrUpdate.execute();
                 }
 
+                updateStoredProperty(propertyName, property);
                 this.fireChange(propertyName, oldValue, property);
             }
             catch (SQLException e)
@@ -280,6 +331,28 @@ public final class JdbcConfigService
         }
     }
 
+    /**
+     * Updates the in-memory copy of a property once it is written to the
+     * database.
+     *
+     * @param propertyName the name of the property
+     * @param property the new value of the property or <tt>null</tt> if it
+     * was removed
+     */
+    private void updateStoredProperty(String propertyName, Object property)
+    {
+        if (property == null)
+        {
+            storedProperties.remove(propertyName);
+            storedPropertyNames.remove(propertyName);
+        }
+        else
+        {
+            storedProperties.put(propertyName, property.toString());
+            storedPropertyNames.add(propertyName);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -290,22 +363,97 @@ public final class JdbcConfigService
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
+        // ask the veto listeners about all the changes before writing any
+        List<String> names = new ArrayList<String>(properties.size());
+        List<Object> oldValues = new ArrayList<Object>(properties.size());
+        for (Map.Entry<String, Object> e : properties.entrySet())
+        {
+            String propertyName = e.getKey();
+            if (System.getProperty(propertyName) != null)
+            {
+                this.setProperty(propertyName, e.getValue(), true);
+                continue;
+            }
+            if (immutableDefaultProperties.containsKey(propertyName))
+            {
+                continue;
+            }
+
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, e.getValue());
+            names.add(propertyName);
+            oldValues.add(oldValue);
+        }
+
+        if (names.isEmpty())
+        {
+            return;
+        }
+
+        // then write them in a single transaction
         try
         {
             checkConnection();
             this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
+            try
             {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
+                boolean deletes = false;
+                boolean updates = false;
+                for (String propertyName : names)
+                {
+                    Object property = properties.get(propertyName);
+                    if (property == null)
+                    {
+                        this.delete.setString(1, propertyName);
+                        this.delete.addBatch();
+                        deletes = true;
+                    }
+                    else
+                    {
+                        this.insertOrUpdate.setString(1, propertyName);
+                        this.insertOrUpdate.setString(2, property.toString());
+                        this.insertOrUpdate.addBatch();
+                        updates = true;
+                    }
+                }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+                if (deletes)
+                {
+                    this.delete.executeBatch();
+                }
+                if (updates)
+                {
+                    this.insertOrUpdate.executeBatch();
+                }
+                this.connection.commit();
+            }
+            catch (SQLException e)
+            {
+                this.delete.clearBatch();
+                this.insertOrUpdate.clearBatch();
+                this.connection.rollback();
+                throw e;
+            }
+            finally
+            {
+                this.connection.setAutoCommit(true);
+            }
         }
         catch (SQLException e1)
         {
             throw new RuntimeException(e1);
         }
+
+        for (String propertyName : names)
+        {
+            updateStoredProperty(propertyName, properties.get(propertyName));
+        }
+        for (int i = 0; i < names.size(); i++)
+        {
+            String propertyName = names.get(i);
+            this.fireChange(propertyName, oldValues.get(i),
+                properties.get(propertyName));
+        }
     }
 
     /*
@@ -316,7 +464,7 @@ public final class JdbcConfigService
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -324,22 +472,7 @@ public final class JdbcConfigService
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = storedProperties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -364,13 +497,15 @@ public final class JdbcConfigService
     @Override
     public synchronized void removeProperty(String propertyName)
     {
-        //remove all properties
+        //remove all properties at once
+        Map<String, Object> removed = new LinkedHashMap<String, Object>();
         for (String child : this.getPropertyNamesByPrefix(propertyName, false))
         {
-            this.setProperty(child, null, false);
+            removed.put(child, null);
         }
+        removed.put(propertyName, null);
 
-        this.setProperty(propertyName, null, false);
+        this.setProperties(removed);
     }
 
     /*
@@ -386,20 +521,7 @@ public final class JdbcConfigService
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
+        data.addAll(storedProperties.keySet());
 
         return data;
     }
@@ -415,46 +537,7 @@ public final class JdbcConfigService
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
-        {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-
-                if(exactPrefixMatch)
-                {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
-
-                    String keyPrefix = key.substring(0, ix);
-
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
-                {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-            }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return storedPropertyNames.getNamesByPrefix(prefix, exactPrefixMatch);
     }
 
     /*
@@ -467,26 +550,7 @@ public final class JdbcConfigService
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return storedPropertyNames.getNamesBySuffix(suffix);
     }
 
     /*
@@ -755,13 +819,15 @@ public final class JdbcConfigService
      * ()
      */
     @Override
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
         try
         {
             this.checkConnection();
             Statement st = this.connection.createStatement();
             st.executeUpdate("TRUNCATE TABLE Props");
+            storedProperties.clear();
+            storedPropertyNames.clear();
         }
         catch (SQLException e)
         {
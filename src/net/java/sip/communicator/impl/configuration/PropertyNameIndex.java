@@ -0,0 +1,157 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Indexes the names of the stored properties so that the enumerations of the
+ * <tt>ConfigurationService</tt> take a time proportional to the number of
+ * names they return.
+ * <p>
+ * The names are kept sorted, those starting with a prefix following each
+ * other, and they are also grouped by the part before their last '.', their
+ * parent, and by the part after it, their last segment. The index is read
+ * without locking while a single writer at a time updates it.
+ */
+public class PropertyNameIndex
+{
+    /**
+     * All the names, sorted.
+     */
+    private final NavigableSet<String> names
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * Parent -&gt; the names directly under that parent.
+     */
+    private final ConcurrentMap<String, NavigableSet<String>> namesByParent
+        = new ConcurrentHashMap<String, NavigableSet<String>>();
+
+    /**
+     * Last segment -&gt; the names ending with that segment.
+     */
+    private final ConcurrentMap<String, NavigableSet<String>> namesBySegment
+        = new ConcurrentHashMap<String, NavigableSet<String>>();
+
+    /**
+     * Adds a name to the index.
+     *
+     * @param name the name of a property
+     */
+    void add(String name)
+    {
+        if (!names.add(name))
+            return;
+
+        int ix = name.lastIndexOf('.');
+        if (ix != -1)
+        {
+            add(namesByParent, name.substring(0, ix), name);
+            add(namesBySegment, name.substring(ix + 1), name);
+        }
+    }
+
+    /**
+     * Removes a name from the index.
+     *
+     * @param name the name of a property
+     */
+    void remove(String name)
+    {
+        if (!names.remove(name))
+            return;
+
+        int ix = name.lastIndexOf('.');
+        if (ix != -1)
+        {
+            remove(namesByParent, name.substring(0, ix), name);
+            remove(namesBySegment, name.substring(ix + 1), name);
+        }
+    }
+
+    /**
+     * Removes all the names from the index.
+     */
+    void clear()
+    {
+        names.clear();
+        namesByParent.clear();
+        namesBySegment.clear();
+    }
+
+    /**
+     * Returns the names starting with a prefix.
+     *
+     * @param prefix the prefix
+     * @param exactPrefixMatch <tt>true</tt> to only return the names whose
+     * part before the last '.' is <tt>prefix</tt>
+     * @return the sorted names
+     */
+    List<String> getNamesByPrefix(String prefix, boolean exactPrefixMatch)
+    {
+        if (exactPrefixMatch)
+            return toList(namesByParent.get(prefix));
+
+        List<String> result = new ArrayList<String>();
+        for (String name : names.tailSet(prefix, true))
+        {
+            if (!name.startsWith(prefix))
+                break;
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names whose part after the last '.' is <tt>suffix</tt>.
+     *
+     * @param suffix the suffix
+     * @return the sorted names
+     */
+    List<String> getNamesBySuffix(String suffix)
+    {
+        return toList(namesBySegment.get(suffix));
+    }
+
+    private static void add(ConcurrentMap<String, NavigableSet<String>> map,
+                            String key,
+                            String name)
+    {
+        NavigableSet<String> set = map.get(key);
+        if (set == null)
+        {
+            set = new ConcurrentSkipListSet<String>();
+            NavigableSet<String> existing = map.putIfAbsent(key, set);
+            if (existing != null)
+                set = existing;
+        }
+        set.add(name);
+    }
+
+    private static void remove(ConcurrentMap<String, NavigableSet<String>> map,
+                               String key,
+                               String name)
+    {
+        NavigableSet<String> set = map.get(key);
+        if (set == null)
+            return;
+
+        set.remove(name);
+        // only the single writer adds names, an empty set stays empty
+        if (set.isEmpty())
+            map.remove(key, set);
+    }
+
+    private static List<String> toList(Set<String> set)
+    {
+        return (set == null)
+            ? new ArrayList<String>()
+            : new ArrayList<String>(set);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * The journal of the changes made to the contact list file since it was last
+ * written. Each record holds the new state of a meta contact or a meta
+ * contact group, or tells that it was removed or renamed, so replaying the
+ * records over the contact list file gives the current contact list even
+ * when some of them were already applied to the file.
+ * <p>
+ * Records are appended to the journal file, each one with its length and a
+ * checksum. A record which was not completely written when the application
+ * stopped is dropped with all the following ones when the journal is read.
+ */
+public class MclStorageJournal
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclStorageJournal.class);
+
+    /**
+     * The record of a meta contact node, with the uid of its parent group.
+     */
+    static final byte PUT_META_CONTACT = 1;
+
+    /**
+     * The record of a removed meta contact.
+     */
+    static final byte REMOVE_META_CONTACT = 2;
+
+    /**
+     * The record of a meta contact group node and all its content, with the
+     * uid of its parent group.
+     */
+    static final byte PUT_GROUP = 3;
+
+    /**
+     * The record of a removed meta contact group.
+     */
+    static final byte REMOVE_GROUP = 4;
+
+    /**
+     * The record of the new name of a meta contact group.
+     */
+    static final byte RENAME_GROUP = 5;
+
+    /**
+     * The maximum length of a record, larger lengths are taken for a corrupt
+     * journal.
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Creates the journal stored in <tt>file</tt>.
+     *
+     * @param file the journal file
+     */
+    MclStorageJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the length of the journal file.
+     *
+     * @return the length of the journal file in bytes
+     */
+    long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Appends records to the journal and waits until they are written to the
+     * disk.
+     *
+     * @param records the records
+     * @throws IOException if the records cannot be written
+     */
+    void append(List<Record> records)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+
+        for (Record record : records)
+        {
+            payload.reset();
+            record.write(new DataOutputStream(payload));
+
+            crc.reset();
+            crc.update(payload.toByteArray());
+
+            out.writeInt(payload.size());
+            out.writeInt((int) crc.getValue());
+            payload.writeTo(out);
+        }
+        out.flush();
+
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try
+        {
+            bytes.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the records of the journal. The end of the journal which does not
+     * hold complete records is cut off.
+     *
+     * @return the records in the order they were appended
+     */
+    List<Record> read()
+    {
+        List<Record> records = new ArrayList<Record>();
+
+        if (!file.exists())
+            return records;
+
+        long fileLength = file.length();
+        long validLength = 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                CRC32 crc = new CRC32();
+                while (true)
+                {
+                    int length;
+                    try
+                    {
+                        length = in.readInt();
+                    }
+                    catch (EOFException e)
+                    {
+                        // a partly written length is cut off as well
+                        if (validLength != fileLength)
+                            throw e;
+                        break;
+                    }
+                    int checksum = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH)
+                        throw new IOException("Bad record length " + length);
+
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum)
+                        throw new IOException("Bad record checksum");
+
+                    records.add(Record.read(new DataInputStream(
+                        new ByteArrayInputStream(payload))));
+                    validLength += 8 + length;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Dropping the end of the contact list journal "
+                + file + " after " + records.size() + " records", e);
+
+            truncate(validLength);
+        }
+
+        return records;
+    }
+
+    /**
+     * Removes all the records of the journal, once the contact list file was
+     * written.
+     *
+     * @throws IOException if the journal cannot be emptied
+     */
+    void clear()
+        throws IOException
+    {
+        if (file.exists() && file.length() != 0)
+            new FileOutputStream(file).close();
+    }
+
+    /**
+     * Removes the journal file.
+     */
+    void delete()
+    {
+        file.delete();
+    }
+
+    /**
+     * Cuts off the end of the journal file.
+     *
+     * @param length the new length of the file
+     */
+    private void truncate(long length)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(length);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to truncate the contact list journal "
+                + file, e);
+        }
+    }
+
+    /**
+     * A change of the contact list.
+     */
+    static class Record
+    {
+        /**
+         * The type of the change, one of the record constants of the journal.
+         */
+        final byte type;
+
+        /**
+         * The uid of the changed meta contact or group.
+         */
+        final String uid;
+
+        /**
+         * The uid of the parent group, or the new name of a renamed group,
+         * <tt>null</tt> for removals.
+         */
+        final String value;
+
+        /**
+         * The xml of the node of a meta contact or a group, <tt>null</tt> for
+         * removals and renames.
+         */
+        final String xml;
+
+        Record(byte type, String uid, String value, String xml)
+        {
+            this.type = type;
+            this.uid = uid;
+            this.value = value;
+            this.xml = xml;
+        }
+
+        private void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeByte(type);
+            out.writeUTF(uid);
+            writeString(out, value);
+            writeString(out, xml);
+            out.flush();
+        }
+
+        private static Record read(DataInputStream in)
+            throws IOException
+        {
+            byte type = in.readByte();
+            if (type < PUT_META_CONTACT || type > RENAME_GROUP)
+                throw new IOException("Bad record type " + type);
+
+            return new Record(type, in.readUTF(), readString(in),
+                readString(in));
+        }
+
+        /**
+         * Writes a string of any length, or <tt>null</tt>, in UTF-8.
+         */
+        private static void writeString(DataOutputStream out, String s)
+            throws IOException
+        {
+            if (s == null)
+            {
+                out.writeInt(-1);
+                return;
+            }
+
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in)
+            throws IOException
+        {
+            int length = in.readInt();
+            if (length < 0)
+                return null;
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+}
@@ -10,6 +10,9 @@ import java.io.*;
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -22,6 +25,7 @@ import org.jitsi.util.xml.*;
 import org.jitsi.util.xml.XMLUtils;
 import org.osgi.framework.*;
 import org.w3c.dom.*;
+import org.xml.sax.*;
 
 /**
  * The class handles read / write operations over the file where a persistent
@@ -73,10 +77,42 @@ public class MclStorageManager
 
     /**
      * Indicates whether there has been a change since the last time we stored
-     * this contact list. Used by the storage methods.
+     * this contact list which is not recorded in the journal, so that the
+     * whole file has to be written. Used by the storage methods.
      */
     private boolean isModified = false;
 
+    /**
+     * The UIDs of the meta contacts changed since their last record in the
+     * journal.
+     */
+    private final Set<String> modifiedMetaContacts
+        = new LinkedHashSet<String>();
+
+    /**
+     * The UIDs of the meta contact groups changed since their last record in
+     * the journal.
+     */
+    private final Set<String> modifiedGroups = new LinkedHashSet<String>();
+
+    /**
+     * The UIDs of the meta contact groups renamed since their last record in
+     * the journal.
+     */
+    private final Set<String> renamedGroups = new LinkedHashSet<String>();
+
+    /**
+     * The meta contact nodes of the document by meta contact UID.
+     */
+    private final Map<String, Element> metaContactNodes
+        = new Hashtable<String, Element>();
+
+    /**
+     * The meta contact group nodes of the document by group UID.
+     */
+    private final Map<String, Element> groupNodes
+        = new Hashtable<String, Element>();
+
     /**
      * A currently valid reference to the OSGI bundle context,
      */
@@ -110,6 +146,25 @@ public class MclStorageManager
      */
     private FailSafeTransaction contactlistTrans = null;
 
+    /**
+     * The journal of the changes made since the contact list file was last
+     * written.
+     */
+    private MclStorageJournal journal = null;
+
+    /**
+     * The suffix of the name of the journal file, which is stored next to the
+     * contact list file.
+     */
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    /**
+     * The size in bytes the journal may reach in any case before the contact
+     * list file is written again. Larger journals are allowed up to half the
+     * size of the contact list file.
+     */
+    private static final long MIN_CHECKPOINT_JOURNAL_SIZE = 64 * 1024;
+
     /**
      * A reference to the MetaContactListServiceImpl that created and started
      * us.
@@ -343,6 +398,9 @@ public class MclStorageManager
             logger.error("The contactlist file can't be found", e);
         }
 
+        journal = new MclStorageJournal(
+            new File(contactlistFile.getPath() + JOURNAL_FILE_SUFFIX));
+
         try
         {
             // load the contact list
@@ -353,6 +411,8 @@ public class MclStorageManager
                 // if the contact list does not exist - create it.
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
+                indexNodes(contactListDocument.getDocumentElement());
+                journal.clear();
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -362,6 +422,12 @@ public class MclStorageManager
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+                    indexNodes(contactListDocument.getDocumentElement());
+
+                    // bring the document up to date with the changes made
+                    // since the file was last written
+                    if (replayJournal(builder))
+                        isModified = true;
                 }
                 catch (Throwable ex)
                 {
@@ -373,6 +439,9 @@ public class MclStorageManager
                     contactlistFile.createNewFile();
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
+                    clearNodeIndex();
+                    indexNodes(contactListDocument.getDocumentElement());
+                    journal.clear();
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
@@ -393,19 +462,52 @@ public class MclStorageManager
     }
 
     /**
-     * Stores the contact list in its current state.
+     * Schedules the storage of a meta contact in its current state, or of its
+     * removal.
      *
-     * @throws IOException if writing fails.
+     * @param metaUID the UID of the meta contact
      */
-    private void scheduleContactListStorage() throws IOException
+    private void scheduleMetaContactStorage(String metaUID)
     {
         synchronized (contactListRWLock)
         {
-            if (!isStarted())
+            if (!isStarted() || metaUID == null)
                 return;
 
-            this.isModified = true;
-            contactListRWLock.notifyAll();
+            modifiedMetaContacts.add(metaUID);
+        }
+    }
+
+    /**
+     * Schedules the storage of a meta contact group and all its content in
+     * their current state, or of the removal of the group.
+     *
+     * @param groupUID the UID of the meta contact group
+     */
+    private void scheduleGroupStorage(String groupUID)
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted() || groupUID == null)
+                return;
+
+            modifiedGroups.add(groupUID);
+        }
+    }
+
+    /**
+     * Schedules the storage of the name of a meta contact group.
+     *
+     * @param groupUID the UID of the meta contact group
+     */
+    private void scheduleGroupNameStorage(String groupUID)
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted() || groupUID == null)
+                return;
+
+            renamedGroups.add(groupUID);
         }
     }
 
@@ -423,38 +525,373 @@ public class MclStorageManager
             logger.trace("storing contact list. because is modified =="
             + isModified);
         if (isStarted())
+            writeContactList();
+    }
+
+    /**
+     * Writes the whole contact list on the hard disk and empties the journal
+     * which it now includes. The pending changes are appended to the journal
+     * first, so that the journal never holds an older state of a node than
+     * the file.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void writeContactList() throws IOException
+    {
+        // the journal is replayed over the file written here should we stop
+        // before it is cleared, so it has to hold every change of the
+        // document or its stale records would undo the other changes
+        try
         {
-            // begin a new transaction
-            try
+            List<MclStorageJournal.Record> records = createJournalRecords();
+
+            if (!records.isEmpty())
+                journal.append(records);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to write the contact list journal", ex);
+            journal.clear();
+        }
+
+        // begin a new transaction
+        try
+        {
+            contactlistTrans.beginTransaction();
+        }
+        catch (IllegalStateException e)
+        {
+            logger.error("the contactlist file is missing", e);
+        }
+
+        // really write the modification
+        OutputStream stream = new FileOutputStream(contactlistFile);
+        XMLUtils.indentedWriteXML(contactListDocument, stream);
+        stream.close();
+
+        // commit the changes
+        try
+        {
+            contactlistTrans.commit();
+        }
+        catch (IllegalStateException e)
+        {
+            logger.error("the contactlist file is missing", e);
+        }
+
+        modifiedMetaContacts.clear();
+        modifiedGroups.clear();
+        renamedGroups.clear();
+        journal.clear();
+    }
+
+    /**
+     * Determines whether there are changes of the contact list which are not
+     * stored yet.
+     *
+     * @return <tt>true</tt> if the contact list has to be stored
+     */
+    private boolean hasModifications()
+    {
+        return isModified
+            || !modifiedMetaContacts.isEmpty()
+            || !modifiedGroups.isEmpty()
+            || !renamedGroups.isEmpty();
+    }
+
+    /**
+     * Appends the changes of the contact list to the journal, or writes the
+     * whole contact list when the journal grew large compared to it.
+     *
+     * @throws IOException in case writing the contact list fails.
+     */
+    private void storeModifications() throws IOException
+    {
+        if (isModified)
+        {
+            storeContactList0();
+            isModified = false;
+            return;
+        }
+
+        try
+        {
+            List<MclStorageJournal.Record> records = createJournalRecords();
+
+            if (!records.isEmpty())
+                journal.append(records);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to write the contact list journal", ex);
+            storeContactList0();
+            return;
+        }
+
+        modifiedMetaContacts.clear();
+        modifiedGroups.clear();
+        renamedGroups.clear();
+
+        if (journal.length() > Math.max(MIN_CHECKPOINT_JOURNAL_SIZE,
+                                        contactlistFile.length() / 2))
+            storeContactList0();
+    }
+
+    /**
+     * Creates the journal records of the changed meta contacts and groups,
+     * from the current state of their nodes. The groups come first as they
+     * may be the parents of the meta contacts.
+     *
+     * @return the records of the changes
+     * @throws IOException if a node cannot be serialized
+     */
+    private List<MclStorageJournal.Record> createJournalRecords()
+        throws IOException
+    {
+        List<MclStorageJournal.Record> records
+            = new ArrayList<MclStorageJournal.Record>();
+
+        for (String uid : modifiedGroups)
+        {
+            Element groupNode = findMetaContactGroupNode(uid);
+
+            if (groupNode == null)
+            {
+                records.add(new MclStorageJournal.Record(
+                    MclStorageJournal.REMOVE_GROUP, uid, null, null));
+            }
+            else
+            {
+                Element parentGroupNode = findParentGroupNode(groupNode);
+
+                records.add(new MclStorageJournal.Record(
+                    MclStorageJournal.PUT_GROUP, uid,
+                    (parentGroupNode == null)
+                        ? null
+                        : parentGroupNode.getAttribute(UID_ATTR_NAME),
+                    toXml(groupNode)));
+            }
+        }
+        for (String uid : renamedGroups)
+        {
+            Element groupNode = findMetaContactGroupNode(uid);
+
+            if (groupNode != null && !modifiedGroups.contains(uid))
             {
-                contactlistTrans.beginTransaction();
+                records.add(new MclStorageJournal.Record(
+                    MclStorageJournal.RENAME_GROUP, uid,
+                    groupNode.getAttribute(GROUP_NAME_ATTR_NAME), null));
             }
-            catch (IllegalStateException e)
+        }
+        for (String uid : modifiedMetaContacts)
+        {
+            Element metaContactNode = findMetaContactNode(uid);
+
+            if (metaContactNode == null)
             {
-                logger.error("the contactlist file is missing", e);
+                records.add(new MclStorageJournal.Record(
+                    MclStorageJournal.REMOVE_META_CONTACT, uid, null, null));
             }
+            else
+            {
+                Element parentGroupNode = findParentGroupNode(metaContactNode);
 
-            // really write the modification
-            OutputStream stream = new FileOutputStream(contactlistFile);
-            XMLUtils.indentedWriteXML(contactListDocument, stream);
-            stream.close();
+                if (parentGroupNode == null)
+                    continue;
 
-            // commit the changes
+                records.add(new MclStorageJournal.Record(
+                    MclStorageJournal.PUT_META_CONTACT, uid,
+                    parentGroupNode.getAttribute(UID_ATTR_NAME),
+                    toXml(metaContactNode)));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Applies the records of the journal to the contact list document.
+     *
+     * @param builder the builder to parse the nodes of the records with
+     * @return <tt>true</tt> if the journal had records
+     */
+    private boolean replayJournal(DocumentBuilder builder)
+    {
+        List<MclStorageJournal.Record> records = journal.read();
+
+        for (MclStorageJournal.Record record : records)
+        {
             try
             {
-                contactlistTrans.commit();
+                applyJournalRecord(record, builder);
+            }
+            catch (Exception ex)
+            {
+                logger.error("Failed to apply the contact list journal record"
+                    + " for " + record.uid, ex);
             }
-            catch (IllegalStateException e)
+        }
+
+        if (logger.isInfoEnabled() && !records.isEmpty())
+            logger.info("Applied " + records.size()
+                + " contact list journal records");
+
+        return !records.isEmpty();
+    }
+
+    /**
+     * Applies a record of the journal to the contact list document. Records
+     * which were already applied to the document leave it unchanged.
+     *
+     * @param record the record
+     * @param builder the builder to parse the node of the record with
+     * @throws Exception if the node of the record cannot be parsed
+     */
+    private void applyJournalRecord(MclStorageJournal.Record record,
+                                    DocumentBuilder builder)
+        throws Exception
+    {
+        switch (record.type)
+        {
+        case MclStorageJournal.PUT_META_CONTACT:
+        case MclStorageJournal.PUT_GROUP:
+            boolean isGroup = (record.type == MclStorageJournal.PUT_GROUP);
+            Element node = (Element) contactListDocument.importNode(
+                builder.parse(new InputSource(new StringReader(record.xml)))
+                    .getDocumentElement(),
+                true);
+            Element oldNode = isGroup
+                ? findMetaContactGroupNode(record.uid)
+                : findMetaContactNode(record.uid);
+            Element parentNode;
+
+            if (record.value == null)
             {
-                logger.error("the contactlist file is missing", e);
+                parentNode = contactListDocument.getDocumentElement();
             }
+            else
+            {
+                Element parentGroupNode
+                    = findMetaContactGroupNode(record.value);
+
+                if (parentGroupNode == null)
+                    return;
+
+                parentNode = XMLUtils.findChild(parentGroupNode,
+                    isGroup ? SUBGROUPS_NODE_NAME : CHILD_CONTACTS_NODE_NAME);
+            }
+
+            if (oldNode != null)
+                removeNodesFromIndex(oldNode);
+            // the node may hold meta contacts or groups which were moved in
+            // it and which are still at their previous place
+            removeIndexedNodes(node);
+
+            if (oldNode == null || oldNode.getParentNode() == null)
+            {
+                parentNode.appendChild(node);
+            }
+            else
+            {
+                if (oldNode.getParentNode() == parentNode)
+                {
+                    parentNode.replaceChild(node, oldNode);
+                }
+                else
+                {
+                    oldNode.getParentNode().removeChild(oldNode);
+                    parentNode.appendChild(node);
+                }
+            }
+            indexNodes(node);
+            break;
+        case MclStorageJournal.REMOVE_META_CONTACT:
+        case MclStorageJournal.REMOVE_GROUP:
+            Element removedNode
+                = (record.type == MclStorageJournal.REMOVE_GROUP)
+                    ? findMetaContactGroupNode(record.uid)
+                    : findMetaContactNode(record.uid);
+
+            if (removedNode != null)
+            {
+                removeNodesFromIndex(removedNode);
+                removedNode.getParentNode().removeChild(removedNode);
+            }
+            break;
+        case MclStorageJournal.RENAME_GROUP:
+            Element groupNode = findMetaContactGroupNode(record.uid);
+
+            if (groupNode != null)
+                groupNode.setAttribute(GROUP_NAME_ATTR_NAME, record.value);
+            break;
+        }
+    }
+
+    /**
+     * Removes from the contact list document the indexed nodes with the same
+     * UIDs as the meta contacts and groups of a subtree.
+     *
+     * @param node the root of the subtree
+     */
+    private void removeIndexedNodes(Element node)
+    {
+        Element indexedNode = null;
+
+        if (META_CONTACT_NODE_NAME.equals(node.getNodeName()))
+            indexedNode = findMetaContactNode(node.getAttribute(UID_ATTR_NAME));
+        else if (GROUP_NODE_NAME.equals(node.getNodeName()))
+            indexedNode = findMetaContactGroupNode(
+                node.getAttribute(GROUP_UID_ATTR_NAME));
+
+        if (indexedNode != null)
+        {
+            removeNodesFromIndex(indexedNode);
+            if (indexedNode.getParentNode() != null)
+                indexedNode.getParentNode().removeChild(indexedNode);
+        }
+
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                removeIndexedNodes((Element) child);
+        }
+    }
+
+    /**
+     * Serializes a node of the contact list document.
+     *
+     * @param node the node
+     * @return the xml of the node
+     * @throws IOException if the node cannot be serialized
+     */
+    private static String toXml(Element node)
+        throws IOException
+    {
+        try
+        {
+            Transformer transformer
+                = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
+                "yes");
+
+            StringWriter writer = new StringWriter();
+            transformer.transform(
+                new DOMSource(node), new StreamResult(writer));
+            return writer.toString();
+        }
+        catch (TransformerException ex)
+        {
+            throw new IOException("Failed to serialize " + node.getNodeName()
+                + ": " + ex.getMessage());
         }
     }
 
     /**
      * Launches a separate thread that waits on the contact list rw lock and
-     * when notified stores the contact list in case there have been
-     * modifications since last time it saved.
+     * every 5 seconds, or when notified, stores the modifications made to the
+     * contact list since last time it saved.
      */
     private void launchStorageThread()
     {
@@ -470,11 +907,8 @@ public class MclStorageManager
                         while (isStarted())
                         {
                             contactListRWLock.wait(5000);
-                            if (isModified)
-                            {
-                                storeContactList0();
-                                isModified = false;
-                            }
+                            if (hasModifications())
+                                storeModifications();
                         }
                     }
                 }
@@ -511,7 +945,11 @@ public class MclStorageManager
             // write the contact list ourselves before we go out..
             try
             {
-                storeContactList0();
+                if (hasModifications())
+                {
+                    writeContactList();
+                    isModified = false;
+                }
             }
             catch (IOException ex)
             {
@@ -631,18 +1069,22 @@ public class MclStorageManager
 
                 initVirginDocument(mclServiceImpl, contactListDocument);
 
-                // write the contact list so that it is there for the parser
-                storeContactList0();
+                synchronized (contactListRWLock)
+                {
+                    clearNodeIndex();
+                    indexNodes(contactListDocument.getDocumentElement());
+
+                    // write the contact list so that it is there for the
+                    // parser
+                    storeContactList0();
+                }
             }
             else
             {
                 // if there is root lets parse it
                 // parse the group node and extract all its child groups and
-                // contacts
+                // contacts. the nodes it removes are scheduled for storage.
                 processGroupXmlNode(mclServiceImpl, accountID, root, null, null);
-
-                // now save the contact list in case it has changed
-                scheduleContactListStorage();
             }
 
         }
@@ -892,6 +1334,10 @@ public class MclStorageManager
                     {
                         currentMetaContactNode.getParentNode().removeChild(
                             currentMetaContactNode);
+                        removeNodesFromIndex((Element) currentMetaContactNode);
+                        scheduleMetaContactStorage(
+                            XMLUtils.getAttribute(
+                                currentMetaContactNode, UID_ATTR_NAME));
                     }
                     catch (Throwable throwable)
                     {
@@ -943,6 +1389,10 @@ public class MclStorageManager
                     {
                         currentGroupNode.getParentNode().removeChild(
                             currentGroupNode);
+                        removeNodesFromIndex((Element) currentGroupNode);
+                        scheduleGroupStorage(
+                            XMLUtils.getAttribute(
+                                currentGroupNode, GROUP_UID_ATTR_NAME));
                     }
                     catch (Throwable thr)
                     {
@@ -1040,6 +1490,11 @@ public class MclStorageManager
         {
             metaContactNode.removeChild(node);
         }
+        if (!duplicates.isEmpty())
+        {
+            scheduleMetaContactStorage(
+                metaContactNode.getAttribute(UID_ATTR_NAME));
+        }
         return protoContacts;
     }
 
@@ -1297,20 +1752,8 @@ public class MclStorageManager
 
         parentGroupNode.appendChild(metaContactElement);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContact(), ex);
-        }
+        indexNodes(metaContactElement);
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1351,20 +1794,8 @@ public class MclStorageManager
 
         subgroupsNode.appendChild(newGroupElement);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContactGroup(), ex);
-        }
+        indexNodes(newGroupElement);
+        scheduleGroupStorage(evt.getSourceMetaContactGroup().getMetaUID());
     }
 
     /**
@@ -1390,20 +1821,8 @@ public class MclStorageManager
         // remove the meta contact node.
         metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing group "
-                + evt.getSourceMetaContactGroup(), ex);
-        }
+        removeNodesFromIndex(metaContactGroupNode);
+        scheduleGroupStorage(evt.getSourceMetaContactGroup().getMetaUID());
     }
 
     /**
@@ -1449,20 +1868,8 @@ public class MclStorageManager
 
         childContacts.appendChild(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving "
-                + evt.getSourceMetaContact(), ex);
-        }
+        indexNodes(metaContactNode);
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
 
     }
 
@@ -1535,20 +1942,8 @@ public class MclStorageManager
         // remove the meta contact node.
         metaContactNode.getParentNode().removeChild(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing "
-                + evt.getSourceMetaContact(), ex);
-        }
+        removeNodesFromIndex(metaContactNode);
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1590,20 +1985,7 @@ public class MclStorageManager
 
         updatePersistentDataForMetaContact(evt.getSourceMetaContact());
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
-        }
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1630,20 +2012,7 @@ public class MclStorageManager
         // i don't think we could do anything else in addition to updating the
         // persistent data.
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after rename of " + evt.getParent(), ex);
-        }
+        scheduleMetaContactStorage(evt.getParent().getMetaUID());
     }
 
     /**
@@ -1776,20 +2145,7 @@ public class MclStorageManager
         if (!isChanged)
             return;
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
-        }
+        scheduleMetaContactStorage(evt.getSourceMetaContact().getMetaUID());
     }
 
     /**
@@ -1818,20 +2174,7 @@ public class MclStorageManager
 
         protoNode.getParentNode().removeChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing proto contact "
-                + evt.getProtoContact(), ex);
-        }
+        scheduleMetaContactStorage(evt.getOldParent().getMetaUID());
     }
 
     /**
@@ -1886,46 +2229,16 @@ public class MclStorageManager
 
             parentNode.appendChild(newGroupElement);
 
-            try
-            {
-                scheduleContactListStorage();
-            }
-            catch (IOException ex)
-            {
-                /**
-                 * given we're being invoked from an event dispatch thread that
-                 * was probably triggered by a net operation - we could not do
-                 * much. so ... log and @todo one day we'll have a global error
-                 * dispatcher
-                 */
-                logger.error(
-                    "Writing CL failed after adding contact " + mcGroup,
-                    ex);
-            }
+            removeNodesFromIndex(mcGroupNode);
+            indexNodes(newGroupElement);
+            scheduleGroupStorage(mcGroup.getMetaUID());
             break;
         case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
             mcGroupNode
                 .setAttribute(GROUP_NAME_ATTR_NAME, mcGroup.getGroupName());
+            scheduleGroupNameStorage(mcGroup.getMetaUID());
             break;
         }
-
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after removing proto group "
-                    + mcGroup.getGroupName(),
-                ex);
-        }
-
     }
 
     /**
@@ -1958,20 +2271,7 @@ public class MclStorageManager
 
         mcNode.appendChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding proto contact "
-                + evt.getProtoContact(), ex);
-        }
+        scheduleMetaContactStorage(evt.getParent().getMetaUID());
 
     }
 
@@ -2016,20 +2316,8 @@ public class MclStorageManager
             .getProtoContact().getParentContactGroup().getUID());
         newMcNode.appendChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving proto contact "
-                + evt.getProtoContact(), ex);
-        }
+        scheduleMetaContactStorage(evt.getOldParent().getMetaUID());
+        scheduleMetaContactStorage(evt.getNewParent().getMetaUID());
     }
 
     /**
@@ -2044,10 +2332,7 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return metaContactNodes.get(metaContactUID);
     }
 
     /**
@@ -2062,10 +2347,99 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return groupNodes.get(metaContactGroupUID);
+    }
+
+    /**
+     * Returns the node of the meta contact group containing the node of a
+     * meta contact or of a meta contact group.
+     *
+     * @param node the node of the meta contact or of the group
+     * @return the node of the parent group or null if <tt>node</tt> is the
+     *         root group or is not in a group.
+     */
+    private Element findParentGroupNode(Element node)
+    {
+        // the parent of the node is the child-contacts or subgroups node
+        Node parent = node.getParentNode();
+
+        if (parent != null)
+            parent = parent.getParentNode();
+
+        return (parent instanceof Element
+                && GROUP_NODE_NAME.equals(parent.getNodeName()))
+            ? (Element) parent
+            : null;
+    }
+
+    /**
+     * Adds the meta contact and group nodes of a subtree of the contact list
+     * document to the indexes of the nodes by UID.
+     *
+     * @param node the root of the subtree
+     */
+    private void indexNodes(Element node)
+    {
+        if (META_CONTACT_NODE_NAME.equals(node.getNodeName()))
+        {
+            metaContactNodes.put(node.getAttribute(UID_ATTR_NAME), node);
+            // a meta contact has no meta contacts or groups inside
+            return;
+        }
+        if (GROUP_NODE_NAME.equals(node.getNodeName()))
+            groupNodes.put(node.getAttribute(GROUP_UID_ATTR_NAME), node);
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                indexNodes((Element) child);
+        }
+    }
+
+    /**
+     * Removes the meta contact and group nodes of a subtree removed from the
+     * contact list document from the indexes of the nodes by UID.
+     *
+     * @param node the root of the subtree
+     */
+    private void removeNodesFromIndex(Element node)
+    {
+        if (META_CONTACT_NODE_NAME.equals(node.getNodeName()))
+        {
+            String uid = node.getAttribute(UID_ATTR_NAME);
+
+            // the uid may already be indexed with a new node
+            if (metaContactNodes.get(uid) == node)
+                metaContactNodes.remove(uid);
+            return;
+        }
+        if (GROUP_NODE_NAME.equals(node.getNodeName()))
+        {
+            String uid = node.getAttribute(GROUP_UID_ATTR_NAME);
+
+            if (groupNodes.get(uid) == node)
+                groupNodes.remove(uid);
+        }
+
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                removeNodesFromIndex((Element) child);
+        }
+    }
+
+    /**
+     * Empties the indexes of the nodes by UID, when the contact list document
+     * is replaced.
+     */
+    private void clearNodeIndex()
+    {
+        metaContactNodes.clear();
+        groupNodes.clear();
     }
 
     /**
@@ -2074,6 +2448,8 @@ public class MclStorageManager
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        if (journal != null)
+            journal.delete();
     }
 
     /**
@@ -379,6 +379,26 @@ public class MetaContactGroupImpl
      * contact exists.
      */
     public MetaContact findMetaContactByMetaUID(String metaUID)
+    {
+        MetaContactImpl candidate
+            = mclServiceImpl.getMetaContactIndex().findCandidate(metaUID);
+
+        if (candidate != null
+                && candidate.getMetaUID().equals(metaUID)
+                && isAncestorOf(candidate))
+            return candidate;
+        return null;
+    }
+
+    /**
+     * Returns a meta contact, a child of this group or its subgroups, that
+     * has the specified metaUID, going through all of them.
+     *
+     * @param metaUID the Meta UID of the contact we're looking for.
+     * @return the MetaContact with the specified UID or null if no such
+     * contact exists.
+     */
+    private MetaContact searchMetaContactByMetaUID(String metaUID)
     {
         //first go through the contacts that are direct children of this method.
         Iterator<MetaContact> contactsIter = getChildContacts();
@@ -398,7 +418,7 @@ public class MetaContactGroupImpl
         {
             MetaContactGroupImpl mGroup = (MetaContactGroupImpl) groupsIter.next();
 
-            MetaContact mContact = mGroup.findMetaContactByMetaUID(metaUID);
+            MetaContact mContact = mGroup.searchMetaContactByMetaUID(metaUID);
 
             if (mContact != null)
                 return mContact;
@@ -558,6 +578,38 @@ public class MetaContactGroupImpl
      * contact.
      */
     public MetaContact findMetaContactByContact(Contact protoContact)
+    {
+        String address = protoContact.getAddress();
+        ProtocolProviderService provider = protoContact.getProtocolProvider();
+        MetaContactImpl found = null;
+
+        for (MetaContactImpl candidate
+                : mclServiceImpl.getMetaContactIndex().findCandidates(
+                    MetaContactIndex.getAccountUID(provider), address))
+        {
+            if (candidate.getContact(address, provider) == null
+                    || !isAncestorOf(candidate))
+                continue;
+
+            // the order of the groups decides which one is returned
+            if (found != null)
+                return searchMetaContactByContact(protoContact);
+            found = candidate;
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns a meta contact, a child of this group or its subgroups, that
+     * has the specified protocol specific contact, going through all of them.
+     *
+     * @param protoContact the protocol specific contact whos meta contact we're
+     * looking for.
+     * @return the MetaContactImpl that contains the specified protocol specific
+     * contact.
+     */
+    private MetaContact searchMetaContactByContact(Contact protoContact)
     {
         //first go through the contacts that are direct children of this method.
         Iterator<MetaContact> contactsIter = getChildContacts();
@@ -580,7 +632,7 @@ public class MetaContactGroupImpl
         {
             MetaContactGroupImpl mGroup = (MetaContactGroupImpl) groupsIter.next();
 
-            MetaContact mContact = mGroup.findMetaContactByContact(
+            MetaContact mContact = mGroup.searchMetaContactByContact(
                                                                 protoContact);
 
             if (mContact != null)
@@ -606,6 +658,41 @@ public class MetaContactGroupImpl
      */
     public MetaContact findMetaContactByContact(String contactAddress,
                                                     String accountID)
+    {
+        MetaContactImpl found = null;
+
+        for (MetaContactImpl candidate
+                : mclServiceImpl.getMetaContactIndex().findCandidates(
+                    accountID, contactAddress))
+        {
+            if (candidate.getContact(contactAddress, accountID) == null
+                    || !isAncestorOf(candidate))
+                continue;
+
+            // the order of the groups decides which one is returned
+            if (found != null)
+                return searchMetaContactByContact(contactAddress, accountID);
+            found = candidate;
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns a meta contact, a child of this group or its subgroups, with
+     * address equald to <tt>contactAddress</tt> and a source protocol provider
+     * with the matching <tt>accountID</tt>, going through all of them.
+     *
+     * @param contactAddress the address of the protocol specific contact whose
+     * meta contact we're looking for.
+     * @param accountID the ID of the account that the contact we are looking
+     * for must belong to.
+     *
+     * @return the MetaContactImpl that contains the specified protocol specific
+     * contact.
+     */
+    private MetaContact searchMetaContactByContact(String contactAddress,
+                                                   String accountID)
     {
         //first go through the contacts that are direct children of this method.
         Iterator<MetaContact> contactsIter = getChildContacts();
@@ -628,7 +715,7 @@ public class MetaContactGroupImpl
         {
             MetaContactGroupImpl mGroup = (MetaContactGroupImpl) groupsIter.next();
 
-            MetaContact mContact = mGroup.findMetaContactByContact(
+            MetaContact mContact = mGroup.searchMetaContactByContact(
                                         contactAddress, accountID);
 
             if (mContact != null)
@@ -699,6 +786,8 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        mclServiceImpl.getMetaContactIndex().addMetaContact(metaContact);
     }
 
     /**
@@ -756,6 +845,28 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+
+        mclServiceImpl.getMetaContactIndex().removeMetaContact(metaContact);
+    }
+
+    /**
+     * Checks whether a meta contact is a child of this group or of its
+     * subgroups.
+     *
+     * @param metaContact the meta contact
+     * @return <tt>true</tt> if this group is an ancestor of
+     * <tt>metaContact</tt>
+     */
+    private boolean isAncestorOf(MetaContactImpl metaContact)
+    {
+        for (MetaContactGroupImpl group = metaContact.getParentGroup();
+                group != null;
+                group = group.parentMetaContactGroup)
+        {
+            if (group == this)
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -966,6 +1077,8 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getMetaContactIndex().addGroup(subgroup);
     }
 
     /**
@@ -983,6 +1096,8 @@ public class MetaContactGroupImpl
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        mclServiceImpl.getMetaContactIndex().removeGroup(subgroup);
+
         return subgroup;
     }
 
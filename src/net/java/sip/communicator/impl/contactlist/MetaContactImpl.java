@@ -675,6 +675,13 @@ public class MetaContactImpl
             // Re-init the default contact.
             defaultContact = null;
 
+            // the whole meta contact is indexed once added to a group
+            if (parentGroup != null)
+            {
+                parentGroup.getMclServiceImpl().getMetaContactIndex()
+                    .addContact(contact, this);
+            }
+
             // if this is our first contact and we don't already have a display
             // name, use theirs.
             if (this.protoContacts.size() == 1
@@ -768,7 +775,11 @@ public class MetaContactImpl
             if (parentGroup != null)
                 parentGroup.lightRemoveMetaContact(this);
             contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
-            this.protoContacts.remove(contact);
+            if (this.protoContacts.remove(contact) && parentGroup != null)
+            {
+                parentGroup.getMclServiceImpl().getMetaContactIndex()
+                    .removeContact(contact, this);
+            }
 
             if (defaultContact == contact)
                 defaultContact = null;
@@ -821,6 +832,13 @@ public class MetaContactImpl
             {
                 contactsIter.remove();
                 modified = true;
+
+                MetaContactGroupImpl parent = parentGroup;
+                if (parent != null)
+                {
+                    parent.getMclServiceImpl().getMetaContactIndex()
+                        .removeContact(contact, this);
+                }
             }
         }
 
@@ -854,6 +872,13 @@ public class MetaContactImpl
             {
                 contactsIter.remove();
                 modified = true;
+
+                MetaContactGroupImpl parent = parentGroup;
+                if (parent != null)
+                {
+                    parent.getMclServiceImpl().getMetaContactIndex()
+                        .removeContact(contact, this);
+                }
             }
         }
 
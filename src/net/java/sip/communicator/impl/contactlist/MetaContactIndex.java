@@ -0,0 +1,269 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts of a contact list by their UIDs and by the
+ * addresses of the protocol contacts they encapsulate, so that they are
+ * found without going through the whole list.
+ * <p>
+ * The index is updated when meta contacts and protocol contacts are added to
+ * the list and removed from it, but a meta contact it returns may not match
+ * any more, or may have left the list, so the callers check the candidates
+ * they get. A protocol contact is indexed under its address and under the
+ * part of its address before the '@', ignoring case, which covers the
+ * addresses <tt>Contact.equals(String)</tt> of the protocols accept.
+ */
+public class MetaContactIndex
+{
+    /**
+     * Account unique ID -&gt; indexed address -&gt; the meta contacts with a
+     * protocol contact of that account under that address. A meta contact is
+     * listed once per such protocol contact.
+     */
+    private final Map<String, Map<String, List<MetaContactImpl>>>
+        contactsByAddress
+            = new HashMap<String, Map<String, List<MetaContactImpl>>>();
+
+    /**
+     * Meta UID -&gt; meta contact.
+     */
+    private final Map<String, MetaContactImpl> contactsByMetaUID
+        = new HashMap<String, MetaContactImpl>();
+
+    /**
+     * Indexes a meta contact added to the list, and its protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    synchronized void addMetaContact(MetaContactImpl metaContact)
+    {
+        contactsByMetaUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            addContact(contacts.next(), metaContact);
+    }
+
+    /**
+     * Removes a meta contact removed from the list, and its protocol
+     * contacts, from the index.
+     *
+     * @param metaContact the meta contact
+     */
+    synchronized void removeMetaContact(MetaContactImpl metaContact)
+    {
+        if (contactsByMetaUID.get(metaContact.getMetaUID()) == metaContact)
+            contactsByMetaUID.remove(metaContact.getMetaUID());
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            removeContact(contacts.next(), metaContact);
+    }
+
+    /**
+     * Indexes the meta contacts of a group added to the list, and those of
+     * its subgroups.
+     *
+     * @param group the group
+     */
+    synchronized void addGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            addMetaContact((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addGroup(subgroups.next());
+    }
+
+    /**
+     * Removes the meta contacts of a group removed from the list, and those
+     * of its subgroups, from the index.
+     *
+     * @param group the group
+     */
+    synchronized void removeGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            removeMetaContact((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup(subgroups.next());
+    }
+
+    /**
+     * Indexes a protocol contact added to a meta contact of the list.
+     *
+     * @param contact the protocol contact
+     * @param metaContact the meta contact
+     */
+    synchronized void addContact(Contact contact, MetaContactImpl metaContact)
+    {
+        Map<String, List<MetaContactImpl>> addresses
+            = contactsByAddress.get(getAccountUID(contact));
+        if (addresses == null)
+        {
+            addresses = new HashMap<String, List<MetaContactImpl>>();
+            contactsByAddress.put(getAccountUID(contact), addresses);
+        }
+
+        for (String key : getContactKeys(contact.getAddress()))
+        {
+            List<MetaContactImpl> metaContacts = addresses.get(key);
+            if (metaContacts == null)
+            {
+                metaContacts = new ArrayList<MetaContactImpl>(1);
+                addresses.put(key, metaContacts);
+            }
+            metaContacts.add(metaContact);
+        }
+    }
+
+    /**
+     * Removes a protocol contact removed from a meta contact of the list
+     * from the index.
+     *
+     * @param contact the protocol contact
+     * @param metaContact the meta contact
+     */
+    synchronized void removeContact(Contact contact,
+                                    MetaContactImpl metaContact)
+    {
+        Map<String, List<MetaContactImpl>> addresses
+            = contactsByAddress.get(getAccountUID(contact));
+        if (addresses == null)
+            return;
+
+        for (String key : getContactKeys(contact.getAddress()))
+        {
+            List<MetaContactImpl> metaContacts = addresses.get(key);
+            if (metaContacts == null)
+                continue;
+
+            // the same meta contact may be listed for other contacts
+            for (int i = 0; i < metaContacts.size(); i++)
+            {
+                if (metaContacts.get(i) == metaContact)
+                {
+                    metaContacts.remove(i);
+                    break;
+                }
+            }
+            if (metaContacts.isEmpty())
+                addresses.remove(key);
+        }
+        if (addresses.isEmpty())
+            contactsByAddress.remove(getAccountUID(contact));
+    }
+
+    /**
+     * Returns the meta contacts which may have a protocol contact of an
+     * account matching an address.
+     *
+     * @param accountUID the unique ID of the account of the protocol contact
+     * @param address the address
+     * @return the candidate meta contacts, each one once
+     */
+    synchronized List<MetaContactImpl> findCandidates(String accountUID,
+                                                      String address)
+    {
+        List<MetaContactImpl> candidates = new ArrayList<MetaContactImpl>(1);
+
+        Map<String, List<MetaContactImpl>> addresses
+            = contactsByAddress.get(accountUID);
+        if (addresses == null)
+            return candidates;
+
+        String key = address.toLowerCase();
+        addCandidates(candidates, addresses.get(key));
+        // the scheme is ignored by some protocols
+        if (key.startsWith("sip:"))
+            addCandidates(candidates, addresses.get(key.substring(4)));
+
+        return candidates;
+    }
+
+    /**
+     * Returns the meta contact which may have a UID.
+     *
+     * @param metaUID the UID
+     * @return the candidate meta contact or <tt>null</tt>
+     */
+    synchronized MetaContactImpl findCandidate(String metaUID)
+    {
+        return contactsByMetaUID.get(metaUID);
+    }
+
+    private static void addCandidates(List<MetaContactImpl> candidates,
+                                      List<MetaContactImpl> metaContacts)
+    {
+        if (metaContacts == null)
+            return;
+
+        for (MetaContactImpl metaContact : metaContacts)
+        {
+            boolean listed = false;
+            for (MetaContactImpl candidate : candidates)
+            {
+                if (candidate == metaContact)
+                {
+                    listed = true;
+                    break;
+                }
+            }
+            if (!listed)
+                candidates.add(metaContact);
+        }
+    }
+
+    /**
+     * Returns the unique ID of the account of a protocol contact.
+     *
+     * @param contact the protocol contact
+     * @return the unique ID of its account
+     */
+    static String getAccountUID(Contact contact)
+    {
+        return getAccountUID(contact.getProtocolProvider());
+    }
+
+    /**
+     * Returns the unique ID of the account of a protocol provider.
+     *
+     * @param provider the protocol provider
+     * @return the unique ID of its account
+     */
+    static String getAccountUID(ProtocolProviderService provider)
+    {
+        return provider.getAccountID().getAccountUniqueID();
+    }
+
+    /**
+     * Returns the keys a protocol contact is indexed under.
+     *
+     * @param address the address of the protocol contact
+     * @return the keys of the address
+     */
+    private static String[] getContactKeys(String address)
+    {
+        String key = address.toLowerCase();
+        int atIndex = key.indexOf('@');
+
+        return (atIndex > 0)
+            ? new String[] { key, key.substring(0, atIndex) }
+            : new String[] { key };
+    }
+}
@@ -14,6 +14,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.util.xml.*;
 import org.osgi.framework.*;
 
@@ -80,6 +81,28 @@ public class MetaContactListServiceImpl
     private final List<MetaContactListListener> metaContactListListeners
         = new Vector<MetaContactListListener>();
 
+    /**
+     * Listeners interested in the presence changes of the meta contacts.
+     */
+    private final List<MetaContactPresenceListener> metaContactPresenceListeners
+        = new Vector<MetaContactPresenceListener>();
+
+    /**
+     * The name of the property holding the time in milliseconds during which
+     * the presence changes of the meta contacts are collected and then
+     * dispatched together. The changes are dispatched one by one when it is
+     * <tt>0</tt>, which is the default.
+     */
+    private static final String PRESENCE_COALESCING_WINDOW_PROP
+        = "net.java.sip.communicator.impl.contactlist"
+            + ".PRESENCE_COALESCING_WINDOW";
+
+    /**
+     * Collects the presence changes of the meta contacts.
+     */
+    private PresenceEventCoalescer presenceEventCoalescer
+        = new PresenceEventCoalescer(this, 0);
+
     /**
      * Contains (as keys) <tt>MetaContactGroup</tt> names that are currently
      * being resolved against a given protocol and that this class's
@@ -114,6 +137,22 @@ public class MetaContactListServiceImpl
      */
     private final MclStorageManager storageManager = new MclStorageManager();
 
+    /**
+     * The meta contacts of the list by UID and by the addresses of their
+     * protocol contacts.
+     */
+    private final MetaContactIndex metaContactIndex = new MetaContactIndex();
+
+    /**
+     * Returns the index of the meta contacts of the list, kept up to date by
+     * the groups and the meta contacts of the list.
+     * @return the index of the meta contacts of the list
+     */
+    MetaContactIndex getMetaContactIndex()
+    {
+        return metaContactIndex;
+    }
+
     /**
      * Creates an instance of this class.
      */
@@ -154,6 +193,17 @@ public class MetaContactListServiceImpl
             logger.debug("Starting the meta contact list implementation.");
         this.bundleContext = bc;
 
+        ConfigurationService configService
+            = ServiceUtils.getService(bc, ConfigurationService.class);
+        if (configService != null)
+        {
+            presenceEventCoalescer
+                = new PresenceEventCoalescer(
+                        this,
+                        configService.getLong(
+                                PRESENCE_COALESCING_WINDOW_PROP, 0));
+        }
+
         //initialize the meta contact list from what has been stored locally.
         try
         {
@@ -200,6 +250,7 @@ public class MetaContactListServiceImpl
      */
     public void stop(BundleContext bc)
     {
+        presenceEventCoalescer.stop();
         storageManager.storeContactListAndStopStorageManager();
         bc.removeServiceListener(this);
 
@@ -1369,6 +1420,37 @@ public class MetaContactListServiceImpl
         }
     }
 
+    /**
+     * Adds a listener for the <tt>MetaContactPresenceEvent</tt>s dispatched
+     * when the presence of meta contacts changes.
+     *
+     * @param listener the listener to add
+     */
+    public void addMetaContactPresenceListener(
+        MetaContactPresenceListener listener)
+    {
+        synchronized (metaContactPresenceListeners)
+        {
+            if(!metaContactPresenceListeners.contains(listener))
+                metaContactPresenceListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes a listener previously added with
+     * <tt>addMetaContactPresenceListener</tt>.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeMetaContactPresenceListener(
+        MetaContactPresenceListener listener)
+    {
+        synchronized (metaContactPresenceListeners)
+        {
+            this.metaContactPresenceListeners.remove(listener);
+        }
+    }
+
     /**
      * Removes the specified <tt>metaContact</tt> as well as all of its
      * underlying contacts.
@@ -3133,7 +3215,8 @@ public class MetaContactListServiceImpl
 
     /**
      * Upon each status notification this method finds the corresponding meta
-     * contact and updates the ordering in its parent group.
+     * contact and hands it to the presence event coalescer, which has the
+     * ordering in its parent group updated.
      * <p>
      * @param evt the ContactPresenceStatusChangeEvent describing the status
      * change.
@@ -3148,21 +3231,98 @@ public class MetaContactListServiceImpl
         if(metaContactImpl == null)
             return;
 
-        int oldContactIndex = metaContactImpl.getParentGroup()
-            .indexOf(metaContactImpl);
+        presenceEventCoalescer.presenceChanged(
+            metaContactImpl,
+            evt.getSourceProvider(),
+            evt.getOldStatus() != evt.getNewStatus()
+                || evt.isResourceChanged());
+    }
+
+    /**
+     * Updates the ordering of the meta contacts whose presence changed in
+     * their parent groups, then notifies the
+     * <tt>MetaContactPresenceListener</tt>s of the changes and the
+     * <tt>MetaContactListListener</tt>s of each reordered group once.
+     *
+     * @param changes the presence changes, one per meta contact
+     */
+    void processPresenceChanges(
+        Collection<PresenceEventCoalescer.Change> changes)
+    {
+        List<MetaContact> changedContacts = new ArrayList<MetaContact>();
+        Map<MetaContactGroup, ProtocolProviderService> reorderedGroups
+            = new LinkedHashMap<MetaContactGroup, ProtocolProviderService>();
+
+        for (PresenceEventCoalescer.Change change : changes)
+        {
+            MetaContactImpl metaContactImpl = change.metaContact;
+            MetaContactGroupImpl parentGroup = metaContactImpl.getParentGroup();
+
+            //ignore if the meta contact was removed in the meantime.
+            if(parentGroup == null)
+                continue;
+
+            int oldContactIndex = parentGroup.indexOf(metaContactImpl);
+
+            int newContactIndex = metaContactImpl.reevalContact();
+
+            if(oldContactIndex != newContactIndex)
+            {
+                reorderedGroups.put(
+                    findParentMetaContactGroup(metaContactImpl),
+                    change.provider);
+            }
+
+            if (change.statusChanged)
+                changedContacts.add(metaContactImpl);
+        }
 
-        int newContactIndex = metaContactImpl.reevalContact();
+        if (!changedContacts.isEmpty() || !reorderedGroups.isEmpty())
+        {
+            fireMetaContactPresenceEvent(
+                new MetaContactPresenceEvent(
+                    this,
+                    changedContacts,
+                    new ArrayList<MetaContactGroup>(reorderedGroups.keySet())));
+        }
 
-        if(oldContactIndex != newContactIndex)
+        for (Map.Entry<MetaContactGroup, ProtocolProviderService> entry
+                : reorderedGroups.entrySet())
         {
             fireMetaContactGroupEvent(
-                findParentMetaContactGroup(metaContactImpl)
-                , evt.getSourceProvider()
+                entry.getKey()
+                , entry.getValue()
                 , null
                 , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
         }
     }
 
+    /**
+     * Notifies all <tt>MetaContactPresenceListener</tt>s of the presence
+     * changes of meta contacts.
+     *
+     * @param event the event to dispatch.
+     */
+    private void fireMetaContactPresenceEvent(MetaContactPresenceEvent event)
+    {
+        MetaContactPresenceListener[] listeners;
+
+        synchronized (metaContactPresenceListeners)
+        {
+            listeners
+                = metaContactPresenceListeners.toArray(
+                        new MetaContactPresenceListener[
+                                metaContactPresenceListeners.size()]);
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Will dispatch the following mcl presence event: "
+                     + event);
+
+        for (MetaContactPresenceListener listener : listeners)
+            listener.metaContactsPresenceChanged(event);
+    }
+
 
     /**
      * The method is called from the storage manager whenever a new contact
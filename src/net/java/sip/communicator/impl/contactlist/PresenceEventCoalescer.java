@@ -0,0 +1,207 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Collects the presence changes of the meta contacts of a contact list and
+ * hands them to the list in batches. The first change of a batch starts a
+ * window during which the following changes join it, a meta contact whose
+ * presence changes several times in the window appearing only once. Without
+ * a window each change is handed on at once.
+ */
+public class PresenceEventCoalescer
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PresenceEventCoalescer.class);
+
+    /**
+     * The contact list receiving the batches.
+     */
+    private final MetaContactListServiceImpl mclServiceImpl;
+
+    /**
+     * The time in milliseconds a batch collects changes, <tt>0</tt> when the
+     * changes are not collected.
+     */
+    private final long window;
+
+    /**
+     * The changes of the current batch by meta contact, in the order of the
+     * first change of each meta contact.
+     */
+    private Map<MetaContactImpl, Change> pendingChanges
+        = new LinkedHashMap<MetaContactImpl, Change>();
+
+    /**
+     * The timer handing the batches on, created with the first batch.
+     */
+    private Timer timer = null;
+
+    /**
+     * Whether the coalescer was stopped.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a coalescer of the presence changes of a contact list.
+     *
+     * @param mclServiceImpl the contact list receiving the batches
+     * @param window the time in milliseconds a batch collects changes,
+     * <tt>0</tt> to hand each change on at once
+     */
+    PresenceEventCoalescer(MetaContactListServiceImpl mclServiceImpl,
+                           long window)
+    {
+        this.mclServiceImpl = mclServiceImpl;
+        this.window = window;
+    }
+
+    /**
+     * Adds a presence change to the current batch.
+     *
+     * @param metaContact the meta contact whose protocol contact changed its
+     * presence
+     * @param provider the provider of the protocol contact
+     * @param statusChanged whether the status or the resources of the
+     * protocol contact changed
+     */
+    void presenceChanged(MetaContactImpl metaContact,
+                         ProtocolProviderService provider,
+                         boolean statusChanged)
+    {
+        if (window <= 0)
+        {
+            mclServiceImpl.processPresenceChanges(
+                Collections.singletonList(
+                    new Change(metaContact, provider, statusChanged)));
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (stopped)
+                return;
+
+            Change change = pendingChanges.get(metaContact);
+            if (change == null)
+            {
+                pendingChanges.put(metaContact,
+                    new Change(metaContact, provider, statusChanged));
+
+                if (pendingChanges.size() == 1)
+                {
+                    if (timer == null)
+                        timer = new Timer(getClass().getName(), true);
+                    timer.schedule(new FlushTask(), window);
+                }
+            }
+            else
+            {
+                change.provider = provider;
+                change.statusChanged |= statusChanged;
+            }
+        }
+    }
+
+    /**
+     * Hands the pending changes on and stops collecting changes.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            stopped = true;
+            if (timer != null)
+            {
+                timer.cancel();
+                timer = null;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Hands the changes of the current batch on to the contact list.
+     */
+    private void flush()
+    {
+        Map<MetaContactImpl, Change> changes;
+
+        synchronized (this)
+        {
+            if (pendingChanges.isEmpty())
+                return;
+
+            changes = pendingChanges;
+            pendingChanges = new LinkedHashMap<MetaContactImpl, Change>();
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Dispatching " + changes.size()
+                + " coalesced presence changes");
+
+        mclServiceImpl.processPresenceChanges(changes.values());
+    }
+
+    /**
+     * Hands the current batch on at the end of its window.
+     */
+    private class FlushTask
+        extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                flush();
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to dispatch presence changes", t);
+            }
+        }
+    }
+
+    /**
+     * The presence changes of a meta contact within a batch.
+     */
+    static class Change
+    {
+        /**
+         * The meta contact.
+         */
+        final MetaContactImpl metaContact;
+
+        /**
+         * The provider of the last changed protocol contact.
+         */
+        ProtocolProviderService provider;
+
+        /**
+         * Whether the status or the resources of a protocol contact changed.
+         */
+        boolean statusChanged;
+
+        Change(MetaContactImpl metaContact,
+               ProtocolProviderService provider,
+               boolean statusChanged)
+        {
+            this.metaContact = metaContact;
+            this.provider = provider;
+            this.statusChanged = statusChanged;
+        }
+    }
+}
@@ -583,8 +583,6 @@ public class MainFrame
 
             presence.addProviderPresenceStatusListener(
                 uiProviderPresenceListener);
-            presence.addContactPresenceStatusListener(
-                GuiActivator.getContactList().getMetaContactListSource());
         }
 
         // Obtain the basic instant messaging operation set.
@@ -729,8 +727,6 @@ public class MainFrame
             if (uiProviderPresenceListener != null)
                 presence.removeProviderPresenceStatusListener(
                     uiProviderPresenceListener);
-            presence.removeContactPresenceStatusListener(
-                GuiActivator.getContactList().getMetaContactListSource());
         }
 
         // Obtain the basic instant messaging operation set.
@@ -34,6 +34,12 @@ public class SearchFilter
      */
     protected Pattern filterPattern;
 
+    /**
+     * The filter string folded to lower case without accents, the way the
+     * <tt>MetaContactSearchIndex</tt> matches it.
+     */
+    private String foldedFilterString;
+
     /**
      * The <tt>MetaContactListSource</tt> to search in.
      */
@@ -97,7 +103,7 @@ public class SearchFilter
             // First add the MetaContactListSource
             filterQuery.addContactQuery(defaultQuery);
 
-            mclSource.startQuery(defaultQuery, filterPattern);
+            mclSource.startQuery(defaultQuery, filterString);
         }
         else if (sourceContactList.getDefaultFilter()
                     .equals(TreeContactList.historyFilter))
@@ -247,6 +253,8 @@ public class SearchFilter
                             | Pattern.CASE_INSENSITIVE
                             | Pattern.UNICODE_CASE);
 
+        this.foldedFilterString = MetaContactSearchIndex.fold(filterString);
+
         this.isSearchingPhoneNumber
             = GuiActivator.getPhoneNumberI18nService().isPhoneNumber(filter);
     }
@@ -259,8 +267,12 @@ public class SearchFilter
      */
     private boolean isMatching(String text)
     {
+        // Also match the text the way the MetaContactListSource query does,
+        // so that the contacts it found are not removed when they change.
         if (filterPattern != null)
-            return filterPattern.matcher(text).find();
+            return filterPattern.matcher(text).find()
+                || MetaContactSearchIndex.fold(text)
+                    .contains(foldedFilterString);
 
         if(isSearchingPhoneNumber && this.filterString != null)
             return GuiActivator.getPhoneNumberI18nService()
@@ -204,6 +204,8 @@ public class TreeContactList
 
         GuiActivator.getContactListService()
             .addMetaContactListListener(mclSource);
+        GuiActivator.getContactListService()
+            .addMetaContactPresenceListener(mclSource);
 
         treeModel = new ContactListTreeModel(this);
 
@@ -10,7 +10,6 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
-import java.util.regex.*;
 
 import javax.swing.*;
 
@@ -38,7 +37,7 @@ import net.java.sip.communicator.util.*;
  * @author Yana Stamcheva
  */
 public class MetaContactListSource
-    implements  ContactPresenceStatusListener,
+    implements  MetaContactPresenceListener,
                 MetaContactListListener
 {
     /**
@@ -84,6 +83,13 @@ public class MetaContactListSource
      */
     private int index = 0;
 
+    /**
+     * The index of the names and addresses of the <tt>MetaContact</tt>s
+     * searched by the queries.
+     */
+    private final MetaContactSearchIndex searchIndex
+        = new MetaContactSearchIndex();
+
     /**
      * The logger.
      */
@@ -191,22 +197,18 @@ public class MetaContactListSource
     /**
      * Starts the query.
      * 
-     * @param filterPattern the pattern to filter through
      * @param query the query to be started
+     * @param filterString the string to filter through
      */
     public void startQuery(final MetaContactQuery query,
-        final Pattern filterPattern)
+        final String filterString)
     {
         new Thread()
         {
             @Override
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+                queryMetaContactSource(filterString, query);
 
                 if (!query.isCanceled())
                     query.fireQueryEvent(
@@ -219,165 +221,98 @@ public class MetaContactListSource
     }
 
     /**
-     * Filters the children in the given <tt>MetaContactGroup</tt> to match the
-     * given <tt>filterPattern</tt> and stores the result in the given
-     * <tt>treeModel</tt>.
-     * @param filterPattern the pattern to filter through
-     * @param parentGroup the <tt>MetaContactGroup</tt> to filter
+     * Looks up the <tt>MetaContact</tt>s matching the given
+     * <tt>filterString</tt> in the search index and adds them to the contact
+     * list, the best matches first.
+     * @param filterString the string to filter through
      * @param query the object that tracks the query
-     * @param resultCount the initial result count we would insert directly to
-     * the contact list without firing events
      */
-    public void queryMetaContactSource(Pattern filterPattern,
-                                        MetaContactGroup parentGroup,
-                                        MetaContactQuery query,
-                                        int resultCount)
+    public void queryMetaContactSource(String filterString,
+                                        MetaContactQuery query)
     {
-        Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
+        List<MetaContact> matchingContacts
+            = searchIndex.search(
+                GuiActivator.getContactListService().getRoot(),
+                filterString);
+        int resultCount = 0;
 
-        while (childContacts.hasNext() && !query.isCanceled())
+        for (MetaContact metaContact : matchingContacts)
         {
-            MetaContact metaContact = childContacts.next();
+            if (query.isCanceled())
+                return;
 
-            if (isMatching(filterPattern, metaContact))
-            {
-                resultCount++;
+            MetaContactGroup parentGroup
+                = metaContact.getParentMetaContactGroup();
 
-                if (resultCount <= INITIAL_CONTACT_COUNT)
+            // The contact has been removed in the meantime.
+            if (parentGroup == null)
+                continue;
+
+            resultCount++;
+
+            if (resultCount <= INITIAL_CONTACT_COUNT)
+            {
+                UIGroup uiGroup = null;
+                if (!MetaContactListSource.isRootGroup(parentGroup))
                 {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
+                    synchronized (parentGroup)
                     {
-                        synchronized (parentGroup)
-                        {
+                        uiGroup = MetaContactListSource
+                            .getUIGroup(parentGroup);
+                        if (uiGroup == null)
                             uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
-
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
+                                .createUIGroup(parentGroup);
                     }
-                    
-                    query.setInitialResultCount(resultCount);
                 }
-                else
+
+                UIContact newUIContact;
+                synchronized (metaContact)
                 {
-                    query.fireQueryEvent(metaContact);
-                }
-            }
-        }
+                    newUIContact 
+                        = MetaContactListSource.getUIContact(metaContact);
 
-        // If in the meantime the query is canceled we return here.
-        if(query.isCanceled())
-            return;
+                    if (newUIContact == null)
+                    {
+                        newUIContact
+                            = MetaContactListSource
+                                .createUIContact(metaContact);
+                    }
 
-        Iterator<MetaContactGroup> subgroups = parentGroup.getSubgroups();
-        while (subgroups.hasNext() && !query.isCanceled())
-        {
-            MetaContactGroup subgroup = subgroups.next();
+                    GuiActivator.getContactList().addContact(
+                        newUIContact,
+                        uiGroup,
+                        true,
+                        true);
+                }
 
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
+                query.setInitialResultCount(resultCount);
+            }
+            else
+            {
+                query.fireQueryEvent(metaContact);
+            }
         }
     }
 
     /**
-     * Checks if the given <tt>metaContact</tt> is matching the given
-     * <tt>filterPattern</tt>.
-     * A <tt>MetaContact</tt> would be matching the filter if one of the
-     * following is true:<br>
-     * - its display name contains the filter string
-     * - at least one of its child protocol contacts has a display name or an
-     * address that contains the filter string.
-     * @param filterPattern the filter pattern to check for matches
-     * @param metaContact the <tt>MetaContact</tt> to check
-     * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
-     * matching the current filter, otherwise returns <tt>false</tt>
+     * Updates the nodes of the <tt>MetaContact</tt>s whose presence changed,
+     * adding or removing them according to the current filter. The groups
+     * reordered by the changes are sorted once each when their
+     * <tt>childContactsReordered</tt> events follow.
+     * @param evt the <tt>MetaContactPresenceEvent</tt> that notified us
      */
-    private boolean isMatching(Pattern filterPattern, MetaContact metaContact)
+    public void metaContactsPresenceChanged(MetaContactPresenceEvent evt)
     {
-        Matcher matcher = filterPattern.matcher(metaContact.getDisplayName());
-
-        if(matcher.find())
-            return true;
-
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
-        {
-            Contact contact = contacts.next();
-
-            matcher = filterPattern.matcher(contact.getDisplayName());
-
-            if (matcher.find())
-                return true;
-
-            matcher = filterPattern.matcher(contact.getAddress());
-
-            if (matcher.find())
-                return true;
-        }
-        return false;
+        for (MetaContact metaContact : evt.getMetaContacts())
+            metaContactPresenceChanged(metaContact);
     }
 
     /**
-     * Checks if the given <tt>metaGroup</tt> is matching the current filter. A
-     * group is matching the current filter only if it contains at least one
-     * child <tt>MetaContact</tt>, which is matching the current filter.
-     * @param filterPattern the filter pattern to check for matches
-     * @param metaGroup the <tt>MetaContactGroup</tt> to check
-     * @return <tt>true</tt> to indicate that the given <tt>metaGroup</tt> is
-     * matching the current filter, otherwise returns <tt>false</tt>
+     * Updates the node of a <tt>MetaContact</tt> whose presence changed.
+     * @param metaContact the <tt>MetaContact</tt>
      */
-    public boolean isMatching(Pattern filterPattern, MetaContactGroup metaGroup)
-    {
-        Iterator<MetaContact> contacts = metaGroup.getChildContacts();
-
-        while (contacts.hasNext())
-        {
-            MetaContact metaContact = contacts.next();
-
-            if (isMatching(filterPattern, metaContact))
-                return true;
-        }
-        return false;
-    }
-
-    public void contactPresenceStatusChanged(
-        ContactPresenceStatusChangeEvent evt)
+    private void metaContactPresenceChanged(MetaContact metaContact)
     {
-        if (evt.getOldStatus() == evt.getNewStatus()
-            && !evt.isResourceChanged())
-        {
-            return;
-        }
-
-        final Contact sourceContact = evt.getSourceContact();
-        final MetaContact metaContact
-            = GuiActivator.getContactListService().findMetaContactByContact(
-                    sourceContact);
-
-        if (metaContact == null)
-            return;
-
         boolean uiContactCreated = false;
 
         UIContactImpl uiContact;
@@ -490,6 +425,8 @@ public class MetaContactListSource
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        searchIndex.update(evt.getSourceMetaContact());
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -551,6 +488,8 @@ public class MetaContactListSource
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.updateGroup(metaGroup);
+
         UIGroup uiGroup;
 
         synchronized (metaGroup)
@@ -628,6 +567,8 @@ public class MetaContactListSource
     {
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.removeGroup(metaGroup);
+
         UIGroup uiGroup;
         synchronized (metaGroup)
         {
@@ -757,6 +698,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.remove(metaContact);
+
         UIContact uiContact;
         synchronized (metaContact)
         {
@@ -777,6 +720,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -832,6 +777,8 @@ public class MetaContactListSource
     {
         final MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.update(metaContact);
+
         UIContact parentUIContact;
         boolean parentUIContactCreated = false;
         synchronized (metaContact)
@@ -889,6 +836,8 @@ public class MetaContactListSource
     {
         MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -917,6 +866,9 @@ public class MetaContactListSource
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
+        searchIndex.update(oldParent);
+        searchIndex.update(newParent);
+
         UIContact oldUIContact;
         synchronized (oldParent)
         {
@@ -989,6 +941,8 @@ public class MetaContactListSource
     {
         final MetaContact oldParent = evt.getOldParent();
 
+        searchIndex.update(oldParent);
+
         UIContactImpl oldUIContact;
         synchronized (oldParent)
         {
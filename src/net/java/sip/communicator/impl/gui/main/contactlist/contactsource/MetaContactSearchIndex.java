@@ -0,0 +1,431 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the names and addresses of the <tt>MetaContact</tt>s of the contact
+ * list so that the contacts matching a filter string are found without
+ * checking every contact.
+ * <p>
+ * The display name of a <tt>MetaContact</tt> and the display names and
+ * addresses of its protocol contacts are folded to lower case without
+ * accents. Every sequence of up to {@link #GRAM_LENGTH} characters of the
+ * folded strings points to the contacts containing it, so that a short
+ * filter string is looked up directly and a longer one only checks the
+ * contacts containing its rarest sequence. The index is built from the
+ * contact list the first time it is searched and is then kept up to date by
+ * the <tt>MetaContactListSource</tt> as it is notified of the changes of the
+ * contact list.
+ */
+public class MetaContactSearchIndex
+{
+    /**
+     * The maximum length of the indexed sequences of characters.
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The folded strings of the indexed contacts.
+     */
+    private final Map<MetaContact, String[]> fields
+        = new HashMap<MetaContact, String[]>();
+
+    /**
+     * The indexed contacts by the sequences of characters their folded
+     * strings contain.
+     */
+    private final Map<String, Set<MetaContact>> grams
+        = new HashMap<String, Set<MetaContact>>();
+
+    /**
+     * Whether the index was built from the contact list.
+     */
+    private boolean built = false;
+
+    /**
+     * Returns the contacts matching a filter string, the best matches first:
+     * the contacts with a name or an address starting with the filter string,
+     * then those with a word starting with it, then the other ones, each
+     * ordered by display name.
+     *
+     * @param root the root group of the contact list, from which the index is
+     * built if it was not built yet
+     * @param filterString the filter string
+     * @return the matching contacts
+     */
+    public synchronized List<MetaContact> search(MetaContactGroup root,
+                                                 String filterString)
+    {
+        if (!built)
+        {
+            addGroup(root);
+            built = true;
+        }
+
+        String query = fold(filterString);
+        Collection<MetaContact> candidates;
+        boolean verify;
+
+        if (query.length() == 0)
+        {
+            candidates = fields.keySet();
+            verify = false;
+        }
+        else if (query.length() <= GRAM_LENGTH)
+        {
+            candidates = grams.get(query);
+            verify = false;
+        }
+        else
+        {
+            // the contacts containing the rarest sequence of the query
+            candidates = null;
+            for (int i = 0; i + GRAM_LENGTH <= query.length(); i++)
+            {
+                Set<MetaContact> gramContacts
+                    = grams.get(query.substring(i, i + GRAM_LENGTH));
+
+                if (gramContacts == null)
+                {
+                    candidates = null;
+                    break;
+                }
+                if ((candidates == null)
+                        || (gramContacts.size() < candidates.size()))
+                    candidates = gramContacts;
+            }
+            verify = true;
+        }
+
+        if (candidates == null)
+            return new ArrayList<MetaContact>();
+
+        List<Match> matches = new ArrayList<Match>(candidates.size());
+
+        for (MetaContact metaContact : candidates)
+        {
+            String[] contactFields = fields.get(metaContact);
+            int rank = getRank(contactFields, query);
+
+            if (!verify || (rank < Match.NO_MATCH))
+                matches.add(new Match(metaContact, contactFields[0], rank));
+        }
+        Collections.sort(matches);
+
+        List<MetaContact> result = new ArrayList<MetaContact>(matches.size());
+
+        for (Match match : matches)
+            result.add(match.metaContact);
+        return result;
+    }
+
+    /**
+     * Indexes a contact again after it was added or changed, or removes it if
+     * it is no longer in the contact list.
+     *
+     * @param metaContact the contact
+     */
+    public synchronized void update(MetaContact metaContact)
+    {
+        if (!built)
+            return;
+
+        removeContact(metaContact);
+        if (metaContact.getParentMetaContactGroup() != null)
+            addContact(metaContact);
+    }
+
+    /**
+     * Removes a contact removed from the contact list from the index.
+     *
+     * @param metaContact the contact
+     */
+    public synchronized void remove(MetaContact metaContact)
+    {
+        if (built)
+            removeContact(metaContact);
+    }
+
+    /**
+     * Indexes the contacts of a group added to the contact list, and of its
+     * subgroups.
+     *
+     * @param metaGroup the group
+     */
+    public synchronized void updateGroup(MetaContactGroup metaGroup)
+    {
+        if (!built)
+            return;
+
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+
+        while (childContacts.hasNext())
+        {
+            MetaContact metaContact = childContacts.next();
+
+            removeContact(metaContact);
+            addContact(metaContact);
+        }
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+
+        while (subgroups.hasNext())
+            updateGroup(subgroups.next());
+    }
+
+    /**
+     * Removes the contacts of a group removed from the contact list, and of
+     * its subgroups, from the index.
+     *
+     * @param metaGroup the group
+     */
+    public synchronized void removeGroup(MetaContactGroup metaGroup)
+    {
+        if (!built)
+            return;
+
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+
+        while (childContacts.hasNext())
+            removeContact(childContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+
+        while (subgroups.hasNext())
+            removeGroup(subgroups.next());
+    }
+
+    /**
+     * Folds a string to lower case without accents, the way the indexed
+     * strings and the filter strings are compared.
+     *
+     * @param s the string to fold
+     * @return the folded string
+     */
+    public static String fold(String s)
+    {
+        if (s == null)
+            return "";
+
+        boolean ascii = true;
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (s.charAt(i) >= 0x80)
+            {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii)
+            return s.toLowerCase(Locale.ENGLISH);
+
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+
+        for (int i = 0; i < decomposed.length(); i++)
+        {
+            char c = decomposed.charAt(i);
+
+            if (Character.getType(c) != Character.NON_SPACING_MARK)
+                folded.append(c);
+        }
+        return folded.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Indexes the contacts of a group and of its subgroups.
+     *
+     * @param metaGroup the group
+     */
+    private void addGroup(MetaContactGroup metaGroup)
+    {
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+
+        while (childContacts.hasNext())
+            addContact(childContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+
+        while (subgroups.hasNext())
+            addGroup(subgroups.next());
+    }
+
+    /**
+     * Indexes a contact which is not indexed.
+     *
+     * @param metaContact the contact
+     */
+    private void addContact(MetaContact metaContact)
+    {
+        List<String> contactFields = new ArrayList<String>();
+
+        contactFields.add(fold(metaContact.getDisplayName()));
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+
+        while (contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+
+            contactFields.add(fold(contact.getDisplayName()));
+            contactFields.add(fold(contact.getAddress()));
+        }
+
+        String[] folded = contactFields.toArray(new String[0]);
+
+        fields.put(metaContact, folded);
+        for (String gram : getGrams(folded))
+        {
+            Set<MetaContact> gramContacts = grams.get(gram);
+
+            if (gramContacts == null)
+            {
+                gramContacts = new HashSet<MetaContact>();
+                grams.put(gram, gramContacts);
+            }
+            gramContacts.add(metaContact);
+        }
+    }
+
+    /**
+     * Removes a contact from the index if it is indexed.
+     *
+     * @param metaContact the contact
+     */
+    private void removeContact(MetaContact metaContact)
+    {
+        String[] folded = fields.remove(metaContact);
+
+        if (folded == null)
+            return;
+
+        for (String gram : getGrams(folded))
+        {
+            Set<MetaContact> gramContacts = grams.get(gram);
+
+            if ((gramContacts != null)
+                    && gramContacts.remove(metaContact)
+                    && gramContacts.isEmpty())
+                grams.remove(gram);
+        }
+    }
+
+    /**
+     * Returns the sequences of up to {@link #GRAM_LENGTH} characters of
+     * folded strings.
+     *
+     * @param folded the folded strings
+     * @return the sequences of characters
+     */
+    private static Set<String> getGrams(String[] folded)
+    {
+        Set<String> result = new HashSet<String>();
+
+        for (String s : folded)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                int end = Math.min(i + GRAM_LENGTH, s.length());
+
+                for (int j = i + 1; j <= end; j++)
+                    result.add(s.substring(i, j));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns how well the folded strings of a contact match a folded filter
+     * string.
+     *
+     * @param folded the folded strings
+     * @param query the folded filter string
+     * @return {@link Match#PREFIX}, {@link Match#WORD_PREFIX},
+     * {@link Match#SUBSTRING} or {@link Match#NO_MATCH}
+     */
+    private static int getRank(String[] folded, String query)
+    {
+        int rank = Match.NO_MATCH;
+
+        for (String s : folded)
+        {
+            int index = s.indexOf(query);
+
+            while ((index >= 0) && (rank > Match.PREFIX))
+            {
+                if (index == 0)
+                    rank = Match.PREFIX;
+                else if (!Character.isLetterOrDigit(s.charAt(index - 1)))
+                    rank = Math.min(rank, Match.WORD_PREFIX);
+                else
+                    rank = Math.min(rank, Match.SUBSTRING);
+                index = s.indexOf(query, index + 1);
+            }
+            if (rank == Match.PREFIX)
+                break;
+        }
+        return rank;
+    }
+
+    /**
+     * A contact matching a filter string.
+     */
+    private static class Match
+        implements Comparable<Match>
+    {
+        /**
+         * A name or an address of the contact starts with the filter string.
+         */
+        static final int PREFIX = 0;
+
+        /**
+         * A word of a name or an address of the contact starts with the
+         * filter string.
+         */
+        static final int WORD_PREFIX = 1;
+
+        /**
+         * A name or an address of the contact contains the filter string.
+         */
+        static final int SUBSTRING = 2;
+
+        /**
+         * The contact does not match the filter string.
+         */
+        static final int NO_MATCH = 3;
+
+        final MetaContact metaContact;
+
+        /**
+         * The folded display name of the contact.
+         */
+        final String displayName;
+
+        final int rank;
+
+        Match(MetaContact metaContact, String displayName, int rank)
+        {
+            this.metaContact = metaContact;
+            this.displayName = displayName;
+            this.rank = rank;
+        }
+
+        public int compareTo(Match other)
+        {
+            if (rank != other.rank)
+                return (rank < other.rank) ? -1 : 1;
+            return displayName.compareTo(other.displayName);
+        }
+    }
+}
@@ -62,6 +62,9 @@ public class DBStructSerializer {
         doc.appendChild(root);
 
         XMLUtils.writeXML(doc, dbDatFile);
+
+        // writing the file in place does not change its directory
+        this.historyService.historyDirectoryChanged(dbDatFile.getParentFile());
     }
 
     private Element createIDTag(Document doc, HistoryID historyID)
@@ -129,8 +132,34 @@ public class DBStructSerializer {
         HistoryID id = loadID(root);
         HistoryRecordStructure structure = loadStructure(root);
 
-        return new HistoryImpl(id, dbDatFile.getParentFile(), structure,
-                historyService);
+        return historyService.createHistoryImpl(
+                id, dbDatFile.getParentFile(), structure);
+    }
+
+    /**
+     * Parses the identifier of the history described by a dbstruct file.
+     *
+     * @param doc the parsed dbstruct file
+     * @return the identifier of the history
+     * @throws ParseException if there is no identifier in the file
+     */
+    HistoryID readID(Document doc)
+        throws ParseException
+    {
+        return loadID(doc.getFirstChild());
+    }
+
+    /**
+     * Parses the structure of the history described by a dbstruct file.
+     *
+     * @param doc the parsed dbstruct file
+     * @return the structure of the history
+     * @throws ParseException if there is no structure in the file
+     */
+    HistoryRecordStructure readStructure(Document doc)
+        throws ParseException
+    {
+        return loadStructure(doc.getFirstChild());
     }
 
     /**
@@ -0,0 +1,481 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * The directories of the histories with the names of their subdirectories
+ * and data files, and the identifier and the structure of the history they
+ * hold. Looking up the histories reads the catalog instead of listing every
+ * directory and parsing every dbstruct file.
+ * <p>
+ * A directory lists again its content only when its modification time
+ * changed, which happens when files or subdirectories are added, removed or
+ * renamed in it. A directory which was modified shortly before it was
+ * listed may be modified again without a different modification time, it is
+ * listed again until it is old enough. The dbstruct files are written in
+ * place, the service drops the directories of the files it writes. The
+ * catalog is stored in a file so that it is valid from the start.
+ */
+public class HistoryCatalog
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryCatalog.class);
+
+    /**
+     * The name of the catalog file in the history data directory.
+     */
+    public static final String CATALOG_FILE = "histories.cat";
+
+    /**
+     * The version of the format of the catalog file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The time in milliseconds within which two modifications of a directory
+     * may have the same modification time.
+     */
+    private static final long MODIFICATION_TIME_RESOLUTION = 2000;
+
+    /**
+     * The catalog file.
+     */
+    private final File file;
+
+    /**
+     * The service parsing the dbstruct files.
+     */
+    private final HistoryServiceImpl historyService;
+
+    /**
+     * Parses the dbstruct files.
+     */
+    private final DBStructSerializer structParser;
+
+    /**
+     * Path -&gt; directory. Not <tt>null</tt> once the catalog file was
+     * loaded.
+     */
+    private Map<String, Directory> directories = null;
+
+    /**
+     * Whether the catalog changed since it was stored.
+     */
+    private boolean changed = false;
+
+    /**
+     * Creates the catalog stored in <tt>file</tt>.
+     *
+     * @param file the catalog file
+     * @param historyService the service parsing the dbstruct files
+     */
+    public HistoryCatalog(File file, HistoryServiceImpl historyService)
+    {
+        this.file = file;
+        this.historyService = historyService;
+        this.structParser = new DBStructSerializer(historyService);
+    }
+
+    /**
+     * Returns a directory and all its subdirectories, listing again those
+     * which changed since they were last listed.
+     *
+     * @param root the directory
+     * @return <tt>root</tt> and its subdirectories, each directory followed
+     * by its subdirectories, or an empty list if <tt>root</tt> does not exist.
+     */
+    public synchronized List<Directory> getDirectories(File root)
+    {
+        load();
+
+        List<Directory> result = new ArrayList<Directory>();
+        visit(root, result);
+
+        // forget the directories which were removed
+        Set<String> visited = new HashSet<String>();
+        for (Directory dir : result)
+            visited.add(dir.getFile().getPath());
+
+        String rootPath = root.getPath();
+        String prefix = rootPath + File.separator;
+        Iterator<String> iter = directories.keySet().iterator();
+        while (iter.hasNext())
+        {
+            String path = iter.next();
+            if ((path.equals(rootPath) || path.startsWith(prefix))
+                    && !visited.contains(path))
+            {
+                iter.remove();
+                changed = true;
+            }
+        }
+
+        if (changed)
+            save();
+
+        return result;
+    }
+
+    /**
+     * Drops a directory which changed, and its parents, so that they are
+     * listed again the next time. The catalog is stored at once if the
+     * directory holds a history as the dbstruct file can change without the
+     * modification time of its directory.
+     *
+     * @param dir the directory
+     */
+    public synchronized void invalidate(File dir)
+    {
+        load();
+
+        Directory removed = directories.remove(dir.getPath());
+        for (File parent = dir.getParentFile();
+                parent != null;
+                parent = parent.getParentFile())
+            directories.remove(parent.getPath());
+
+        changed = true;
+        if (removed != null && removed.id != null)
+            save();
+    }
+
+    /**
+     * Visits a directory and its subdirectories.
+     *
+     * @param dir the directory
+     * @param result the visited directories
+     */
+    private void visit(File dir, List<Directory> result)
+    {
+        long lastModified = dir.lastModified();
+        if (lastModified == 0)
+            return;
+
+        Directory directory = directories.get(dir.getPath());
+        if (directory == null
+                || directory.recentlyModified
+                || directory.lastModified != lastModified)
+        {
+            Directory listed = list(dir, lastModified, directory);
+            if (!listed.equals(directory))
+            {
+                directories.put(dir.getPath(), listed);
+                changed = true;
+            }
+            directory = listed;
+        }
+        result.add(directory);
+
+        for (String name : directory.subdirectories)
+            visit(new File(dir, name), result);
+    }
+
+    /**
+     * Lists the content of a directory.
+     *
+     * @param dir the directory
+     * @param lastModified the modification time of the directory
+     * @param previous the previous listing of the directory or <tt>null</tt>
+     * @return the new listing of the directory
+     */
+    private Directory list(File dir, long lastModified, Directory previous)
+    {
+        long now = System.currentTimeMillis();
+        File[] files = dir.listFiles();
+        List<String> subdirectories = new ArrayList<String>();
+        List<String> dataFiles = new ArrayList<String>();
+        String structFile = null;
+
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                String name = f.getName();
+                if (f.isDirectory())
+                    subdirectories.add(name);
+                else if (HistoryServiceImpl.DATA_FILE.equalsIgnoreCase(name))
+                    structFile = name;
+                else if (name.endsWith("." + HistoryImpl.SUPPORTED_FILETYPE)
+                        || name.endsWith(SegmentLog.SEGMENT_SUFFIX))
+                    dataFiles.add(name);
+            }
+        }
+
+        Directory directory = new Directory(dir, lastModified,
+            now - lastModified < MODIFICATION_TIME_RESOLUTION,
+            subdirectories.toArray(new String[subdirectories.size()]),
+            dataFiles.toArray(new String[dataFiles.size()]));
+
+        if (structFile != null)
+        {
+            if (previous != null && previous.id != null)
+            {
+                directory.id = previous.id;
+                directory.propertyNames = previous.propertyNames;
+            }
+            else
+            {
+                File dbDatFile = new File(dir, structFile);
+                try
+                {
+                    Document doc = historyService.parse(dbDatFile);
+
+                    directory.id = structParser.readID(doc);
+                    directory.propertyNames
+                        = structParser.readStructure(doc).getPropertyNames();
+                }
+                catch (Exception e)
+                {
+                    logger.error("Could not load history from file: "
+                        + dbDatFile.getAbsolutePath(), e);
+                }
+            }
+        }
+
+        return directory;
+    }
+
+    /**
+     * Loads the catalog file if not yet loaded. A catalog which cannot be
+     * read is built again.
+     */
+    private void load()
+    {
+        if (directories != null)
+            return;
+
+        directories = new HashMap<String, Directory>();
+
+        if (!file.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != VERSION)
+                    return;
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    Directory directory = new Directory(
+                        new File(in.readUTF()),
+                        in.readLong(),
+                        in.readBoolean(),
+                        readStrings(in),
+                        readStrings(in));
+                    if (in.readBoolean())
+                    {
+                        directory.id = HistoryID.createFromID(readStrings(in));
+                        directory.propertyNames = readStrings(in);
+                    }
+                    directories.put(directory.getFile().getPath(), directory);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Cannot read history catalog " + file, e);
+            directories.clear();
+            file.delete();
+        }
+    }
+
+    /**
+     * Stores the catalog in its file. A catalog which cannot be stored is
+     * only kept in memory and built again the next time.
+     */
+    private void save()
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(VERSION);
+                out.writeInt(directories.size());
+                for (Directory directory : directories.values())
+                {
+                    out.writeUTF(directory.getFile().getPath());
+                    out.writeLong(directory.lastModified);
+                    out.writeBoolean(directory.recentlyModified);
+                    writeStrings(out, directory.subdirectories);
+                    writeStrings(out, directory.dataFiles);
+                    out.writeBoolean(directory.id != null);
+                    if (directory.id != null)
+                    {
+                        writeStrings(out, directory.id.getID());
+                        writeStrings(out, directory.propertyNames);
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Cannot replace " + file);
+            }
+            changed = false;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write history catalog " + file, e);
+            tmp.delete();
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in)
+        throws IOException
+    {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings)
+        throws IOException
+    {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            out.writeUTF(s);
+    }
+
+    /**
+     * A directory of the history data directory.
+     */
+    public static class Directory
+    {
+        private final File file;
+
+        private final long lastModified;
+
+        /**
+         * Whether the directory was modified shortly before it was listed.
+         */
+        private final boolean recentlyModified;
+
+        private final String[] subdirectories;
+
+        private final String[] dataFiles;
+
+        /**
+         * The identifier of the history of the directory, <tt>null</tt> if
+         * it has no dbstruct file or the file cannot be read.
+         */
+        private HistoryID id;
+
+        private String[] propertyNames;
+
+        Directory(File file, long lastModified, boolean recentlyModified,
+                  String[] subdirectories, String[] dataFiles)
+        {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.recentlyModified = recentlyModified;
+            this.subdirectories = subdirectories;
+            this.dataFiles = dataFiles;
+        }
+
+        /**
+         * Checks whether another listing of the same directory is the same
+         * as this one.
+         *
+         * @param obj the other listing
+         * @return <tt>true</tt> if <tt>obj</tt> lists the same content with
+         * the same modification time
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Directory))
+                return false;
+
+            Directory other = (Directory) obj;
+            return file.equals(other.file)
+                && lastModified == other.lastModified
+                && recentlyModified == other.recentlyModified
+                && Arrays.equals(subdirectories, other.subdirectories)
+                && Arrays.equals(dataFiles, other.dataFiles)
+                && ((id == null) ? other.id == null : id.equals(other.id))
+                && Arrays.equals(propertyNames, other.propertyNames);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return file.hashCode();
+        }
+
+        /**
+         * Returns the directory.
+         * @return the directory
+         */
+        public File getFile()
+        {
+            return file;
+        }
+
+        /**
+         * Returns the names of the history data files in the directory, the
+         * xml files and the segments.
+         * @return the names of the data files
+         */
+        public String[] getDataFiles()
+        {
+            return dataFiles;
+        }
+
+        /**
+         * Returns the identifier of the history stored in the directory.
+         * @return the identifier or <tt>null</tt> if the directory holds no
+         * history.
+         */
+        public HistoryID getID()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the structure of the history stored in the directory.
+         * @return a new structure or <tt>null</tt> if the directory holds no
+         * history.
+         */
+        public HistoryRecordStructure getStructure()
+        {
+            return (propertyNames == null)
+                ? null
+                : new HistoryRecordStructure(propertyNames);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Compacts the stored histories on a low priority background thread while
+ * the histories are not used. Runs of small xml files, left by records
+ * inserted in old files or by histories moved or merged, are merged into
+ * files of up to the maximum number of records of the writer, and the
+ * segments of the segment storage engine are rewritten without their
+ * deleted records. The indexes of the compacted histories are rebuilt.
+ */
+public class HistoryCompactor
+    implements Runnable
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryCompactor.class);
+
+    /**
+     * The service of the compacted histories.
+     */
+    private final HistoryServiceImpl historyService;
+
+    /**
+     * The time in milliseconds between two compactions.
+     */
+    private final long interval;
+
+    /**
+     * The time in milliseconds the histories must not have been used before
+     * a history is compacted.
+     */
+    private final long idleTime;
+
+    /**
+     * The last time a history was read or written, except by the compaction.
+     */
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * The thread compacting the histories, <tt>null</tt> when not started or
+     * stopped.
+     */
+    private volatile Thread thread;
+
+    /**
+     * Whether the compactor was stopped.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a compactor of the histories of a service.
+     *
+     * @param historyService the service of the compacted histories
+     * @param interval the time in milliseconds between two compactions, the
+     * first one starts after the same time
+     * @param idleTime the time in milliseconds the histories must not have
+     * been used before a history is compacted
+     */
+    public HistoryCompactor(HistoryServiceImpl historyService,
+                            long interval,
+                            long idleTime)
+    {
+        this.historyService = historyService;
+        this.interval = interval;
+        this.idleTime = idleTime;
+    }
+
+    /**
+     * Starts the thread compacting the histories.
+     */
+    public synchronized void start()
+    {
+        if (thread != null || stopped)
+            return;
+
+        thread = new Thread(this, getClass().getName());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread compacting the histories, a history being compacted
+     * is completed first.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        thread = null;
+        notifyAll();
+    }
+
+    /**
+     * Records that a history is being read or written, which delays the
+     * compaction of the next history.
+     */
+    public void accessed()
+    {
+        if (Thread.currentThread() != thread)
+            lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Compacts the histories every interval.
+     */
+    public void run()
+    {
+        while (waitFor(interval))
+        {
+            try
+            {
+                compact();
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to compact the histories", t);
+            }
+        }
+    }
+
+    /**
+     * Compacts all the histories, each one once the histories are idle.
+     */
+    private void compact()
+    {
+        long reclaimed = 0;
+        int compacted = 0;
+
+        for (History history : historyService.loadHistories())
+        {
+            if (!waitForIdle())
+                break;
+
+            try
+            {
+                long bytes = compact(history);
+                if (bytes != 0)
+                {
+                    reclaimed += bytes;
+                    compacted++;
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to compact history " + history.getID(),
+                    e);
+            }
+        }
+
+        if (compacted > 0 && logger.isInfoEnabled())
+        {
+            logger.info("Compacted " + compacted + " histories, reclaimed "
+                + reclaimed + " bytes");
+        }
+    }
+
+    /**
+     * Compacts a history.
+     *
+     * @param history the history
+     * @return the number of bytes reclaimed
+     * @throws IOException if the history cannot be compacted
+     */
+    private long compact(History history)
+        throws IOException
+    {
+        if (history instanceof SegmentHistoryImpl)
+        {
+            SegmentHistoryImpl segmentHistory = (SegmentHistoryImpl) history;
+
+            long reclaimed = segmentHistory.getLog().compact();
+            if (reclaimed != 0)
+            {
+                // the compacted blocks moved
+                segmentHistory.getKeywordIndex().invalidate();
+                segmentHistory.updateKeywordIndex();
+            }
+            return reclaimed;
+        }
+        else if (history instanceof HistoryImpl)
+        {
+            return ((HistoryWriterImpl) history.getWriter()).mergeFiles();
+        }
+        return 0;
+    }
+
+    /**
+     * Waits until the histories were not used for the idle time.
+     *
+     * @return <tt>false</tt> if the compactor was stopped while waiting
+     */
+    private boolean waitForIdle()
+    {
+        long idle;
+        while ((idle = System.currentTimeMillis() - lastAccess) < idleTime)
+        {
+            if (!waitFor(idleTime - idle))
+                return false;
+        }
+        return waitFor(0);
+    }
+
+    /**
+     * Waits for a time unless the compactor is stopped.
+     *
+     * @param time the time in milliseconds, <tt>0</tt> only checks whether
+     * the compactor was stopped
+     * @return <tt>false</tt> if the compactor was stopped
+     */
+    private synchronized boolean waitFor(long time)
+    {
+        long end = System.currentTimeMillis() + time;
+        long remaining = time;
+
+        while (!stopped && remaining > 0)
+        {
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                stopped = true;
+                thread = null;
+                Thread.currentThread().interrupt();
+            }
+            remaining = end - System.currentTimeMillis();
+        }
+        return !stopped;
+    }
+}
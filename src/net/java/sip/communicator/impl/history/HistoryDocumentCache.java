@@ -0,0 +1,208 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+
+import org.w3c.dom.*;
+
+/**
+ * The documents parsed by the histories of a history service, kept in least
+ * recently used order and limited both in number and in the size of their
+ * files. A cached document is only returned while its file has the length
+ * and modification time it had when the document was cached, so documents
+ * of files changed or moved in the meantime are read again.
+ */
+public class HistoryDocumentCache
+{
+    /**
+     * The maximum number of cached documents.
+     */
+    private final int maxDocuments;
+
+    /**
+     * The maximum size in bytes of the files of the cached documents.
+     */
+    private final long maxSize;
+
+    /**
+     * The cached documents, least recently used first.
+     */
+    private final LinkedHashMap<File, Entry> entries
+        = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    /**
+     * The size of the files of the cached documents.
+     */
+    private long size = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxDocuments the maximum number of cached documents, the cache
+     * is disabled if it is not positive.
+     * @param maxSize the maximum size in bytes of the files of the cached
+     * documents.
+     */
+    public HistoryDocumentCache(int maxDocuments, long maxSize)
+    {
+        this.maxDocuments = maxDocuments;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Checks whether documents are cached at all.
+     * @return <tt>true</tt> if documents are cached.
+     */
+    public boolean isEnabled()
+    {
+        return maxDocuments > 0 && maxSize > 0;
+    }
+
+    /**
+     * Returns the cached document of <tt>file</tt>.
+     *
+     * @param file the file
+     * @return the document or <tt>null</tt> if it is not cached or the file
+     * has changed since it was cached.
+     */
+    public synchronized Document get(File file)
+    {
+        Entry entry = entries.get(file);
+
+        if (entry != null
+                && (entry.length != file.length()
+                    || entry.lastModified != file.lastModified()))
+        {
+            remove(file);
+            entry = null;
+        }
+
+        if (entry == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.document;
+    }
+
+    /**
+     * Caches the document of <tt>file</tt>, which must be equal to the
+     * content of the file, and evicts the least recently used documents if
+     * the limits are exceeded.
+     *
+     * @param file the file
+     * @param document the document of the file
+     */
+    public synchronized void put(File file, Document document)
+    {
+        if (!isEnabled())
+            return;
+
+        remove(file);
+
+        Entry entry
+            = new Entry(document, file.length(), file.lastModified());
+        // files bigger than the whole cache would evict everything else
+        if (entry.length > maxSize)
+            return;
+
+        entries.put(file, entry);
+        size += entry.length;
+
+        Iterator<Entry> iter = entries.values().iterator();
+        while ((entries.size() > maxDocuments || size > maxSize)
+                && iter.hasNext())
+        {
+            Entry eldest = iter.next();
+            iter.remove();
+            size -= eldest.length;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes the document of <tt>file</tt> from the cache.
+     * @param file the file
+     */
+    public synchronized void remove(File file)
+    {
+        Entry entry = entries.remove(file);
+        if (entry != null)
+            size -= entry.length;
+    }
+
+    /**
+     * Removes the documents of the files in <tt>directory</tt> and its
+     * subdirectories.
+     * @param directory the directory
+     */
+    public synchronized void removeAll(File directory)
+    {
+        String prefix = directory.getAbsolutePath() + File.separator;
+
+        Iterator<Map.Entry<File, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<File, Entry> e = iter.next();
+            if (e.getKey().getAbsolutePath().startsWith(prefix))
+            {
+                iter.remove();
+                size -= e.getValue().length;
+            }
+        }
+    }
+
+    /**
+     * Removes all documents from the cache.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the current counters of the cache.
+     * @return the current counters of the cache
+     */
+    public synchronized HistoryCacheStatistics getStatistics()
+    {
+        return new HistoryCacheStatistics(
+            hitCount, missCount, evictionCount, entries.size(), size);
+    }
+
+    /**
+     * A cached document and the state of its file when it was cached.
+     */
+    private static class Entry
+    {
+        final Document document;
+
+        final long length;
+
+        final long lastModified;
+
+        Entry(Document document, long length, long lastModified)
+        {
+            this.document = document;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
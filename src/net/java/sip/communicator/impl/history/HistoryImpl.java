@@ -51,6 +51,53 @@ public class HistoryImpl
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * The keyword index of the records in the history files.
+     */
+    private HistoryKeywordIndex keywordIndex;
+
+    /**
+     * The timestamps and record counts of the history files.
+     */
+    private HistoryTimeIndex timeIndex;
+
+    /**
+     * File name -&gt; the statistics of the file, for the files which did not
+     * change since their statistics were computed. Guarded by
+     * <tt>historyDocuments</tt>.
+     */
+    private final Map<String, FileStatistics> fileStatistics
+        = new HashMap<String, FileStatistics>();
+
+    /**
+     * The statistics of the history, <tt>null</tt> if a file changed since
+     * they were computed. Guarded by <tt>historyDocuments</tt>.
+     */
+    private HistoryStatistics statistics = null;
+
+    /**
+     * The number of changes of the files, statistics computed while a file
+     * changed are not kept. Guarded by <tt>historyDocuments</tt>.
+     */
+    private int fileChanges = 0;
+
+    /**
+     * File name -&gt; the number of times the pending document of the file
+     * was modified by an added record, for the files waiting to be written.
+     * A file written while its document was modified again keeps its
+     * document until it is written again. Guarded by
+     * <tt>historyDocuments</tt>.
+     */
+    private final Map<String, Integer> documentVersions
+        = new HashMap<String, Integer>();
+
+    /**
+     * The lock held while a file is written, so that the files of the
+     * history are written in the order their documents were serialized.
+     * It is not held by the threads adding records.
+     */
+    private final Object fileWriteLock = new Object();
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -162,11 +209,245 @@ public class HistoryImpl
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the keyword index of this history as is, used by the writer
+     * to add the records it writes.
+     * @return the keyword index of this history
+     */
+    synchronized HistoryKeywordIndex getKeywordIndex()
+    {
+        if (keywordIndex == null)
+        {
+            keywordIndex = new HistoryKeywordIndex(
+                new File(directory, HistoryKeywordIndex.INDEX_FILE));
+        }
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the keyword index of this history after indexing the files
+     * which are not indexed yet, so that it can answer queries.
+     * @return the complete keyword index of this history
+     */
+    HistoryKeywordIndex updateKeywordIndex()
+    {
+        HistoryKeywordIndex index = getKeywordIndex();
+
+        List<String> files;
+        synchronized (this.historyDocuments)
+        {
+            files = new ArrayList<String>(this.historyDocuments.keySet());
+        }
+
+        for (final String filename : files)
+        {
+            if (index.isIndexed(filename))
+                continue;
+
+            final HistoryKeywordIndex fileIndex = index;
+            scanRecords(filename, new HistoryRecordScanner.Handler()
+            {
+                public boolean handleRecord(Date timestamp,
+                                            String[] propertyNames,
+                                            String[] propertyValues)
+                {
+                    HistoryRecord record = HistoryReaderImpl.filterByKeyword(
+                        propertyNames, propertyValues, timestamp,
+                        null, null, false);
+
+                    fileIndex.addRecord(filename,
+                        record.getPropertyNames(),
+                        record.getPropertyValues());
+                    return true;
+                }
+            });
+
+            index.setIndexed(filename);
+        }
+        index.flush();
+
+        return index;
+    }
+
+    /**
+     * Returns the time index of the history files.
+     * @return the time index of the history files
+     */
+    private synchronized HistoryTimeIndex getTimeIndex()
+    {
+        if (timeIndex == null)
+        {
+            timeIndex = new HistoryTimeIndex(
+                new File(directory, HistoryTimeIndex.INDEX_FILE));
+        }
+        return timeIndex;
+    }
+
+    /**
+     * Returns the timestamps and the number of records of a history file.
+     *
+     * @param filename the name of the file
+     * @param compute whether to read the file if its entry is missing in the
+     * time index.
+     * @return the entry of the file or <tt>null</tt> if it is not indexed
+     * and <tt>compute</tt> is <tt>false</tt> or the file cannot be read.
+     */
+    HistoryTimeIndex.Entry getTimeRange(String filename, boolean compute)
+    {
+        Object obj;
+        synchronized (this.historyDocuments)
+        {
+            obj = this.historyDocuments.get(filename);
+        }
+
+        // a document which is not written yet
+        if (obj instanceof Document)
+        {
+            HistoryTimeIndex.Entry entry
+                = getTimeIndex().getAppended(filename);
+            if (entry != null)
+                return entry;
+
+            Document doc = (Document) obj;
+            synchronized (doc)
+            {
+                return HistoryTimeIndex.createEntry(doc);
+            }
+        }
+        else if (!(obj instanceof File))
+            return null;
+
+        HistoryTimeIndex.Entry entry
+            = getTimeIndex().get(filename, (File) obj);
+        if (entry != null || !compute)
+            return entry;
+
+        Document doc = getDocumentForFile(filename);
+        if (doc == null)
+            return null;
+
+        // the document may have been modified while it was read
+        entry = getTimeRange(filename, false);
+        if (entry == null)
+        {
+            synchronized (doc)
+            {
+                entry = HistoryTimeIndex.createEntry(doc);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the records of a history file. Documents which are in memory,
+     * because they are cached or not written yet, are read as is, other
+     * files are read without building their document.
+     *
+     * @param filename the name of the file
+     * @param handler the handler of the records
+     */
+    void scanRecords(String filename, HistoryRecordScanner.Handler handler)
+    {
+        this.historyServiceImpl.historyAccessed();
+
+        Object obj;
+        synchronized (this.historyDocuments)
+        {
+            if (!this.historyDocuments.containsKey(filename))
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+            obj = this.historyDocuments.get(filename);
+        }
+
+        Document doc = null;
+        if (obj instanceof Document)
+            doc = (Document) obj;
+        else if (obj instanceof File)
+            doc = this.historyServiceImpl.getDocumentCache().get((File) obj);
+        else
+            return;
+
+        if (doc != null)
+        {
+            new HistoryRecordScanner().scan(doc, handler);
+            return;
+        }
+
+        File file = (File) obj;
+        long length = file.length();
+        long lastModified = file.lastModified();
+        HistoryRecordScanner scanner = new HistoryRecordScanner();
+        try
+        {
+            scanner.scan(file, handler);
+
+            // index the file if it did not change while it was read
+            if (scanner.isComplete()
+                    && length == file.length()
+                    && lastModified == file.lastModified()
+                    && getTimeIndex().get(filename, file) == null)
+            {
+                getTimeIndex().put(filename,
+                    scanner.createTimeIndexEntry(length, lastModified));
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while reading XML document " + file, e);
+
+            // parse the document, fixing it if needed, and pass the records
+            // the handler did not receive yet
+            doc = getDocumentForFile(filename);
+            if (doc != null)
+            {
+                new HistoryRecordScanner().scan(doc,
+                    new SkippingHandler(handler, scanner.getRecordCount()));
+            }
+        }
+    }
+
+    /**
+     * Passes the records after the first <tt>skip</tt> ones to a handler.
+     */
+    private static class SkippingHandler
+        implements HistoryRecordScanner.Handler
+    {
+        private final HistoryRecordScanner.Handler handler;
+
+        private int skip;
+
+        SkippingHandler(HistoryRecordScanner.Handler handler, int skip)
+        {
+            this.handler = handler;
+            this.skip = skip;
+        }
+
+        public boolean handleRecord(Date timestamp,
+                                    String[] propertyNames,
+                                    String[] propertyValues)
+        {
+            if (skip > 0)
+            {
+                skip--;
+                return true;
+            }
+            return handler.handleRecord(
+                timestamp, propertyNames, propertyValues);
+        }
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
         {
             this.historyDocuments.clear();
+            this.documentVersions.clear();
+            getTimeIndex().discardChanges();
+            this.fileStatistics.clear();
+            this.statistics = null;
+            this.fileChanges++;
 
             File[] files = this.directory.listFiles();
             // TODO: Assert: Assert.assertNonNull(files, "The list of files
@@ -202,6 +483,7 @@ public class HistoryImpl
                 retVal.appendChild(retVal.createElement("history"));
 
                 this.historyDocuments.put(filename, retVal);
+                fileChanged(filename);
             }
         }
 
@@ -210,47 +492,490 @@ public class HistoryImpl
 
     protected void writeFile(String filename) throws InvalidParameterException,
             IOException {
+        writeDocument(filename, null);
+    }
+
+    /**
+     * Writes a document changed otherwise than by appending a record to its
+     * file.
+     *
+     * @param filename the name of the file
+     * @param doc the document
+     * @throws InvalidParameterException if the file is not in the history
+     * @throws IOException if the file cannot be written
+     */
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        documentChanged(filename, null);
+        writeDocument(filename, doc);
+    }
+
+    /**
+     * Writes a document to its file. The document is serialized while its
+     * lock is held and the file is written after the lock is released, so
+     * that records are added to the document while it is written.
+     *
+     * @param filename the name of the file
+     * @param doc the document or <tt>null</tt> to write the pending document
+     * of the file, if any
+     * @throws InvalidParameterException if the file is not in the history
+     * @throws IOException if the file cannot be written
+     */
+    private void writeDocument(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
         File file = new File(this.directory, filename);
 
+        synchronized (this.fileWriteLock)
+        {
+            StringWriter xml = new StringWriter();
+            Integer version;
+
+            synchronized (this.historyDocuments)
+            {
+                if (!this.historyDocuments.containsKey(filename))
+                {
+                    throw new InvalidParameterException("The requested "
+                            + "filename does not exist in the document list.");
+                }
+
+                if (doc == null)
+                {
+                    Object obj = this.historyDocuments.get(filename);
+
+                    if (!(obj instanceof Document))
+                        return;
+                    doc = (Document) obj;
+                }
+
+                version = this.documentVersions.get(filename);
+                synchronized (doc)
+                {
+                    XMLUtils.writeXML(doc, xml);
+                }
+            }
+
+            // the records are indexed before they are added to the document,
+            // so the index has all the records of the serialized document
+            getKeywordIndex().flush();
+
+            OutputStream out = new FileOutputStream(file);
+            try
+            {
+                out.write(xml.toString().getBytes("UTF-8"));
+            }
+            finally
+            {
+                out.close();
+            }
+
+            synchronized (this.historyDocuments)
+            {
+                // a record added while the file was written is written with
+                // the next write of the file
+                Integer current = this.documentVersions.get(filename);
+
+                if ((version == null) ? (current == null)
+                        : version.equals(current))
+                {
+                    this.documentVersions.remove(filename);
+                    synchronized (doc)
+                    {
+                        documentWritten(filename, file, doc);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a document modified by an added record to its file. If the
+     * history service writes files behind, the document is kept until it
+     * is written and the caller does not wait for the write.
+     *
+     * @param filename the name of the file
+     * @param doc the document
+     * @param appended the timestamp of the record appended to the document
+     * or <tt>null</tt> if the document was changed otherwise
+     * @throws IOException if the file cannot be written
+     */
+    protected void writeFileLater(String filename, Document doc,
+                                  Date appended)
+        throws IOException
+    {
+        HistoryWriteBehind writeBehind
+            = this.historyServiceImpl.getWriteBehind();
+
+        if (writeBehind == null)
+        {
+            documentChanged(filename, appended);
+            writeDocument(filename, doc);
+            return;
+        }
+
         synchronized (this.historyDocuments)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            // readers use the pending document instead of reading the file
+            this.historyDocuments.put(filename, doc);
+            fileChanged(filename);
+            documentChanged(filename, appended);
+        }
+
+        writeBehind.schedule(
+            this, filename, new File(this.directory, filename));
+    }
+
+    /**
+     * Records a change of the document of a file, so that a write of the
+     * file which started before the change does not mark the document as
+     * written, and updates the time index of the document.
+     *
+     * @param filename the name of the file
+     * @param appended the timestamp of the record appended to the document
+     * or <tt>null</tt> if the document was changed otherwise
+     */
+    private void documentChanged(String filename, Date appended)
+    {
+        synchronized (this.historyDocuments)
+        {
+            Integer version = this.documentVersions.get(filename);
+            this.documentVersions.put(filename,
+                (version == null) ? 1 : version + 1);
+
+            if (appended == null)
+                getTimeIndex().documentChanged(filename);
+            else
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                getTimeIndex().recordAppended(filename,
+                    new File(this.directory, filename), appended.getTime());
             }
+        }
+    }
 
-            Object obj = this.historyDocuments.get(filename);
+    /**
+     * Writes the document of a file if it was not written since its last
+     * modification.
+     *
+     * @param filename the name of the file
+     * @throws IOException if the file cannot be written
+     */
+    void flushFile(String filename)
+        throws IOException
+    {
+        synchronized (this.historyDocuments)
+        {
+            // the history may have been purged in the meantime
+            if (!this.directory.exists()
+                    || !this.historyDocuments.containsKey(filename))
+                return;
+        }
 
-            if (obj instanceof Document)
+        try
+        {
+            writeFile(filename);
+        }
+        catch (InvalidParameterException e)
+        {
+            // purged while the document was waiting for the lock
+        }
+    }
+
+    /**
+     * Drops the documents which are waiting to be written, before the
+     * directory of the history is deleted or moved, waiting for a file which
+     * is being written.
+     */
+    void discardPendingDocuments()
+    {
+        synchronized (this.fileWriteLock)
+        {
+            synchronized (this.historyDocuments)
             {
-                Document doc = (Document) obj;
+                Iterator<Map.Entry<String, Object>> iter
+                    = this.historyDocuments.entrySet().iterator();
 
-                synchronized (doc)
+                while (iter.hasNext())
                 {
-                    XMLUtils.writeXML(doc, file);
+                    Map.Entry<String, Object> entry = iter.next();
+
+                    if (entry.getValue() instanceof Document)
+                    {
+                        iter.remove();
+                        fileChanged(entry.getKey());
+                    }
                 }
+                this.documentVersions.clear();
             }
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Moves a document which was written to its file to the cache of the
+     * service, where it can be evicted like any document which was read, and
+     * updates the time index of the file.
+     *
+     * @param filename the name of the file
+     * @param file the file
+     * @param doc the written document
+     */
+    private void documentWritten(String filename, File file, Document doc)
     {
-        File file = new File(this.directory, filename);
+        this.historyDocuments.put(filename, file);
+        this.historyServiceImpl.getDocumentCache().put(file, doc);
+        getTimeIndex().put(filename, file, doc);
+        fileChanged(filename);
+    }
 
+    /**
+     * Merges runs of consecutive small files into their first file, so that
+     * no merged file has more than <tt>maxRecords</tt> records. The last
+     * file and the file the writer appends to are not merged, nor files
+     * waiting to be written. Must be called with the locks of the writer
+     * held, so that no record is added to or changed in the merged files.
+     *
+     * @param maxRecords the maximum number of records of a merged file
+     * @param currentFile the file of the writer or <tt>null</tt>
+     * @return the number of bytes reclaimed
+     * @throws IOException if a merged file cannot be written, the files
+     * merged before are kept
+     */
+    long mergeFiles(int maxRecords, String currentFile)
+        throws IOException
+    {
+        List<String> files;
         synchronized (this.historyDocuments)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            files = new ArrayList<String>(this.historyDocuments.keySet());
+        }
+        // the writer may still load the last file and append to it
+        if (!files.isEmpty())
+            files.remove(files.size() - 1);
+
+        long reclaimed = 0;
+        List<String> run = new ArrayList<String>();
+        int runRecords = 0;
+
+        for (String filename : files)
+        {
+            HistoryTimeIndex.Entry range = null;
+            boolean mergeable;
+            synchronized (this.historyDocuments)
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                mergeable = !filename.equals(currentFile)
+                    && (this.historyDocuments.get(filename) instanceof File);
+            }
+            if (mergeable)
+                range = getTimeRange(filename, true);
+
+            if (range == null
+                    || runRecords + range.getRecordCount() > maxRecords)
+            {
+                reclaimed += mergeFiles(run);
+                run.clear();
+                runRecords = 0;
+
+                if (range == null || range.getRecordCount() > maxRecords)
+                    continue;
             }
 
+            run.add(filename);
+            runRecords += range.getRecordCount();
+        }
+        reclaimed += mergeFiles(run);
+
+        return reclaimed;
+    }
+
+    /**
+     * Merges the records of consecutive files into the first one and
+     * deletes the others. The merged file is written next to the first file
+     * and then replaces it, and the other files are deleted only after, so
+     * that stopping in between leaves records twice rather than losing
+     * them.
+     *
+     * @param run the files to merge
+     * @return the number of bytes reclaimed
+     * @throws IOException if the merged file cannot be written
+     */
+    private long mergeFiles(List<String> run)
+        throws IOException
+    {
+        if (run.size() < 2)
+            return 0;
+
+        Document merged
+            = this.historyServiceImpl.getDocumentBuilder().newDocument();
+        Element root = merged.createElement("history");
+        merged.appendChild(root);
+
+        long oldSize = 0;
+        for (String filename : run)
+        {
+            Document doc = getDocumentForFile(filename);
+            if (doc == null)
+                return 0;
+
             synchronized (doc)
             {
-                XMLUtils.writeXML(doc, file);
+                NodeList nodes = doc.getElementsByTagName("record");
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    Element record = (Element) nodes.item(i);
+                    Element mergedRecord = merged.createElement("record");
+                    mergedRecord.setAttribute(
+                        "timestamp", record.getAttribute("timestamp"));
+
+                    // only the properties, the indentation of parsed files
+                    // would be indented again
+                    NodeList properties = record.getChildNodes();
+                    for (int j = 0; j < properties.getLength(); j++)
+                    {
+                        Node property = properties.item(j);
+                        if (property.getNodeType() == Node.ELEMENT_NODE)
+                        {
+                            mergedRecord.appendChild(
+                                merged.importNode(property, true));
+                        }
+                    }
+                    root.appendChild(mergedRecord);
+                }
+            }
+            oldSize += new File(this.directory, filename).length();
+        }
+
+        String first = run.get(0);
+        File file = new File(this.directory, first);
+        File tmp = new File(this.directory, first + ".tmp");
+
+        XMLUtils.writeXML(merged, tmp);
+
+        synchronized (this.historyDocuments)
+        {
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                {
+                    tmp.delete();
+                    throw new IOException("Cannot replace " + file);
+                }
+            }
+
+            HistoryDocumentCache cache
+                = this.historyServiceImpl.getDocumentCache();
+            for (String filename : run.subList(1, run.size()))
+            {
+                File mergedFile = new File(this.directory, filename);
+
+                this.historyDocuments.remove(filename);
+                this.documentVersions.remove(filename);
+                cache.remove(mergedFile);
+                fileChanged(filename);
+                mergedFile.delete();
+            }
+
+            synchronized (merged)
+            {
+                documentWritten(first, file, merged);
+            }
+        }
+
+        // the words of the merged files are found again in the first one
+        getKeywordIndex().setNotIndexed(first);
+
+        return oldSize - file.length();
+    }
+
+    /**
+     * Drops the statistics of a file which was created or modified. Must be
+     * called while holding the lock of <tt>historyDocuments</tt>.
+     *
+     * @param filename the name of the file
+     */
+    private void fileChanged(String filename)
+    {
+        this.fileStatistics.remove(filename);
+        this.statistics = null;
+        this.fileChanges++;
+    }
+
+    /**
+     * Returns the statistics of the history. They are kept until a file of
+     * the history changes, and then only the statistics of the changed file
+     * are computed again, from the time index or the pending document of
+     * the file.
+     *
+     * @return the statistics of the history
+     */
+    HistoryStatistics getStatistics()
+    {
+        List<String> files = new ArrayList<String>();
+        int changes;
+
+        synchronized (this.historyDocuments)
+        {
+            if (this.statistics != null)
+                return this.statistics;
+
+            for (String filename : this.historyDocuments.keySet())
+            {
+                if (!this.fileStatistics.containsKey(filename))
+                    files.add(filename);
             }
+            changes = this.fileChanges;
+        }
+
+        Map<String, FileStatistics> computed
+            = new HashMap<String, FileStatistics>();
+        for (String filename : files)
+        {
+            HistoryTimeIndex.Entry range = getTimeRange(filename, true);
+            if (range != null)
+            {
+                computed.put(filename, new FileStatistics(range,
+                    new File(this.directory, filename).length()));
+            }
+        }
+
+        synchronized (this.historyDocuments)
+        {
+            boolean unchanged = (changes == this.fileChanges);
+            if (unchanged)
+                this.fileStatistics.putAll(computed);
+
+            int recordCount = 0;
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            long size = 0;
+
+            for (String filename : this.historyDocuments.keySet())
+            {
+                FileStatistics stats = this.fileStatistics.get(filename);
+                if (stats == null)
+                    stats = computed.get(filename);
+                if (stats == null)
+                    continue;
+
+                recordCount += stats.recordCount;
+                // files with unparsable timestamps do not have a period
+                if (stats.minTimestamp != Long.MIN_VALUE)
+                    first = Math.min(first, stats.minTimestamp);
+                if (stats.maxTimestamp != Long.MAX_VALUE)
+                    last = Math.max(last, stats.maxTimestamp);
+                size += stats.size;
+            }
+
+            HistoryStatistics result = new HistoryStatistics(
+                recordCount,
+                (first == Long.MAX_VALUE) ? null : new Date(first),
+                (last == Long.MIN_VALUE) ? null : new Date(last),
+                size);
+
+            if (unchanged)
+                this.statistics = result;
+
+            return result;
         }
     }
 
@@ -263,6 +988,8 @@ public class HistoryImpl
             throws InvalidParameterException, RuntimeException {
         Document retVal = null;
 
+        this.historyServiceImpl.historyAccessed();
+
         synchronized (this.historyDocuments)
         {
             if (!this.historyDocuments.containsKey(filename))
@@ -279,6 +1006,12 @@ public class HistoryImpl
             } else if (obj instanceof File)
             {
                 File file = (File) obj;
+                HistoryDocumentCache cache
+                    = this.historyServiceImpl.getDocumentCache();
+
+                retVal = cache.get(file);
+                if (retVal != null)
+                    return retVal;
 
                 try {
                     retVal = this.historyServiceImpl.parse(file);
@@ -297,9 +1030,13 @@ public class HistoryImpl
                         return null;
                 }
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
+                // Cache the loaded document for reuse, fixed documents were
+                // written back to the file
+                cache.put(file, retVal);
+
+                HistoryTimeIndex index = getTimeIndex();
+                if (index.get(filename, file) == null)
+                    index.put(filename, file, retVal);
             } else {
                 // TODO: Assert: Assert.fail("Internal error - the data type " +
                 // "should be either Document or File.");
@@ -320,6 +1057,21 @@ public class HistoryImpl
      * @return Document the fixed doc
      */
     public Document getFixedDocument(File file)
+    {
+        return getFixedDocument(this.historyServiceImpl, file);
+    }
+
+    /**
+     * Returns the fixed document as xml Document, keeping the records which
+     * can be parsed, and writes it to the file. Also used to migrate broken
+     * files to the segment storage engine.
+     *
+     * @param historyServiceImpl the service parsing the records
+     * @param file the file trying to fix
+     * @return the fixed doc or <tt>null</tt> if the file cannot be fixed
+     */
+    static Document getFixedDocument(HistoryServiceImpl historyServiceImpl,
+                                     File file)
     {
         log.info("Will try to fix file : " + file);
         StringBuffer resultDocStr = new StringBuffer("<history>");
@@ -338,7 +1090,7 @@ public class HistoryImpl
 
                 String record = getRecordNodeString(line, inReader).toString();
 
-                if (record != null && isValidXML(record))
+                if (record != null && isValidXML(historyServiceImpl, record))
                 {
                     resultDocStr.append(record);
                 }
@@ -355,7 +1107,7 @@ public class HistoryImpl
         try
         {
             Document result =
-                this.historyServiceImpl.parse(new ByteArrayInputStream(
+                historyServiceImpl.parse(new ByteArrayInputStream(
                     resultDocStr.toString().getBytes("UTF-8")));
 
             // parsing is ok . lets overwrite with correct values
@@ -378,7 +1130,7 @@ public class HistoryImpl
      * @param inReader BufferedReader
      * @return StringBuffer
      */
-    private StringBuffer getRecordNodeString(
+    private static StringBuffer getRecordNodeString(
         String startingLine, BufferedReader inReader)
     {
         try
@@ -408,14 +1160,16 @@ public class HistoryImpl
 
     /**
      * Checks whether the given xml is valid
+     * @param historyServiceImpl the service parsing the xml
      * @param str String
      * @return boolean
      */
-    private boolean isValidXML(String str)
+    private static boolean isValidXML(HistoryServiceImpl historyServiceImpl,
+                                      String str)
     {
         try
         {
-            this.historyServiceImpl.parse(
+            historyServiceImpl.parse(
                 new ByteArrayInputStream(str.getBytes("UTF-8")));
         }
         catch (Exception ex)
@@ -426,4 +1180,26 @@ public class HistoryImpl
 
         return true;
     }
+
+    /**
+     * The number of records, the timestamps and the size of a history file.
+     */
+    private static class FileStatistics
+    {
+        final int recordCount;
+
+        final long minTimestamp;
+
+        final long maxTimestamp;
+
+        final long size;
+
+        FileStatistics(HistoryTimeIndex.Entry range, long size)
+        {
+            this.recordCount = range.getRecordCount();
+            this.minTimestamp = range.getMinTimestamp();
+            this.maxTimestamp = range.getMaxTimestamp();
+            this.size = size;
+        }
+    }
 }
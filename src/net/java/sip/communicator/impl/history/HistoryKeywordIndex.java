@@ -0,0 +1,538 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An inverted index of the words stored in a history. The index maps every
+ * word of every property to the storage units (the xml files or the log
+ * blocks) holding a record with that word in that property. Keyword queries
+ * use it to read only the units which may contain matches; the records of
+ * these units are still matched against the keywords, so the index only
+ * needs to return a superset of the matching units.
+ * <p>
+ * Words are runs of letters and digits folded to lower case one character at
+ * a time, which keeps the folding independent of the context. A keyword
+ * matches a unit if each of its words is contained in a word of the unit,
+ * which gives the case-insensitive and prefix matches of the readers (and
+ * any other substring match) without false negatives.
+ * <p>
+ * The index is kept in a journal file in the history directory which is
+ * only appended to by the writers and is loaded on the first query. The
+ * entries are buffered in memory and appended by {@link #flush()}, which
+ * the writers call before they write the records of the entries. A unit
+ * is marked as indexed once all of its records were added, units which are
+ * not marked (for example files written before the index existed) are
+ * indexed by the history before queries are answered.
+ */
+public class HistoryKeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The name of the journal file in the history directory.
+     */
+    public static final String INDEX_FILE = "keywords.idx";
+
+    /**
+     * Journal entries marking a unit as completely indexed.
+     */
+    private static final char INDEXED_ENTRY = 'U';
+
+    /**
+     * Journal entries marking a unit as not completely indexed anymore.
+     */
+    private static final char NOT_INDEXED_ENTRY = 'R';
+
+    /**
+     * Journal entries adding words of a property to a unit.
+     */
+    private static final char WORDS_ENTRY = 'T';
+
+    /**
+     * The number of buffered characters which makes the buffered entries
+     * appended without waiting for a flush.
+     */
+    private static final int MAX_BUFFERED = 64 * 1024;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Property name -&gt; word -&gt; the units containing the word. Not
+     * <tt>null</tt> once the journal was loaded.
+     */
+    private Map<String, SortedMap<String, Set<String>>> words = null;
+
+    /**
+     * The units which are completely indexed.
+     */
+    private final Set<String> indexedUnits = new HashSet<String>();
+
+    /**
+     * The entries not appended to the journal yet, each followed by a new
+     * line.
+     */
+    private final StringBuilder buffered = new StringBuilder();
+
+    /**
+     * Creates the index stored in <tt>file</tt>.
+     * @param file the journal file
+     */
+    public HistoryKeywordIndex(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Checks whether all records of <tt>unit</tt> were indexed.
+     * @param unit the unit
+     * @return <tt>true</tt> if the unit is completely indexed.
+     */
+    public synchronized boolean isIndexed(String unit)
+    {
+        load();
+        return indexedUnits.contains(unit);
+    }
+
+    /**
+     * Marks <tt>unit</tt> as completely indexed. Called for units created
+     * after the index, before their first record is added, and after all
+     * records of an existing unit were added.
+     *
+     * @param unit the unit
+     */
+    public synchronized void setIndexed(String unit)
+    {
+        if (words != null)
+            indexedUnits.add(unit);
+
+        append(INDEXED_ENTRY + "\t" + unit);
+    }
+
+    /**
+     * Marks <tt>unit</tt> as not completely indexed, so that it is indexed
+     * again before the next query. Used when it is not known whether the
+     * index was updated with the last record written to the unit. The mark
+     * is appended to the journal at once.
+     *
+     * @param unit the unit
+     */
+    public synchronized void setNotIndexed(String unit)
+    {
+        if (words != null)
+            indexedUnits.remove(unit);
+
+        append(NOT_INDEXED_ENTRY + "\t" + unit);
+        flush();
+    }
+
+    /**
+     * Adds the words of a record to the index.
+     *
+     * @param unit the unit storing the record
+     * @param propertyNames the property names of the record
+     * @param propertyValues the property values of the record
+     */
+    public synchronized void addRecord(String unit,
+                                       String[] propertyNames,
+                                       String[] propertyValues)
+    {
+        StringBuilder entries = new StringBuilder();
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            List<String> valueWords = tokenize(propertyValues[i]);
+            if (valueWords.isEmpty())
+                continue;
+
+            String field = propertyNames[i];
+            if (entries.length() > 0)
+                entries.append('\n');
+            entries.append(WORDS_ENTRY).append('\t').append(unit)
+                .append('\t').append(field);
+            for (String word : valueWords)
+            {
+                entries.append('\t').append(word);
+                if (words != null)
+                    addWord(field, word, unit);
+            }
+        }
+
+        if (entries.length() > 0)
+            append(entries.toString());
+    }
+
+    /**
+     * Returns the units which may hold records with a <tt>field</tt>
+     * property containing all <tt>keywords</tt>.
+     *
+     * @param field the property to search
+     * @param keywords the keywords
+     * @return the units which may contain matches or <tt>null</tt> if the
+     * index cannot answer the query, for example because a keyword has no
+     * letters or digits.
+     */
+    public synchronized Set<String> findUnits(String field, String[] keywords)
+    {
+        if (field == null || keywords == null || keywords.length == 0)
+            return null;
+
+        load();
+
+        SortedMap<String, Set<String>> fieldWords = words.get(field);
+        Set<String> result = null;
+
+        for (String keyword : keywords)
+        {
+            List<String> keywordWords = tokenize(keyword);
+            if (keywordWords.isEmpty())
+                return null;
+
+            // a keyword word with separators around it in the keyword is a
+            // whole word of the value, the words at the ends of the keyword
+            // may be the end or the start of a word, or any part of it
+            boolean startSeparated
+                = !Character.isLetterOrDigit(keyword.charAt(0));
+            boolean endSeparated
+                = !Character.isLetterOrDigit(
+                    keyword.charAt(keyword.length() - 1));
+
+            for (int i = 0, count = keywordWords.size(); i < count; i++)
+            {
+                Set<String> units
+                    = findUnits(
+                        fieldWords,
+                        keywordWords.get(i),
+                        (i > 0) || startSeparated,
+                        (i < count - 1) || endSeparated);
+
+                if (result == null)
+                    result = units;
+                else
+                    result.retainAll(units);
+
+                if (result.isEmpty())
+                    return result;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the units with a word matching a word of a keyword.
+     *
+     * @param fieldWords the words of the property or <tt>null</tt>
+     * @param keywordWord the word of the keyword
+     * @param wordStart whether the matching words start with
+     * <tt>keywordWord</tt>
+     * @param wordEnd whether the matching words end with <tt>keywordWord</tt>
+     * @return the units
+     */
+    private static Set<String> findUnits(
+            SortedMap<String, Set<String>> fieldWords,
+            String keywordWord,
+            boolean wordStart,
+            boolean wordEnd)
+    {
+        Set<String> units = new HashSet<String>();
+
+        if (fieldWords == null)
+            return units;
+
+        if (wordStart && wordEnd)
+        {
+            Set<String> u = fieldWords.get(keywordWord);
+            if (u != null)
+                units.addAll(u);
+        }
+        else if (wordStart)
+        {
+            // the words starting with the keyword word are adjacent in the
+            // sorted map
+            for (Set<String> u : fieldWords.subMap(
+                    keywordWord, keywordWord + Character.MAX_VALUE).values())
+                units.addAll(u);
+        }
+        else
+        {
+            for (Map.Entry<String, Set<String>> e : fieldWords.entrySet())
+            {
+                String word = e.getKey();
+                if (wordEnd
+                        ? word.endsWith(keywordWord)
+                        : word.contains(keywordWord))
+                    units.addAll(e.getValue());
+            }
+        }
+        return units;
+    }
+
+    /**
+     * Splits a value into lower case words.
+     *
+     * @param value the value
+     * @return the words of the value
+     */
+    static List<String> tokenize(String value)
+    {
+        List<String> result = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+
+        for (int i = 0, length = value.length(); i <= length; i++)
+        {
+            char c = (i < length) ? value.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c))
+            {
+                word.append(Character.toLowerCase(c));
+            }
+            else if (word.length() > 0)
+            {
+                result.add(word.toString());
+                word.setLength(0);
+            }
+        }
+
+        return result;
+    }
+
+    private void addWord(String field, String word, String unit)
+    {
+        SortedMap<String, Set<String>> fieldWords = words.get(field);
+        if (fieldWords == null)
+        {
+            fieldWords = new TreeMap<String, Set<String>>();
+            words.put(field, fieldWords);
+        }
+
+        Set<String> units = fieldWords.get(word);
+        if (units == null)
+        {
+            // most words are found in a single unit
+            units = new HashSet<String>(2);
+            fieldWords.put(word, units);
+        }
+        units.add(unit);
+    }
+
+    /**
+     * Loads the journal if not yet loaded, and rewrites it without
+     * duplicates if it grew much bigger than the index.
+     */
+    private void load()
+    {
+        if (words != null)
+            return;
+
+        flush();
+        words = new HashMap<String, SortedMap<String, Set<String>>>();
+        indexedUnits.clear();
+
+        if (!file.exists())
+            return;
+
+        int entries = 0;
+        int postings = 0;
+        try
+        {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    String[] parts = line.split("\t");
+
+                    if (parts.length == 2 && parts[0].charAt(0) == INDEXED_ENTRY)
+                    {
+                        indexedUnits.add(parts[1]);
+                    }
+                    else if (parts.length == 2
+                                && parts[0].charAt(0) == NOT_INDEXED_ENTRY)
+                    {
+                        indexedUnits.remove(parts[1]);
+                    }
+                    else if (parts.length > 3
+                                && parts[0].charAt(0) == WORDS_ENTRY)
+                    {
+                        for (int i = 3; i < parts.length; i++)
+                        {
+                            addWord(parts[2], parts[i], parts[1]);
+                            entries++;
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // a partially read index would miss matches
+            logger.error("Cannot read keyword index " + file, e);
+            words.clear();
+            indexedUnits.clear();
+            file.delete();
+            return;
+        }
+
+        for (SortedMap<String, Set<String>> fieldWords : words.values())
+        {
+            for (Set<String> units : fieldWords.values())
+                postings += units.size();
+        }
+
+        if (entries > 2 * postings + 1024)
+            compact();
+    }
+
+    /**
+     * Rewrites the journal with a single entry per unit and property.
+     */
+    private void compact()
+    {
+        Map<String, Map<String, StringBuilder>> byUnit
+            = new HashMap<String, Map<String, StringBuilder>>();
+
+        for (Map.Entry<String, SortedMap<String, Set<String>>> fieldEntry
+                : words.entrySet())
+        {
+            for (Map.Entry<String, Set<String>> wordEntry
+                    : fieldEntry.getValue().entrySet())
+            {
+                for (String unit : wordEntry.getValue())
+                {
+                    Map<String, StringBuilder> fields = byUnit.get(unit);
+                    if (fields == null)
+                    {
+                        fields = new HashMap<String, StringBuilder>();
+                        byUnit.put(unit, fields);
+                    }
+
+                    StringBuilder line = fields.get(fieldEntry.getKey());
+                    if (line == null)
+                    {
+                        line = new StringBuilder();
+                        line.append(WORDS_ENTRY).append('\t').append(unit)
+                            .append('\t').append(fieldEntry.getKey());
+                        fields.put(fieldEntry.getKey(), line);
+                    }
+                    line.append('\t').append(wordEntry.getKey());
+                }
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), "UTF-8"));
+            try
+            {
+                for (String unit : indexedUnits)
+                    out.write(INDEXED_ENTRY + "\t" + unit + "\n");
+
+                for (Map<String, StringBuilder> fields : byUnit.values())
+                {
+                    for (StringBuilder line : fields.values())
+                        out.write(line.append('\n').toString());
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Cannot replace " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot compact keyword index " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Buffers entries to append to the journal, appending them if the
+     * buffer is full.
+     *
+     * @param entries the entries, separated by new lines
+     */
+    private void append(String entries)
+    {
+        buffered.append(entries).append('\n');
+        if (buffered.length() >= MAX_BUFFERED)
+            flush();
+    }
+
+    /**
+     * Appends the buffered entries to the journal. If the journal cannot be
+     * written it is removed, which makes the index rebuild itself instead of
+     * missing records.
+     */
+    public synchronized void flush()
+    {
+        if (buffered.length() == 0)
+            return;
+
+        String entries = buffered.toString();
+        buffered.setLength(0);
+
+        try
+        {
+            Writer out = new OutputStreamWriter(
+                new FileOutputStream(file, true), "UTF-8");
+            try
+            {
+                out.write(entries);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot write keyword index " + file, e);
+            invalidate();
+        }
+    }
+
+    /**
+     * Drops the index, it will be rebuilt on the next query.
+     */
+    public synchronized void invalidate()
+    {
+        buffered.setLength(0);
+        file.delete();
+        words = null;
+        indexedUnits.clear();
+    }
+}
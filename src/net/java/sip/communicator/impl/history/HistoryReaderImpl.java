@@ -6,10 +6,6 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -18,7 +14,6 @@ import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
 import org.apache.commons.lang3.*;
-import org.w3c.dom.*;
 
 /**
  * @author Alexander Pelov
@@ -182,9 +177,9 @@ public class HistoryReaderImpl
      */
     public synchronized QueryResultSet<HistoryRecord> findLast(
         int count,
-        String[] keywords,
-        String field,
-        boolean caseSensitive)
+        final String[] keywords,
+        final String field,
+        final boolean caseSensitive)
         throws RuntimeException
     {
         // the files are supposed to be ordered from oldest to newest
@@ -196,63 +191,31 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
+            // the keywords filter the last records of the file
+            LastRecordsHandler lastRecords
+                = new LastRecordsHandler(leftCount, true)
             {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
+                @Override
+                protected HistoryRecord createRecord(Date timestamp,
+                                                     String[] propertyNames,
+                                                     String[] propertyValues)
+                {
+                    return filterByKeyword(propertyNames, propertyValues,
+                        timestamp, keywords, field, caseSensitive);
+                }
+            };
+            this.historyImpl.scanRecords(
+                filelist.get(currentFile), lastRecords);
 
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
+            if (lastRecords.getRecordCount() > leftCount)
                 leftCount = 0;
-            }
             else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
+                leftCount -= lastRecords.getRecordCount();
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
+            for (HistoryRecord record : lastRecords.getRecords())
             {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
-
                 if(record != null)
                 {
                     result.add(record);
@@ -338,91 +301,42 @@ public class HistoryReaderImpl
         findFirstRecordsAfter(Date date, int count)
             throws RuntimeException
     {
-        TreeSet<HistoryRecord> result
+        final TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
+        Vector<String> filelist
+            = filterFilesByPeriod(this.historyImpl, date, null, false);
 
-        int leftCount = count;
+        final Date startDate = date;
+        final int[] leftCount = { count };
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile < filelist.size())
+        while(leftCount[0] > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+            this.historyImpl.scanRecords(filelist.get(currentFile),
+                new HistoryRecordScanner.Handler()
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    public boolean handleRecord(Date timestamp,
+                                                String[] propertyNames,
+                                                String[] propertyValues)
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
+                        if(!isInPeriod(timestamp, startDate, null))
+                            return true;
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                        HistoryRecord record = createRecord(
+                            propertyNames, propertyValues, timestamp);
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
+                        // if we found a broken record - just skip it
+                        if(record == null)
+                            return true;
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+                        result.add(record);
+                        leftCount[0]--;
 
-                result.add(record);
-                leftCount--;
-            }
+                        // stop reading once we have enough records
+                        return leftCount[0] > 0;
+                    }
+                });
 
             currentFile++;
         }
@@ -439,12 +353,12 @@ public class HistoryReaderImpl
      * @throws RuntimeException
      */
     public QueryResultSet<HistoryRecord>
-        findLastRecordsBefore(Date date, int count)
+        findLastRecordsBefore(final Date date, int count)
             throws RuntimeException
     {
         // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+        Vector<String> filelist
+            = filterFilesByPeriod(this.historyImpl, null, date, false);
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
@@ -452,81 +366,35 @@ public class HistoryReaderImpl
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
+            // the newest records of the file before the date, which are
+            // not broken
+            LastRecordsHandler lastRecords
+                = new LastRecordsHandler(leftCount, false)
             {
-                currentFile--;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                @Override
+                protected HistoryRecord createRecord(Date timestamp,
+                                                     String[] propertyNames,
+                                                     String[] propertyValues)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
+                    if(!isInPeriod(timestamp, null, date))
+                        return null;
 
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
+                    return HistoryReaderImpl.createRecord(
+                        propertyNames, propertyValues, timestamp);
                 }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
+            };
+            this.historyImpl.scanRecords(
+                filelist.get(currentFile), lastRecords);
+
+            // newest first, as the first of records with the same
+            // timestamp is kept
+            Iterator<HistoryRecord> records
+                = lastRecords.getRecords().descendingIterator();
+            while (records.hasNext())
+                result.add(records.next());
+            leftCount -= lastRecords.getRecords().size();
 
             currentFile--;
         }
@@ -542,8 +410,9 @@ public class HistoryReaderImpl
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+            = filterFilesByPeriod(
+                this.historyImpl, startDate, endDate, false);
+        filterFilesByKeywords(historyImpl, filelist, keywords, field);
 
         double currentProgress
             = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
@@ -559,59 +428,29 @@ public class HistoryReaderImpl
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        FindHandler handler = new FindHandler(
+            result, startDate, endDate, keywords, field, caseSensitive);
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            // the records of the file are known only if it is indexed
+            HistoryTimeIndex.Entry range
+                = this.historyImpl.getTimeRange(filename, false);
 
-            if(doc == null)
-                continue;
+            handler.progress = currentProgress;
+            handler.nodesProgressStep = 0;
+            if(range != null && range.getRecordCount() != 0)
+                handler.nodesProgressStep
+                    = fileProgressStep / range.getRecordCount();
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            this.historyImpl.scanRecords(filename, handler);
 
-            double nodesProgressStep = fileProgressStep;
-
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
-
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
-            {
-                node = nodes.item(i);
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
-
-                    if(record != null)
-                    {
-                        result.add(record);
-                    }
-                }
-
-                currentProgress += nodesProgressStep;
+            currentProgress += fileProgressStep;
+            if(handler.nodesProgressStep == 0)
                 fireProgressStateChanged(
                     startDate, endDate, keywords, (int)currentProgress);
-            }
         }
 
         // if maximum value is not reached fire an event
@@ -656,56 +495,48 @@ public class HistoryReaderImpl
     /**
      * If there is keyword restriction and doesn't match the conditions
      * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
+     * given properties.
      *
-     * @param propertyNodes NodeList
+     * @param propertyNames the names of the property elements
+     * @param propertyValues the stored values of the property elements,
+     * <tt>null</tt> for empty elements
      * @param timestamp Date
      * @param keywords String[]
      * @param field String
      * @param caseSensitive boolean
      * @return HistoryRecord
      */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
+    static HistoryRecord filterByKeyword(   String[] propertyNames,
+                                            String[] propertyValues,
                                             Date timestamp,
                                             String[] keywords,
                                             String field,
                                             boolean caseSensitive)
     {
         ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
         boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
+        for (int j = 0; j < propertyNames.length; j++)
         {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+            String nodeName = propertyNames[j];
+            String nodeValue = propertyValues[j];
 
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
+            if(nodeValue == null)
+                continue;
 
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
+            // unescape xml chars, we have escaped when writing values
+            nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
 
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
-
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
+            if(field != null && field.equals(nodeName))
+            {
+                targetNodeFound = true;
 
+                if(!matchKeyword(nodeValue, keywords, caseSensitive))
+                    return null; // doesn't match the given keyword(s)
+                                // so return nothing
             }
+
+            nameVals.add(nodeName);
+            nameVals.add(nodeValue);
         }
 
         // if we need to find a particular record but the target node is not
@@ -715,12 +546,35 @@ public class HistoryReaderImpl
             return null;
         }
 
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
-        for (int j = 0; j < propertyNames.length; j++)
+        String[] names = new String[nameVals.size() / 2];
+        String[] values = new String[names.length];
+        for (int j = 0; j < names.length; j++)
         {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
+            names[j] = nameVals.get(j * 2);
+            values[j] = nameVals.get(j * 2 + 1);
+        }
+
+        return new HistoryRecord(names, values, timestamp);
+    }
+
+    /**
+     * Creates the record of the given properties as stored, used by the
+     * queries for records around a date.
+     *
+     * @param propertyNames the names of the property elements
+     * @param propertyValues the stored values of the property elements
+     * @param timestamp the timestamp of the record
+     * @return the record or <tt>null</tt> if the record is broken, having
+     * empty property elements.
+     */
+    private static HistoryRecord createRecord(String[] propertyNames,
+                                              String[] propertyValues,
+                                              Date timestamp)
+    {
+        for (String value : propertyValues)
+        {
+            if(value == null)
+                return null;
         }
 
         return new HistoryRecord(propertyNames, propertyValues, timestamp);
@@ -887,6 +741,74 @@ public class HistoryReaderImpl
         return result;
     }
 
+    /**
+     * Returns the files of a history which have records in the given period
+     * according to the time index of the history. Files missing in the
+     * index are selected by their names like <tt>filterFilesByDate</tt>
+     * does, they are indexed once they are read.
+     *
+     * @param historyImpl the history
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param reverseOrder reverse order of files
+     * @return the files which may have records in the period
+     */
+    static Vector<String> filterFilesByPeriod(HistoryImpl historyImpl,
+                                              Date startDate,
+                                              Date endDate,
+                                              boolean reverseOrder)
+    {
+        Vector<String> result = filterFilesByDate(
+            historyImpl.getFileList(), null, null, reverseOrder);
+
+        if(startDate == null && endDate == null)
+            return result;
+
+        Set<String> filesByName = new HashSet<String>(filterFilesByDate(
+            historyImpl.getFileList(), startDate, endDate, reverseOrder));
+
+        Iterator<String> iter = result.iterator();
+        while (iter.hasNext())
+        {
+            String filename = iter.next();
+            HistoryTimeIndex.Entry range
+                = historyImpl.getTimeRange(filename, false);
+
+            if(range == null
+                ? !filesByName.contains(filename)
+                : !range.overlaps(startDate, endDate))
+            {
+                iter.remove();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes the files which cannot contain records matching the keywords
+     * according to the keyword index of the history.
+     *
+     * @param historyImpl the history
+     * @param filelist the files to filter
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     */
+    static void filterFilesByKeywords(HistoryImpl historyImpl,
+                                      List<String> filelist,
+                                      String[] keywords,
+                                      String field)
+    {
+        if (keywords == null || keywords.length == 0 || field == null)
+            return;
+
+        Set<String> files
+            = historyImpl.updateKeywordIndex().findUnits(field, keywords);
+
+        if (files != null)
+            filelist.retainAll(files);
+    }
+
     private void fireProgressStateChanged(Date startDate, Date endDate,
                          String[] keywords, int progress)
     {
@@ -932,11 +854,8 @@ public class HistoryReaderImpl
     }
 
     /**
-     * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
-     * this way we escape parsing all files which will significantly
-     * slow the process and for one search will parse the files twice.
+     * Count the number of messages that a search will return, as kept by the
+     * statistics of the history.
      *
      * @return the number of searched messages
      * @throws UnsupportedOperationException
@@ -946,40 +865,178 @@ public class HistoryReaderImpl
     public int countRecords()
         throws UnsupportedOperationException
     {
-        int result = 0;
-        String lastFile = null;
-        Iterator<String> filelistIter = this.historyImpl.getFileList();
-        while (filelistIter.hasNext())
+        return this.historyImpl.getStatistics().getRecordCount();
+    }
+
+    /**
+     * Returns the statistics of the history, computed from the time index
+     * of its files.
+     *
+     * @return the statistics of the history
+     */
+    public HistoryStatistics getStatistics()
+    {
+        return this.historyImpl.getStatistics();
+    }
+
+    /**
+     * Used to compare HistoryRecords
+     * ant to be ordered in TreeSet
+     */
+    private static class HistoryRecordComparator
+        implements Comparator<HistoryRecord>
+    {
+        public int compare(HistoryRecord h1, HistoryRecord h2)
         {
-            lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+            return h1.getTimestamp().compareTo(h2.getTimestamp());
         }
+    }
 
-        if(lastFile == null)
-            return result;
+    /**
+     * Keeps the records created from the last records of a history file.
+     */
+    static class LastRecordsHandler
+        implements HistoryRecordScanner.Handler
+    {
+        private final int count;
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+        private final boolean keepRejected;
 
-        if(doc == null)
-            return result;
+        private final LinkedList<HistoryRecord> records
+            = new LinkedList<HistoryRecord>();
+
+        private int recordCount = 0;
 
-        NodeList nodes = doc.getElementsByTagName("record");
+        /**
+         * Creates a handler keeping the last <tt>count</tt> records.
+         *
+         * @param count the number of records to keep
+         * @param keepRejected whether the records for which no record is
+         * created are part of the last records, they are then kept as
+         * <tt>null</tt>.
+         */
+        LastRecordsHandler(int count, boolean keepRejected)
+        {
+            this.count = count;
+            this.keepRejected = keepRejected;
+        }
 
-        result += nodes.getLength();
+        public boolean handleRecord(Date timestamp,
+                                    String[] propertyNames,
+                                    String[] propertyValues)
+        {
+            recordCount++;
 
-        return result;
+            HistoryRecord record
+                = createRecord(timestamp, propertyNames, propertyValues);
+            if(record != null || keepRejected)
+            {
+                records.add(record);
+                if(records.size() > count)
+                    records.removeFirst();
+            }
+            return true;
+        }
+
+        /**
+         * Creates the record to keep from a stored record.
+         *
+         * @param timestamp the timestamp of the record
+         * @param propertyNames the names of the property elements
+         * @param propertyValues the stored values of the property elements
+         * @return the record or <tt>null</tt> to reject the record
+         */
+        protected HistoryRecord createRecord(Date timestamp,
+                                             String[] propertyNames,
+                                             String[] propertyValues)
+        {
+            return filterByKeyword(propertyNames, propertyValues, timestamp,
+                null, null, false);
+        }
+
+        /**
+         * Returns the number of records of the file.
+         * @return the number of records of the file
+         */
+        int getRecordCount()
+        {
+            return recordCount;
+        }
+
+        /**
+         * Returns the kept records, newest last.
+         * @return the kept records
+         */
+        LinkedList<HistoryRecord> getRecords()
+        {
+            return records;
+        }
     }
 
     /**
-     * Used to compare HistoryRecords
-     * ant to be ordered in TreeSet
+     * Collects the records matching a query and reports the progress.
      */
-    private static class HistoryRecordComparator
-        implements Comparator<HistoryRecord>
+    private class FindHandler
+        implements HistoryRecordScanner.Handler
     {
-        public int compare(HistoryRecord h1, HistoryRecord h2)
+        private final TreeSet<HistoryRecord> result;
+
+        private final Date startDate;
+
+        private final Date endDate;
+
+        private final String[] keywords;
+
+        private final String field;
+
+        private final boolean caseSensitive;
+
+        /**
+         * The current progress.
+         */
+        double progress;
+
+        /**
+         * The progress of each record of the current file, zero if the
+         * progress is reported only once the file is read.
+         */
+        double nodesProgressStep;
+
+        FindHandler(TreeSet<HistoryRecord> result,
+                    Date startDate, Date endDate,
+                    String[] keywords, String field, boolean caseSensitive)
         {
-            return h1.getTimestamp().compareTo(h2.getTimestamp());
+            this.result = result;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.keywords = keywords;
+            this.field = field;
+            this.caseSensitive = caseSensitive;
+        }
+
+        public boolean handleRecord(Date timestamp,
+                                    String[] propertyNames,
+                                    String[] propertyValues)
+        {
+            if(isInPeriod(timestamp, startDate, endDate))
+            {
+                HistoryRecord record =
+                    filterByKeyword(propertyNames, propertyValues, timestamp,
+                                    keywords, field, caseSensitive);
+
+                if(record != null)
+                {
+                    result.add(record);
+                }
+            }
+
+            if(nodesProgressStep > 0)
+            {
+                progress += nodesProgressStep;
+                fireProgressStateChanged(
+                    startDate, endDate, keywords, (int)progress);
+            }
+            return true;
         }
     }
 }
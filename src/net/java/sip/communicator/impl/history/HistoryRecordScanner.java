@@ -0,0 +1,300 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Reads the records of a history xml file one at a time, either from its
+ * parsed document or with a pull parser directly from the file. Reading
+ * from the file does not build a document, only the values of the current
+ * record are kept, and the reading stops as soon as the handler has found
+ * what it looks for.
+ */
+public class HistoryRecordScanner
+{
+    /**
+     * Receives the records of a history file in the order they are stored.
+     */
+    public interface Handler
+    {
+        /**
+         * Handles a record.
+         *
+         * @param timestamp the timestamp of the record
+         * @param propertyNames the names of the property elements
+         * @param propertyValues the values of the property elements as
+         * stored, not unescaped, or <tt>null</tt> for empty elements
+         * @return <tt>false</tt> to stop reading the file
+         */
+        public boolean handleRecord(Date timestamp,
+                                    String[] propertyNames,
+                                    String[] propertyValues);
+    }
+
+    /**
+     * The factory of the pull parsers, creating parsers is synchronized on
+     * it.
+     */
+    private static final XMLInputFactory inputFactory;
+
+    static
+    {
+        inputFactory = XMLInputFactory.newInstance();
+        // the first child of a property element holds all of its value
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+    /**
+     * The number of records passed to the handler.
+     */
+    private int recordCount = 0;
+
+    private long minTimestamp = Long.MAX_VALUE;
+
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Whether all records were passed to the handler.
+     */
+    private boolean complete = false;
+
+    /**
+     * Reads the records of a parsed document. The document may be the one
+     * a writer adds records to, its records are copied while its lock is
+     * held and passed to the handler after the lock is released.
+     *
+     * @param doc the document
+     * @param handler the handler of the records
+     */
+    public void scan(Document doc, Handler handler)
+    {
+        List<String> timestamps = new ArrayList<String>();
+        List<List<String>> names = new ArrayList<List<String>>();
+        List<List<String>> values = new ArrayList<List<String>>();
+
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                Node node = nodes.item(i);
+                List<String> recordNames = new ArrayList<String>();
+                List<String> recordValues = new ArrayList<String>();
+
+                NodeList propertyNodes = node.getChildNodes();
+                for (int j = 0; j < propertyNodes.getLength(); j++)
+                {
+                    Node propertyNode = propertyNodes.item(j);
+                    if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                        continue;
+
+                    Node nestedNode = propertyNode.getFirstChild();
+
+                    recordNames.add(propertyNode.getNodeName());
+                    recordValues.add((nestedNode == null)
+                        ? null
+                        : nestedNode.getNodeValue());
+                }
+
+                timestamps.add(((Element) node).getAttribute("timestamp"));
+                names.add(recordNames);
+                values.add(recordValues);
+            }
+        }
+
+        for (int i = 0; i < timestamps.size(); i++)
+        {
+            if (!handle(handler, parseTimestamp(timestamps.get(i)),
+                    names.get(i), values.get(i)))
+                return;
+        }
+
+        complete = true;
+    }
+
+    /**
+     * Reads the records of a file with a pull parser.
+     *
+     * @param file the file
+     * @param handler the handler of the records
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    public void scan(File file, Handler handler)
+        throws IOException,
+               XMLStreamException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            XMLStreamReader reader;
+            synchronized (inputFactory)
+            {
+                reader = inputFactory.createXMLStreamReader(in);
+            }
+
+            try
+            {
+                scan(reader, handler);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void scan(XMLStreamReader reader, Handler handler)
+        throws XMLStreamException
+    {
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        Date timestamp = null;
+        boolean inRecord = false;
+        // the depth inside the current record element
+        int depth = 0;
+
+        while (reader.hasNext())
+        {
+            switch (reader.next())
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                if (inRecord)
+                {
+                    depth++;
+                    if (depth == 1)
+                    {
+                        names.add(reader.getLocalName());
+                        values.add(null);
+                    }
+                }
+                else if ("record".equals(reader.getLocalName()))
+                {
+                    inRecord = true;
+                    depth = 0;
+                    names.clear();
+                    values.clear();
+                    timestamp = parseTimestamp(
+                        reader.getAttributeValue(null, "timestamp"));
+                }
+                break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                // the value of a property is its first child
+                if (inRecord
+                        && depth == 1
+                        && values.get(values.size() - 1) == null)
+                {
+                    values.set(values.size() - 1, reader.getText());
+                }
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                if (!inRecord)
+                    break;
+
+                if (depth > 0)
+                {
+                    depth--;
+                    break;
+                }
+
+                inRecord = false;
+                if (!handle(handler, timestamp, names, values))
+                    return;
+                break;
+            }
+        }
+
+        complete = true;
+    }
+
+    private boolean handle(Handler handler,
+                           Date timestamp,
+                           List<String> names,
+                           List<String> values)
+    {
+        long time = timestamp.getTime();
+        minTimestamp = Math.min(minTimestamp, time);
+        maxTimestamp = Math.max(maxTimestamp, time);
+        recordCount++;
+
+        return handler.handleRecord(timestamp,
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * Parses a timestamp the way the readers always did, as a formatted
+     * date or as milliseconds.
+     *
+     * @param ts the timestamp attribute
+     * @return the timestamp
+     */
+    private Date parseTimestamp(String ts)
+    {
+        try
+        {
+            return sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            return new Date(Long.parseLong(ts));
+        }
+    }
+
+    /**
+     * Returns the number of records passed to the handler.
+     * @return the number of records passed to the handler
+     */
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Returns whether the whole file was read, without being stopped by the
+     * handler.
+     * @return <tt>true</tt> if all records were passed to the handler
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Returns the time index entry of a completely read file.
+     *
+     * @param length the length of the file
+     * @param lastModified the modification time of the file
+     * @return the entry of the file
+     */
+    HistoryTimeIndex.Entry createTimeIndexEntry(long length, long lastModified)
+    {
+        return new HistoryTimeIndex.Entry(minTimestamp, maxTimestamp,
+            recordCount, length, lastModified);
+    }
+}
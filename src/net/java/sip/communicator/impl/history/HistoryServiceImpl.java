@@ -8,6 +8,7 @@ package net.java.sip.communicator.impl.history;
 
 import java.io.*;
 import java.util.*;
+import java.util.regex.*;
 
 import javax.xml.parsers.*;
 
@@ -53,7 +54,71 @@ public class HistoryServiceImpl
 
     private final DocumentBuilder builder;
 
-    private final boolean cacheEnabled;
+    /**
+     * The default maximum number of cached documents.
+     */
+    private static final int DEFAULT_CACHE_MAX_DOCUMENTS = 64;
+
+    /**
+     * The default maximum size in kilobytes of the cached documents.
+     */
+    private static final int DEFAULT_CACHE_MAX_SIZE = 4096;
+
+    /**
+     * The documents read by the histories of this service.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * The default maximum time in milliseconds an added record waits to be
+     * written when files are written behind.
+     */
+    private static final int DEFAULT_WRITE_BEHIND_MAX_LATENCY = 2000;
+
+    /**
+     * The default number of records added to a file which makes it written
+     * without waiting for the maximum latency.
+     */
+    private static final int DEFAULT_WRITE_BEHIND_MAX_BATCH = 50;
+
+    /**
+     * The default maximum number of added records waiting to be written.
+     */
+    private static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 1000;
+
+    /**
+     * Writes the files modified by added records in the background,
+     * <tt>null</tt> if they are written by the threads adding the records.
+     */
+    private final HistoryWriteBehind writeBehind;
+
+    /**
+     * The default time in minutes between two compactions of the histories.
+     */
+    private static final int DEFAULT_COMPACTION_INTERVAL = 24 * 60;
+
+    /**
+     * The time in milliseconds the histories must not have been used before
+     * a history is compacted.
+     */
+    private static final long COMPACTION_IDLE_TIME = 5 * 60 * 1000;
+
+    /**
+     * Compacts the histories in the background, <tt>null</tt> if the
+     * compaction is disabled.
+     */
+    private final HistoryCompactor compactor;
+
+    /**
+     * The directories of the histories, <tt>null</tt> until the histories
+     * are first looked up.
+     */
+    private HistoryCatalog catalog = null;
+
+    /**
+     * Whether histories are stored by the segment storage engine.
+     */
+    private final boolean segmentEngineEnabled;
 
     /**
      *  Characters and their replacement in created folder names
@@ -83,59 +148,148 @@ public class HistoryServiceImpl
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
+        this.documentCache = new HistoryDocumentCache(
+            configService.getInt(
+                CACHE_MAX_DOCUMENTS_PROPERTY, DEFAULT_CACHE_MAX_DOCUMENTS),
+            configService.getInt(
+                CACHE_MAX_SIZE_PROPERTY, DEFAULT_CACHE_MAX_SIZE) * 1024L);
+        this.writeBehind
+            = configService.getBoolean(WRITE_BEHIND_ENABLED_PROPERTY, false)
+                ? new HistoryWriteBehind(
+                    configService.getInt(
+                        WRITE_BEHIND_MAX_LATENCY_PROPERTY,
+                        DEFAULT_WRITE_BEHIND_MAX_LATENCY),
+                    configService.getInt(
+                        WRITE_BEHIND_MAX_BATCH_PROPERTY,
+                        DEFAULT_WRITE_BEHIND_MAX_BATCH),
+                    DEFAULT_WRITE_BEHIND_QUEUE_SIZE)
+                : null;
+        this.segmentEngineEnabled = STORAGE_ENGINE_SEGMENT.equals(
+            configService.getString(
+                STORAGE_ENGINE_PROPERTY, STORAGE_ENGINE_XML));
         this.fileAccessService = getFileAccessService(bundleContext);
+        this.compactor
+            = configService.getBoolean(COMPACTION_ENABLED_PROPERTY, false)
+                ? new HistoryCompactor(
+                    this,
+                    configService.getInt(
+                        COMPACTION_INTERVAL_PROPERTY,
+                        DEFAULT_COMPACTION_INTERVAL) * 60 * 1000L,
+                    COMPACTION_IDLE_TIME)
+                : null;
+        if (compactor != null)
+            compactor.start();
     }
 
     public Iterator<HistoryID> getExistingIDs()
     {
-        List<File> vect = new Vector<File>();
-        File histDir;
+        List<HistoryCatalog.Directory> dirs
+            = Collections.emptyList();
         try {
-            String userSetDataDirectory
-                = System.getProperty("HistoryServiceDirectory");
-
-            histDir
-                = getFileAccessService().getPrivatePersistentDirectory(
-                        (userSetDataDirectory == null)
-                            ? DATA_DIRECTORY
-                            : userSetDataDirectory, FileCategory.PROFILE);
-
-            findDatFiles(vect, histDir);
+            dirs = getCatalog().getDirectories(getDataDirectory());
         } catch (Exception e)
         {
             logger.error("Error opening directory", e);
         }
 
-        DBStructSerializer structParse = new DBStructSerializer(this);
-        for (File f : vect)
+        synchronized (this.histories)
         {
-            synchronized (this.histories)
+            for (HistoryCatalog.Directory dir : dirs)
             {
-                try
-                {
-                    History hist = structParse.loadHistory(f);
-                    if (!this.histories.containsKey(hist.getID()))
-                    {
-                        this.histories.put(hist.getID(), hist);
-                    }
-                }
-                catch (Exception e)
+                HistoryID id = dir.getID();
+                if (id != null && !this.histories.containsKey(id))
                 {
-                    logger.error("Could not load history from file: "
-                        + f.getAbsolutePath(), e);
+                    this.histories.put(id,
+                        createHistoryImpl(
+                            id, dir.getFile(), dir.getStructure()));
                 }
             }
+
+            return this.histories.keySet().iterator();
         }
+    }
+
+    /**
+     * Loads all existing histories.
+     * @return the loaded histories
+     */
+    List<History> loadHistories()
+    {
+        getExistingIDs();
 
         synchronized (this.histories)
         {
-            return this.histories.keySet().iterator();
+            return new ArrayList<History>(this.histories.values());
         }
     }
 
+    /**
+     * Returns the catalog of the history directories, loading it the first
+     * time.
+     * @return the catalog of the history directories
+     * @throws Exception if the history data directory cannot be created
+     */
+    private synchronized HistoryCatalog getCatalog()
+        throws Exception
+    {
+        if (catalog == null)
+        {
+            catalog = new HistoryCatalog(
+                new File(getDataDirectory(), HistoryCatalog.CATALOG_FILE),
+                this);
+        }
+        return catalog;
+    }
+
+    /**
+     * Returns the directory of the histories, which is
+     * {@link #DATA_DIRECTORY} unless the <tt>HistoryServiceDirectory</tt>
+     * system property sets another one.
+     * @return the directory of the histories
+     * @throws Exception if the directory cannot be created
+     */
+    private File getDataDirectory()
+        throws Exception
+    {
+        String userSetDataDirectory
+            = System.getProperty("HistoryServiceDirectory");
+
+        return getFileAccessService().getPrivatePersistentDirectory(
+                (userSetDataDirectory == null)
+                    ? DATA_DIRECTORY
+                    : userSetDataDirectory,
+                FileCategory.PROFILE);
+    }
+
+    /**
+     * Drops the cached content of a history directory which was changed
+     * or removed.
+     * @param dir the directory
+     */
+    void historyDirectoryChanged(File dir)
+    {
+        try
+        {
+            getCatalog().invalidate(dir);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error opening directory", e);
+        }
+    }
+
+    /**
+     * Records that a history is being read or written, so that the histories
+     * are not compacted while they are used.
+     */
+    void historyAccessed()
+    {
+        if (compactor != null)
+            compactor.accessed();
+    }
+
     public boolean isHistoryExisting(HistoryID id)
     {
         return this.histories.containsKey(id);
@@ -178,8 +332,7 @@ public class HistoryServiceImpl
             else
             {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history = createHistoryImpl(id, dir, recordStructure);
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
@@ -193,6 +346,27 @@ public class HistoryServiceImpl
         return retVal;
     }
 
+    /**
+     * Creates the <tt>History</tt> implementation of the configured storage
+     * engine for a history stored in <tt>directory</tt>.
+     *
+     * @param id the identifier of the history
+     * @param directory the directory of the history
+     * @param recordStructure the structure of the history records
+     * @return the created history
+     */
+    protected History createHistoryImpl(HistoryID id, File directory,
+                                        HistoryRecordStructure recordStructure)
+    {
+        if (segmentEngineEnabled)
+        {
+            return new SegmentHistoryImpl(
+                id, directory, recordStructure, this);
+        }
+        else
+            return new HistoryImpl(id, directory, recordStructure, this);
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
@@ -234,22 +408,6 @@ public class HistoryServiceImpl
         return builder.parse(in);
     }
 
-    private void findDatFiles(List<File> vect, File directory)
-    {
-        File[] files = directory.listFiles();
-        for (int i = 0; i < files.length; i++)
-        {
-            if (files[i].isDirectory())
-            {
-                findDatFiles(vect, files[i]);
-            }
-            else if (DATA_FILE.equalsIgnoreCase(files[i].getName()))
-            {
-                vect.add(files[i]);
-            }
-        }
-    }
-
     private File createHistoryDirectories(HistoryID id)
         throws IOException
     {
@@ -299,12 +457,44 @@ public class HistoryServiceImpl
     }
 
     /**
-     * Returns whether caching of readed documents is enabled or desibled.
-     * @return boolean
+     * Returns the cache of the documents read by the histories.
+     * @return the document cache
      */
-    protected boolean isCacheEnabled()
+    protected HistoryDocumentCache getDocumentCache()
     {
-        return cacheEnabled;
+        return documentCache;
+    }
+
+    /**
+     * Returns the queue writing the files modified by added records in the
+     * background.
+     * @return the write-behind queue or <tt>null</tt> if files are written
+     * by the threads adding the records.
+     */
+    protected HistoryWriteBehind getWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    /**
+     * Stops this service and its compaction, writing the files of the added
+     * records which are still waiting to be written.
+     */
+    void stop()
+    {
+        if (compactor != null)
+            compactor.stop();
+        if (writeBehind != null)
+            writeBehind.stop();
+    }
+
+    /**
+     * Returns the current counters of the cache of read history documents.
+     * @return the counters of the document cache.
+     */
+    public HistoryCacheStatistics getCacheStatistics()
+    {
+        return documentCache.getStatistics();
     }
 
     /**
@@ -320,7 +510,10 @@ public class HistoryServiceImpl
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
+        discardPendingWrites(id, dir);
         deleteDirAndContent(dir);
+        documentCache.removeAll(dir);
+        historyDirectoryChanged(dir);
 
         History history = histories.remove(id);
         if(history == null)
@@ -342,12 +535,44 @@ public class HistoryServiceImpl
         }
     }
 
+    /**
+     * Drops the records of a history and of its sub-histories which are
+     * waiting to be written, before the directory of the history is deleted
+     * or moved, so that they are not written back to it.
+     *
+     * @param id the history
+     * @param dir the directory of the history
+     */
+    private void discardPendingWrites(HistoryID id, File dir)
+    {
+        Set<HistoryImpl> discarded = new HashSet<HistoryImpl>();
+
+        if (writeBehind != null)
+            discarded.addAll(writeBehind.cancel(dir));
+
+        String[] ids = id.getID();
+
+        synchronized (this.histories)
+        {
+            for (Map.Entry<HistoryID, History> entry : histories.entrySet())
+            {
+                if ((entry.getValue() instanceof HistoryImpl)
+                        && isSubHistory(ids, entry.getKey()))
+                    discarded.add((HistoryImpl) entry.getValue());
+            }
+        }
+
+        for (HistoryImpl history : discarded)
+            history.discardPendingDocuments();
+    }
+
     /**
      * Clears locally(in memory) cached histories.
      */
     public void purgeLocallyCachedHistories()
     {
         histories.clear();
+        documentCache.clear();
     }
 
     /**
@@ -458,12 +683,17 @@ public class HistoryServiceImpl
         // make sure parent path is existing
         newDir.getParentFile().mkdirs();
 
+        discardPendingWrites(oldId, oldDir);
+
         if(!oldDir.renameTo(newDir))
         {
             if (logger.isInfoEnabled())
                 logger.info("Cannot move history!");
             throw new IOException("Cannot move history!");
         }
+        documentCache.removeAll(oldDir);
+        historyDirectoryChanged(oldDir);
+        historyDirectoryChanged(newDir);
 
         histories.remove(oldId);
     }
@@ -489,15 +719,7 @@ public class HistoryServiceImpl
         File histDir = null;
         try
         {
-            String userSetDataDirectory
-                = System.getProperty("HistoryServiceDirectory");
-
-            histDir
-                = getFileAccessService().getPrivatePersistentDirectory(
-                        (userSetDataDirectory == null)
-                            ? DATA_DIRECTORY
-                            : userSetDataDirectory,
-                        FileCategory.PROFILE);
+            histDir = getDataDirectory();
         }
         catch (Exception e)
         {
@@ -533,9 +755,7 @@ public class HistoryServiceImpl
         File histDir = null;
         try
         {
-            histDir = getFileAccessService()
-                .getPrivatePersistentDirectory(
-                    DATA_DIRECTORY, FileCategory.PROFILE);
+            histDir = getDataDirectory();
         }
         catch (Exception e)
         {
@@ -564,7 +784,39 @@ public class HistoryServiceImpl
                 }
             });
 
-        getExistingFiles(srcFolder, Arrays.asList(rawid), recentFiles);
+        List<HistoryCatalog.Directory> dirs;
+        try
+        {
+            dirs = getCatalog().getDirectories(srcFolder);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error opening directory", e);
+            return new ArrayList<HistoryID>();
+        }
+
+        // the raw ids of the histories are the names of their directories
+        int srcPathLength = srcFolder.getPath().length();
+        for (HistoryCatalog.Directory dir : dirs)
+        {
+            String[] dataFiles = dir.getDataFiles();
+            if (dataFiles.length == 0)
+                continue;
+
+            List<String> rawID = new ArrayList<String>(Arrays.asList(rawid));
+            String path = dir.getFile().getPath();
+            if (path.length() > srcPathLength)
+            {
+                rawID.addAll(Arrays.asList(
+                    path.substring(srcPathLength + 1).split(
+                        Pattern.quote(File.separator))));
+            }
+            HistoryID hid = HistoryID.createFromRawStrings(
+                rawID.toArray(new String[rawID.size()]));
+
+            for (String name : dataFiles)
+                recentFiles.put(new File(dir.getFile(), name), hid);
+        }
 
         // return non duplicate
         List<HistoryID> result = new ArrayList<HistoryID>();
@@ -580,34 +832,4 @@ public class HistoryServiceImpl
 
         return result;
     }
-
-    /**
-     * Get existing files in <tt>res</tt> and their corresponding historyIDs.
-     * @param sourceFolder the folder to search into.
-     * @param rawID the rawID.
-     * @param res the result map.
-     */
-    private void getExistingFiles(
-        File sourceFolder, List<String> rawID,
-        Map<File, HistoryID> res)
-    {
-        for(File f : sourceFolder.listFiles())
-        {
-            if(f.isDirectory())
-            {
-                List<String> newRawID = new ArrayList<String>(rawID);
-                newRawID.add(f.getName());
-
-                getExistingFiles(f, newRawID, res);
-            }
-            else
-            {
-                if(f.getName().equals(DATA_FILE))
-                    continue;
-
-                res.put(f, HistoryID.createFromRawStrings(
-                    rawID.toArray(new String[rawID.size()])));
-            }
-        }
-    }
 }
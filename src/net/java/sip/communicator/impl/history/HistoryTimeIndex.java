@@ -0,0 +1,517 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * The oldest and newest timestamps and the number of records of each xml
+ * file of a history. Queries by period use it to read only the files with
+ * records in the period and the number of records of the history is
+ * computed without reading the files.
+ * <p>
+ * The index is kept in a journal file in the history directory, where the
+ * last entry of a file wins. An entry also holds the length and the
+ * modification time of the file when the entry was computed, entries of
+ * files which changed since are ignored and computed again the next time
+ * the file is read. The journal is rewritten with one entry per file when it
+ * holds many more entries than files.
+ * <p>
+ * The entry of a document which only had records appended since its file
+ * was last written is updated with the timestamps of the appended records,
+ * so that writing the file does not parse the timestamps of all its records
+ * again.
+ */
+public class HistoryTimeIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryTimeIndex.class);
+
+    /**
+     * The name of the journal file in the history directory.
+     */
+    public static final String INDEX_FILE = "timestamps.idx";
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * File name -&gt; the last entry of the file. Not <tt>null</tt> once the
+     * journal was loaded.
+     */
+    private Map<String, Entry> entries = null;
+
+    /**
+     * The number of entries in the journal file.
+     */
+    private int journalEntries = 0;
+
+    /**
+     * File name -&gt; the entry of the document of a file which only had
+     * records appended since the file was last written.
+     */
+    private final Map<String, Entry> appended = new HashMap<String, Entry>();
+
+    /**
+     * The names of the files whose documents were changed otherwise since
+     * the files were last written. Their entries are computed from their
+     * documents when they are written.
+     */
+    private final Set<String> changed = new HashSet<String>();
+
+    /**
+     * Creates the index stored in <tt>file</tt>.
+     * @param file the journal file
+     */
+    public HistoryTimeIndex(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the entry of a history file if the file did not change since
+     * the entry was computed.
+     *
+     * @param filename the name of the file in the history
+     * @param historyFile the file
+     * @return the entry or <tt>null</tt> if it is missing or outdated.
+     */
+    public synchronized Entry get(String filename, File historyFile)
+    {
+        load();
+
+        Entry entry = entries.get(filename);
+        if (entry != null
+                && (entry.length != historyFile.length()
+                    || entry.lastModified != historyFile.lastModified()))
+            return null;
+
+        return entry;
+    }
+
+    /**
+     * Returns the entry of the document of a file which only had records
+     * appended since the file was last written.
+     *
+     * @param filename the name of the file in the history
+     * @return the entry of the document or <tt>null</tt> if the document was
+     * not changed or was changed otherwise.
+     */
+    public synchronized Entry getAppended(String filename)
+    {
+        return appended.get(filename);
+    }
+
+    /**
+     * Updates the entry of the document of a file with a record appended to
+     * the document.
+     *
+     * @param filename the name of the file in the history
+     * @param historyFile the file, which holds the document as it was before
+     * its first change since it was last written, if it exists
+     * @param timestamp the timestamp of the appended record
+     */
+    public synchronized void recordAppended(String filename, File historyFile,
+                                            long timestamp)
+    {
+        if (changed.contains(filename))
+            return;
+
+        load();
+
+        Entry entry = appended.get(filename);
+        if (entry == null)
+        {
+            entry = historyFile.exists()
+                ? get(filename, historyFile)
+                : new Entry(Long.MAX_VALUE, Long.MIN_VALUE, 0, -1, -1);
+
+            // the file is not indexed, its entry is computed when written
+            if (entry == null)
+            {
+                changed.add(filename);
+                return;
+            }
+        }
+
+        appended.put(filename, new Entry(
+            Math.min(entry.minTimestamp, timestamp),
+            Math.max(entry.maxTimestamp, timestamp),
+            entry.recordCount + 1,
+            entry.length,
+            entry.lastModified));
+    }
+
+    /**
+     * Records that the document of a file was changed otherwise than by
+     * appending records, its entry is computed from the document when the
+     * file is written.
+     *
+     * @param filename the name of the file in the history
+     */
+    public synchronized void documentChanged(String filename)
+    {
+        appended.remove(filename);
+        changed.add(filename);
+    }
+
+    /**
+     * Forgets the changes of the documents which are not written, when the
+     * documents are discarded.
+     */
+    public synchronized void discardChanges()
+    {
+        appended.clear();
+        changed.clear();
+    }
+
+    /**
+     * Stores the entry of a history file which was written. The entry is
+     * computed from the document of the file unless only records were
+     * appended to it since the file was last written.
+     *
+     * @param filename the name of the file in the history
+     * @param historyFile the file, which must hold <tt>doc</tt>
+     * @param doc the document of the file
+     * @return the entry of the file
+     */
+    public synchronized Entry put(String filename, File historyFile,
+                                  Document doc)
+    {
+        load();
+
+        boolean wasChanged = changed.remove(filename);
+        Entry entry = appended.remove(filename);
+        if (entry == null || wasChanged)
+            entry = createEntry(doc, historyFile);
+        else
+        {
+            entry = new Entry(entry.minTimestamp, entry.maxTimestamp,
+                entry.recordCount, historyFile.length(),
+                historyFile.lastModified());
+        }
+        entries.put(filename, entry);
+        append(toLine(filename, entry));
+
+        return entry;
+    }
+
+    /**
+     * Stores the entry of a history file computed while reading it.
+     *
+     * @param filename the name of the file in the history
+     * @param entry the entry of the file
+     */
+    public synchronized void put(String filename, Entry entry)
+    {
+        load();
+
+        entries.put(filename, entry);
+        append(toLine(filename, entry));
+    }
+
+    /**
+     * Computes the entry of a document which is not stored in a file, or
+     * not yet.
+     *
+     * @param doc the document
+     * @return the entry of the document
+     */
+    public static Entry createEntry(Document doc)
+    {
+        return createEntry(doc, null);
+    }
+
+    /**
+     * Computes the entry of a document.
+     *
+     * @param doc the document
+     * @param historyFile the file of the document or <tt>null</tt>
+     * @return the entry
+     */
+    private static Entry createEntry(Document doc, File historyFile)
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        int count = 0;
+
+        NodeList nodes = doc.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            String ts = ((Element) nodes.item(i)).getAttribute("timestamp");
+            long timestamp;
+            try
+            {
+                timestamp = sdf.parse(ts).getTime();
+            }
+            catch (ParseException e)
+            {
+                try
+                {
+                    timestamp = Long.parseLong(ts);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    // the readers fail on such records, count them but do
+                    // not let them restrict the period of the file
+                    min = Long.MIN_VALUE;
+                    max = Long.MAX_VALUE;
+                    count++;
+                    continue;
+                }
+            }
+
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+            count++;
+        }
+
+        return new Entry(min, max, count,
+            (historyFile == null) ? -1 : historyFile.length(),
+            (historyFile == null) ? -1 : historyFile.lastModified());
+    }
+
+    private static String toLine(String filename, Entry entry)
+    {
+        return filename + '\t' + entry.minTimestamp + '\t' + entry.maxTimestamp
+            + '\t' + entry.recordCount + '\t' + entry.length
+            + '\t' + entry.lastModified;
+    }
+
+    /**
+     * Loads the journal if not yet loaded, and rewrites it with one entry
+     * per file if it grew much bigger.
+     */
+    private void load()
+    {
+        if (entries != null)
+            return;
+
+        entries = new HashMap<String, Entry>();
+
+        if (!file.exists())
+            return;
+
+        int lines = 0;
+        try
+        {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    String[] parts = line.split("\t");
+                    if (parts.length != 6)
+                        continue;
+
+                    try
+                    {
+                        entries.put(parts[0], new Entry(
+                            Long.parseLong(parts[1]),
+                            Long.parseLong(parts[2]),
+                            Integer.parseInt(parts[3]),
+                            Long.parseLong(parts[4]),
+                            Long.parseLong(parts[5])));
+                        lines++;
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        // an entry which was not completely written
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot read time index " + file, e);
+            entries.clear();
+            file.delete();
+            return;
+        }
+
+        journalEntries = lines;
+        if (isJournalTooBig())
+            compact();
+    }
+
+    /**
+     * Checks whether the journal holds so many more entries than files that
+     * it must be rewritten.
+     *
+     * @return <tt>true</tt> if the journal must be rewritten
+     */
+    private boolean isJournalTooBig()
+    {
+        return journalEntries > 2 * entries.size() + 64;
+    }
+
+    /**
+     * Rewrites the journal with the last entry of each file.
+     *
+     * @return <tt>true</tt> if the journal was rewritten
+     */
+    private boolean compact()
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), "UTF-8"));
+            try
+            {
+                for (Map.Entry<String, Entry> e : entries.entrySet())
+                    out.write(toLine(e.getKey(), e.getValue()) + "\n");
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Cannot replace " + file);
+            }
+            journalEntries = entries.size();
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot compact time index " + file, e);
+            tmp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Appends an entry to the journal, and rewrites the journal if it grew
+     * much bigger than the number of files. An entry which cannot be written
+     * is only kept in memory and computed again the next time.
+     *
+     * @param line the entry
+     */
+    private void append(String line)
+    {
+        // the entry is already in memory and written with the others
+        if (isJournalTooBig() && compact())
+            return;
+
+        try
+        {
+            Writer out = new OutputStreamWriter(
+                new FileOutputStream(file, true), "UTF-8");
+            try
+            {
+                out.write(line);
+                out.write('\n');
+            }
+            finally
+            {
+                out.close();
+            }
+            journalEntries++;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot write time index " + file, e);
+        }
+    }
+
+    /**
+     * The timestamps and the number of records of a history file.
+     */
+    public static class Entry
+    {
+        private final long minTimestamp;
+
+        private final long maxTimestamp;
+
+        private final int recordCount;
+
+        private final long length;
+
+        private final long lastModified;
+
+        Entry(long minTimestamp, long maxTimestamp, int recordCount,
+              long length, long lastModified)
+        {
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.recordCount = recordCount;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the number of records of the file.
+         * @return the number of records of the file
+         */
+        public int getRecordCount()
+        {
+            return recordCount;
+        }
+
+        /**
+         * Returns the oldest timestamp of the file.
+         * @return the oldest timestamp or <tt>Long.MAX_VALUE</tt> if the
+         * file has no records.
+         */
+        public long getMinTimestamp()
+        {
+            return minTimestamp;
+        }
+
+        /**
+         * Returns the newest timestamp of the file.
+         * @return the newest timestamp or <tt>Long.MIN_VALUE</tt> if the
+         * file has no records.
+         */
+        public long getMaxTimestamp()
+        {
+            return maxTimestamp;
+        }
+
+        /**
+         * Checks whether the file may have records in a period, the same way
+         * <tt>HistoryReaderImpl.isInPeriod</tt> checks timestamps.
+         *
+         * @param startDate the start of the period or <tt>null</tt>
+         * @param endDate the end of the period or <tt>null</tt>
+         * @return <tt>true</tt> if the file has records in the period.
+         */
+        public boolean overlaps(Date startDate, Date endDate)
+        {
+            if (recordCount == 0)
+                return false;
+
+            return (startDate == null || maxTimestamp >= startDate.getTime())
+                && (endDate == null || minTimestamp < endDate.getTime());
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Writes the history files modified by added records on a background thread,
+ * so that adding a record does not wait for the file to be written. The
+ * records added to the same file while it waits are written by a single
+ * write of that file.
+ * <p>
+ * A file is written once its first pending record waited for the maximum
+ * latency or once it has the maximum batch of pending records. The number
+ * of pending records is bounded: when the queue is full the writing thread
+ * writes all the pending files and the thread adding a record waits for it
+ * to take them, without writing files itself.
+ */
+public class HistoryWriteBehind
+    implements Runnable
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriteBehind.class);
+
+    /**
+     * The maximum time in milliseconds a record waits to be written.
+     */
+    private final long maxLatency;
+
+    /**
+     * The number of pending records of a file which makes it written
+     * without waiting for the maximum latency.
+     */
+    private final int maxBatch;
+
+    /**
+     * The maximum number of pending records of all files.
+     */
+    private final int queueSize;
+
+    /**
+     * The files waiting to be written, oldest first.
+     */
+    private final LinkedHashMap<File, PendingWrite> pending
+        = new LinkedHashMap<File, PendingWrite>();
+
+    /**
+     * The number of pending records of all files.
+     */
+    private int pendingRecords = 0;
+
+    /**
+     * The thread writing the files, <tt>null</tt> when not started or
+     * stopped.
+     */
+    private Thread thread;
+
+    /**
+     * Whether the queue was stopped, the files are then written by the
+     * threads adding the records.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a write-behind queue.
+     *
+     * @param maxLatency the maximum time in milliseconds a record waits to
+     * be written
+     * @param maxBatch the number of pending records of a file which makes it
+     * written without waiting
+     * @param queueSize the maximum number of pending records
+     */
+    public HistoryWriteBehind(long maxLatency, int maxBatch, int queueSize)
+    {
+        this.maxLatency = maxLatency;
+        this.maxBatch = maxBatch;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Queues the write of a history file modified by an added record.
+     *
+     * @param history the history of the file
+     * @param filename the name of the file in the history
+     * @param file the file
+     * @throws IOException if the queue was stopped and the file cannot be
+     * written
+     */
+    public void schedule(HistoryImpl history, String filename, File file)
+        throws IOException
+    {
+        boolean flush = false;
+
+        synchronized (this)
+        {
+            if (stopped)
+            {
+                flush = true;
+            }
+            else if (thread == null)
+            {
+                thread = new Thread(this, getClass().getName());
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            PendingWrite write = pending.get(file);
+            if (write == null)
+            {
+                write = new PendingWrite(history, filename);
+                pending.put(file, write);
+            }
+            write.records++;
+            pendingRecords++;
+
+            if (write.records >= maxBatch || pendingRecords >= queueSize)
+                notifyAll();
+
+            // wait for the writing thread to take the pending files
+            boolean interrupted = false;
+
+            while (!stopped && pendingRecords >= queueSize)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        if (flush)
+            flush();
+    }
+
+    /**
+     * Writes all pending files on the calling thread.
+     *
+     * @throws IOException if a file cannot be written, the other files are
+     * still written
+     */
+    public void flush()
+        throws IOException
+    {
+        IOException failure = null;
+
+        for (PendingWrite write : takePending(true))
+        {
+            try
+            {
+                write.history.flushFile(write.filename);
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Drops the pending files of a directory and of its subdirectories, which
+     * is about to be deleted or moved, so that they are not written back to
+     * it. A file the writing thread already took is still written.
+     *
+     * @param dir the directory
+     * @return the histories whose pending files were dropped
+     */
+    public synchronized Set<HistoryImpl> cancel(File dir)
+    {
+        Set<HistoryImpl> result = new HashSet<HistoryImpl>();
+        String prefix = dir.getPath() + File.separator;
+
+        Iterator<Map.Entry<File, PendingWrite>> iter
+            = pending.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<File, PendingWrite> entry = iter.next();
+
+            if (entry.getKey().getPath().startsWith(prefix))
+            {
+                iter.remove();
+                pendingRecords -= entry.getValue().records;
+                result.add(entry.getValue().history);
+            }
+        }
+
+        // wake the threads waiting for the queue to have room
+        if (!result.isEmpty())
+            notifyAll();
+        return result;
+    }
+
+    /**
+     * Stops the writing thread and writes all pending files.
+     */
+    public void stop()
+    {
+        Thread t;
+        synchronized (this)
+        {
+            t = thread;
+            thread = null;
+            stopped = true;
+            notifyAll();
+        }
+
+        if (t != null)
+        {
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try
+        {
+            flush();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot write history files", e);
+        }
+    }
+
+    /**
+     * Writes the pending files once they are due until stopped.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (thread != Thread.currentThread())
+                    return;
+
+                long wait = getWaitTime();
+                if (wait > 0)
+                {
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            for (PendingWrite write : takePending(false))
+            {
+                try
+                {
+                    write.history.flushFile(write.filename);
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Cannot write history file "
+                        + write.filename, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time to wait until a pending file is due.
+     *
+     * @return the time to wait in milliseconds or zero if a file is due
+     */
+    private long getWaitTime()
+    {
+        if (pending.isEmpty())
+            return maxLatency;
+        if (pendingRecords >= queueSize)
+            return 0;
+
+        for (PendingWrite write : pending.values())
+        {
+            if (write.records >= maxBatch)
+                return 0;
+        }
+
+        // the first file is the one waiting for the longest time
+        PendingWrite oldest = pending.values().iterator().next();
+        long wait = oldest.since + maxLatency - System.currentTimeMillis();
+
+        return (wait > 0) ? wait : 0;
+    }
+
+    /**
+     * Removes the pending files which are due from the queue.
+     *
+     * @param all whether to remove all pending files
+     * @return the removed files
+     */
+    private synchronized List<PendingWrite> takePending(boolean all)
+    {
+        List<PendingWrite> result = new ArrayList<PendingWrite>();
+        long now = System.currentTimeMillis();
+
+        all |= pendingRecords >= queueSize;
+
+        Iterator<PendingWrite> iter = pending.values().iterator();
+        while (iter.hasNext())
+        {
+            PendingWrite write = iter.next();
+            if (all
+                || write.records >= maxBatch
+                || now - write.since >= maxLatency)
+            {
+                iter.remove();
+                pendingRecords -= write.records;
+                result.add(write);
+            }
+        }
+
+        // wake the threads waiting for the queue to have room
+        if (!result.isEmpty())
+            notifyAll();
+        return result;
+    }
+
+    /**
+     * A file waiting to be written.
+     */
+    private static class PendingWrite
+    {
+        final HistoryImpl history;
+
+        final String filename;
+
+        /**
+         * The time the first pending record was added.
+         */
+        final long since = System.currentTimeMillis();
+
+        /**
+         * The number of records added since the file was written.
+         */
+        int records = 0;
+
+        PendingWrite(HistoryImpl history, String filename)
+        {
+            this.history = history;
+            this.filename = filename;
+        }
+    }
+}
@@ -131,6 +131,14 @@ public class HistoryWriterImpl
             }
         }
 
+        // index the record before it is added to the document, so that the
+        // index never misses records which are written
+        this.historyImpl.getKeywordIndex().addRecord(
+            this.currentFile, getElementNames(propertyNames), propertyValues);
+
+        // the timestamp of the appended record, if no record was removed
+        Date appended = date;
+
         synchronized (this.currentDoc)
         {
             Node root = this.currentDoc.getFirstChild();
@@ -143,6 +151,7 @@ public class HistoryWriterImpl
                 {
                     // lets remove the first one
                     removeFirstRecord(root);
+                    appended = null;
                 }
 
                 Element elem = createRecord(
@@ -155,10 +164,8 @@ public class HistoryWriterImpl
         // write changes
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            this.historyImpl.writeFileLater(
+                this.currentFile, this.currentDoc, appended);
         }
     }
 
@@ -287,6 +294,17 @@ public class HistoryWriterImpl
     public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
+    {
+        // files are not merged while a record is changed
+        synchronized (this.docCreateLock)
+        {
+            insertRecordInFiles(propertyValues, timestamp, timestampProperty);
+        }
+    }
+
+    private void insertRecordInFiles(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
     {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
@@ -303,47 +321,54 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            // readers scan the document while holding its lock
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Element idNode = XMLUtils.findChild(
-                    (Element)node, timestampProperty);
-                if(idNode == null)
-                    continue;
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Element idNode = XMLUtils.findChild(
+                        (Element)node, timestampProperty);
+                    if(idNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                Date nodeTimeStamp;
-                try
-                {
-                    nodeTimeStamp = sdf.parse(nodeValue);
-                }
-                catch (ParseException e)
-                {
-                    nodeTimeStamp = new Date(Long.parseLong(nodeValue));
-                }
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                if(nodeTimeStamp.before(timestamp))
-                    continue;
+                    Date nodeTimeStamp;
+                    try
+                    {
+                        nodeTimeStamp = sdf.parse(nodeValue);
+                    }
+                    catch (ParseException e)
+                    {
+                        nodeTimeStamp = new Date(Long.parseLong(nodeValue));
+                    }
 
-                Element newElem = createRecord(
-                    doc, structPropertyNames, propertyValues, timestamp);
+                    if(nodeTimeStamp.before(timestamp))
+                        continue;
 
-                doc.getFirstChild().insertBefore(newElem, node);
+                    this.historyImpl.getKeywordIndex().addRecord(filename,
+                        getElementNames(structPropertyNames), propertyValues);
 
-                changed = true;
-                break;
+                    Element newElem = createRecord(
+                        doc, structPropertyNames, propertyValues, timestamp);
+
+                    doc.getFirstChild().insertBefore(newElem, node);
+
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
@@ -409,6 +434,11 @@ public class HistoryWriterImpl
             this.currentFile += ".xml";
 
             this.currentDoc = this.historyImpl.createDocument(this.currentFile);
+
+            // all records of the new file will go through the index
+            if(this.currentDoc.getFirstChild().getChildNodes().getLength()
+                    == 0)
+                this.historyImpl.getKeywordIndex().setIndexed(this.currentFile);
         }
 
         // TODO: Assert: Assert.assertNonNull(this.currentDoc,
@@ -430,6 +460,16 @@ public class HistoryWriterImpl
     public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            updateRecordInFiles(idProperty, idValue, property, newValue);
+        }
+    }
+
+    private void updateRecordInFiles(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
     {
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
@@ -442,58 +482,66 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            // readers scan the document while holding its lock
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Element idNode
+                        = XMLUtils.findChild((Element)node, idProperty);
+                    if(idNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                if(!nodeValue.equals(idValue))
-                    continue;
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
+                    if(!nodeValue.equals(idValue))
+                        continue;
 
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
+                    this.historyImpl.getKeywordIndex().addRecord(filename,
+                        new String[]{property}, new String[]{newValue});
 
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
+                    Element changedNode =
+                        XMLUtils.findChild((Element)node, property);
 
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
+                    if(changedNode != null)
+                    {
+                        Node changedNestedNode = changedNode.getFirstChild();
 
-                    node.appendChild(propertyElement);
-                }
+                        changedNestedNode.setNodeValue(newValue);
+                    }
+                    else
+                    {
+                        Element propertyElement = this.currentDoc
+                            .createElement(property);
 
-                // change the timestamp, to reflect there was a change
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                ((Element)node).setAttribute("timestamp",
-                    sdf.format(new Date()));
+                        Text value = this.currentDoc
+                            .createTextNode(newValue.replaceAll("\0", " "));
+                        propertyElement.appendChild(value);
 
-                changed = true;
-                break;
+                        node.appendChild(propertyElement);
+                    }
+
+                    // change the timestamp, to reflect there was a change
+                    SimpleDateFormat sdf
+                        = new SimpleDateFormat(DATE_FORMAT);
+                    ((Element)node).setAttribute("timestamp",
+                        sdf.format(new Date()));
+
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
@@ -524,6 +572,15 @@ public class HistoryWriterImpl
      * @param updater the <tt>HistoryRecordUpdater</tt> instance.
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            updateRecordInFiles(updater);
+        }
+    }
+
+    private void updateRecordInFiles(HistoryRecordUpdater updater)
+        throws IOException
     {
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
@@ -536,36 +593,47 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            // readers scan the document while holding its lock
+            synchronized (doc)
             {
-                node = nodes.item(i);
-                updater.setHistoryRecord(createHistoryRecordFromNode(node));
-                if(!updater.isMatching())
-                    continue;
-
-                // change the timestamp, to reflect there was a change
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                ((Element)node).setAttribute("timestamp",
-                    sdf.format(new Date()));
-
-                Map<String, String> updates = updater.getUpdateChanges();
-                for(String nodeName : updates.keySet())
-                {
-                    Element changedNode =
-                        XMLUtils.findChild((Element)node, nodeName);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                    if(changedNode != null)
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
+                    updater.setHistoryRecord(createHistoryRecordFromNode(node));
+                    if(!updater.isMatching())
+                        continue;
+
+                    // change the timestamp, to reflect there was a change
+                    SimpleDateFormat sdf
+                        = new SimpleDateFormat(DATE_FORMAT);
+                    ((Element)node).setAttribute("timestamp",
+                        sdf.format(new Date()));
+
+                    Map<String, String> updates = updater.getUpdateChanges();
+                    for(String nodeName : updates.keySet())
                     {
-                        Node changedNestedNode = changedNode.getFirstChild();
-
-                        changedNestedNode.setNodeValue(updates.get(nodeName));
-                        changed = true;
+                        Element changedNode =
+                            XMLUtils.findChild((Element)node, nodeName);
+
+                        if(changedNode != null)
+                        {
+                            Node changedNestedNode
+                                = changedNode.getFirstChild();
+
+                            this.historyImpl.getKeywordIndex().addRecord(
+                                filename,
+                                new String[]{nodeName},
+                                new String[]{updates.get(nodeName)});
+
+                            changedNestedNode.setNodeValue(
+                                updates.get(nodeName));
+                            changed = true;
+                        }
                     }
                 }
             }
@@ -591,6 +659,44 @@ public class HistoryWriterImpl
         }
     }
 
+    /**
+     * Merges the small files of the history. Records are neither added nor
+     * changed while the files are merged.
+     *
+     * @return the number of bytes reclaimed
+     * @throws IOException if a merged file cannot be written
+     */
+    long mergeFiles()
+        throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            synchronized (this.docWriteLock)
+            {
+                return this.historyImpl.mergeFiles(
+                    MAX_RECORDS_PER_FILE, this.currentFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the elements storing the given properties, which
+     * are the names the readers return.
+     * @param propertyNames the property names
+     * @return the element names
+     */
+    private static String[] getElementNames(String[] propertyNames)
+    {
+        String[] result = new String[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            result[i] = propertyNames[i].endsWith(CDATA_SUFFIX)
+                ? propertyNames[i].replaceFirst(CDATA_SUFFIX, "")
+                : propertyNames[i];
+        }
+        return result;
+    }
+
     /**
      * Creates <tt>HistoryRecord</tt> instance from <tt>Node</tt> object.
      * @param node the node
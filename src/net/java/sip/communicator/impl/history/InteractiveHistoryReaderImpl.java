@@ -6,18 +6,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -131,62 +125,52 @@ public class InteractiveHistoryReaderImpl
      * @param resultCount the desired number of results
      * @param query the query tracking the results
      */
-    private void find(  Date startDate,
-                        Date endDate,
-                        String[] keywords,
-                        String field,
-                        boolean caseSensitive,
+    private void find(  final Date startDate,
+                        final Date endDate,
+                        final String[] keywords,
+                        final String field,
+                        final boolean caseSensitive,
                         int resultCount,
                         HistoryQueryImpl query)
     {
         Vector<String> filelist
-            = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
-                                                    startDate, endDate, true);
+            = HistoryReaderImpl.filterFilesByPeriod(
+                history, startDate, endDate, true);
+        HistoryReaderImpl.filterFilesByKeywords(
+            history, filelist, keywords, field);
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
-
-            if(doc == null)
-                continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            for ( int i = nodes.getLength() - 1;
-                  i >= 0 && !query.isCanceled();
-                  i--)
+            // the newest matching records of the file, the files are read
+            // from the newest
+            HistoryReaderImpl.LastRecordsHandler lastRecords
+                = new HistoryReaderImpl.LastRecordsHandler(resultCount, false)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                @Override
+                protected HistoryRecord createRecord(Date timestamp,
+                                                     String[] propertyNames,
+                                                     String[] propertyValues)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    if(!HistoryReaderImpl.isInPeriod(
+                            timestamp, startDate, endDate))
+                        return null;
 
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
-
-                    if(record != null)
-                    {
-                        query.addHistoryRecord(record);
-                        resultCount--;
-                    }
+                    return HistoryReaderImpl.filterByKeyword(
+                        propertyNames, propertyValues, timestamp,
+                        keywords, field, caseSensitive);
                 }
+            };
+            history.scanRecords(filename, lastRecords);
+
+            Iterator<HistoryRecord> records
+                = lastRecords.getRecords().descendingIterator();
+            while (records.hasNext() && !query.isCanceled())
+            {
+                query.addHistoryRecord(records.next());
+                resultCount--;
             }
         }
 
@@ -0,0 +1,248 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A <tt>History</tt> stored by the segment storage engine in a
+ * <tt>SegmentLog</tt> instead of in xml documents. The log is opened lazily
+ * on first access, and if the history directory still holds histories in
+ * the xml format they are migrated at that point.
+ */
+public class SegmentHistoryImpl
+    implements History
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryImpl.class);
+
+    private final HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private final File directory;
+
+    /**
+     * The log storing the records.
+     */
+    private final SegmentLog log;
+
+    /**
+     * Whether the log was opened.
+     */
+    private boolean logOpened = false;
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * The keyword index of the log blocks.
+     */
+    private HistoryKeywordIndex keywordIndex;
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryImpl</tt> by specifying the
+     * history identifier, the directory, the <tt>HistoryRecordStructure</tt>
+     * to use and the parent <tt>HistoryServiceImpl</tt>.
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected SegmentHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyRecordStructure = historyRecordStructure;
+        this.historyServiceImpl = historyServiceImpl;
+        this.log = new SegmentLog(directory);
+    }
+
+    /**
+     * Returns the identifier of this history.
+     * @return the identifier of this history
+     */
+    public HistoryID getID()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the current <tt>HistoryRecordStructure</tt>.
+     * @return the current <tt>HistoryRecordStructure</tt>
+     */
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+    }
+
+    /**
+     * Returns an object which can be used to read and query this history.
+     * @return an object which can be used to read and query this history
+     */
+    public synchronized HistoryReader getReader()
+    {
+        if (reader == null)
+            reader = new SegmentHistoryReaderImpl(this);
+        return reader;
+    }
+
+    /**
+     * Returns an object that can be used to read and query this history
+     * interactively.
+     * @return an object that can be used to read and query this history
+     */
+    public synchronized InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+            interactiveReader = new SegmentInteractiveHistoryReaderImpl(this);
+        return interactiveReader;
+    }
+
+    /**
+     * Returns an object which can be used to append records to this history.
+     * @return an object which can be used to append records to this history
+     */
+    public synchronized HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new SegmentHistoryWriterImpl(this);
+        return writer;
+    }
+
+    /**
+     * Returns the parent history service.
+     * @return the parent history service.
+     */
+    protected HistoryServiceImpl getHistoryServiceImpl()
+    {
+        return historyServiceImpl;
+    }
+
+    /**
+     * Returns the log of this history, opening it or migrating the xml
+     * history stored in the same directory the first time it is requested.
+     * The xml files left over by a previous migration are migrated when the
+     * log is opened.
+     *
+     * @return the opened log
+     * @throws IOException if the log can neither be opened nor created.
+     */
+    synchronized SegmentLog getLog()
+        throws IOException
+    {
+        historyServiceImpl.historyAccessed();
+
+        if (!logOpened)
+        {
+            if (log.exists())
+            {
+                log.open();
+
+                // the xml files which could not be migrated or removed
+                // before
+                new XmlHistoryMigrator(historyServiceImpl)
+                    .migrateRemaining(directory, log);
+
+                // the last record may have been written without being
+                // indexed if we were not stopped properly, and the blocks
+                // the migration appended to are not indexed
+                SegmentLog.Block lastBlock = log.getLastBlock();
+                if (lastBlock != null)
+                    getKeywordIndex().setNotIndexed(lastBlock.getId());
+            }
+            else
+            {
+                new XmlHistoryMigrator(historyServiceImpl)
+                    .migrate(directory, log);
+            }
+            logOpened = true;
+        }
+
+        return log;
+    }
+
+    /**
+     * Returns the keyword index of this history as is, used by the writer
+     * to add the records it writes.
+     * @return the keyword index of this history
+     */
+    synchronized HistoryKeywordIndex getKeywordIndex()
+    {
+        if (keywordIndex == null)
+        {
+            keywordIndex = new HistoryKeywordIndex(
+                new File(directory, HistoryKeywordIndex.INDEX_FILE));
+        }
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the keyword index of this history after indexing the blocks
+     * which are not indexed yet, so that it can answer queries.
+     * @return the complete keyword index of this history
+     * @throws IOException if the log cannot be read
+     */
+    HistoryKeywordIndex updateKeywordIndex()
+        throws IOException
+    {
+        SegmentLog openedLog = getLog();
+        HistoryKeywordIndex index = getKeywordIndex();
+
+        for (SegmentLog.Block block : openedLog.getBlocks())
+        {
+            String blockId = block.getId();
+            if (index.isIndexed(blockId))
+                continue;
+
+            for (SegmentLog.StoredRecord r : openedLog.readBlock(block))
+            {
+                index.addRecord(
+                    blockId, r.getPropertyNames(), r.getPropertyValues());
+            }
+            index.setIndexed(blockId);
+        }
+        index.flush();
+
+        return index;
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The <tt>HistoryReader</tt> of histories stored by the segment storage
+ * engine. Queries use the sparse timestamp index of the <tt>SegmentLog</tt>
+ * to read only the blocks which can hold matching records, and queries
+ * limited to a number of records stop as soon as no remaining block can
+ * contain a better match.
+ */
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryReaderImpl.class);
+
+    /**
+     * Orders blocks by their newest record, newest first.
+     */
+    private static final Comparator<SegmentLog.Block> NEWEST_FIRST
+        = new Comparator<SegmentLog.Block>()
+        {
+            public int compare(SegmentLog.Block b1, SegmentLog.Block b2)
+            {
+                return compareLongs(b2.getMaxTimestamp(), b1.getMaxTimestamp());
+            }
+        };
+
+    /**
+     * Orders blocks by their oldest record, oldest first.
+     */
+    private static final Comparator<SegmentLog.Block> OLDEST_FIRST
+        = new Comparator<SegmentLog.Block>()
+        {
+            public int compare(SegmentLog.Block b1, SegmentLog.Block b2)
+            {
+                return compareLongs(b1.getMinTimestamp(), b2.getMinTimestamp());
+            }
+        };
+
+    private final SegmentHistoryImpl historyImpl;
+
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryReaderImpl</tt>.
+     * @param historyImpl the parent History implementation
+     */
+    protected SegmentHistoryReaderImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    /**
+     * Searches the history for all records with timestamp after
+     * <tt>startDate</tt>.
+     *
+     * @param startDate the date after all records will be returned
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+                                                                Date startDate)
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records with timestamp before
+     * <tt>endDate</tt>.
+     *
+     * @param endDate the date before which all records will be returned
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord> findByEndDate(
+                                                                Date endDate)
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records with timestamp between
+     * <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByPeriod(Date startDate, Date endDate)
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByKeyword(String keyword, String field)
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByKeyword(String keyword, String field, boolean caseSensitive)
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByKeywords(String[] keywords, String field)
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByKeywords(String[] keywords, String field, boolean caseSensitive)
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByPeriod(Date startDate, Date endDate,
+                     String[] keywords, String field)
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord>
+        findByPeriod(Date startDate, Date endDate,
+                     String[] keywords, String field, boolean caseSensitive)
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> messages.
+     *
+     * @param count the number of records to return
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+    {
+        return findLast(count, null, null, false);
+    }
+
+    /**
+     * Returns the supplied number of recent messages
+     * containing all <tt>keywords</tt>.
+     *
+     * @param count messages count
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public synchronized QueryResultSet<HistoryRecord> findLast(
+        int count, String[] keywords, String field, boolean caseSensitive)
+    {
+        // like the xml engine, the keywords filter the last count records
+        TreeSet<HistoryRecord> result
+            = findNewest(count, null, null, null, null, false, null);
+
+        if (keywords != null && keywords.length > 0)
+        {
+            Iterator<HistoryRecord> i = result.iterator();
+            while (i.hasNext())
+            {
+                if (!matchField(i.next(), keywords, field, caseSensitive))
+                    i.remove();
+            }
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Checks whether the <tt>field</tt> property of a record contains all
+     * <tt>keywords</tt>.
+     *
+     * @param record the record
+     * @param keywords the keywords
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record matches
+     */
+    private static boolean matchField(HistoryRecord record,
+                                      String[] keywords,
+                                      String field,
+                                      boolean caseSensitive)
+    {
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(field))
+            {
+                String value = record.getPropertyValues()[i];
+                return value != null
+                    && HistoryReaderImpl.matchKeyword(
+                            value, keywords, caseSensitive);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the supplied number of recent messages after the given date
+     *
+     * @param date messages after date
+     * @param count messages count
+     * @return QueryResultSet the found records
+     */
+    public QueryResultSet<HistoryRecord>
+        findFirstRecordsAfter(Date date, int count)
+    {
+        return new OrderedQueryResultSet<HistoryRecord>(
+            findOldest(count, date, null));
+    }
+
+    /**
+     * Returns the supplied number of recent messages before the given date
+     *
+     * @param date messages before date
+     * @param count messages count
+     * @return QueryResultSet the found records
+     */
+    public QueryResultSet<HistoryRecord>
+        findLastRecordsBefore(Date date, int count)
+    {
+        return new OrderedQueryResultSet<HistoryRecord>(
+            findNewest(count, null, date, null, null, false, null));
+    }
+
+    /**
+     * Adding progress listener for monitoring progress of search process
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void addSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removing progress listener
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void removeSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the exact number of records in the history, as kept by the
+     * log.
+     *
+     * @return the number of records
+     */
+    public int countRecords()
+    {
+        try
+        {
+            return historyImpl.getLog().getLiveCount();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot open history " + historyImpl.getID(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the statistics of the history, as kept by the log. The
+     * timestamps cover the deleted records which were not compacted yet.
+     *
+     * @return the statistics of the history
+     */
+    public HistoryStatistics getStatistics()
+    {
+        SegmentLog log;
+        try
+        {
+            log = historyImpl.getLog();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot open history " + historyImpl.getID(), e);
+            return new HistoryStatistics(0, null, null, 0);
+        }
+
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (SegmentLog.Block block : log.getBlocks())
+        {
+            if (block.getRecordCount() == 0)
+                continue;
+
+            first = Math.min(first, block.getMinTimestamp());
+            last = Math.max(last, block.getMaxTimestamp());
+        }
+
+        int count = log.getLiveCount();
+        return new HistoryStatistics(
+            count,
+            (count == 0 || first == Long.MAX_VALUE) ? null : new Date(first),
+            (count == 0 || last == Long.MIN_VALUE) ? null : new Date(last),
+            log.getSize());
+    }
+
+    /**
+     * Finds all records in the given period matching the keywords, firing
+     * progress events as blocks are read.
+     */
+    private QueryResultSet<HistoryRecord> find(
+        Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+
+        fireProgressStateChanged(startDate, endDate,
+            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        List<SegmentLog.Block> blocks = getBlocks(startDate, endDate);
+        filterBlocksByKeywords(blocks, keywords, field);
+        long start = toStart(startDate);
+        long end = toEnd(endDate);
+
+        double currentProgress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+        double blockProgressStep
+            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+        if (blocks.size() != 0)
+        {
+            blockProgressStep
+                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / blocks.size();
+        }
+
+        for (SegmentLog.Block block : blocks)
+        {
+            for (SegmentLog.StoredRecord r : readBlock(block))
+            {
+                if (r.getTimestamp() < start || r.getTimestamp() >= end)
+                    continue;
+
+                HistoryRecord record
+                    = filterByKeyword(r, keywords, field, caseSensitive);
+                if (record != null)
+                    result.add(record);
+            }
+
+            currentProgress += blockProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int)currentProgress);
+        }
+
+        if ((int)currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Finds the newest <tt>count</tt> records in the given period matching
+     * the keywords. Blocks are visited newest first and the search stops
+     * once the oldest found record is newer than everything left.
+     *
+     * @param count the number of records to find
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field to match the keywords against
+     * @param caseSensitive whether keywords are case sensitive
+     * @param query when not <tt>null</tt>, the search stops when it is
+     * canceled
+     * @return the found records
+     */
+    TreeSet<HistoryRecord> findNewest(
+        int count, Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive,
+        HistoryQueryImpl query)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+        if (count <= 0)
+            return result;
+
+        long start = toStart(startDate);
+        long end = toEnd(endDate);
+
+        List<SegmentLog.Block> blocks = getBlocks(startDate, endDate);
+        filterBlocksByKeywords(blocks, keywords, field);
+        Collections.sort(blocks, NEWEST_FIRST);
+
+        for (SegmentLog.Block block : blocks)
+        {
+            if (query != null && query.isCanceled())
+                break;
+
+            if (result.size() >= count
+                && block.getMaxTimestamp()
+                    < result.first().getTimestamp().getTime())
+                break;
+
+            for (SegmentLog.StoredRecord r : readBlock(block))
+            {
+                if (r.getTimestamp() < start || r.getTimestamp() >= end)
+                    continue;
+
+                HistoryRecord record
+                    = filterByKeyword(r, keywords, field, caseSensitive);
+                if (record != null)
+                {
+                    result.add(record);
+                    if (result.size() > count)
+                        result.pollFirst();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the oldest <tt>count</tt> records after <tt>startDate</tt>.
+     * Blocks are visited oldest first and the search stops once the newest
+     * found record is older than everything left.
+     *
+     * @param count the number of records to find
+     * @param startDate the start of the period
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the found records
+     */
+    private TreeSet<HistoryRecord> findOldest(
+        int count, Date startDate, Date endDate)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+        if (count <= 0)
+            return result;
+
+        long start = toStart(startDate);
+        long end = toEnd(endDate);
+
+        List<SegmentLog.Block> blocks = getBlocks(startDate, endDate);
+        Collections.sort(blocks, OLDEST_FIRST);
+
+        for (SegmentLog.Block block : blocks)
+        {
+            if (result.size() >= count
+                && block.getMinTimestamp()
+                    > result.last().getTimestamp().getTime())
+                break;
+
+            for (SegmentLog.StoredRecord r : readBlock(block))
+            {
+                if (r.getTimestamp() < start || r.getTimestamp() >= end)
+                    continue;
+
+                result.add(filterByKeyword(r, null, null, false));
+                if (result.size() > count)
+                    result.pollLast();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the blocks of the log which can hold records in the given
+     * period, in storage order.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the matching blocks
+     */
+    private List<SegmentLog.Block> getBlocks(Date startDate, Date endDate)
+    {
+        List<SegmentLog.Block> result = new ArrayList<SegmentLog.Block>();
+
+        try
+        {
+            long start = toStart(startDate);
+            long end = toEnd(endDate);
+
+            for (SegmentLog.Block block : historyImpl.getLog().getBlocks())
+            {
+                if (block.overlaps(start, end))
+                    result.add(block);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot open history " + historyImpl.getID(), e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes the blocks which cannot contain records matching the keywords
+     * according to the keyword index of the history.
+     *
+     * @param blocks the blocks to filter
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     */
+    private void filterBlocksByKeywords(List<SegmentLog.Block> blocks,
+                                        String[] keywords,
+                                        String field)
+    {
+        if (keywords == null || keywords.length == 0 || field == null)
+            return;
+
+        Set<String> blockIds;
+        try
+        {
+            blockIds = historyImpl.updateKeywordIndex()
+                .findUnits(field, keywords);
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot index history " + historyImpl.getID(), e);
+            return;
+        }
+
+        if (blockIds == null)
+            return;
+
+        Iterator<SegmentLog.Block> iter = blocks.iterator();
+        while (iter.hasNext())
+        {
+            if (!blockIds.contains(iter.next().getId()))
+                iter.remove();
+        }
+    }
+
+    /**
+     * Reads the records of a block, an unreadable block is logged and
+     * skipped.
+     *
+     * @param block the block to read
+     * @return the records of the block
+     */
+    private List<SegmentLog.StoredRecord> readBlock(SegmentLog.Block block)
+    {
+        try
+        {
+            return historyImpl.getLog().readBlock(block);
+        }
+        catch (IOException e)
+        {
+            logger.error("Error reading history " + historyImpl.getID(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * If there is keyword restriction and the record doesn't match it
+     * returns null. Otherwise returns the <tt>HistoryRecord</tt>
+     * corresponding to the stored record. Matches the semantics of
+     * <tt>HistoryReaderImpl.filterByKeyword</tt>.
+     *
+     * @param r the stored record
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field to match the keywords against
+     * @param caseSensitive whether keywords are case sensitive
+     * @return the record or <tt>null</tt>
+     */
+    static HistoryRecord filterByKeyword(SegmentLog.StoredRecord r,
+                                         String[] keywords,
+                                         String field,
+                                         boolean caseSensitive)
+    {
+        if (keywords != null && keywords.length > 0)
+        {
+            String value = (field == null) ? null : r.getPropertyValue(field);
+
+            // if we need to find a particular record but the target node is
+            // not present skip this record
+            if (value == null
+                || !HistoryReaderImpl.matchKeyword(
+                        value, keywords, caseSensitive))
+                return null;
+        }
+
+        return new HistoryRecord(r.getPropertyNames(),
+            r.getPropertyValues(), new Date(r.getTimestamp()));
+    }
+
+    private static long toStart(Date startDate)
+    {
+        return (startDate == null) ? Long.MIN_VALUE : startDate.getTime();
+    }
+
+    private static long toEnd(Date endDate)
+    {
+        return (endDate == null) ? Long.MAX_VALUE : endDate.getTime();
+    }
+
+    private static int compareLongs(long l1, long l2)
+    {
+        return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                         String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            for (HistorySearchProgressListener l : progressListeners)
+                l.progressChanged(event);
+        }
+    }
+
+    /**
+     * Used to compare HistoryRecords
+     * ant to be ordered in TreeSet
+     */
+    private static class HistoryRecordComparator
+        implements Comparator<HistoryRecord>
+    {
+        public int compare(HistoryRecord h1, HistoryRecord h2)
+        {
+            return h1.getTimestamp().compareTo(h2.getTimestamp());
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of histories stored by the segment storage
+ * engine. New records are appended to the <tt>SegmentLog</tt>, so adding a
+ * record costs a write of that record only. Updated records are appended
+ * again with the new values and their old version is marked as deleted.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    /**
+     * The suffix of property names whose values are stored as CDATA by the
+     * xml engine. The suffix is not part of the stored property name.
+     */
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    private final SegmentHistoryImpl historyImpl;
+
+    /**
+     * Serializes the modifications of the history.
+     */
+    private final Object writeLock = new Object();
+
+    protected SegmentHistoryWriterImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecord(record.getPropertyNames(), record.getPropertyValues(),
+            record.getTimestamp(), -1);
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, new Date(), -1);
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, timestamp, -1);
+    }
+
+    /**
+     * Stores the passed propertyValues complying with the
+     * historyRecordStructure.
+     *
+     * @param propertyValues the values of the record.
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if the record cannot be stored
+     */
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, new Date(),
+            maxNumberOfRecords);
+    }
+
+    /**
+     * Appends a record to the log, removing the oldest records if the
+     * history would hold more than <tt>maxNumberOfRecords</tt>.
+     *
+     * @param propertyNames the property names
+     * @param propertyValues the property values
+     * @param date the timestamp of the record
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if the record cannot be stored
+     */
+    private void addRecord(String[] propertyNames,
+                           String[] propertyValues,
+                           Date date,
+                           int maxNumberOfRecords)
+        throws IOException
+    {
+        SegmentLog log = historyImpl.getLog();
+
+        synchronized (writeLock)
+        {
+            if (maxNumberOfRecords > -1)
+            {
+                while (log.getLiveCount() >= maxNumberOfRecords
+                        && log.getLiveCount() > 0)
+                {
+                    removeOldestRecord(log);
+                }
+            }
+
+            append(log, normalizeNames(propertyNames),
+                normalizeValues(propertyValues), date.getTime());
+        }
+    }
+
+    /**
+     * Inserts a record from the passed <tt>propertyValues</tt> complying with
+     * the current historyRecordStructure. Readers do not rely on the storage
+     * order of the records, so the record is simply appended.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty the property name for the timestamp of the
+     * record
+     * @throws IOException if the record cannot be stored
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, timestamp, -1);
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     * @throws IOException if the record cannot be stored
+     */
+    public void updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        SegmentLog log = historyImpl.getLog();
+
+        synchronized (writeLock)
+        {
+            for (SegmentLog.Block block : log.getBlocks())
+            {
+                for (SegmentLog.StoredRecord r : log.readBlock(block))
+                {
+                    if (!idValue.equals(r.getPropertyValue(idProperty)))
+                        continue;
+
+                    Map<String, String> changes
+                        = new HashMap<String, String>();
+                    changes.put(property, newValue.replaceAll("\0", " "));
+
+                    replace(log, r, changes, true);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates history record using given <tt>HistoryRecordUpdater</tt>
+     * instance to find which is the record to be updated and to get the new
+     * values for the fields
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     * @throws IOException if the record cannot be stored
+     */
+    public void updateRecord(HistoryRecordUpdater updater)
+        throws IOException
+    {
+        SegmentLog log = historyImpl.getLog();
+        HistoryRecordStructure structure
+            = historyImpl.getHistoryRecordsStructure();
+        String[] structNames = normalizeNames(structure.getPropertyNames());
+
+        synchronized (writeLock)
+        {
+            List<SegmentLog.StoredRecord> matching
+                = new ArrayList<SegmentLog.StoredRecord>();
+            List<Map<String, String>> updates
+                = new ArrayList<Map<String, String>>();
+
+            for (SegmentLog.Block block : log.getBlocks())
+            {
+                for (SegmentLog.StoredRecord r : log.readBlock(block))
+                {
+                    String[] values = new String[structNames.length];
+                    for (int i = 0; i < structNames.length; i++)
+                        values[i] = r.getPropertyValue(structNames[i]);
+
+                    updater.setHistoryRecord(
+                        new HistoryRecord(structure, values));
+                    if (!updater.isMatching())
+                        continue;
+
+                    matching.add(r);
+                    updates.add(updater.getUpdateChanges());
+                }
+            }
+
+            // appending while iterating would make us visit the updated
+            // records again
+            for (int i = 0; i < matching.size(); i++)
+                replace(log, matching.get(i), updates.get(i), false);
+        }
+    }
+
+    /**
+     * Replaces a stored record with a copy holding the changed values and
+     * the current time as timestamp, to reflect there was a change.
+     *
+     * @param log the log
+     * @param r the record to replace
+     * @param changes the new property values
+     * @param addMissing whether properties missing in the record are added
+     * @throws IOException if the record cannot be stored
+     */
+    private void replace(SegmentLog log,
+                         SegmentLog.StoredRecord r,
+                         Map<String, String> changes,
+                         boolean addMissing)
+        throws IOException
+    {
+        List<String> names
+            = new ArrayList<String>(Arrays.asList(r.getPropertyNames()));
+        List<String> values
+            = new ArrayList<String>(Arrays.asList(r.getPropertyValues()));
+
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            int index = names.indexOf(change.getKey());
+            if (index != -1)
+            {
+                values.set(index, change.getValue());
+            }
+            else if (addMissing)
+            {
+                names.add(change.getKey());
+                values.add(change.getValue());
+            }
+        }
+
+        append(log, names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            System.currentTimeMillis());
+        log.delete(r);
+    }
+
+    /**
+     * Appends a record to the log and adds it to the keyword index.
+     *
+     * @param log the log
+     * @param names the property names
+     * @param values the property values
+     * @param timestamp the timestamp of the record
+     * @throws IOException if the record cannot be stored
+     */
+    private void append(SegmentLog log, String[] names, String[] values,
+                        long timestamp)
+        throws IOException
+    {
+        SegmentLog.StoredRecord record = log.append(names, values, timestamp);
+
+        HistoryKeywordIndex index = historyImpl.getKeywordIndex();
+        String blockId = record.getBlock().getId();
+
+        // blocks started by the writer are completely indexed by it, older
+        // blocks are indexed before the next query. Only the last block is
+        // indexed again if the entries of its records were not appended to
+        // the journal, so those of the previous blocks are appended now.
+        if (record.getBlock().getRecordCount() == 1)
+        {
+            index.flush();
+            index.setIndexed(blockId);
+        }
+
+        index.addRecord(blockId, names, values);
+    }
+
+    /**
+     * Removes the record with the oldest timestamp.
+     *
+     * @param log the log
+     * @throws IOException if the record cannot be removed
+     */
+    private void removeOldestRecord(SegmentLog log)
+        throws IOException
+    {
+        SegmentLog.StoredRecord oldest = null;
+
+        for (SegmentLog.Block block : log.getBlocks())
+        {
+            if (oldest != null
+                    && block.getMinTimestamp() >= oldest.getTimestamp())
+                continue;
+
+            for (SegmentLog.StoredRecord r : log.readBlock(block))
+            {
+                if (oldest == null || r.getTimestamp() < oldest.getTimestamp())
+                    oldest = r;
+            }
+        }
+
+        if (oldest != null)
+            log.delete(oldest);
+    }
+
+    private String[] getStructPropertyNames()
+    {
+        return historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+
+    /**
+     * Removes the CDATA suffix from property names, the readers of the xml
+     * engine never return it either.
+     *
+     * @param propertyNames the property names
+     * @return the stored property names
+     */
+    private static String[] normalizeNames(String[] propertyNames)
+    {
+        String[] result = new String[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            String name = propertyNames[i];
+            if (name.endsWith(CDATA_SUFFIX))
+            {
+                name = name.substring(
+                    0, name.length() - CDATA_SUFFIX.length());
+            }
+            result[i] = name;
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the null characters which the xml engine cannot store, so
+     * both engines return the same values.
+     *
+     * @param propertyValues the property values
+     * @return the values to store
+     */
+    private static String[] normalizeValues(String[] propertyValues)
+    {
+        String[] result = new String[propertyValues.length];
+        for (int i = 0; i < propertyValues.length; i++)
+        {
+            if (propertyValues[i] != null)
+                result[i] = propertyValues[i].replaceAll("\0", " ");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>InteractiveHistoryReader</tt> of histories stored by the segment
+ * storage engine. Like <tt>InteractiveHistoryReaderImpl</tt> it searches
+ * from the newest records to the oldest in a separate thread and can be
+ * canceled at any time through the returned <tt>HistoryQuery</tt>.
+ */
+public class SegmentInteractiveHistoryReaderImpl
+    implements InteractiveHistoryReader
+{
+    /**
+     * The <tt>SegmentHistoryImpl</tt> where this reader is registered.
+     */
+    private final SegmentHistoryImpl history;
+
+    /**
+     * Creates an instance of <tt>SegmentInteractiveHistoryReaderImpl</tt> by
+     * specifying the corresponding <tt>history</tt> implementation.
+     * @param history the corresponding <tt>SegmentHistoryImpl</tt> to read
+     * from
+     */
+    public SegmentInteractiveHistoryReaderImpl(SegmentHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @param recordCount limits the result to this record count
+     * @return the found records
+     */
+    public HistoryQuery findByKeyword(  String keyword,
+                                        String field,
+                                        int recordCount)
+    {
+        return findByKeywords(new String[]{keyword}, field, recordCount);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param recordCount limits the result to this record count
+     * @return the found records
+     */
+    public HistoryQuery findByKeywords( final String[] keywords,
+                                        final String field,
+                                        final int recordCount)
+    {
+        StringBuilder queryString = new StringBuilder();
+        for (String s : keywords)
+        {
+            queryString.append(' ');
+            queryString.append(s);
+        }
+
+        final HistoryQueryImpl query
+            = new HistoryQueryImpl(queryString.toString());
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(keywords, field, recordCount, query);
+            }
+        }.start();
+
+        return query;
+    }
+
+    /**
+     * Finds the newest records matching the keywords and reports them to
+     * the query, newest first.
+     *
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void find(  String[] keywords,
+                        String field,
+                        int resultCount,
+                        HistoryQueryImpl query)
+    {
+        SegmentHistoryReaderImpl reader
+            = (SegmentHistoryReaderImpl) history.getReader();
+
+        TreeSet<HistoryRecord> records = reader.findNewest(
+            resultCount, null, null, keywords, field, false, query);
+
+        Iterator<HistoryRecord> iter = records.descendingIterator();
+        while (iter.hasNext() && !query.isCanceled())
+            query.addHistoryRecord(iter.next());
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+}
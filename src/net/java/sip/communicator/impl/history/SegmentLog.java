@@ -0,0 +1,1335 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only, segmented record log used as the storage of a single
+ * history by the segment storage engine.
+ * <p>
+ * Records are appended in binary form to the active segment file
+ * (<tt>&lt;timestamp&gt;.seg</tt>). Every <tt>INDEX_INTERVAL</tt> records
+ * of a segment form a block, for which a sparse index entry (offset, record
+ * count, minimum and maximum timestamp) is kept. When the active segment
+ * exceeds <tt>MAX_SEGMENT_SIZE</tt> it is sealed: its block index is
+ * written to <tt>&lt;timestamp&gt;.idx</tt> and the per-history manifest
+ * (<tt>segments.mf</tt>) is rewritten. The active segment is not indexed on
+ * disk, it is rescanned when the log is opened, which also lets us drop a
+ * partially written record left after a crash.
+ * <p>
+ * Records are never rewritten in place. Removing a record only sets the
+ * deleted flag in its header, which leaves a tombstone that is skipped by
+ * readers, until {@link #compact()} rewrites the sealed segments without
+ * their tombstones.
+ */
+public class SegmentLog
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(SegmentLog.class);
+
+    /**
+     * The extension of segment files.
+     */
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * The extension of sealed segment index files.
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * The name of the file listing all segments of a history.
+     */
+    public static final String MANIFEST_FILE = "segments.mf";
+
+    /**
+     * The size after which the active segment is sealed and a new one is
+     * started.
+     */
+    static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The number of records covered by a single sparse index entry.
+     */
+    static final int INDEX_INTERVAL = 32;
+
+    /**
+     * Identifies manifest files.
+     */
+    private static final int MANIFEST_MAGIC = 0x4a485346;
+
+    /**
+     * The version of the manifest and index format.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The flag set in the header of deleted records.
+     */
+    private static final byte FLAG_DELETED = 1;
+
+    /**
+     * The size of the record header preceding the checksummed payload - the
+     * payload length and the flags.
+     */
+    private static final int HEADER_SIZE = 5;
+
+    /**
+     * The directory holding the segment files.
+     */
+    private final File directory;
+
+    /**
+     * The segments of this log ordered by creation, the last one is the
+     * active segment.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Guards the segments. Appends and tombstones take the write lock,
+     * reading blocks takes the read lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Whether the log was committed by writing its manifest. The manifest of
+     * a log being initialized is only written once it is committed.
+     */
+    private boolean committed = true;
+
+    /**
+     * Creates a log stored in the given <tt>directory</tt>. The log must be
+     * either opened with {@link #open()} or initialized with
+     * {@link #initialize()} before use.
+     *
+     * @param directory the history directory
+     */
+    public SegmentLog(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory of this log.
+     * @return the directory of this log.
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Checks whether a committed log exists in the directory.
+     * @return <tt>true</tt> if the manifest of the log exists.
+     */
+    public boolean exists()
+    {
+        return new File(directory, MANIFEST_FILE).exists();
+    }
+
+    /**
+     * Initializes an empty log, removing any segment files and manifest left
+     * from an unfinished initialization. The log is not committed until
+     * {@link #writeManifest()} is called.
+     */
+    public void initialize()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            segments.clear();
+            committed = false;
+            new File(directory, MANIFEST_FILE).delete();
+
+            File[] files = directory.listFiles();
+            if (files == null)
+                return;
+
+            for (File f : files)
+            {
+                String name = f.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)
+                        || name.endsWith(INDEX_SUFFIX))
+                {
+                    f.delete();
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the manifest, the indexes of the sealed segments and rescans the
+     * active segment.
+     *
+     * @throws IOException if the manifest or an index cannot be read.
+     */
+    public void open()
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            segments.clear();
+            committed = true;
+
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(
+                    new File(directory, MANIFEST_FILE))));
+            try
+            {
+                if (in.readInt() != MANIFEST_MAGIC
+                        || in.readInt() != FORMAT_VERSION)
+                {
+                    throw new IOException("Unsupported manifest in "
+                        + directory);
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    Segment segment = new Segment(in.readUTF());
+                    segment.sealed = in.readBoolean();
+                    segment.length = in.readLong();
+                    segment.recordCount = in.readInt();
+                    segment.liveCount = in.readInt();
+                    segment.minTimestamp = in.readLong();
+                    segment.maxTimestamp = in.readLong();
+
+                    segments.add(segment);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            for (Segment segment : segments)
+            {
+                if (segment.sealed)
+                    readIndex(segment);
+                else
+                    scanSegment(segment);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if
+     * needed.
+     *
+     * @param names the property names of the record
+     * @param values the property values of the record, <tt>null</tt> values
+     * are not stored
+     * @param timestamp the timestamp of the record
+     * @return the stored record
+     * @throws IOException if writing the record fails
+     */
+    public StoredRecord append(String[] names, String[] values, long timestamp)
+        throws IOException
+    {
+        byte[] data = encode(names, values, timestamp);
+
+        lock.writeLock().lock();
+        try
+        {
+            Segment segment = getActiveSegment(timestamp);
+            long offset = segment.length;
+
+            FileOutputStream out = new FileOutputStream(segment.file, true);
+            try
+            {
+                out.write(data);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            segment.length += data.length;
+            Block block = segment.addRecord(offset, timestamp, true);
+
+            if (segment.length >= MAX_SEGMENT_SIZE)
+                seal(segment);
+
+            return new StoredRecord(block, offset, timestamp, names, values);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks a stored record as deleted.
+     *
+     * @param record the record to delete
+     * @throws IOException if updating the record header fails
+     */
+    public void delete(StoredRecord record)
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (record.segment.compacted)
+            {
+                throw new IOException("The record was moved by a compaction"
+                    + " of " + directory);
+            }
+
+            RandomAccessFile raf
+                = new RandomAccessFile(record.segment.file, "rw");
+            try
+            {
+                raf.seek(record.offset + 4);
+                raf.writeByte(FLAG_DELETED);
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            record.segment.liveCount--;
+
+            // sealed segments are only described by the manifest
+            if (record.segment.sealed)
+                updateManifest();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of all blocks of the log in storage order.
+     * @return all blocks of the log.
+     */
+    public List<Block> getBlocks()
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<Block> result = new ArrayList<Block>();
+            for (Segment segment : segments)
+                result.addAll(segment.blocks);
+            return result;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the records of a block which are not deleted. The records of a
+     * block returned before a compaction are read from the segment which
+     * replaced its segment, in the blocks they were moved to.
+     *
+     * @param block the block to read
+     * @return the live records of the block in storage order.
+     * @throws IOException if the segment cannot be read
+     */
+    public List<StoredRecord> readBlock(Block block)
+        throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<StoredRecord> result
+                = new ArrayList<StoredRecord>(block.count);
+
+            Segment segment = block.segment;
+            int start = segment.getFirstRecord(block);
+            int end = start + block.count;
+
+            // the records of the block were moved by compactions, follow
+            // them to the current segment
+            while (segment.compacted)
+            {
+                if (segment.replacement == null)
+                    return result;
+
+                start = segment.liveBefore[start];
+                end = segment.liveBefore[end];
+                segment = segment.replacement;
+            }
+
+            int first = 0;
+            for (Block b : segment.blocks)
+            {
+                if (first >= end)
+                    break;
+                if (first + b.count > start)
+                    readRecords(b, start - first, end - first, result);
+                first += b.count;
+            }
+
+            return result;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the records of a block which are not deleted, from the record
+     * at <tt>from</tt> in the block to the one before <tt>to</tt>. Must be
+     * called with the lock held.
+     *
+     * @param block the block to read
+     * @param from the index in the block of the first record to read
+     * @param to the index in the block of the record after the last one
+     * @param result the list the records are added to
+     * @throws IOException if the segment cannot be read
+     */
+    private void readRecords(Block block,
+                             int from,
+                             int to,
+                             List<StoredRecord> result)
+        throws IOException
+    {
+        FileInputStream fis = new FileInputStream(block.segment.file);
+        try
+        {
+            fis.getChannel().position(block.offset);
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(fis));
+
+            long offset = block.offset;
+            for (int i = 0; i < block.count && i < to; i++)
+            {
+                int length = in.readInt();
+                byte flags = in.readByte();
+                byte[] payload = new byte[length - 1];
+                in.readFully(payload);
+                in.readInt(); // checksum, verified when scanning
+
+                if (i >= from && (flags & FLAG_DELETED) == 0)
+                    result.add(decode(block, offset, payload));
+
+                offset += HEADER_SIZE - 1 + length + 4;
+            }
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    /**
+     * Returns the last block of the log, the one new records are appended
+     * to, or <tt>null</tt> if the log is empty.
+     * @return the last block of the log.
+     */
+    public Block getLastBlock()
+    {
+        lock.readLock().lock();
+        try
+        {
+            for (int i = segments.size() - 1; i >= 0; i--)
+            {
+                List<Block> blocks = segments.get(i).blocks;
+                if (!blocks.isEmpty())
+                    return blocks.get(blocks.size() - 1);
+            }
+            return null;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of records which are not deleted.
+     * @return the number of live records.
+     */
+    public int getLiveCount()
+    {
+        lock.readLock().lock();
+        try
+        {
+            int count = 0;
+            for (Segment segment : segments)
+                count += segment.liveCount;
+            return count;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the sealed segments which hold deleted records without them,
+     * and removes the sealed segments without live records. The segments
+     * are rewritten one at a time, appends and reads wait only for the
+     * segment being rewritten.
+     * <p>
+     * The blocks of rewritten segments change, blocks returned before the
+     * compaction still read their live records from the rewritten segments.
+     *
+     * @return the number of bytes reclaimed
+     * @throws IOException if a segment cannot be rewritten, the segments
+     * rewritten before are kept
+     */
+    public long compact()
+        throws IOException
+    {
+        List<Segment> candidates = new ArrayList<Segment>();
+
+        lock.readLock().lock();
+        try
+        {
+            for (Segment segment : segments)
+            {
+                if (segment.sealed && segment.liveCount < segment.recordCount)
+                    candidates.add(segment);
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        long reclaimed = 0;
+        for (Segment segment : candidates)
+        {
+            lock.writeLock().lock();
+            try
+            {
+                int index = segments.indexOf(segment);
+                if (index >= 0)
+                    reclaimed += compact(segment, index);
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+
+            Thread.yield();
+        }
+
+        return reclaimed;
+    }
+
+    /**
+     * Rewrites a sealed segment without its deleted records. Must be called
+     * with the write lock held.
+     *
+     * @param segment the segment
+     * @param index the index of the segment in the log
+     * @return the number of bytes reclaimed
+     * @throws IOException if the segment cannot be rewritten
+     */
+    private long compact(Segment segment, int index)
+        throws IOException
+    {
+        long oldLength = segment.length;
+        File indexFile = new File(directory, segment.name + INDEX_SUFFIX);
+
+        if (segment.liveCount == 0)
+        {
+            segments.remove(index);
+            segment.compacted = true;
+            updateManifest();
+
+            segment.file.delete();
+            indexFile.delete();
+            return oldLength;
+        }
+
+        File tmp = new File(directory, segment.name + SEGMENT_SUFFIX + ".tmp");
+        int[] liveBefore = new int[segment.recordCount + 1];
+        int recordIndex = 0;
+        int live = 0;
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(segment.file)));
+        try
+        {
+            OutputStream out
+                = new BufferedOutputStream(new FileOutputStream(tmp));
+            try
+            {
+                long offset = 0;
+                while (offset < segment.length)
+                {
+                    int length = in.readInt();
+                    byte flags = in.readByte();
+                    byte[] rest = new byte[length - 1 + 4];
+                    in.readFully(rest);
+
+                    liveBefore[recordIndex++] = live;
+                    if ((flags & FLAG_DELETED) == 0)
+                    {
+                        DataOutputStream record = new DataOutputStream(out);
+                        record.writeInt(length);
+                        record.writeByte(flags);
+                        record.write(rest);
+                        live++;
+                    }
+
+                    offset += HEADER_SIZE - 1 + length + 4;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            tmp.delete();
+            throw e;
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // without its index the segment is scanned again when the log is
+        // opened, should we stop before the new index is written
+        indexFile.delete();
+        if (!tmp.renameTo(segment.file))
+        {
+            segment.file.delete();
+            if (!tmp.renameTo(segment.file))
+                throw new IOException("Cannot replace " + segment.file);
+        }
+
+        Segment compactedSegment = new Segment(segment.name);
+        scanSegment(compactedSegment);
+        segments.set(index, compactedSegment);
+        liveBefore[recordIndex] = live;
+        segment.liveBefore = liveBefore;
+        segment.replacement = compactedSegment;
+        segment.compacted = true;
+        seal(compactedSegment);
+
+        return oldLength - compactedSegment.length;
+    }
+
+    /**
+     * Returns the size of the segment files.
+     * @return the size of the segment files in bytes.
+     */
+    public long getSize()
+    {
+        lock.readLock().lock();
+        try
+        {
+            long size = 0;
+            for (Segment segment : segments)
+                size += segment.length;
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the manifest of this log to disk. Writing the manifest commits
+     * the sealed segments and is done via a temporary file so that a crash
+     * never leaves a broken manifest behind.
+     *
+     * @throws IOException if the manifest cannot be written
+     */
+    public void writeManifest()
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try
+        {
+            committed = true;
+            storeManifest();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the manifest of this log to disk if the log was committed. Must
+     * be called with the write lock held.
+     *
+     * @throws IOException if the manifest cannot be written
+     */
+    private void updateManifest()
+        throws IOException
+    {
+        if (committed)
+            storeManifest();
+    }
+
+    /**
+     * Writes the manifest of this log to disk via a temporary file. Must be
+     * called with the write lock held.
+     *
+     * @throws IOException if the manifest cannot be written
+     */
+    private void storeManifest()
+        throws IOException
+    {
+        File tmp = new File(directory, MANIFEST_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(segments.size());
+
+            for (Segment segment : segments)
+            {
+                out.writeUTF(segment.name);
+                out.writeBoolean(segment.sealed);
+                out.writeLong(segment.length);
+                out.writeInt(segment.recordCount);
+                out.writeInt(segment.liveCount);
+                out.writeLong(segment.minTimestamp);
+                out.writeLong(segment.maxTimestamp);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        File manifest = new File(directory, MANIFEST_FILE);
+        if (!tmp.renameTo(manifest))
+        {
+            // renameTo does not replace existing files on some systems
+            manifest.delete();
+            if (!tmp.renameTo(manifest))
+                throw new IOException("Cannot write " + manifest);
+        }
+    }
+
+    /**
+     * Returns the active segment, creating it if the log is empty.
+     *
+     * @param timestamp the timestamp of the record about to be appended
+     * @return the active segment
+     * @throws IOException if the manifest cannot be written
+     */
+    private Segment getActiveSegment(long timestamp)
+        throws IOException
+    {
+        Segment last = segments.isEmpty()
+            ? null : segments.get(segments.size() - 1);
+
+        if (last != null && !last.sealed)
+            return last;
+
+        // name segments after their first record like the xml files, making
+        // sure the names stay unique and ordered
+        long name = timestamp;
+        if (last != null)
+        {
+            long lastName = Long.parseLong(last.name);
+            if (name <= lastName)
+                name = lastName + 1;
+        }
+
+        Segment segment = new Segment(Long.toString(name));
+        segments.add(segment);
+        updateManifest();
+
+        return segment;
+    }
+
+    /**
+     * Seals a segment writing its index and the manifest.
+     *
+     * @param segment the segment to seal
+     * @throws IOException if writing fails
+     */
+    private void seal(Segment segment)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(
+                new File(directory, segment.name + INDEX_SUFFIX))));
+        try
+        {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(segment.blocks.size());
+            for (Block block : segment.blocks)
+            {
+                out.writeLong(block.offset);
+                out.writeInt(block.count);
+                out.writeLong(block.minTimestamp);
+                out.writeLong(block.maxTimestamp);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        segment.sealed = true;
+        updateManifest();
+    }
+
+    /**
+     * Reads the block index of a sealed segment.
+     *
+     * @param segment the segment
+     * @throws IOException if the index cannot be read
+     */
+    private void readIndex(Segment segment)
+        throws IOException
+    {
+        File indexFile = new File(directory, segment.name + INDEX_SUFFIX);
+        if (!indexFile.exists())
+        {
+            // the index was lost, recreate it from the segment itself
+            scanSegment(segment);
+            seal(segment);
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile)));
+        try
+        {
+            if (in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unsupported index " + indexFile);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                Block block = new Block(segment, in.readLong());
+                block.count = in.readInt();
+                block.minTimestamp = in.readLong();
+                block.maxTimestamp = in.readLong();
+
+                segment.blocks.add(block);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Scans a segment rebuilding its blocks and statistics. Anything after
+     * the last valid record, such as a record which was being written when
+     * the application crashed, is truncated.
+     *
+     * @param segment the segment to scan
+     * @throws IOException if reading the segment fails
+     */
+    private void scanSegment(Segment segment)
+        throws IOException
+    {
+        segment.blocks.clear();
+        segment.recordCount = 0;
+        segment.liveCount = 0;
+        segment.minTimestamp = Long.MAX_VALUE;
+        segment.maxTimestamp = Long.MIN_VALUE;
+        segment.length = 0;
+
+        if (!segment.file.exists())
+            return;
+
+        long fileLength = segment.file.length();
+        long offset = 0;
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(segment.file)));
+        try
+        {
+            CRC32 crc = new CRC32();
+            while (offset + HEADER_SIZE + 4 <= fileLength)
+            {
+                int length = in.readInt();
+                if (length < 11
+                        || offset + HEADER_SIZE - 1 + length + 4 > fileLength)
+                    break;
+
+                byte flags = in.readByte();
+                byte[] payload = new byte[length - 1];
+                in.readFully(payload);
+                int checksum = in.readInt();
+
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                long timestamp = readTimestamp(payload);
+                segment.addRecord(
+                    offset, timestamp, (flags & FLAG_DELETED) == 0);
+
+                offset += HEADER_SIZE - 1 + length + 4;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        segment.length = offset;
+
+        if (offset < fileLength)
+        {
+            logger.warn("Truncating broken segment " + segment.file
+                + " at " + offset);
+
+            RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+            try
+            {
+                raf.setLength(offset);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Encodes a record.
+     *
+     * @param names the property names
+     * @param values the property values
+     * @param timestamp the timestamp
+     * @return the bytes to append to a segment
+     * @throws IOException never
+     */
+    private static byte[] encode(String[] names, String[] values,
+                                 long timestamp)
+        throws IOException
+    {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+
+        int count = 0;
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] != null)
+                count++;
+        }
+
+        payload.writeLong(timestamp);
+        payload.writeShort(count);
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            writeString(payload, names[i]);
+            writeString(payload, values[i]);
+        }
+        payload.flush();
+
+        byte[] data = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ByteArrayOutputStream recordBytes
+            = new ByteArrayOutputStream(data.length + HEADER_SIZE + 4);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(data.length + 1);
+        record.writeByte(0);
+        record.write(data);
+        record.writeInt((int) crc.getValue());
+        record.flush();
+
+        return recordBytes.toByteArray();
+    }
+
+    /**
+     * Decodes the payload of a record.
+     *
+     * @param block the block the record is stored in
+     * @param offset the offset of the record in the segment
+     * @param payload the payload bytes
+     * @return the decoded record
+     * @throws IOException if the payload is broken
+     */
+    private static StoredRecord decode(Block block, long offset,
+                                       byte[] payload)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(payload));
+
+        long timestamp = in.readLong();
+        int count = in.readUnsignedShort();
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = readString(in);
+            values[i] = readString(in);
+        }
+
+        return new StoredRecord(block, offset, timestamp, names, values);
+    }
+
+    /**
+     * Reads the timestamp of a record payload.
+     * @param payload the payload
+     * @return the timestamp
+     */
+    private static long readTimestamp(byte[] payload)
+    {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (payload[i] & 0xff);
+        return result;
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string. Unlike
+     * <tt>DataOutput.writeUTF</tt> there is no 64K limit.
+     *
+     * @param out the stream to write to
+     * @param s the string
+     * @throws IOException if writing fails
+     */
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with {@link #writeString}.
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if reading fails
+     */
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A segment file of the log.
+     */
+    private class Segment
+    {
+        /**
+         * The name of the segment, the base name of its files.
+         */
+        final String name;
+
+        /**
+         * The segment file.
+         */
+        final File file;
+
+        /**
+         * The blocks of the segment.
+         */
+        final List<Block> blocks = new ArrayList<Block>();
+
+        /**
+         * Whether the segment is sealed, no more records are appended to
+         * sealed segments.
+         */
+        boolean sealed = false;
+
+        /**
+         * The length of the valid part of the segment file.
+         */
+        long length = 0;
+
+        /**
+         * The number of records including deleted ones.
+         */
+        int recordCount = 0;
+
+        /**
+         * The number of records which are not deleted.
+         */
+        int liveCount = 0;
+
+        /**
+         * The smallest record timestamp in the segment.
+         */
+        long minTimestamp = Long.MAX_VALUE;
+
+        /**
+         * The largest record timestamp in the segment.
+         */
+        long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * Whether the segment was replaced or removed by a compaction, its
+         * blocks and records are no longer valid.
+         */
+        boolean compacted = false;
+
+        /**
+         * The segment which replaced this segment when it was compacted,
+         * <tt>null</tt> if it was removed.
+         */
+        Segment replacement = null;
+
+        /**
+         * The number of live records before each record of the segment, and
+         * after its last one, when it was compacted: the index of the
+         * record in the replacing segment.
+         */
+        int[] liveBefore = null;
+
+        Segment(String name)
+        {
+            this.name = name;
+            this.file = new File(directory, name + SEGMENT_SUFFIX);
+        }
+
+        /**
+         * Returns the index in the segment of the first record of a block.
+         *
+         * @param block a block of the segment
+         * @return the index of the first record of the block
+         */
+        int getFirstRecord(Block block)
+        {
+            int first = 0;
+            for (Block b : blocks)
+            {
+                if (b == block)
+                    break;
+                first += b.count;
+            }
+            return first;
+        }
+
+        /**
+         * Accounts a record appended at <tt>offset</tt>.
+         *
+         * @param offset the offset of the record
+         * @param timestamp the timestamp of the record
+         * @param live whether the record is not deleted
+         * @return the block of the record
+         */
+        Block addRecord(long offset, long timestamp, boolean live)
+        {
+            Block block = blocks.isEmpty()
+                ? null : blocks.get(blocks.size() - 1);
+            if (block == null || block.count >= INDEX_INTERVAL)
+            {
+                block = new Block(this, offset);
+                blocks.add(block);
+            }
+
+            block.count++;
+            block.minTimestamp = Math.min(block.minTimestamp, timestamp);
+            block.maxTimestamp = Math.max(block.maxTimestamp, timestamp);
+
+            recordCount++;
+            if (live)
+                liveCount++;
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+
+            return block;
+        }
+    }
+
+    /**
+     * A sparse index entry describing consecutive records of a segment.
+     */
+    public static class Block
+    {
+        /**
+         * The segment of the block.
+         */
+        private final Segment segment;
+
+        /**
+         * The offset of the first record of the block.
+         */
+        private final long offset;
+
+        /**
+         * The number of records in the block, including deleted ones.
+         */
+        private int count = 0;
+
+        /**
+         * The smallest record timestamp in the block.
+         */
+        private long minTimestamp = Long.MAX_VALUE;
+
+        /**
+         * The largest record timestamp in the block.
+         */
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        private Block(Segment segment, long offset)
+        {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        /**
+         * Returns an identifier of the block unique within the log.
+         * @return the identifier of the block.
+         */
+        public String getId()
+        {
+            return segment.name + '@' + offset;
+        }
+
+        /**
+         * Returns the number of records in the block, including deleted
+         * ones.
+         * @return the number of records in the block.
+         */
+        public int getRecordCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns the smallest record timestamp in the block.
+         * @return the smallest record timestamp in the block.
+         */
+        public long getMinTimestamp()
+        {
+            return minTimestamp;
+        }
+
+        /**
+         * Returns the largest record timestamp in the block.
+         * @return the largest record timestamp in the block.
+         */
+        public long getMaxTimestamp()
+        {
+            return maxTimestamp;
+        }
+
+        /**
+         * Checks whether the block may contain records in the given period.
+         *
+         * @param start the start of the period, inclusive, or
+         * <tt>Long.MIN_VALUE</tt>
+         * @param end the end of the period, exclusive, or
+         * <tt>Long.MAX_VALUE</tt>
+         * @return <tt>true</tt> if the block overlaps the period.
+         */
+        public boolean overlaps(long start, long end)
+        {
+            return count > 0 && maxTimestamp >= start && minTimestamp < end;
+        }
+    }
+
+    /**
+     * A record read from or appended to the log.
+     */
+    public static class StoredRecord
+    {
+        private final Block block;
+
+        private final Segment segment;
+
+        private final long offset;
+
+        private final long timestamp;
+
+        private final String[] names;
+
+        private final String[] values;
+
+        private StoredRecord(Block block, long offset, long timestamp,
+                             String[] names, String[] values)
+        {
+            this.block = block;
+            this.segment = block.segment;
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.names = names;
+            this.values = values;
+        }
+
+        /**
+         * Returns the block the record is stored in.
+         * @return the block the record is stored in.
+         */
+        public Block getBlock()
+        {
+            return block;
+        }
+
+        /**
+         * Returns the timestamp of the record.
+         * @return the timestamp of the record.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        /**
+         * Returns the property names of the record.
+         * @return the property names of the record.
+         */
+        public String[] getPropertyNames()
+        {
+            return names;
+        }
+
+        /**
+         * Returns the property values of the record.
+         * @return the property values of the record.
+         */
+        public String[] getPropertyValues()
+        {
+            return values;
+        }
+
+        /**
+         * Returns the value of the property <tt>name</tt>.
+         * @param name the property name
+         * @return the value or <tt>null</tt> if the record has no such
+         * property.
+         */
+        public String getPropertyValue(String name)
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                if (names[i].equals(name))
+                    return values[i];
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.apache.commons.lang3.*;
+import org.w3c.dom.*;
+
+/**
+ * Converts a history stored as xml documents into a <tt>SegmentLog</tt>.
+ * The migration is done once per history: the log is committed by writing
+ * its manifest after all records were appended, and only then the xml files
+ * are removed. If the migration is interrupted the partially written
+ * segments are discarded and the migration is redone the next time the
+ * history is opened.
+ * <p>
+ * A file which cannot be parsed is fixed the way the xml engine fixes it,
+ * keeping the records which can be parsed. A file which cannot be fixed
+ * either is left in place and migrated again, with the other files left
+ * over, each time the history is opened.
+ */
+public class XmlHistoryMigrator
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XmlHistoryMigrator.class);
+
+    /**
+     * The name of the file listing the migrated xml files until they are all
+     * removed, so that they are not migrated again if we stop before.
+     */
+    public static final String MIGRATED_FILE = "migrated.lst";
+
+    /**
+     * The history service used to parse the documents.
+     */
+    private final HistoryServiceImpl historyService;
+
+    /**
+     * Creates a migrator.
+     * @param historyService the history service used to parse documents.
+     */
+    public XmlHistoryMigrator(HistoryServiceImpl historyService)
+    {
+        this.historyService = historyService;
+    }
+
+    /**
+     * Migrates the xml documents found in <tt>directory</tt> into
+     * <tt>log</tt>. A directory without xml documents results in an empty
+     * log.
+     *
+     * @param directory the history directory
+     * @param log the log to fill
+     * @throws IOException if writing the log fails
+     */
+    public void migrate(File directory, SegmentLog log)
+        throws IOException
+    {
+        log.initialize();
+
+        // the index refers to the files or to blocks of an unfinished
+        // migration, and the list to the files of a migration which was not
+        // committed
+        new File(directory, HistoryKeywordIndex.INDEX_FILE).delete();
+        new File(directory, MIGRATED_FILE).delete();
+
+        migrateFiles(directory, log);
+    }
+
+    /**
+     * Migrates the xml documents left in <tt>directory</tt> into the opened
+     * <tt>log</tt>: the documents which could not be migrated before and
+     * those which were migrated but not removed yet.
+     *
+     * @param directory the history directory
+     * @param log the opened log
+     * @throws IOException if writing the log fails
+     */
+    public void migrateRemaining(File directory, SegmentLog log)
+        throws IOException
+    {
+        removeMigratedFiles(directory);
+        migrateFiles(directory, log);
+    }
+
+    /**
+     * Appends the records of the xml documents of a directory to a log,
+     * commits it and removes the migrated documents.
+     *
+     * @param directory the history directory
+     * @param log the log
+     * @throws IOException if writing the log fails
+     */
+    private void migrateFiles(File directory, SegmentLog log)
+        throws IOException
+    {
+        List<File> migrated = new ArrayList<File>();
+        int recordCount = 0;
+        int failed = 0;
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            // the xml files are named after the time they were created
+            Arrays.sort(files);
+
+            SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+            for (File file : files)
+            {
+                if (file.isDirectory()
+                    || !file.getName().endsWith(
+                            "." + HistoryImpl.SUPPORTED_FILETYPE))
+                {
+                    continue;
+                }
+
+                Document doc = parse(file);
+                if (doc == null)
+                {
+                    failed++;
+                    continue;
+                }
+
+                recordCount += migrate(doc, log, sdf);
+                migrated.add(file);
+            }
+        }
+
+        if (!migrated.isEmpty())
+            writeMigratedFiles(directory, migrated);
+        log.writeManifest();
+        removeMigratedFiles(directory);
+
+        if (recordCount > 0 && logger.isInfoEnabled())
+        {
+            logger.info("Migrated " + recordCount + " records from "
+                + migrated.size() + " files in " + directory);
+        }
+        if (failed > 0)
+        {
+            logger.error("Could not migrate " + failed + " files in "
+                + directory + ", they are migrated again the next time the"
+                + " history is opened");
+        }
+    }
+
+    /**
+     * Parses an xml document, fixing it if it cannot be parsed.
+     *
+     * @param file the file of the document
+     * @return the document or <tt>null</tt> if it cannot be fixed
+     */
+    private Document parse(File file)
+    {
+        try
+        {
+            return historyService.parse(file);
+        }
+        catch (Exception e)
+        {
+            logger.error("Cannot parse history file " + file, e);
+        }
+
+        return HistoryImpl.getFixedDocument(historyService, file);
+    }
+
+    /**
+     * Lists the migrated xml files before the log is committed.
+     *
+     * @param directory the history directory
+     * @param migrated the migrated files
+     * @throws IOException if the list cannot be written
+     */
+    private static void writeMigratedFiles(File directory, List<File> migrated)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(
+                new FileOutputStream(new File(directory, MIGRATED_FILE))));
+        try
+        {
+            out.writeInt(migrated.size());
+            for (File file : migrated)
+                out.writeUTF(file.getName());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Removes the xml files listed as migrated, once the log holding their
+     * records was committed, and their list.
+     *
+     * @param directory the history directory
+     */
+    private static void removeMigratedFiles(File directory)
+    {
+        File list = new File(directory, MIGRATED_FILE);
+        if (!list.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(list)));
+            try
+            {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                    new File(directory, in.readUTF()).delete();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // the list is written before the log is committed
+            logger.error("Cannot read the migrated files of " + directory, e);
+        }
+        list.delete();
+    }
+
+    /**
+     * Appends the records of a document to the log.
+     *
+     * @param doc the document
+     * @param log the log
+     * @param sdf the format of the record timestamps
+     * @return the number of records appended
+     * @throws IOException if writing the log fails
+     */
+    private int migrate(Document doc, SegmentLog log, SimpleDateFormat sdf)
+        throws IOException
+    {
+        NodeList nodes = doc.getElementsByTagName("record");
+        int count = 0;
+
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            Element node = (Element) nodes.item(i);
+
+            long timestamp;
+            String ts = node.getAttribute("timestamp");
+            try
+            {
+                timestamp = sdf.parse(ts).getTime();
+            }
+            catch (ParseException e)
+            {
+                try
+                {
+                    timestamp = Long.parseLong(ts);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    logger.warn("Skipping record without timestamp");
+                    continue;
+                }
+            }
+
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+
+            NodeList propertyNodes = node.getChildNodes();
+            for (int j = 0; j < propertyNodes.getLength(); j++)
+            {
+                Node propertyNode = propertyNodes.item(j);
+                if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                Node nestedNode = propertyNode.getFirstChild();
+                if (nestedNode == null)
+                    continue;
+
+                names.add(propertyNode.getNodeName());
+                // the xml writer escapes the values it stores
+                values.add(StringEscapeUtils.unescapeXml(
+                    nestedNode.getNodeValue()));
+            }
+
+            log.append(
+                names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]),
+                timestamp);
+            count++;
+        }
+
+        return count;
+    }
+}
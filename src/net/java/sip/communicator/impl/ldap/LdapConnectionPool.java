@@ -0,0 +1,320 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.directory.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Keeps the bound connections to an LDAP directory which are not in use so
+ * that the following searches do not have to connect and bind again.
+ * <p>
+ * A connection is used by a single search at a time. The connections idle for
+ * a while are checked before they are used again and the connections idle for
+ * longer are closed.
+ */
+public class LdapConnectionPool
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LdapConnectionPool.class);
+
+    /**
+     * The maximum number of idle connections kept for a directory.
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    /**
+     * The time in milliseconds after which an idle connection is closed.
+     */
+    private static final long IDLE_TIMEOUT = 60000;
+
+    /**
+     * The time in milliseconds after which an idle connection is checked
+     * before it is used again.
+     */
+    private static final long CHECK_INTERVAL = 10000;
+
+    /**
+     * The attributes read from the root DSE to check a connection.
+     */
+    private static final String[] CHECK_ATTRIBUTES
+        = new String[] { "supportedLDAPVersion" };
+
+    /**
+     * The timer closing the idle connections of all the directories, created
+     * with the first idle connection.
+     */
+    private static Timer timer = null;
+
+    /**
+     * The environment the connections are created with.
+     */
+    private final Hashtable<String, String> env;
+
+    /**
+     * The name of the directory, used for logging.
+     */
+    private final String name;
+
+    /**
+     * The idle connections, the most recently used first.
+     */
+    private final LinkedList<IdleConnection> idleConnections
+        = new LinkedList<IdleConnection>();
+
+    /**
+     * The task closing the idle connections which timed out, scheduled while
+     * there are idle connections.
+     */
+    private TimerTask expiryTask = null;
+
+    /**
+     * Whether the pool was closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Initializes a new <tt>LdapConnectionPool</tt>.
+     *
+     * @param env the environment of the <tt>InitialDirContext</tt>s
+     * @param name the name of the directory
+     */
+    public LdapConnectionPool(Hashtable<String, String> env, String name)
+    {
+        this.env = env;
+        this.name = name;
+    }
+
+    /**
+     * Returns a connection to the directory, reusing an idle one if possible.
+     * The connection must be handed back with {@link #release} or
+     * {@link #invalidate} once it is no longer used.
+     *
+     * @return a bound connection
+     * @throws NamingException if connecting or binding fails
+     */
+    public InitialDirContext acquire()
+        throws NamingException
+    {
+        while (true)
+        {
+            IdleConnection idle;
+
+            synchronized (this)
+            {
+                idle = idleConnections.poll();
+            }
+            if (idle == null)
+                break;
+
+            long idleTime = System.currentTimeMillis() - idle.since;
+
+            if (idleTime < IDLE_TIMEOUT
+                    && (idleTime < CHECK_INTERVAL || isAlive(idle.dirContext)))
+                return idle.dirContext;
+
+            close(idle.dirContext);
+        }
+
+        return connect();
+    }
+
+    /**
+     * Hands a connection which may be used again back to the pool.
+     *
+     * @param dirContext the connection
+     */
+    public void release(InitialDirContext dirContext)
+    {
+        synchronized (this)
+        {
+            if (!closed && idleConnections.size() < MAX_IDLE_CONNECTIONS)
+            {
+                idleConnections.addFirst(new IdleConnection(dirContext));
+                scheduleExpiry();
+                return;
+            }
+        }
+        close(dirContext);
+    }
+
+    /**
+     * Closes a connection which failed instead of handing it back to the pool.
+     *
+     * @param dirContext the connection
+     */
+    public void invalidate(InitialDirContext dirContext)
+    {
+        close(dirContext);
+    }
+
+    /**
+     * Closes the idle connections and the connections handed back later.
+     */
+    public void close()
+    {
+        List<IdleConnection> toClose;
+
+        synchronized (this)
+        {
+            closed = true;
+            toClose = new ArrayList<IdleConnection>(idleConnections);
+            idleConnections.clear();
+            cancelExpiry();
+        }
+
+        for (IdleConnection idle : toClose)
+            close(idle.dirContext);
+    }
+
+    /**
+     * Connects and binds to the directory.
+     *
+     * @return the new connection
+     * @throws NamingException if connecting or binding fails
+     */
+    private InitialDirContext connect()
+        throws NamingException
+    {
+        logger.trace("connecting to directory \"" + name + "\"");
+        long time0 = System.currentTimeMillis();
+        InitialDirContext dirContext = new InitialDirContext(env);
+        long time1 = System.currentTimeMillis();
+        logger.trace("connection to directory \"" + name + "\" took " +
+                (time1-time0)  + " ms");
+        return dirContext;
+    }
+
+    /**
+     * Checks that a connection which has been idle for a while still works.
+     *
+     * @param dirContext the connection
+     * @return <tt>true</tt> if the root DSE could be read with
+     * <tt>dirContext</tt>
+     */
+    private boolean isAlive(InitialDirContext dirContext)
+    {
+        try
+        {
+            dirContext.getAttributes("", CHECK_ATTRIBUTES);
+            return true;
+        }
+        catch (NamingException e)
+        {
+            logger.trace("idle connection to directory \"" + name +
+                    "\" is no longer usable: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection.
+     *
+     * @param dirContext the connection
+     */
+    private void close(InitialDirContext dirContext)
+    {
+        try
+        {
+            dirContext.close();
+        }
+        catch (NamingException e)
+        {
+            logger.trace("disconnection from directory \"" + name +
+                    "\" failed!");
+        }
+    }
+
+    /**
+     * Closes the idle connections which timed out.
+     */
+    private void closeExpired()
+    {
+        List<IdleConnection> toClose = new ArrayList<IdleConnection>();
+        long expired = System.currentTimeMillis() - IDLE_TIMEOUT;
+
+        synchronized (this)
+        {
+            // the least recently used connections are last
+            while (!idleConnections.isEmpty()
+                    && idleConnections.getLast().since <= expired)
+                toClose.add(idleConnections.removeLast());
+            if (idleConnections.isEmpty())
+                cancelExpiry();
+        }
+
+        for (IdleConnection idle : toClose)
+            close(idle.dirContext);
+    }
+
+    /**
+     * Schedules the closing of the idle connections which time out if it is
+     * not scheduled yet. Must be called while holding the lock of this pool.
+     */
+    private void scheduleExpiry()
+    {
+        if (expiryTask != null)
+            return;
+
+        expiryTask
+            = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    closeExpired();
+                }
+            };
+        synchronized (LdapConnectionPool.class)
+        {
+            if (timer == null)
+                timer = new Timer(LdapConnectionPool.class.getName(), true);
+            timer.schedule(expiryTask, IDLE_TIMEOUT, IDLE_TIMEOUT);
+        }
+    }
+
+    /**
+     * Cancels the closing of the idle connections. Must be called while
+     * holding the lock of this pool.
+     */
+    private void cancelExpiry()
+    {
+        if (expiryTask != null)
+        {
+            expiryTask.cancel();
+            expiryTask = null;
+        }
+    }
+
+    /**
+     * A connection which is not in use.
+     */
+    private static class IdleConnection
+    {
+        /**
+         * The connection.
+         */
+        final InitialDirContext dirContext;
+
+        /**
+         * The time in milliseconds the connection became idle.
+         */
+        final long since = System.currentTimeMillis();
+
+        IdleConnection(InitialDirContext dirContext)
+        {
+            this.dirContext = dirContext;
+        }
+    }
+}
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.impl.ldap;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.naming.*;
@@ -39,11 +40,33 @@ public class LdapDirectoryImpl
         logger.setLevelTrace();
     }
 
+    /**
+     * The maximum number of searches performed at the same time on all the
+     * directories.
+     */
+    private static final int MAX_SEARCH_THREADS = 4;
+
+    /**
+     * The executor performing the searches of all the directories, created
+     * the first time it is needed.
+     */
+    private static ScheduledThreadPoolExecutor searchExecutor = null;
+
     /**
      * The settings for this directory
      */
     private LdapDirectorySettings settings;
 
+    /**
+     * The bound connections to this directory which are not in use.
+     */
+    private final LdapConnectionPool connectionPool;
+
+    /**
+     * The entries returned for the recent searches of this directory.
+     */
+    private final LdapResultCache resultCache = new LdapResultCache();
+
     /**
      * Stores the pending searches
      *
@@ -179,8 +202,6 @@ public class LdapDirectoryImpl
         this.env.put("com.sun.jndi.ldap.read.timeout", LDAP_READ_TIMEOUT);
         this.env.put(Context.PROVIDER_URL, settings.getEncryption().
                 protocolString() + settings.getHostname() + portText +"/");
-        //connection pooling
-        this.env.put("com.sun.jndi.ldap.connect.pool", "true");
 
         /* TODO STARTTLS */
         switch(this.settings.getEncryption())
@@ -246,6 +267,8 @@ public class LdapDirectoryImpl
             retrievableAttributes.add("jpegPhoto");
             retrievableAttributes.add("thumbnailPhoto");
         }
+
+        connectionPool = new LdapConnectionPool(env, this.settings.getName());
     }
 
     /**
@@ -289,40 +312,66 @@ public class LdapDirectoryImpl
     }
 
     /**
-     * Connects to the remote directory
+     * Closes the connections to this directory which are not in use, as well
+     * as those in use once their search is over, and forgets the results of
+     * the recent searches.
      */
-    private InitialDirContext connect()
-        throws NamingException
+    void closeConnections()
     {
-        logger.trace("connecting to directory \"" + this + "\"");
-        long time0 = System.currentTimeMillis();
-        InitialDirContext dirContext =
-            new InitialDirContext(this.env);
-        long time1 = System.currentTimeMillis();
-        logger.trace("connection to directory \"" + this + "\" took " +
-                (time1-time0)  + " ms");
-        return dirContext;
+        connectionPool.close();
+        resultCache.clear();
     }
 
     /**
-     * closes the ldap connection
+     * Hands a connection back to the pool once a search is over.
+     *
+     * @param dirContext the connection
+     * @param reusable <tt>false</tt> if the search failed and the connection
+     * is to be closed
      */
-    private void disconnect(InitialDirContext dirContext)
+    private void releaseConnection(InitialDirContext dirContext,
+            boolean reusable)
     {
-        if(dirContext == null)
-            throw new NullPointerException("dirContext is null");
+        if(reusable)
+            connectionPool.release(dirContext);
+        else
+            connectionPool.invalidate(dirContext);
+    }
 
-        try
-        {
-            dirContext.close();
-        }
-        catch(NamingException e)
+    /**
+     * Returns the executor performing the searches of all the directories.
+     *
+     * @return the search executor
+     */
+    private static synchronized ScheduledExecutorService getSearchExecutor()
+    {
+        if(searchExecutor == null)
         {
-            logger.trace("disconnection from directory \"" + this +
-                    "\" failed!");
+            // setting the classloader is necessary so that the BundleContext
+            // can be accessed from classes instantiated from JNDI
+            // (specifically from our custom SocketFactory)
+            final ClassLoader classLoader
+                = LdapDirectoryImpl.class.getClassLoader();
+            ScheduledThreadPoolExecutor executor
+                = new ScheduledThreadPoolExecutor(
+                    MAX_SEARCH_THREADS,
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r,
+                                LdapDirectoryImpl.class.getName());
+                            t.setContextClassLoader(classLoader);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            searchExecutor = executor;
         }
 
-        logger.trace("disconnection achieved!");
+        return searchExecutor;
     }
 
     /**
@@ -365,11 +414,16 @@ public class LdapDirectoryImpl
         for(int i = 0 ; i < intermediateQueryStrings.length ; i++)
             serversList.add(this);
 
-        // when the pendingSearches element will be empty,
-        // all intermediate query strings will have been searched
-        // and the search will be finished
-        this.pendingSearches.put(query, new LdapPendingSearch(serversList,
-                caller));
+        // a superseded search is cancelled by its contact query, its
+        // searches which are not started yet do not connect to the directory
+        synchronized(this)
+        {
+            // when the pendingSearches element will be empty,
+            // all intermediate query strings will have been searched
+            // and the search will be finished
+            this.pendingSearches.put(query, new LdapPendingSearch(serversList,
+                    caller));
+        }
 
         // really performs the search
         for(String queryString : intermediateQueryStrings)
@@ -381,11 +435,10 @@ public class LdapDirectoryImpl
             final LdapSearchSettings searchSettings,
             final LdapListener caller)
     {
-        Thread searchThread = new Thread()
+        Runnable search = new Runnable()
         {
             int cancelState = 0;
 
-            @Override
             public void run()
             {
                 String filter = buildSearchFilter(realQueryString);
@@ -401,19 +454,61 @@ public class LdapDirectoryImpl
 
                 LdapEvent endEvent = null;
                 InitialDirContext dirContext = null;
+                NamingEnumeration<?> results = null;
+                boolean reusable = false;
+
+                int scope = searchControls.getSearchScope();
+                long countLimit = searchControls.getCountLimit();
 
                 try
                 {
-                    if(searchSettings.isDelaySet())
-                        Thread.sleep(searchSettings.getDelay());
-
                     checkCancel();
-                    dirContext = connect();
+
+                    // a custom query may not match a subset of the entries
+                    // of a shorter query
+                    List<LdapResultCache.Entry> cachedEntries
+                        = resultCache.get(
+                                scope,
+                                realQueryString,
+                                countLimit,
+                                !"custom".equals(settings.getQueryMode()));
+
+                    if(cachedEntries != null)
+                    {
+                        int found = 0;
+
+                        for(LdapResultCache.Entry entry : cachedEntries)
+                        {
+                            checkCancel();
+
+                            if(countLimit > 0 && found >= countLimit)
+                                break;
+                            if(fireSearchResult(
+                                    searchPattern,
+                                    entry.name,
+                                    entry.attributes))
+                                found++;
+                        }
+
+                        logger.trace("search for real query \"" + filter +
+                                "\" (initial query: \"" + query.toString() +
+                                "\") on directory \"" +
+                                LdapDirectoryImpl.this +
+                                "\" answered from the cache");
+
+                        endEvent = new LdapEvent(LdapDirectoryImpl.this,
+                                LdapEvent.LdapEventCause.SEARCH_ACHIEVED,
+                                query);
+                        return;
+                    }
+
+                    dirContext = connectionPool.acquire();
+                    reusable = true;
                     checkCancel();
 
                     long time0 = System.currentTimeMillis();
 
-                    NamingEnumeration<?> results = dirContext.search(
+                    results = dirContext.search(
                             LdapDirectoryImpl.this.settings.getBaseDN(),
                             filter,
                             searchControls
@@ -421,6 +516,9 @@ public class LdapDirectoryImpl
 
                     checkCancel();
 
+                    List<LdapResultCache.Entry> entries
+                        = new ArrayList<LdapResultCache.Entry>();
+
                     while (results.hasMore())
                     {
                         checkCancel();
@@ -430,25 +528,19 @@ public class LdapDirectoryImpl
                         Map<String, Set<Object>> retrievedAttributes =
                             retrieveAttributes(searchResult);
 
-                        if(!checkRetrievedAttributes(
-                                query.toString(),
+                        entries.add(
+                                new LdapResultCache.Entry(
+                                        searchResult.getName(),
+                                        retrievedAttributes));
+                        fireSearchResult(
                                 searchPattern,
-                                retrievedAttributes))
-                            continue;
-
-                        LdapPersonFound person =
-                            buildPerson(
-                                query,
                                 searchResult.getName(),
-                                retrievedAttributes
-                                );
-                        LdapEvent resultEvent =
-                            new LdapEvent(LdapDirectoryImpl.this,
-                                    LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
-                                    person);
-                        fireLdapEvent(resultEvent, caller);
+                                retrievedAttributes);
                     }
 
+                    resultCache.put(scope, realQueryString, countLimit,
+                            entries);
+
                     long time1 = System.currentTimeMillis();
                     logger.trace("search for real query \"" + filter +
                             "\" (initial query: \"" + query.toString() +
@@ -471,6 +563,7 @@ public class LdapDirectoryImpl
                             LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR,
                             query
                             );
+                    reusable = false;
                 }
                 catch(AuthenticationException e)
                 {
@@ -485,6 +578,7 @@ public class LdapDirectoryImpl
                             LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR,
                             query
                             );
+                    reusable = false;
                 }
                 catch(NamingException e)
                 {
@@ -499,6 +593,7 @@ public class LdapDirectoryImpl
                             LdapEvent.LdapEventCause.SEARCH_ERROR,
                             query
                             );
+                    reusable = false;
                 }
                 catch(LdapQueryCancelledException e)
                 {
@@ -513,11 +608,6 @@ public class LdapDirectoryImpl
                             );
 
                 }
-                catch(InterruptedException e)
-                {
-                    // whether sleep was interrupted
-                    // is not that important
-                }
                 catch (Exception e)
                 {
                     logger.error("search for real query \"" + filter +
@@ -530,15 +620,62 @@ public class LdapDirectoryImpl
                             LdapEvent.LdapEventCause.SEARCH_ERROR,
                             query
                             );
+                    reusable = false;
                 }
                 finally
                 {
-                    fireLdapEvent(endEvent, caller);
+                    if(results != null)
+                    {
+                        // abandons the rest of a cancelled search
+                        try
+                        {
+                            results.close();
+                        }
+                        catch(NamingException e)
+                        {
+                            reusable = false;
+                        }
+                    }
                     if(dirContext != null)
-                        disconnect(dirContext);
+                        releaseConnection(dirContext, reusable);
+                    fireLdapEvent(endEvent, caller);
                 }
             }
 
+            /**
+             * Sends an entry found by this search to the caller if its
+             * attributes match the query.
+             *
+             * @param searchPattern the pattern we use for checking
+             * @param name the distinguished name of the entry
+             * @param retrievedAttributes the attributes of the entry
+             * @return whether the entry was sent
+             */
+            private boolean fireSearchResult(
+                    Pattern searchPattern,
+                    String name,
+                    Map<String, Set<Object>> retrievedAttributes)
+            {
+                if(!checkRetrievedAttributes(
+                        query.toString(),
+                        searchPattern,
+                        retrievedAttributes))
+                    return false;
+
+                LdapPersonFound person =
+                    buildPerson(
+                        query,
+                        name,
+                        retrievedAttributes
+                        );
+                LdapEvent resultEvent =
+                    new LdapEvent(LdapDirectoryImpl.this,
+                            LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
+                            person);
+                fireLdapEvent(resultEvent, caller);
+                return true;
+            }
+
             /**
              * Checks if the query that triggered this search has
              * been marked as cancelled. If that's the case, the
@@ -558,12 +695,10 @@ public class LdapDirectoryImpl
             }
         };
 
-        // setting the classloader is necessary so that the BundleContext can be
-        // accessed from classes instantiated from JNDI (specifically from our
-        // custom SocketFactory)
-        searchThread.setContextClassLoader(getClass().getClassLoader());
-        searchThread.setDaemon(true);
-        searchThread.start();
+        getSearchExecutor().schedule(
+                search,
+                searchSettings.isDelaySet() ? searchSettings.getDelay() : 0,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -1010,6 +1145,7 @@ public class LdapDirectoryImpl
     {
         final Vector<String> nodes = new Vector<String>();
         InitialDirContext dirContext = null;
+        boolean reusable = false;
 
         if(dn.equals(""))
         {
@@ -1023,7 +1159,7 @@ public class LdapDirectoryImpl
             logger.trace("starting search...");
             try
             {
-                dirContext = connect();
+                dirContext = connectionPool.acquire();
                 NamingEnumeration<?> result = dirContext.search(
                         dn, "(objectClass=*)", searchCtl);
                 while (result.hasMore())
@@ -1037,6 +1173,7 @@ public class LdapDirectoryImpl
                         nodes.add((String) values.next());
                     }
                 }
+                reusable = true;
             }
             catch (NamingException e)
             {
@@ -1045,7 +1182,7 @@ public class LdapDirectoryImpl
             finally
             {
                 if(dirContext != null)
-                    disconnect(dirContext);
+                    releaseConnection(dirContext, reusable);
             }
         }
         else
@@ -1057,7 +1194,7 @@ public class LdapDirectoryImpl
             logger.trace("starting search...");
             try
             {
-                dirContext = connect();
+                dirContext = connectionPool.acquire();
                 NamingEnumeration<?> result = dirContext.search(
                         dn, "(objectClass=*)", searchCtl);
                 while (result.hasMore())
@@ -1066,6 +1203,7 @@ public class LdapDirectoryImpl
                     nodes.add(sr.getName());
                     logger.trace(sr.getName());
                 }
+                reusable = true;
             }
             catch (NamingException e)
             {
@@ -1075,7 +1213,7 @@ public class LdapDirectoryImpl
             finally
             {
                 if(dirContext != null)
-                    disconnect(dirContext);
+                    releaseConnection(dirContext, reusable);
             }
         }
 
@@ -1098,6 +1236,7 @@ public class LdapDirectoryImpl
 
         byte[] photo = null;
         InitialDirContext dirContext = null;
+        boolean reusable = false;
 
         /* use our custom search control */
 
@@ -1108,7 +1247,7 @@ public class LdapDirectoryImpl
         logger.trace("starting photo retrieval...");
         try
         {
-            dirContext = connect();
+            dirContext = connectionPool.acquire();
             String newBaseDN;
             if(settings.getBaseDN().equals(""))
                 newBaseDN = dn;
@@ -1133,6 +1272,8 @@ public class LdapDirectoryImpl
                     }
                 }
             }
+            result.close();
+            reusable = true;
         }
         catch (NamingException e)
         {
@@ -1142,7 +1283,7 @@ public class LdapDirectoryImpl
         finally
         {
             if(dirContext != null)
-                disconnect(dirContext);
+                releaseConnection(dirContext, reusable);
         }
 
         return photo;
@@ -94,6 +94,8 @@ public class LdapDirectorySetImpl
 
         if(configService != null)
             removed.getSettings().persistentRemove();
+        if(removed instanceof LdapDirectoryImpl)
+            ((LdapDirectoryImpl) removed).closeConnections();
 
         return removed;
     }
@@ -0,0 +1,219 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+/**
+ * Keeps the entries an LDAP directory returned for its recent searches so
+ * that repeating a search, or refining it while the user types, does not
+ * query the directory again.
+ * <p>
+ * The results are kept for a short time and only the most recently used ones
+ * are kept. They are keyed on the search scope and on the query string with
+ * its case ignored. A search for <tt>*john*</tt> may be answered from the
+ * result of a search for a shorter prefix such as <tt>*joh*</tt>, which
+ * holds every entry matching the longer query, as long as that result was
+ * not truncated by a count limit. The entries are kept as returned by the
+ * directory, before they are checked against the query, so the searches
+ * answered from the cache check them against their own query.
+ */
+public class LdapResultCache
+{
+    /**
+     * The time in milliseconds a result is kept.
+     */
+    private static final long TIME_TO_LIVE = 120000;
+
+    /**
+     * The maximum number of results kept.
+     */
+    private static final int MAX_SIZE = 32;
+
+    /**
+     * The results by key, in the order they were last used.
+     */
+    private final Map<String, Result> results
+        = new LinkedHashMap<String, Result>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Result> eldest)
+            {
+                return size() > MAX_SIZE;
+            }
+        };
+
+    /**
+     * Returns the entries the directory returned, or would return, for a
+     * search.
+     *
+     * @param scope the search scope
+     * @param queryString the query string the search filter is built with
+     * @param countLimit the maximum number of entries the search returns,
+     * <tt>0</tt> for no limit
+     * @param prefixReuse whether the search filter matches the entries
+     * containing the part of <tt>queryString</tt> between its leading and
+     * trailing '*', so that the result of a shorter prefix may be used
+     * @return the entries, possibly more than <tt>countLimit</tt> or than
+     * those matching <tt>queryString</tt>, or <tt>null</tt> if the directory
+     * is to be searched
+     */
+    public synchronized List<Entry> get(int scope,
+                                        String queryString,
+                                        long countLimit,
+                                        boolean prefixReuse)
+    {
+        String normalized = normalize(queryString);
+        Result result = getResult(getKey(scope, normalized));
+
+        if ((result != null)
+                && (!result.truncated || (result.countLimit == countLimit)))
+            return result.entries;
+
+        int length = normalized.length();
+
+        if (!prefixReuse
+                || (length < 3)
+                || (normalized.charAt(0) != '*')
+                || (normalized.charAt(length - 1) != '*')
+                || (normalized.indexOf('*', 1) != length - 1))
+            return null;
+
+        // the longest prefix first, its result being the smallest
+        String word = normalized.substring(1, length - 1);
+
+        for (int i = word.length() - 1; i > 0; i--)
+        {
+            result = getResult(getKey(scope, "*" + word.substring(0, i) + "*"));
+            if ((result != null) && !result.truncated)
+                return result.entries;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the entries the directory returned for a search which completed.
+     *
+     * @param scope the search scope
+     * @param queryString the query string the search filter was built with
+     * @param countLimit the maximum number of entries the search returned,
+     * <tt>0</tt> for no limit
+     * @param entries the entries
+     */
+    public synchronized void put(int scope,
+                                 String queryString,
+                                 long countLimit,
+                                 List<Entry> entries)
+    {
+        results.put(
+                getKey(scope, normalize(queryString)),
+                new Result(countLimit, entries));
+    }
+
+    /**
+     * Removes all the results.
+     */
+    public synchronized void clear()
+    {
+        results.clear();
+    }
+
+    /**
+     * Returns the result with a key unless it expired.
+     *
+     * @param key the key
+     * @return the result or <tt>null</tt>
+     */
+    private Result getResult(String key)
+    {
+        Result result = results.get(key);
+
+        if ((result != null)
+                && (System.currentTimeMillis() - result.time > TIME_TO_LIVE))
+        {
+            results.remove(key);
+            result = null;
+        }
+        return result;
+    }
+
+    private static String getKey(int scope, String normalizedQueryString)
+    {
+        return scope + ":" + normalizedQueryString;
+    }
+
+    private static String normalize(String queryString)
+    {
+        return queryString.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * An entry returned by the directory.
+     */
+    public static class Entry
+    {
+        /**
+         * The distinguished name of the entry relative to the base DN.
+         */
+        final String name;
+
+        /**
+         * The retrieved attributes of the entry.
+         */
+        final Map<String, Set<Object>> attributes;
+
+        /**
+         * Initializes a new <tt>Entry</tt>.
+         *
+         * @param name the distinguished name of the entry relative to the base
+         * DN
+         * @param attributes the retrieved attributes of the entry
+         */
+        public Entry(String name, Map<String, Set<Object>> attributes)
+        {
+            this.name = name;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The entries returned for a search.
+     */
+    private static class Result
+    {
+        /**
+         * The maximum number of entries the search returned.
+         */
+        final long countLimit;
+
+        /**
+         * The entries.
+         */
+        final List<Entry> entries;
+
+        /**
+         * Whether the search may have returned fewer entries than matched
+         * because of <tt>countLimit</tt>.
+         */
+        final boolean truncated;
+
+        /**
+         * The time in milliseconds the search completed.
+         */
+        final long time = System.currentTimeMillis();
+
+        Result(long countLimit, List<Entry> entries)
+        {
+            this.countLimit = countLimit;
+            this.entries = entries;
+            this.truncated = (countLimit > 0) && (entries.size() >= countLimit);
+        }
+    }
+}
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -21,6 +22,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.osgi.framework.*;
 
 /**
@@ -53,6 +55,37 @@ public class MetaHistoryServiceImpl
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The name of the property holding the number of threads querying the
+     * services in parallel. The services are queried one after the other on
+     * the calling thread if it is not greater than 1.
+     */
+    public static final String PNAME_SEARCH_THREADS
+        = "net.java.sip.communicator.impl.metahistory.SEARCH_THREADS";
+
+    /**
+     * The default number of threads querying the services in parallel.
+     */
+    private static final int DEFAULT_SEARCH_THREADS
+        = Math.min(4, Runtime.getRuntime().availableProcessors() + 1);
+
+    /**
+     * The number of threads querying the services in parallel.
+     */
+    private int searchThreads = DEFAULT_SEARCH_THREADS;
+
+    /**
+     * The interval in milliseconds at which a search waiting for the queries
+     * of the services checks whether it was canceled.
+     */
+    private static final long CANCEL_CHECK_INTERVAL = 100;
+
+    /**
+     * The executor querying the services in parallel, <tt>null</tt> until
+     * first needed.
+     */
+    private ExecutorService searchExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -65,55 +98,50 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByStartDate(String[] services,
-            Object descriptor, Date startDate)
+            final Object descriptor, final Date startDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
+        final MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
-                }
-                else if(descriptor instanceof ChatRoom)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findByStartDate(
+                                (MetaContact)descriptor, startDate);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findByStartDate(
+                                (ChatRoom)descriptor, startDate);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findByStartDate(
+                                (MetaContact)descriptor, startDate);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        return ((CallHistoryService)serv).findByStartDate(
+                            startDate);
+                    }
+                    return null;
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(startDate, null, null);
 
-        return result;
+        return merge(results, true, -1, false);
     }
 
     /**
@@ -128,56 +156,50 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByEndDate(String[] services,
-            Object descriptor, Date endDate)
+            final Object descriptor, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
+        final MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findByEndDate(
+                                (MetaContact)descriptor, endDate);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findByEndDate(
+                                (ChatRoom)descriptor, endDate);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findByEndDate(
+                                (MetaContact)descriptor, endDate);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        return ((CallHistoryService)serv).findByEndDate(
+                            endDate);
+                    }
+                    return null;
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(null, endDate, null);
 
-        return result;
+        return merge(results, true, -1, false);
     }
 
     /**
@@ -193,59 +215,51 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate)
+            final Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
+        final MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        LinkedList<Object> result = new LinkedList<Object>();
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
-                }
-                else if(descriptor instanceof ChatRoom)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findByPeriod(
+                                (MetaContact)descriptor, startDate, endDate);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findByPeriod(
+                                (ChatRoom)descriptor, startDate, endDate);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findByPeriod(
+                                (MetaContact)descriptor, startDate, endDate);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        return ((CallHistoryService)serv).findByPeriod(
+                            startDate, endDate);
+                    }
+                    return null;
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(startDate, endDate, null);
 
-        Collections.sort(result, new RecordsComparator());
-        return result;
+        // records with the same timestamp are all kept
+        return merge(results, false, -1, false);
     }
 
     /**
@@ -285,75 +299,59 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            final Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
+        final MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor,
-                        startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
-                {
-                    CallRecord callRecord = iter.next();
-
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findByPeriod(
+                                (MetaContact)descriptor,
+                                startDate, endDate,
+                                keywords, caseSensitive);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findByPeriod(
+                                (ChatRoom)descriptor,
+                                startDate, endDate,
+                                keywords, caseSensitive);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findByPeriod(
+                                (MetaContact)descriptor,
+                                startDate, endDate,
+                                keywords, caseSensitive);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        return filterCallRecords(
+                            ((CallHistoryService)serv).findByPeriod(
+                                startDate, endDate),
+                            keywords, caseSensitive);
+                    }
+                    return null;
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(startDate, endDate, keywords);
 
-        return result;
+        return merge(results, true, -1, false);
     }
 
     /**
@@ -425,72 +423,57 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByKeywords(String[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            final Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
+        final MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (ChatRoom)descriptor,
-                            keywords, caseSensitive));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
-                        (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
-                {
-                    CallRecord callRecord = iter.next();
-
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findByKeywords(
+                                (MetaContact)descriptor,
+                                keywords, caseSensitive);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findByKeywords(
+                                (ChatRoom)descriptor,
+                                keywords, caseSensitive);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findByKeywords(
+                                (MetaContact)descriptor,
+                                keywords, caseSensitive);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        // this will get all call records
+                        return filterCallRecords(
+                            ((CallHistoryService)serv).findByEndDate(
+                                new Date()),
+                            keywords, caseSensitive);
+                    }
+                    return null;
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(null, null, keywords);
 
-        return result;
+        return merge(results, true, -1, false);
     }
 
     /**
@@ -505,67 +488,52 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLast(String[] services,
-            Object descriptor, int count)
+            final Object descriptor, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
+        final MessageProgressWrapper listenWrapper
+            = new MessageProgressWrapper(services.length, count, true);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findLast(
+                                (MetaContact)descriptor,
+                                count);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findLast(
+                                (ChatRoom)descriptor,
+                                count);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findLast(
+                                (MetaContact)descriptor,
+                                count);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        return ((CallHistoryService)serv).findLast(count);
+                    }
+                    return null;
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
-
-        if(startIndex < 0)
-            startIndex = 0;
-
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return merge(results, true, count, true);
     }
 
     /**
@@ -581,79 +549,71 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findFirstMessagesAfter(String[] services,
-            Object descriptor, Date date, int count)
+            final Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
+        final MessageProgressWrapper listenWrapper
+            = new MessageProgressWrapper(services.length, count, false);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
+                public Collection<?> find(Object serv)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
-                {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findFirstMessagesAfter(
+                                (MetaContact)descriptor,
+                                date,
+                                count);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findFirstMessagesAfter(
+                                (ChatRoom)descriptor,
+                                date,
+                                count);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findFirstRecordsAfter(
+                                (MetaContact)descriptor,
+                                date,
+                                count);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        CallHistoryService chs = (CallHistoryService)serv;
+                        Date limit = listenWrapper.getLimit();
+                        // no record after the limit is returned
+                        Collection<CallRecord> col = (limit == null)
+                            ? chs.findByStartDate(date)
+                            : chs.findByPeriod(date,
+                                new Date(limit.getTime() + 1));
+                        if(col.size() > count)
+                        {
+                            // before we make a sublist make sure there are
+                            // sorted in the right order
+                            List<CallRecord> l = new LinkedList<CallRecord>(col);
+                            Collections.sort(l, new RecordsComparator());
+                            return l.subList(0, count);
+                        }
+                        else
+                            return col;
+                    }
+                    return null;
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-
-        int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
 
-        return resultAsList.subList(0, toIndex);
+        return merge(results, true, count, false);
     }
 
     /**
@@ -669,77 +629,322 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLastMessagesBefore(String[] services,
-            Object descriptor, Date date, int count)
+            final Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
+        final MessageProgressWrapper listenWrapper
+            = new MessageProgressWrapper(services.length, count, true);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
+        List<List<Object>> results = query(services, listenWrapper,
+            new ServiceQuery()
+            {
+                public Collection<?> find(Object serv)
+                {
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        MessageHistoryService mhs =
+                            (MessageHistoryService)serv;
+
+                        if(descriptor instanceof MetaContact)
+                        {
+                            return mhs.findLastMessagesBefore(
+                                (MetaContact)descriptor,
+                                date,
+                                count);
+                        }
+                        else if(descriptor instanceof ChatRoom)
+                        {
+                            return mhs.findLastMessagesBefore(
+                                (ChatRoom)descriptor,
+                                date,
+                                count);
+                        }
+                    }
+                    else if(serv instanceof FileHistoryService
+                            && descriptor instanceof MetaContact)
+                    {
+                        return ((FileHistoryService)serv).findLastRecordsBefore(
+                                (MetaContact)descriptor,
+                                date,
+                                count);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        CallHistoryService chs = (CallHistoryService)serv;
+                        Date limit = listenWrapper.getLimit();
+                        // no record before the limit is returned
+                        Collection<CallRecord> col = (limit == null)
+                            ? chs.findByEndDate(date)
+                            : chs.findByPeriod(limit, date);
+                        if(col.size() > count)
+                        {
+                            List<CallRecord> l = new LinkedList<CallRecord>(col);
+                            return l.subList(l.size() - count, l.size());
+                        }
+                        else
+                            return col;
+                    }
+                    return null;
+                }
+            });
+        listenWrapper.fireLastProgress(date, null, null);
+
+        return merge(results, true, count, true);
+    }
+
+    /**
+     * Queries each of the services, on the search executor if there are
+     * several services and searching in parallel is enabled, or else one
+     * after the other on the calling thread. When a progress listener
+     * cancels the search, the services which are not queried yet are not
+     * queried and the search does not wait for the queries which are not
+     * finished, their results are then empty. Interrupting the calling
+     * thread cancels the search the same way.
+     *
+     * @param services the services classnames we will query
+     * @param listenWrapper the progress of the search
+     * @param serviceQuery the query of a service
+     * @return the records returned by each service, in the order of
+     * <tt>services</tt>
+     */
+    private List<List<Object>> query(String[] services,
+                                     MessageProgressWrapper listenWrapper,
+                                     ServiceQuery serviceQuery)
+    {
+        List<List<Object>> results
+            = new ArrayList<List<Object>>(services.length);
+        ExecutorService executor = getSearchExecutor();
+
+        if(executor == null || services.length < 2)
+        {
+            for (int i = 0; i < services.length; i++)
+            {
+                results.add(new ServiceSearch(
+                        services[i], listenWrapper, i, serviceQuery)
+                    .call());
+            }
+            return results;
+        }
+
+        List<Future<List<Object>>> futures
+            = new ArrayList<Future<List<Object>>>(services.length);
         for (int i = 0; i < services.length; i++)
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            futures.add(executor.submit(new ServiceSearch(
+                services[i], listenWrapper, i, serviceQuery)));
+        }
+
+        boolean interrupted = false;
+        try
+        {
+            for (Future<List<Object>> future : futures)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                List<Object> result = null;
 
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
+                while(result == null && !listenWrapper.isCanceled())
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    try
+                    {
+                        result = future.get(
+                            CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                    catch (TimeoutException e)
+                    {
+                        // check whether the search was canceled
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                        listenWrapper.cancel();
+                    }
+                    catch (ExecutionException e)
+                    {
+                        Throwable cause = e.getCause();
+                        if(cause instanceof RuntimeException)
+                            throw (RuntimeException) cause;
+                        if(cause instanceof Error)
+                            throw (Error) cause;
+                        throw new RuntimeException(cause);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
+
+                if(result == null)
+                    result = Collections.emptyList();
+                results.add(result);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+        }
+        finally
+        {
+            // a failed or canceled search does not start the queries which
+            // are still waiting, the running ones finish on their own
+            listenWrapper.cancel();
+            for (Future<List<Object>> future : futures)
+                future.cancel(false);
+
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        return results;
+    }
+
+    /**
+     * Merges the sorted records returned by the services.
+     *
+     * @param results the records of each service, sorted by timestamp
+     * @param unique whether only the first record of the records with the
+     * same timestamp is kept, in the order of the services
+     * @param count the maximum number of records to return or -1
+     * @param last whether the newest records are returned if there are more
+     * than <tt>count</tt>
+     * @return the merged records, sorted by timestamp
+     */
+    static List<Object> merge(List<List<Object>> results,
+                              boolean unique,
+                              int count,
+                              boolean last)
+    {
+        RecordsComparator comparator = new RecordsComparator();
+        int size = results.size();
+        // the next record to take in each list
+        int[] next = new int[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            List<Object> records = results.get(i);
+
+            if(unique && !records.isEmpty())
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
+                // as a TreeSet, keep the first of equal records
+                List<Object> uniqueRecords
+                    = new ArrayList<Object>(records.size());
+                for (Object record : records)
+                {
+                    if(uniqueRecords.isEmpty()
+                        || comparator.compare(
+                                uniqueRecords.get(uniqueRecords.size() - 1),
+                                record)
+                            != 0)
+                        uniqueRecords.add(record);
+                }
+                results.set(i, uniqueRecords);
             }
-            else if(serv instanceof CallHistoryService)
+
+            next[i] = last ? results.get(i).size() - 1 : 0;
+        }
+
+        List<Object> merged = new ArrayList<Object>();
+        while(true)
+        {
+            // the oldest next record, or the newest one when merging
+            // backwards, and of equal records the one of the first service
+            // comes first
+            int best = -1;
+            Object bestRecord = null;
+            for (int i = 0; i < size; i++)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
+                List<Object> records = results.get(i);
+                if(next[i] < 0 || next[i] >= records.size())
+                    continue;
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+                Object record = records.get(next[i]);
+                int compare = (bestRecord == null)
+                    ? 0 : comparator.compare(record, bestRecord);
+                if(bestRecord == null || (last ? compare >= 0 : compare < 0))
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    best = i;
+                    bestRecord = record;
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
             }
+
+            if(best < 0)
+                break;
+
+            boolean same = unique
+                && !merged.isEmpty()
+                && comparator.compare(
+                        merged.get(merged.size() - 1), bestRecord) == 0;
+
+            if(!same && count >= 0 && merged.size() >= count)
+                break;
+
+            next[best] += last ? -1 : 1;
+
+            if(same)
+            {
+                // backwards the first of the equal records comes last
+                if(last)
+                    merged.set(merged.size() - 1, bestRecord);
+                continue;
+            }
+
+            merged.add(bestRecord);
         }
-        listenWrapper.fireLastProgress(date, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        if(last)
+            Collections.reverse(merged);
 
-        if(startIndex < 0)
-            startIndex = 0;
+        return merged;
+    }
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+    /**
+     * Returns the call records with a peer matching all the keywords.
+     *
+     * @param callRecords the call records
+     * @param keywords the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private List<CallRecord> filterCallRecords(
+        Collection<CallRecord> callRecords,
+        String[] keywords,
+        boolean caseSensitive)
+    {
+        List<CallRecord> result = new LinkedList<CallRecord>();
+
+        Iterator<CallRecord> iter = callRecords.iterator();
+        while (iter.hasNext())
+        {
+            CallRecord callRecord = iter.next();
+
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the executor the services are queried on in parallel, created
+     * the first time it is needed.
+     *
+     * @return the executor or <tt>null</tt> if the services are queried one
+     * after the other
+     */
+    private synchronized ExecutorService getSearchExecutor()
+    {
+        if(searchExecutor == null && searchThreads > 1)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                searchThreads, searchThreads,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r,
+                            MetaHistoryServiceImpl.class.getName());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+            searchExecutor = executor;
+        }
+
+        return searchExecutor;
     }
 
     /**
@@ -869,6 +1074,14 @@ public class MetaHistoryServiceImpl
 
         services.clear();
 
+        ConfigurationService configService
+            = ServiceUtils.getService(bc, ConfigurationService.class);
+        if(configService != null)
+        {
+            searchThreads = configService.getInt(
+                PNAME_SEARCH_THREADS, DEFAULT_SEARCH_THREADS);
+        }
+
         // start listening for newly register or removed services
         bc.addServiceListener(this);
     }
@@ -882,6 +1095,115 @@ public class MetaHistoryServiceImpl
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        synchronized(this)
+        {
+            if(searchExecutor != null)
+            {
+                searchExecutor.shutdownNow();
+                searchExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * The query of a service by a search.
+     */
+    private interface ServiceQuery
+    {
+        /**
+         * Queries a service.
+         *
+         * @param serv the service
+         * @return the records found or <tt>null</tt> if the service does not
+         * apply to the search
+         */
+        public Collection<?> find(Object serv);
+    }
+
+    /**
+     * Queries a service for a search and sorts the records it returns.
+     */
+    private class ServiceSearch
+        implements Callable<List<Object>>
+    {
+        private final String name;
+
+        private final MessageProgressWrapper listenWrapper;
+
+        private final int ix;
+
+        private final ServiceQuery serviceQuery;
+
+        /**
+         * Creates the query of a service.
+         *
+         * @param name the service classname
+         * @param listenWrapper the progress of the search
+         * @param ix the index of the service in the search
+         * @param serviceQuery the query of the service
+         */
+        ServiceSearch(String name,
+                      MessageProgressWrapper listenWrapper,
+                      int ix,
+                      ServiceQuery serviceQuery)
+        {
+            this.name = name;
+            this.listenWrapper = listenWrapper;
+            this.ix = ix;
+            this.serviceQuery = serviceQuery;
+        }
+
+        public List<Object> call()
+        {
+            if(listenWrapper.isCanceled())
+                return new ArrayList<Object>();
+
+            Object serv = getService(name);
+            ServiceProgress progress = listenWrapper.getServiceProgress(ix);
+            Collection<?> records;
+
+            if(serv instanceof MessageHistoryService)
+            {
+                MessageHistoryService mhs = (MessageHistoryService)serv;
+                mhs.addSearchProgressListener(progress);
+                try
+                {
+                    records = serviceQuery.find(serv);
+                }
+                finally
+                {
+                    mhs.removeSearchProgressListener(progress);
+                }
+            }
+            else if(serv instanceof CallHistoryService)
+            {
+                CallHistoryService chs = (CallHistoryService)serv;
+                chs.addSearchProgressListener(progress);
+                try
+                {
+                    records = serviceQuery.find(serv);
+                }
+                finally
+                {
+                    chs.removeSearchProgressListener(progress);
+                }
+            }
+            else
+                records = serviceQuery.find(serv);
+
+            List<Object> result = (records == null)
+                ? new ArrayList<Object>()
+                : new ArrayList<Object>(records);
+
+            // stable, records with the same timestamp stay in the order the
+            // service returned them
+            Collections.sort(result, new RecordsComparator());
+
+            progress.setDone();
+            listenWrapper.serviceDone(result);
+            return result;
+        }
     }
 
     /**
@@ -891,7 +1213,7 @@ public class MetaHistoryServiceImpl
     private static class RecordsComparator
         implements Comparator<Object>
     {
-        private Date getDate(Object o)
+        Date getDate(Object o)
         {
             Date date = new Date(0);
             if(o instanceof MessageDeliveredEvent)
@@ -918,25 +1240,153 @@ public class MetaHistoryServiceImpl
         }
     }
 
+    /**
+     * The progress of a search, made of the progress of the query of each
+     * service, and whether it was canceled.
+     */
     private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
     {
         private final int count;
 
-        private int ix;
+        /**
+         * The progress of each service, out of
+         * <tt>HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE</tt>.
+         */
+        private final double[] progress;
+
+        /**
+         * The maximum number of records the search returns or -1.
+         */
+        private final int recordCount;
+
+        /**
+         * Whether the search returns the newest records.
+         */
+        private final boolean last;
+
+        /**
+         * The timestamp after which, or before which when the search returns
+         * the newest records, no record is returned. <tt>null</tt> until a
+         * service returned <tt>recordCount</tt> records.
+         */
+        private Date limit = null;
+
+        /**
+         * Whether a progress listener canceled the search.
+         */
+        private volatile boolean canceled = false;
 
         public MessageProgressWrapper(int count)
+        {
+            this(count, -1, false);
+        }
+
+        /**
+         * Creates the progress of a search returning at most
+         * <tt>recordCount</tt> records.
+         *
+         * @param count the number of services
+         * @param recordCount the maximum number of records the search
+         * returns or -1
+         * @param last whether the search returns the newest records
+         */
+        public MessageProgressWrapper(int count, int recordCount,
+                                      boolean last)
         {
             this.count = count;
+            this.progress = new double[count];
+            this.recordCount = recordCount;
+            this.last = last;
         }
 
-        public void setIx(int ix)
+        /**
+         * Cancels the search.
+         */
+        public void cancel()
         {
-            this.ix = ix;
+            canceled = true;
+        }
+
+        /**
+         * Returns whether the search was canceled.
+         * @return <tt>true</tt> if the search was canceled
+         */
+        public boolean isCanceled()
+        {
+            return canceled;
+        }
+
+        /**
+         * Returns the timestamp after which, or before which when the search
+         * returns the newest records, no record is returned, so that the
+         * services which are queried next read only the records which may
+         * be returned.
+         *
+         * @return the timestamp or <tt>null</tt> if it is not known yet
+         */
+        public synchronized Date getLimit()
+        {
+            return limit;
+        }
+
+        /**
+         * Narrows the records the search returns with the records returned
+         * by a service. Only one of the records with the same timestamp is
+         * returned, so if the service returned <tt>recordCount</tt> records
+         * with distinct timestamps, no record after the last of them, or
+         * before the first of them when the search returns the newest
+         * records, is returned.
+         *
+         * @param records the records returned by the service, sorted by
+         * timestamp
+         */
+        public void serviceDone(List<Object> records)
+        {
+            if(recordCount <= 0)
+                return;
+
+            RecordsComparator comparator = new RecordsComparator();
+            Object previous = null;
+            int distinct = 0;
+
+            for (int i = 0; i < records.size(); i++)
+            {
+                Object record = records.get(last ? records.size() - 1 - i : i);
+
+                if(previous == null
+                        || comparator.compare(previous, record) != 0)
+                    distinct++;
+                previous = record;
+
+                if(distinct == recordCount)
+                {
+                    Date date = comparator.getDate(record);
+
+                    synchronized(this)
+                    {
+                        if(limit == null
+                                || (last
+                                    ? date.after(limit)
+                                    : date.before(limit)))
+                            limit = date;
+                    }
+                    return;
+                }
+            }
         }
 
-        private void fireProgress(int origProgress, int maxVal,
+        /**
+         * Returns the listener of the progress of a service.
+         *
+         * @param ix the index of the service in the search
+         * @return the listener of the progress of the service
+         */
+        public ServiceProgress getServiceProgress(int ix)
+        {
+            return new ServiceProgress(this, ix);
+        }
+
+        private void fireProgress(int ix, double serviceProgress,
             Date startDate, Date endDate, String[] keywords)
         {
             ProgressEvent ev = new ProgressEvent(
@@ -945,17 +1395,34 @@ public class MetaHistoryServiceImpl
                 endDate,
                 keywords);
 
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
+            double convProgress = 0;
+            synchronized(progress)
+            {
+                progress[ix] = serviceProgress;
+                for (double p : progress)
+                    convProgress += p;
+            }
+            convProgress /= count;
 
             ev.setProgress((int)convProgress);
 
             fireEvent(ev);
         }
 
+        /**
+         * Marks the query of a service as finished, without firing an event.
+         *
+         * @param ix the index of the service in the search
+         */
+        private void setDone(int ix)
+        {
+            synchronized(progress)
+            {
+                progress[ix]
+                    = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+            }
+        }
+
         private void fireEvent(ProgressEvent ev)
         {
             Iterable<HistorySearchProgressListener> listeners;
@@ -967,6 +1434,9 @@ public class MetaHistoryServiceImpl
             }
             for (HistorySearchProgressListener listener : listeners)
                 listener.progressChanged(ev);
+
+            if(ev.isCanceled())
+                cancel();
         }
 
         public void fireLastProgress(
@@ -981,13 +1451,39 @@ public class MetaHistoryServiceImpl
 
             fireEvent(ev);
         }
+    }
+
+    /**
+     * Converts the progress of the query of a service to the progress of the
+     * whole search.
+     */
+    private static class ServiceProgress
+        implements MessageHistorySearchProgressListener,
+                   CallHistorySearchProgressListener
+    {
+        private final MessageProgressWrapper listenWrapper;
+
+        private final int ix;
+
+        ServiceProgress(MessageProgressWrapper listenWrapper, int ix)
+        {
+            this.listenWrapper = listenWrapper;
+            this.ix = ix;
+        }
+
+        void setDone()
+        {
+            listenWrapper.setDone(ix);
+        }
 
         public void progressChanged(
             net.java.sip.communicator.service.msghistory.event.ProgressEvent evt)
         {
-            fireProgress(
-                evt.getProgress(),
-                MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
+            listenWrapper.fireProgress(
+                ix,
+                evt.getProgress()
+                    * (double)HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
                 evt.getStartDate(),
                 evt.getEndDate(),
                 evt.getKeywords());
@@ -995,9 +1491,11 @@ public class MetaHistoryServiceImpl
 
         public void progressChanged(net.java.sip.communicator.service.callhistory.event.ProgressEvent evt)
         {
-            fireProgress(
-                evt.getProgress(),
-                CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
+            listenWrapper.fireProgress(
+                ix,
+                evt.getProgress()
+                    * (double)HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
                 evt.getStartDate(),
                 evt.getEndDate(),
                 null);
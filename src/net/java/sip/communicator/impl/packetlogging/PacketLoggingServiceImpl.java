@@ -7,7 +7,8 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 import net.java.sip.communicator.util.*;
 
@@ -30,9 +31,36 @@ public class PacketLoggingServiceImpl
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The OutputStream we are currently writing to.
+     * The name of the property which specifies the maximum number of packets
+     * waiting to be saved. Packets logged while that many are waiting are
+     * dropped.
      */
-    private FileOutputStream outputStream = null;
+    public static final String QUEUE_CAPACITY_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.packetlogging.QUEUE_CAPACITY";
+
+    /**
+     * The default maximum number of packets waiting to be saved.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * The size in bytes of the buffer collecting the packets before they are
+     * written to the file.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The channel of the file we are currently writing to.
+     */
+    private FileChannel fileChannel = null;
+
+    /**
+     * The buffer collecting the packets before they are written to
+     * <tt>fileChannel</tt>. The pcap headers are little-endian.
+     */
+    private final ByteBuffer writeBuffer
+        = ByteBuffer.allocate(WRITE_BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
 
     /**
      * The thread that queues packets and saves them to file.
@@ -55,6 +83,20 @@ public class PacketLoggingServiceImpl
                 (byte)0x08, (byte)0x00
         };
 
+    /**
+     * The pcap file global header.
+     */
+    private final static byte[] globalHeader =
+        new byte[]{
+                (byte)0xd4, (byte)0xc3, (byte)0xb2, (byte)0xa1, // magic number(swapped)
+                (byte)0x02, (byte)0x00, // major version number
+                (byte)0x04, (byte)0x00, // minor version number
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // GMT to local correction
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // accuracy of timestamps
+                (byte)0xff, (byte)0xff, (byte)0x00, (byte)0x00, // max length of captured packets, in octets
+                (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00  // data link type(ethernet)
+        };
+
     /**
      * The fake ipv4 header we use as template.
      */
@@ -118,6 +160,30 @@ public class PacketLoggingServiceImpl
                 (byte)0x6e, (byte)0xcc, (byte)0x76, (byte)0xbd  // options
             };
 
+    /**
+     * The ipv4 header of the packet being saved, filled from
+     * <tt>ipHeaderTemplate</tt>. Only used by the <tt>saverThread</tt>.
+     */
+    private final byte[] ipHeader = new byte[ipHeaderTemplate.length];
+
+    /**
+     * The ipv6 header of the packet being saved, filled from
+     * <tt>ip6HeaderTemplate</tt>. Only used by the <tt>saverThread</tt>.
+     */
+    private final byte[] ip6Header = new byte[ip6HeaderTemplate.length];
+
+    /**
+     * The udp header of the packet being saved, filled from
+     * <tt>udpHeaderTemplate</tt>. Only used by the <tt>saverThread</tt>.
+     */
+    private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+
+    /**
+     * The tcp header of the packet being saved, filled from
+     * <tt>tcpHeaderTemplate</tt>. Only used by the <tt>saverThread</tt>.
+     */
+    private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
+
     /**
      * Using this object to lock and protectd the two counters
      * used for tcp seq and ack numbers.
@@ -182,11 +248,7 @@ public class PacketLoggingServiceImpl
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
-        {
-            outputStream.flush();
-            outputStream.close();
-        }
+        closeFile();
 
         for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
         {
@@ -201,9 +263,49 @@ public class PacketLoggingServiceImpl
             }
         }
 
-        outputStream = new FileOutputStream(files[0]);
-        written = 0;
-        createGlobalHeader();
+        fileChannel = new FileOutputStream(files[0]).getChannel();
+        written = globalHeader.length;
+        writeBuffer.put(globalHeader);
+    }
+
+    /**
+     * Writes the packets collected in <tt>writeBuffer</tt> to the file.
+     * @throws IOException
+     */
+    private void flushWriteBuffer()
+        throws IOException
+    {
+        writeBuffer.flip();
+        try
+        {
+            while(writeBuffer.hasRemaining())
+                fileChannel.write(writeBuffer);
+        }
+        finally
+        {
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Writes the collected packets and closes the current file if any.
+     * @throws IOException
+     */
+    private void closeFile()
+        throws IOException
+    {
+        if(fileChannel == null)
+            return;
+
+        try
+        {
+            flushWriteBuffer();
+        }
+        finally
+        {
+            fileChannel.close();
+            fileChannel = null;
+        }
     }
 
     /**
@@ -213,68 +315,28 @@ public class PacketLoggingServiceImpl
     {
         saverThread.stopRunning();
 
-        if(outputStream != null)
+        synchronized(this)
         {
             try
             {
-                outputStream.flush();
-                outputStream.close();
+                closeFile();
             }
             catch(IOException e)
             {
-                e.printStackTrace();
-            }
-            finally
-            {
-                outputStream = null;
+                logger.error("Error closing packet log file", e);
             }
         }
     }
 
     /**
-     * Creates pcap file global header.
-     * @throws IOException
+     * Returns the number of packets which were not saved because too many
+     * packets were waiting to be saved when they were logged.
+     *
+     * @return the number of dropped packets
      */
-    private void createGlobalHeader()
-            throws IOException
+    public long getDroppedPacketCount()
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        return saverThread.pktsToSave.getDroppedCount();
     }
 
     /**
@@ -422,7 +484,7 @@ public class PacketLoggingServiceImpl
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeader = this.ipHeader;
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -438,7 +500,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeader = this.ip6Header;
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -458,7 +520,6 @@ public class PacketLoggingServiceImpl
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
@@ -470,7 +531,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
+            transportHeader = tcpHeader;
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
@@ -548,8 +609,12 @@ public class PacketLoggingServiceImpl
 
         synchronized(this)
         {
+            // the file is closed once we are stopped
+            if(saverThread.stopped)
+                return;
+
             // open files only if needed
-            if(outputStream == null)
+            if(fileChannel == null)
             {
                 getFileNames();
                 rotateFiles();// this one opens the file for write
@@ -560,36 +625,65 @@ public class PacketLoggingServiceImpl
             if((limit > 0) && (written > limit))
                 rotateFiles();
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
+            // the packet headers always fit in an empty buffer
+            if(writeBuffer.remaining() < 16 + feakHeaderLen)
+                flushWriteBuffer();
 
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
+            writeBuffer.putInt(tsSec);
+            writeBuffer.putInt(tsUsec);
+            writeBuffer.putInt(inclLen);
+            writeBuffer.putInt(origLen);
+
+            writeBuffer.put(fakeEthernetHeader);
+            writeBuffer.put(ipHeader);
+            writeBuffer.put(transportHeader);
+
+            if(writeBuffer.remaining() < packet.packetLength)
+                flushWriteBuffer();
+            if(writeBuffer.remaining() < packet.packetLength)
+            {
+                // larger than the buffer, write it as it is
+                ByteBuffer content
+                    = ByteBuffer.wrap(
+                            packet.packetContent,
+                            packet.packetOffset,
+                            packet.packetLength);
+
+                while(content.hasRemaining())
+                    fileChannel.write(content);
+            }
+            else
+            {
+                writeBuffer.put(
+                        packet.packetContent,
+                        packet.packetOffset,
+                        packet.packetLength);
+            }
 
             written += inclLen + 16;
         }
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
+     * Writes the packets collected in <tt>writeBuffer</tt> to the file, once
+     * there are no more packets to save for now.
      */
-    private void addInt(int d)
-        throws IOException
+    private void flushSavedPackets()
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        synchronized(this)
+        {
+            if((fileChannel == null) || (writeBuffer.position() == 0))
+                return;
+
+            try
+            {
+                flushWriteBuffer();
+            }
+            catch(IOException ioe)
+            {
+                logger.error("Error writing packets to file", ioe);
+            }
+        }
     }
 
     /**
@@ -751,12 +845,24 @@ public class PacketLoggingServiceImpl
         /**
          * start/stop indicator.
          */
-        private boolean stopped = true;
+        private volatile boolean stopped = true;
+
+        /**
+         * Whether this thread waits for packets to be queued.
+         */
+        private volatile boolean waiting = false;
+
+        /**
+         * The packets queued to be written in the file. The threads logging
+         * packets queue them without locking, dropping them when the queue is
+         * full rather than waiting for this thread or using more memory.
+         */
+        private final PacketQueue<Packet> pktsToSave;
 
         /**
-         * List of packets queued to be written in the file.
+         * The number of dropped packets last reported in the log.
          */
-        private final List<Packet> pktsToSave = new ArrayList<Packet>();
+        private long reportedDroppedCount = 0;
 
         /**
          * Initializes a new <tt>SaverThread</tt>.
@@ -764,6 +870,15 @@ public class PacketLoggingServiceImpl
         SaverThread()
         {
             setName(PacketLoggingServiceImpl.class.getName() + " SaverThread");
+
+            pktsToSave
+                = new PacketQueue<Packet>(
+                        Math.max(
+                            1,
+                            PacketLoggingActivator.getConfigurationService()
+                                .getInt(
+                                    QUEUE_CAPACITY_PROPERTY_NAME,
+                                    DEFAULT_QUEUE_CAPACITY)));
         }
 
         /**
@@ -776,46 +891,68 @@ public class PacketLoggingServiceImpl
             stopped = false;
             while(!stopped)
             {
-                Packet pktToSave;
+                Packet pktToSave = pktsToSave.poll();
 
-                synchronized(this)
+                if(pktToSave == null)
                 {
-                    if(pktsToSave.isEmpty())
+                    // write what we have collected before waiting
+                    flushSavedPackets();
+                    reportDroppedPackets();
+
+                    synchronized(this)
                     {
+                        waiting = true;
                         try
                         {
-                            wait();
+                            if(pktsToSave.isEmpty() && !stopped)
+                                wait();
                         }
                         catch (InterruptedException iex)
                         {
                         }
-                        continue;
+                        finally
+                        {
+                            waiting = false;
+                        }
                     }
-
-                    pktToSave = pktsToSave.remove(0);
+                    continue;
                 }
 
-                if(pktToSave != null)
+                try
                 {
-                    try
-                    {
-                        savePacket(pktToSave);
-                    }
-                    catch(Throwable t)
-                    {
-                        /*
-                         * XXX ThreadDeath must be rethrown; otherwise, the
-                         * related Thread will not die.
-                         */
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
-                        else
-                            logger.error("Error writing packet to file", t);
-                    }
+                    savePacket(pktToSave);
+                }
+                catch(Throwable t)
+                {
+                    /*
+                     * XXX ThreadDeath must be rethrown; otherwise, the
+                     * related Thread will not die.
+                     */
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    else
+                        logger.error("Error writing packet to file", t);
                 }
             }
         }
 
+        /**
+         * Logs the number of packets dropped since the last report, if any.
+         */
+        private void reportDroppedPackets()
+        {
+            long droppedCount = pktsToSave.getDroppedCount();
+
+            if(droppedCount != reportedDroppedCount)
+            {
+                logger.warn("Dropped "
+                        + (droppedCount - reportedDroppedCount)
+                        + " packets because too many were waiting to be saved"
+                        + " (" + droppedCount + " in total)");
+                reportedDroppedCount = droppedCount;
+            }
+        }
+
         /**
          * Interrupts this sender so that it would no longer send messages.
          */
@@ -829,10 +966,16 @@ public class PacketLoggingServiceImpl
          * Schedule new packet for save.
          * @param packet new packet to save.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void queuePacket(Packet packet)
         {
-            pktsToSave.add(packet);
-            notifyAll();
+            // only lock to wake this thread up if it is waiting
+            if(pktsToSave.offer(packet) && waiting)
+            {
+                synchronized(this)
+                {
+                    notifyAll();
+                }
+            }
         }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded queue which many threads add elements to without locking and a
+ * single thread takes them from. An element added to a full queue is dropped
+ * and counted instead of making the adding thread wait or the queue grow.
+ * <p>
+ * The elements are kept in a ring of slots, each with a sequence number
+ * telling whether it is free for the adding thread which claimed it or
+ * filled for the taking thread.
+ *
+ * @param <T> the type of the elements
+ */
+public class PacketQueue<T>
+{
+    /**
+     * The slots of the ring.
+     */
+    private final AtomicReferenceArray<T> elements;
+
+    /**
+     * The sequence numbers of the slots: the position of the next element a
+     * slot is free for, or that position plus one once the element is in it.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The number of slots minus one, the number of slots being a power of
+     * two.
+     */
+    private final int mask;
+
+    /**
+     * The position of the next element to add.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next element to take, only used by the taking
+     * thread.
+     */
+    private long head = 0;
+
+    /**
+     * The number of elements dropped because the queue was full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>PacketQueue</tt>.
+     *
+     * @param capacity the maximum number of elements in the queue, rounded up
+     * to a power of two
+     */
+    public PacketQueue(int capacity)
+    {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        elements = new AtomicReferenceArray<T>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an element to the queue unless it is full. May be called by any
+     * thread.
+     *
+     * @param element the element to add
+     * @return <tt>true</tt> if <tt>element</tt> was added, <tt>false</tt> if
+     * it was dropped because the queue is full
+     */
+    public boolean offer(T element)
+    {
+        long position;
+        int index;
+
+        while (true)
+        {
+            position = tail.get();
+            index = (int) (position & mask);
+
+            long sequence = sequences.get(index);
+
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            }
+            else if (sequence < position)
+            {
+                // the slot still holds the element of the previous round
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            // else another thread claimed the slot, try the next one
+        }
+
+        elements.lazySet(index, element);
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Takes the next element from the queue. Must only be called by the
+     * taking thread.
+     *
+     * @return the next element or <tt>null</tt> if the queue is empty
+     */
+    public T poll()
+    {
+        int index = (int) (head & mask);
+
+        if (sequences.get(index) != head + 1)
+            return null;
+
+        T element = elements.get(index);
+
+        elements.lazySet(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return element;
+    }
+
+    /**
+     * Determines whether the queue is empty. Must only be called by the
+     * taking thread.
+     *
+     * @return <tt>true</tt> if there is no element to take
+     */
+    public boolean isEmpty()
+    {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    /**
+     * Returns the number of elements dropped because the queue was full.
+     *
+     * @return the number of dropped elements
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+}
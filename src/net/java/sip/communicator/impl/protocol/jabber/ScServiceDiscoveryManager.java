@@ -745,6 +745,18 @@ public class ScServiceDiscoveryManager
         private void requestDiscoveryInfo(final String entityID,
                                           EntityCapsManager.Caps caps)
         {
+            /*
+             * Another entity with the same caps may have been processed since
+             * this one was queued, so do not query again.
+             */
+            if ((caps != null)
+                    && (EntityCapsManager.getDiscoverInfoByCaps(caps) != null))
+            {
+                if (capabilitiesOpSet != null)
+                    capabilitiesOpSet.fireContactCapabilitiesChanged(entityID);
+                return;
+            }
+
             try
             {
                 DiscoverInfo discoverInfo = discoverInfo(
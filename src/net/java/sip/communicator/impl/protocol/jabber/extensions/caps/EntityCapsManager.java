@@ -16,6 +16,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.OSUtils;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
@@ -26,8 +27,6 @@ import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.*;
 import org.jivesoftware.smackx.packet.*;
 import org.osgi.framework.*;
-import org.xmlpull.mxp1.*;
-import org.xmlpull.v1.*;
 
 /**
  * Keeps track of entity capabilities.
@@ -57,12 +56,10 @@ public class EntityCapsManager
     private static ConfigurationService configService;
 
     /**
-     * The prefix of the <tt>ConfigurationService</tt> properties which persist
-     * {@link #caps2discoverInfo}.
+     * The name of the file in the cache directory which holds
+     * {@link #capsStore}.
      */
-    private static final String CAPS_PROPERTY_NAME_PREFIX
-        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
-            + "EntityCapsManager.CAPS.";
+    private static final String CAPS_STORE_FILE_NAME = "entitycaps.dat";
 
     /**
      * An empty array of <tt>UserCapsNodeListener</tt> elements explicitly
@@ -78,17 +75,16 @@ public class EntityCapsManager
         = OSUtils.IS_ANDROID ? "http://android.jitsi.org" : "http://jitsi.org";
 
     /**
-     * The <tt>Map</tt> of <tt>Caps</tt> to <tt>DiscoverInfo</tt> which
-     * associates a node#ver with the entity capabilities so that they don't
-     * have to be retrieved every time their necessary. Because ver is
-     * constructed from the entity capabilities using a specific hash method,
-     * the hash method is also associated with the entity capabilities along
-     * with the node and the ver in order to disambiguate cases of equal ver
-     * values for different entity capabilities constructed using different hash
-     * methods.
+     * The store of <tt>Caps</tt> to <tt>DiscoverInfo</tt> which associates a
+     * node#ver with the entity capabilities so that they don't have to be
+     * retrieved every time their necessary. Because ver is constructed from
+     * the entity capabilities using a specific hash method, the hash method is
+     * also associated with the entity capabilities along with the node and the
+     * ver in order to disambiguate cases of equal ver values for different
+     * entity capabilities constructed using different hash methods. Created
+     * when first used.
      */
-    private static final Map<Caps, DiscoverInfo> caps2discoverInfo
-        = new ConcurrentHashMap<Caps, DiscoverInfo>();
+    private static EntityCapsStore capsStore;
 
     /**
      * Map of Full JID -&gt; DiscoverInfo/null. In case of c2s connection the
@@ -147,42 +143,52 @@ public class EntityCapsManager
          */
         info.setNode(caps.getNodeVer());
 
-        synchronized (caps2discoverInfo)
-        {
-            DiscoverInfo oldInfo = caps2discoverInfo.put(caps, info);
-
-            /*
-             * If the specified info is a new association for the specified
-             * node, remember it across application instances in order to not
-             * query for it over the network.
-             */
-            if ((oldInfo == null) || !oldInfo.equals(info))
-            {
-                String xml = info.getChildElementXML();
-
-                if ((xml != null) && (xml.length() != 0))
-                {
-                    getConfigService()
-                        .setProperty(getCapsPropertyName(caps), xml);
-                }
-            }
-        }
+        /*
+         * Remember the info across application instances in order to not
+         * query for it over the network.
+         */
+        getCapsStore().put(caps, info);
     }
 
     /**
-     * Gets the name of the property in the <tt>ConfigurationService</tt> which
-     * is or is to be associated with a specific <tt>Caps</tt> value.
+     * Returns the store of the entity capabilities, creating it if needed.
      *
-     * @param caps the <tt>Caps</tt> value for which the associated
-     * <tt>ConfigurationService</tt> property name is to be returned
-     * @return the name of the property in the <tt>ConfigurationService</tt>
-     * which is or is to be associated with a specific <tt>Caps</tt> value
+     * @return the store of the entity capabilities
      */
-    private static String getCapsPropertyName(Caps caps)
+    private static synchronized EntityCapsStore getCapsStore()
     {
-        return
-            CAPS_PROPERTY_NAME_PREFIX
-                + caps.node + '#' + caps.hash + '#' + caps.ver;
+        if (capsStore == null)
+        {
+            File file = null;
+            FileAccessService fileAccessService
+                = (bundleContext == null)
+                    ? null
+                    : ServiceUtils.getService(
+                            bundleContext,
+                            FileAccessService.class);
+
+            if (fileAccessService != null)
+            {
+                try
+                {
+                    file
+                        = fileAccessService.getPrivatePersistentFile(
+                                CAPS_STORE_FILE_NAME,
+                                FileCategory.CACHE);
+                }
+                catch (Exception ex)
+                {
+                    logger.error("Cannot access " + CAPS_STORE_FILE_NAME
+                        + ", entity capabilities will not be remembered", ex);
+                }
+            }
+
+            capsStore
+                = new EntityCapsStore(
+                        file,
+                        (bundleContext == null) ? null : getConfigService());
+        }
+        return capsStore;
     }
 
     /**
@@ -208,6 +214,15 @@ public class EntityCapsManager
         if (bundleContext == null)
         {
             configService = null;
+
+            synchronized (EntityCapsManager.class)
+            {
+                if (capsStore != null)
+                {
+                    capsStore.flush();
+                    capsStore = null;
+                }
+            }
         }
         EntityCapsManager.bundleContext = bundleContext;
     }
@@ -447,91 +462,7 @@ public class EntityCapsManager
      */
     public static DiscoverInfo getDiscoverInfoByCaps(Caps caps)
     {
-        synchronized (caps2discoverInfo)
-        {
-            DiscoverInfo discoverInfo = caps2discoverInfo.get(caps);
-
-            /*
-             * If we don't have the discoverInfo in the runtime cache yet, we
-             * may have it remembered in a previous application instance.
-             */
-            if (discoverInfo == null)
-            {
-                ConfigurationService configurationService
-                    = getConfigService();
-                String capsPropertyName = getCapsPropertyName(caps);
-                String xml = configurationService.getString(capsPropertyName);
-
-                if ((xml != null) && (xml.length() != 0))
-                {
-                    IQProvider discoverInfoProvider
-                        = (IQProvider)
-                            ProviderManager.getInstance().getIQProvider(
-                                    "query",
-                                    "http://jabber.org/protocol/disco#info");
-
-                    if (discoverInfoProvider != null)
-                    {
-                        XmlPullParser parser = new MXParser();
-
-                        try
-                        {
-                            parser.setFeature(
-                                    XmlPullParser.FEATURE_PROCESS_NAMESPACES,
-                                    true);
-                            parser.setInput(new StringReader(xml));
-                            // Start the parser.
-                            parser.next();
-                        }
-                        catch (XmlPullParserException xppex)
-                        {
-                            parser = null;
-                        }
-                        catch (IOException ioex)
-                        {
-                            parser = null;
-                        }
-
-                        if (parser != null)
-                        {
-                            try
-                            {
-                                discoverInfo
-                                    = (DiscoverInfo)
-                                        discoverInfoProvider.parseIQ(parser);
-                            }
-                            catch (Exception ex)
-                            {
-                            }
-
-                            if (discoverInfo != null)
-                            {
-                                if (caps.isValid(discoverInfo))
-                                    caps2discoverInfo.put(caps, discoverInfo);
-                                else
-                                {
-                                    logger.error(
-                                            "Invalid DiscoverInfo for "
-                                                + caps.getNodeVer()
-                                                + ": "
-                                                + discoverInfo);
-                                    /*
-                                     * The discoverInfo doesn't seem valid
-                                     * according to the caps which means that we
-                                     * must have stored invalid information.
-                                     * Delete the invalid information in order
-                                     * to not try to validate it again.
-                                     */
-                                    configurationService.removeProperty(
-                                            capsPropertyName);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            return discoverInfo;
-        }
+        return getCapsStore().get(caps);
     }
 
     /**
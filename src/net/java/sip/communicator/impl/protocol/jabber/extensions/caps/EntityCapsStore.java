@@ -0,0 +1,482 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.caps;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.caps.EntityCapsManager.Caps;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smackx.packet.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+/**
+ * The entity capabilities known to the application, shared by all the Jabber
+ * accounts and kept in a file of the cache directory across application
+ * instances.
+ * <p>
+ * The store holds at most a configured number of capabilities and drops the
+ * least recently used ones beyond that. It is read from its file the first
+ * time it is used. The capabilities read from the file are checked against
+ * their ver the first time they are used, and dropped if they do not match
+ * it. Changes are written to the file a few seconds after they are made so
+ * that a burst of new capabilities is written at once.
+ */
+public class EntityCapsStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>EntityCapsStore</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(EntityCapsStore.class);
+
+    /**
+     * The name of the property which specifies the maximum number of entity
+     * capabilities in the store.
+     */
+    public static final String MAX_SIZE_PROP
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsStore.MAX_SIZE";
+
+    /**
+     * The default maximum number of entity capabilities in the store.
+     */
+    private static final int DEFAULT_MAX_SIZE = 1000;
+
+    /**
+     * The prefix of the <tt>ConfigurationService</tt> properties in which
+     * the entity capabilities were persisted before they were kept in a file.
+     */
+    private static final String CAPS_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsManager.CAPS.";
+
+    /**
+     * The version of the format of the store file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The time in milliseconds changes wait before they are written to the
+     * file.
+     */
+    private static final long SAVE_DELAY = 5000;
+
+    /**
+     * The file of the store, <tt>null</tt> if the store is only kept in
+     * memory.
+     */
+    private final File file;
+
+    /**
+     * The <tt>ConfigurationService</tt> holding the entity capabilities
+     * persisted by previous versions, or <tt>null</tt>.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The maximum number of entity capabilities in the store.
+     */
+    private final int maxSize;
+
+    /**
+     * The entity capabilities of the store, in the order they were last
+     * used. <tt>null</tt> until the store is loaded.
+     */
+    private Map<Caps, StoredCaps> entries = null;
+
+    /**
+     * The timer writing the changes to the file, created with the first
+     * change.
+     */
+    private Timer timer = null;
+
+    /**
+     * Whether changes wait to be written to the file.
+     */
+    private boolean saveScheduled = false;
+
+    /**
+     * The lock serializing the writing of the file by the timer and by
+     * {@link #flush()}, which share the temporary file.
+     */
+    private final Object saveLock = new Object();
+
+    /**
+     * Initializes a new <tt>EntityCapsStore</tt>.
+     *
+     * @param file the file of the store or <tt>null</tt> to only keep it in
+     * memory
+     * @param configService the <tt>ConfigurationService</tt> holding the
+     * entity capabilities persisted by previous versions, or <tt>null</tt>
+     */
+    public EntityCapsStore(File file, ConfigurationService configService)
+    {
+        this.file = file;
+        this.configService = configService;
+        this.maxSize
+            = (configService == null)
+                ? DEFAULT_MAX_SIZE
+                : Math.max(1,
+                        configService.getInt(MAX_SIZE_PROP, DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Returns the <tt>DiscoverInfo</tt> of specific entity capabilities.
+     *
+     * @param caps the node, the hash and the ver of the capabilities
+     * @return the <tt>DiscoverInfo</tt> or <tt>null</tt> if the store does
+     * not hold valid information for <tt>caps</tt>
+     */
+    public synchronized DiscoverInfo get(Caps caps)
+    {
+        load();
+
+        StoredCaps entry = entries.get(caps);
+        if (entry == null)
+            return null;
+
+        if (entry.discoverInfo == null)
+        {
+            DiscoverInfo discoverInfo = parseDiscoverInfo(entry.xml);
+
+            if ((discoverInfo == null) || !caps.isValid(discoverInfo))
+            {
+                logger.error("Invalid DiscoverInfo for " + caps.getNodeVer()
+                    + ": " + discoverInfo);
+                /*
+                 * We must have stored invalid information. Delete it in order
+                 * to not try to validate it again.
+                 */
+                entries.remove(caps);
+                scheduleSave();
+                return null;
+            }
+            entry.discoverInfo = discoverInfo;
+        }
+        return entry.discoverInfo;
+    }
+
+    /**
+     * Adds the <tt>DiscoverInfo</tt> of specific entity capabilities to the
+     * store. The <tt>DiscoverInfo</tt> is trusted to be valid.
+     *
+     * @param caps the node, the hash and the ver of the capabilities
+     * @param discoverInfo the <tt>DiscoverInfo</tt>
+     */
+    public synchronized void put(Caps caps, DiscoverInfo discoverInfo)
+    {
+        load();
+
+        String xml = discoverInfo.getChildElementXML();
+        if ((xml == null) || (xml.length() == 0))
+            return;
+
+        StoredCaps entry = entries.get(caps);
+        if ((entry != null) && xml.equals(entry.xml))
+        {
+            entry.discoverInfo = discoverInfo;
+            return;
+        }
+
+        entry = new StoredCaps(xml);
+        entry.discoverInfo = discoverInfo;
+        entries.put(caps, entry);
+        scheduleSave();
+    }
+
+    /**
+     * Writes the pending changes to the file and stops the writing of later
+     * changes until the store is used again. Waits for a write started by
+     * the timer to complete.
+     */
+    public void flush()
+    {
+        boolean pending;
+
+        synchronized (this)
+        {
+            if (timer != null)
+            {
+                timer.cancel();
+                timer = null;
+            }
+            pending = saveScheduled;
+        }
+
+        if (pending)
+        {
+            save();
+        }
+        else
+        {
+            synchronized (saveLock)
+            {
+                // the timer task writing the file, if any, is done
+            }
+        }
+    }
+
+    /**
+     * Reads the file of the store and the entity capabilities persisted by
+     * previous versions if not yet loaded.
+     */
+    private void load()
+    {
+        if (entries != null)
+            return;
+
+        entries = new LinkedHashMap<Caps, StoredCaps>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Caps, StoredCaps> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+
+        if ((file != null) && file.exists())
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+                try
+                {
+                    if (in.readInt() == VERSION)
+                    {
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++)
+                        {
+                            Caps caps = new Caps(in.readUTF(), in.readUTF(),
+                                in.readUTF(), null);
+                            byte[] xml = new byte[in.readInt()];
+
+                            in.readFully(xml);
+                            entries.put(caps,
+                                new StoredCaps(new String(xml, "UTF-8")));
+                        }
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException ioe)
+            {
+                logger.error("Cannot read entity capabilities " + file, ioe);
+                entries.clear();
+                file.delete();
+            }
+        }
+
+        importConfigProperties();
+    }
+
+    /**
+     * Moves the entity capabilities persisted in the configuration by
+     * previous versions to the store.
+     */
+    private void importConfigProperties()
+    {
+        if (configService == null)
+            return;
+
+        List<String> names
+            = configService.getPropertyNamesByPrefix(
+                    CAPS_PROPERTY_NAME_PREFIX,
+                    false);
+        if (names.isEmpty())
+            return;
+
+        // removed at once, each change is a transaction of its own on the
+        // database backed configuration
+        Map<String, Object> removed
+            = new HashMap<String, Object>(names.size());
+
+        for (String name : names)
+        {
+            // node#hash#ver, the node may contain '#'
+            String nodeHashVer
+                = name.substring(CAPS_PROPERTY_NAME_PREFIX.length());
+            int verIndex = nodeHashVer.lastIndexOf('#');
+            int hashIndex
+                = (verIndex > 0)
+                    ? nodeHashVer.lastIndexOf('#', verIndex - 1)
+                    : -1;
+            String xml = configService.getString(name);
+
+            if ((hashIndex > 0) && (xml != null))
+            {
+                Caps caps
+                    = new Caps(
+                            nodeHashVer.substring(0, hashIndex),
+                            nodeHashVer.substring(hashIndex + 1, verIndex),
+                            nodeHashVer.substring(verIndex + 1),
+                            null);
+
+                if (!entries.containsKey(caps))
+                    entries.put(caps, new StoredCaps(xml));
+            }
+            removed.put(name, null);
+        }
+        configService.setProperties(removed);
+
+        if (logger.isInfoEnabled())
+            logger.info("Moved " + names.size()
+                + " entity capabilities from the configuration to " + file);
+        scheduleSave();
+    }
+
+    /**
+     * Schedules the writing of the store to its file.
+     */
+    private void scheduleSave()
+    {
+        if ((file == null) || saveScheduled)
+            return;
+
+        saveScheduled = true;
+        if (timer == null)
+            timer = new Timer(EntityCapsStore.class.getName(), true);
+        timer.schedule(
+                new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        save();
+                    }
+                },
+                SAVE_DELAY);
+    }
+
+    /**
+     * Writes the store to its file. A store which cannot be written is only
+     * kept in memory. The snapshot is taken under the save lock so that the
+     * last write holds the last changes.
+     */
+    private void save()
+    {
+        synchronized (saveLock)
+        {
+            Map<Caps, String> snapshot = new LinkedHashMap<Caps, String>();
+
+            synchronized (this)
+            {
+                saveScheduled = false;
+                for (Map.Entry<Caps, StoredCaps> e : entries.entrySet())
+                    snapshot.put(e.getKey(), e.getValue().xml);
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try
+            {
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+                try
+                {
+                    out.writeInt(VERSION);
+                    out.writeInt(snapshot.size());
+                    for (Map.Entry<Caps, String> e : snapshot.entrySet())
+                    {
+                        Caps caps = e.getKey();
+                        byte[] xml = e.getValue().getBytes("UTF-8");
+
+                        out.writeUTF(caps.node);
+                        out.writeUTF(caps.hash);
+                        out.writeUTF(caps.ver);
+                        out.writeInt(xml.length);
+                        out.write(xml);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                if (!tmp.renameTo(file))
+                {
+                    file.delete();
+                    if (!tmp.renameTo(file))
+                        throw new IOException("Cannot replace " + file);
+                }
+            }
+            catch (IOException ioe)
+            {
+                logger.warn("Cannot write entity capabilities " + file, ioe);
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Parses the XML of a <tt>DiscoverInfo</tt>.
+     *
+     * @param xml the XML of the child element of the <tt>DiscoverInfo</tt>
+     * @return the <tt>DiscoverInfo</tt> or <tt>null</tt> if <tt>xml</tt>
+     * cannot be parsed
+     */
+    private static DiscoverInfo parseDiscoverInfo(String xml)
+    {
+        IQProvider discoverInfoProvider
+            = (IQProvider)
+                ProviderManager.getInstance().getIQProvider(
+                        "query",
+                        "http://jabber.org/protocol/disco#info");
+
+        if (discoverInfoProvider == null)
+            return null;
+
+        XmlPullParser parser = new MXParser();
+
+        try
+        {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new StringReader(xml));
+            // Start the parser.
+            parser.next();
+
+            return (DiscoverInfo) discoverInfoProvider.parseIQ(parser);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The entity capabilities of a node, a hash and a ver.
+     */
+    private static class StoredCaps
+    {
+        /**
+         * The XML of the <tt>DiscoverInfo</tt>.
+         */
+        final String xml;
+
+        /**
+         * The <tt>DiscoverInfo</tt> parsed from {@link #xml} and checked,
+         * <tt>null</tt> until it is first used.
+         */
+        DiscoverInfo discoverInfo = null;
+
+        StoredCaps(String xml)
+        {
+            this.xml = xml;
+        }
+    }
+}
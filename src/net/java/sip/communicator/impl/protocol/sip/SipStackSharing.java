@@ -12,6 +12,7 @@ import gov.nist.javax.sip.stack.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import javax.sip.*;
 import javax.sip.address.*;
@@ -82,6 +83,38 @@ public class SipStackSharing
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The routing table of the out-of-dialog requests: the user ID of the
+     * account of the <tt>listeners</tt> -&gt; the <tt>listeners</tt> with that
+     * user ID. Guarded by <tt>listeners</tt>.
+     */
+    private final Map<String, List<ProtocolProviderServiceSipImpl>>
+        listenersByUser
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+    /**
+     * The routing table of the out-of-dialog requests addressed to a user ID
+     * shared by several accounts: the user ID and the custom contact address
+     * parameter of the <tt>listeners</tt> -&gt; the <tt>listeners</tt> with
+     * them. Guarded by <tt>listeners</tt>.
+     */
+    private final Map<String, List<ProtocolProviderServiceSipImpl>>
+        listenersByUserAndParam
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+    /**
+     * The number of out-of-dialog requests whose user matched several
+     * accounts and which were dispatched to one of them based on the host of
+     * their To header or at random.
+     */
+    private final AtomicLong ambiguousDispatchCount = new AtomicLong();
+
+    /**
+     * The number of out-of-dialog requests whose user matched no account and
+     * which were dispatched to any account.
+     */
+    private final AtomicLong fallbackDispatchCount = new AtomicLong();
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -160,7 +193,8 @@ public class SipStackSharing
         {
             if(this.listeners.size() == 0)
                 startListening();
-            this.listeners.add(listener);
+            if(this.listeners.add(listener))
+                addRoutes(listener);
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -177,7 +211,8 @@ public class SipStackSharing
     {
         synchronized(this.listeners)
         {
-            this.listeners.remove(listener);
+            if(this.listeners.remove(listener))
+                removeRoutes(listener);
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -187,6 +222,128 @@ public class SipStackSharing
         }
     }
 
+    /**
+     * Adds the routes of a new listener to the routing tables. Must be called
+     * while holding the lock of <tt>listeners</tt>.
+     *
+     * @param listener the listener
+     */
+    private void addRoutes(ProtocolProviderServiceSipImpl listener)
+    {
+        String userID = listener.getAccountID().getUserID();
+
+        addRoute(listenersByUser, userID, listener);
+        addRoute(
+                listenersByUserAndParam,
+                getRouteKey(
+                        userID,
+                        listener.getContactAddressCustomParamValue()),
+                listener);
+    }
+
+    /**
+     * Removes the routes of a listener from the routing tables. The custom
+     * contact address parameter of the listener may have changed since its
+     * routes were added, so it is looked up in all the routes of its user ID.
+     * Must be called while holding the lock of <tt>listeners</tt>.
+     *
+     * @param listener the listener
+     */
+    private void removeRoutes(ProtocolProviderServiceSipImpl listener)
+    {
+        removeRoute(listenersByUser.values(), listener);
+        removeRoute(listenersByUserAndParam.values(), listener);
+    }
+
+    private static void addRoute(
+            Map<String, List<ProtocolProviderServiceSipImpl>> routes,
+            String key,
+            ProtocolProviderServiceSipImpl listener)
+    {
+        List<ProtocolProviderServiceSipImpl> route = routes.get(key);
+
+        if (route == null)
+        {
+            route = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+            routes.put(key, route);
+        }
+        route.add(listener);
+    }
+
+    private static void removeRoute(
+            Collection<List<ProtocolProviderServiceSipImpl>> routes,
+            ProtocolProviderServiceSipImpl listener)
+    {
+        Iterator<List<ProtocolProviderServiceSipImpl>> iter
+            = routes.iterator();
+
+        while (iter.hasNext())
+        {
+            List<ProtocolProviderServiceSipImpl> route = iter.next();
+
+            if (route.remove(listener) && route.isEmpty())
+                iter.remove();
+        }
+    }
+
+    /**
+     * Returns the key of the routes of a user ID and a custom contact address
+     * parameter.
+     *
+     * @param userID the user ID
+     * @param param the custom contact address parameter or <tt>null</tt>
+     * @return the key in <tt>listenersByUserAndParam</tt>
+     */
+    private static String getRouteKey(String userID, String param)
+    {
+        return userID + '\n' + param;
+    }
+
+    /**
+     * Returns the listeners of a routing table under a specific key.
+     *
+     * @param routes the routing table
+     * @param key the key
+     * @return a copy of the listeners under <tt>key</tt>, empty if there is
+     * none
+     */
+    private List<ProtocolProviderServiceSipImpl> getRoute(
+            Map<String, List<ProtocolProviderServiceSipImpl>> routes,
+            String key)
+    {
+        synchronized(this.listeners)
+        {
+            List<ProtocolProviderServiceSipImpl> route = routes.get(key);
+
+            return (route == null)
+                ? new ArrayList<ProtocolProviderServiceSipImpl>(0)
+                : new ArrayList<ProtocolProviderServiceSipImpl>(route);
+        }
+    }
+
+    /**
+     * Returns the number of out-of-dialog requests whose Request-URI user
+     * matched several accounts and which could not be dispatched based on the
+     * custom contact address parameter.
+     *
+     * @return the number of ambiguous dispatches
+     */
+    public long getAmbiguousDispatchCount()
+    {
+        return ambiguousDispatchCount.get();
+    }
+
+    /**
+     * Returns the number of out-of-dialog requests whose Request-URI user
+     * matched no account and which were dispatched to any account.
+     *
+     * @return the number of fallback dispatches
+     */
+    public long getFallbackDispatchCount()
+    {
+        return fallbackDispatchCount.get();
+    }
+
     /**
      * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
      *
@@ -868,68 +1025,66 @@ public class SipStackSharing
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
+        URI requestURI = request.getRequestURI();
 
-        if(currentListenersCopy.size() == 0)
+        if(!requestURI.isSipURI())
         {
-            logger.error("no listeners");
+            logger.error("Request-URI is not a SIP URI, dropping");
             return null;
         }
 
-        URI requestURI = request.getRequestURI();
-
-        if(requestURI.isSipURI())
+        String requestUser = ((SipURI) requestURI).getUser();
+        String hostValue = ((SipURI) requestURI).getParameter(
+                SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+
+        // the accounts with the Request-URI username, narrowed down by
+        // comparing addresses and ports (no point in delivering to a provider
+        // with a non matching IP address since they will reject it anyway).
+        List<ProtocolProviderServiceSipImpl> candidates
+            = (requestUser == null)
+                ? new ArrayList<ProtocolProviderServiceSipImpl>(0)
+                : getRoute(listenersByUser, requestUser);
+        filterByAddress(candidates, request);
+
+        // the perfect match
+        // every other case is approximation
+        if(candidates.size() == 1)
         {
-            String requestUser = ((SipURI) requestURI).getUser();
+            ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
+            if (logger.isTraceEnabled())
+                logger.trace("Will dispatch to \""
+                        + perfectMatch.getAccountID() + "\"");
+            return perfectMatch;
+        }
 
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+        // more than one account match
+        if(candidates.size() > 1)
+        {
+            // check if a custom param exists in the contact
+            // address (set for registrar accounts)
+            if (hostValue != null)
             {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
+                for (ProtocolProviderServiceSipImpl candidate
+                        : getRoute(
+                                listenersByUserAndParam,
+                                getRouteKey(requestUser, hostValue)))
                 {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
+                    if (candidates.contains(candidate)
+                            && hostValue.equals(candidate
+                                    .getContactAddressCustomParamValue()))
+                    {
+                        if (logger.isTraceEnabled())
+                            logger.trace("Will dispatch to \""
+                                    + candidate.getAccountID() + "\" because "
+                                    + "\" the custom param was set");
+                        return candidate;
+                    }
                 }
-            }
-
-            // the perfect match
-            // every other case is approximation
-            if(candidates.size() == 1)
-            {
-                ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
-
-                if (logger.isTraceEnabled())
-                    logger.trace("Will dispatch to \""
-                            + perfectMatch.getAccountID() + "\"");
-                return perfectMatch;
-            }
 
-            // more than one account match
-            if(candidates.size() > 1)
-            {
-                // check if a custom param exists in the contact
-                // address (set for registrar accounts)
+                // the param of a candidate changed since it was routed
                 for (ProtocolProviderServiceSipImpl candidate : candidates)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
                     if (hostValue.equals(candidate
                                 .getContactAddressCustomParamValue()))
                     {
@@ -940,29 +1095,28 @@ public class SipStackSharing
                         return candidate;
                     }
                 }
+            }
 
-                // Past this point, our guess is not reliable. We try to find
-                // the "least worst" match based on parameters like the To field
+            // Past this point, our guess is not reliable. We try to find
+            // the "least worst" match based on parameters like the To field
+            long ambiguousCount = ambiguousDispatchCount.incrementAndGet();
+
+            // check if the To header field host part
+            // matches any of our SIP hosts
+            URI fromURI = ((FromHeader) request
+                    .getHeader(FromHeader.NAME)).getAddress().getURI();
+            URI toURI = ((ToHeader) request
+                    .getHeader(ToHeader.NAME)).getAddress().getURI();
+            if(fromURI.isSipURI() && toURI.isSipURI())
+            {
+                String toHost = ((SipURI) toURI).getHost();
 
-                // check if the To header field host part
-                // matches any of our SIP hosts
                 for(ProtocolProviderServiceSipImpl candidate : candidates)
                 {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
                     SipURI ourURI = (SipURI) candidate
                         .getOurSipAddress((SipURI) fromURI).getURI();
                     String ourHost = ourURI.getHost();
 
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
-                    String toHost = ((SipURI) toURI).getHost();
-
-                    //logger.trace(toHost + "***" + ourHost);
                     if(toHost.equals(ourHost))
                     {
                         if (logger.isTraceEnabled())
@@ -972,36 +1126,45 @@ public class SipStackSharing
                         return candidate;
                     }
                 }
-
-                // fallback on the first candidate
-                ProtocolProviderServiceSipImpl target =
-                    candidates.iterator().next();
-                logger.info("Will randomly dispatch to \""
-                        + target.getAccountID()
-                        + "\" because there is ambiguity on the username from"
-                        + " the Request-URI");
-                if (logger.isTraceEnabled())
-                    logger.trace("\n" + request);
-                return target;
             }
 
-            // fallback on any account
+            // fallback on the first candidate
             ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
-            if (logger.isDebugEnabled())
-                logger.debug("Will randomly dispatch to \"" + target
-                        .getAccountID()
-                        + "\" because the username in the Request-URI "
-                        + "is unknown or empty");
+                candidates.iterator().next();
+            logger.info("Will randomly dispatch to \""
+                    + target.getAccountID()
+                    + "\" because there is ambiguity on the username from"
+                    + " the Request-URI (" + ambiguousCount
+                    + " ambiguous dispatches so far)");
             if (logger.isTraceEnabled())
                 logger.trace("\n" + request);
             return target;
         }
-        else
+
+        // fallback on any account
+        List<ProtocolProviderServiceSipImpl> currentListenersCopy
+            = new ArrayList<ProtocolProviderServiceSipImpl>(
+                                this.getSipListeners());
+        filterByAddress(currentListenersCopy, request);
+
+        if(currentListenersCopy.size() == 0)
         {
-            logger.error("Request-URI is not a SIP URI, dropping");
+            logger.error("no listeners");
+            return null;
         }
-        return null;
+
+        long fallbackCount = fallbackDispatchCount.incrementAndGet();
+        ProtocolProviderServiceSipImpl target =
+            currentListenersCopy.iterator().next();
+        if (logger.isDebugEnabled())
+            logger.debug("Will randomly dispatch to \"" + target
+                    .getAccountID()
+                    + "\" because the username in the Request-URI "
+                    + "is unknown or empty (" + fallbackCount
+                    + " fallback dispatches so far)");
+        if (logger.isTraceEnabled())
+            logger.trace("\n" + request);
+        return target;
     }
 
     /**
@@ -0,0 +1,148 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.launcher;
+
+import java.util.*;
+
+import org.osgi.framework.*;
+
+/**
+ * Keeps rarely used plugin bundles from starting with the framework and
+ * starts them in the background once the framework has started, so that they
+ * do not delay the user interface.
+ * <p>
+ * The bundles are installed and marked for start by the auto processor of
+ * the framework as usual, then marked as stopped before the framework raises
+ * its start level. They are started transiently, in the order they are
+ * listed, so a launch without deferring them starts them with the framework
+ * again.
+ */
+public class DeferredBundleStarter
+    implements FrameworkListener
+{
+    /**
+     * The name of the framework property which lists the locations of the
+     * bundles to start in the background, separated by spaces as in the
+     * <tt>felix.auto.start</tt> properties.
+     */
+    public static final String DEFERRED_BUNDLES_PROP
+        = "net.java.sip.communicator.launcher.DEFERRED_BUNDLES";
+
+    /**
+     * The <tt>BundleContext</tt> of the system bundle.
+     */
+    private final BundleContext bundleContext;
+
+    /**
+     * The bundles to start in the background.
+     */
+    private final List<Bundle> bundles = new ArrayList<Bundle>();
+
+    /**
+     * Initializes a new <tt>DeferredBundleStarter</tt>.
+     *
+     * @param bundleContext the <tt>BundleContext</tt> of the system bundle
+     */
+    public DeferredBundleStarter(BundleContext bundleContext)
+    {
+        this.bundleContext = bundleContext;
+    }
+
+    /**
+     * Keeps the installed bundles with the specified locations from starting
+     * with the framework. Must be called after the auto processor installed
+     * the bundles and before the framework is started.
+     *
+     * @param locations the locations of the bundles separated by spaces, may
+     * be <tt>null</tt>
+     */
+    public void deferBundles(String locations)
+    {
+        if (locations == null)
+            return;
+
+        Map<String, Bundle> installed = new HashMap<String, Bundle>();
+        for (Bundle bundle : bundleContext.getBundles())
+            installed.put(bundle.getLocation(), bundle);
+
+        StringTokenizer st = new StringTokenizer(locations);
+        while (st.hasMoreTokens())
+        {
+            String location = st.nextToken();
+            Bundle bundle = installed.get(location);
+
+            if (bundle == null)
+                continue;
+
+            try
+            {
+                // clears the persistent autostart setting of the bundle
+                bundle.stop();
+                bundles.add(bundle);
+            }
+            catch (BundleException be)
+            {
+                System.err.println("Failed to defer the start of "
+                    + location + ": " + be);
+            }
+        }
+    }
+
+    /**
+     * Starts the deferred bundles in the background when the framework has
+     * started.
+     *
+     * @param event the <tt>FrameworkEvent</tt>
+     */
+    public void frameworkEvent(FrameworkEvent event)
+    {
+        if (event.getType() != FrameworkEvent.STARTED)
+            return;
+
+        bundleContext.removeFrameworkListener(this);
+        if (bundles.isEmpty())
+            return;
+
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                startBundles();
+            }
+        };
+        thread.setDaemon(true);
+        thread.setName(DeferredBundleStarter.class.getName());
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Starts the deferred bundles one after the other.
+     */
+    private void startBundles()
+    {
+        for (Bundle bundle : bundles)
+        {
+            if (bundle.getState() == Bundle.UNINSTALLED)
+                continue;
+
+            try
+            {
+                bundle.start(Bundle.START_TRANSIENT);
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+
+                System.err.println("Failed to start " + bundle.getLocation()
+                    + ": " + t);
+            }
+        }
+    }
+}
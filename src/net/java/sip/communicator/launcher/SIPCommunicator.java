@@ -8,12 +8,15 @@ package net.java.sip.communicator.launcher;
 
 import java.awt.*;
 import java.io.*;
+import java.util.*;
 
 import net.java.sip.communicator.impl.version.*;
 import net.java.sip.communicator.util.*;
 import net.java.sip.communicator.util.launchutils.*;
 
 import org.apache.felix.main.*;
+import org.osgi.framework.*;
+import org.osgi.framework.launch.*;
 
 /**
  * Starts the SIP Communicator.
@@ -74,6 +77,22 @@ public class SIPCommunicator
     public static final String PNAME_SC_HOME_DIR_NAME
         = "net.java.sip.communicator.SC_HOME_DIR_NAME";
 
+    /**
+     * The name of the system property which tells whether the time the
+     * bundles take to start is measured and written to
+     * <tt>startup-profile.txt</tt> in the log directory.
+     */
+    public static final String PNAME_PROFILE_STARTUP
+        = "net.java.sip.communicator.launcher.PROFILE_STARTUP";
+
+    /**
+     * The name of the system property which tells whether the bundles listed
+     * in {@link DeferredBundleStarter#DEFERRED_BUNDLES_PROP} are started in the
+     * background once the framework has started instead of with it.
+     */
+    public static final String PNAME_LAZY_ACTIVATION
+        = "net.java.sip.communicator.launcher.LAZY_ACTIVATION";
+
     /**
      * Starts the SIP Communicator.
      *
@@ -83,6 +102,7 @@ public class SIPCommunicator
     public static void main(String[] args)
         throws Exception
     {
+        long launchTime = System.currentTimeMillis();
         String version = System.getProperty("java.version");
         String vmVendor = System.getProperty("java.vendor");
         String osName = System.getProperty("os.name");
@@ -205,7 +225,102 @@ public class SIPCommunicator
 
         //there was no error, continue;
         System.setOut(new ScStdOut(System.out));
-        Main.main(new String[0]);
+
+        boolean profileStartup = Boolean.getBoolean(PNAME_PROFILE_STARTUP);
+        boolean lazyActivation = Boolean.getBoolean(PNAME_LAZY_ACTIVATION);
+
+        if (profileStartup || lazyActivation)
+            launchFramework(launchTime, profileStartup, lazyActivation);
+        else
+            Main.main(new String[0]);
+    }
+
+    /**
+     * Launches the framework the way <tt>org.apache.felix.main.Main</tt>
+     * does, with the bundle and framework listeners which profile the start
+     * of the bundles or defer the start of some of them added before any
+     * bundle is started.
+     *
+     * @param launchTime the time in milliseconds the launch began
+     * @param profileStartup whether to measure the start of the bundles
+     * @param lazyActivation whether to start the bundles listed in
+     * {@link DeferredBundleStarter#DEFERRED_BUNDLES_PROP} in the background
+     * @throws Exception if the framework fails to start
+     */
+    private static void launchFramework(long launchTime,
+                                        boolean profileStartup,
+                                        boolean lazyActivation)
+        throws Exception
+    {
+        Main.loadSystemProperties();
+
+        Map<String, String> configProps = Main.loadConfigProperties();
+        if (configProps == null)
+        {
+            System.err.println("No config.properties found.");
+            configProps = new HashMap<String, String>();
+        }
+        Main.copySystemProperties(configProps);
+
+        final Framework framework
+            = new org.apache.felix.framework.FrameworkFactory()
+                    .newFramework(configProps);
+
+        String enableHook = configProps.get(Main.SHUTDOWN_HOOK_PROP);
+        if ((enableHook == null) || !enableHook.equalsIgnoreCase("false"))
+        {
+            Runtime.getRuntime().addShutdownHook(
+                new Thread("Felix Shutdown Hook")
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            framework.stop();
+                            framework.waitForStop(0);
+                        }
+                        catch (Exception ex)
+                        {
+                            System.err.println(
+                                "Error stopping framework: " + ex);
+                        }
+                    }
+                });
+        }
+
+        framework.init();
+
+        BundleContext bundleContext = framework.getBundleContext();
+        if (profileStartup)
+        {
+            StartupProfiler profiler = new StartupProfiler(launchTime);
+
+            bundleContext.addBundleListener(profiler);
+            bundleContext.addFrameworkListener(profiler);
+        }
+
+        AutoProcessor.process(configProps, bundleContext);
+
+        if (lazyActivation)
+        {
+            DeferredBundleStarter starter
+                = new DeferredBundleStarter(bundleContext);
+
+            starter.deferBundles(
+                configProps.get(DeferredBundleStarter.DEFERRED_BUNDLES_PROP));
+            bundleContext.addFrameworkListener(starter);
+        }
+
+        FrameworkEvent event;
+        do
+        {
+            framework.start();
+            event = framework.waitForStop(0);
+        }
+        while (event.getType() == FrameworkEvent.STOPPED_UPDATE);
+
+        System.exit(0);
     }
 
     /**
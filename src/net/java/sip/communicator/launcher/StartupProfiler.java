@@ -0,0 +1,295 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.launcher;
+
+import java.io.*;
+import java.util.*;
+
+import org.osgi.framework.*;
+import org.osgi.framework.startlevel.*;
+
+/**
+ * Measures the time the <tt>BundleActivator</tt>s of the bundles take to
+ * start during the launch of the framework and writes a report once the
+ * framework has started.
+ * <p>
+ * The report lists the time of each start level and of the slowest bundles.
+ * The framework starts the bundles one after the other, a start level only
+ * beginning when the previous one is over, so the critical path of the launch
+ * goes through every start level and the report gives the slowest bundle of
+ * each of them.
+ */
+public class StartupProfiler
+    implements FrameworkListener,
+               SynchronousBundleListener
+{
+    /**
+     * The name of the file in the log directory the report is written to.
+     */
+    private static final String REPORT_FILE_NAME = "startup-profile.txt";
+
+    /**
+     * The number of the slowest bundles listed in the report.
+     */
+    private static final int SLOWEST_BUNDLE_COUNT = 20;
+
+    /**
+     * The time in milliseconds the launch began.
+     */
+    private final long launchTime;
+
+    /**
+     * The bundles which were started or are starting, in the order they
+     * began to start.
+     */
+    private final Map<Bundle, BundleTiming> timings
+        = new LinkedHashMap<Bundle, BundleTiming>();
+
+    /**
+     * Whether the report was written.
+     */
+    private boolean reported = false;
+
+    /**
+     * Initializes a new <tt>StartupProfiler</tt>.
+     *
+     * @param launchTime the time in milliseconds the launch began
+     */
+    public StartupProfiler(long launchTime)
+    {
+        this.launchTime = launchTime;
+    }
+
+    /**
+     * Records the beginning and the end of the start of a bundle.
+     *
+     * @param event the <tt>BundleEvent</tt>
+     */
+    public void bundleChanged(BundleEvent event)
+    {
+        Bundle bundle = event.getBundle();
+        long now = System.nanoTime();
+
+        synchronized (timings)
+        {
+            switch (event.getType())
+            {
+            case BundleEvent.STARTING:
+                timings.put(bundle,
+                    new BundleTiming(bundle, getStartLevel(bundle), now));
+                break;
+            case BundleEvent.STARTED:
+                BundleTiming timing = timings.get(bundle);
+                if (timing != null && timing.end == 0)
+                    timing.end = now;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the report when the framework has started.
+     *
+     * @param event the <tt>FrameworkEvent</tt>
+     */
+    public void frameworkEvent(FrameworkEvent event)
+    {
+        if (event.getType() != FrameworkEvent.STARTED)
+            return;
+
+        String report;
+        synchronized (timings)
+        {
+            if (reported)
+                return;
+            reported = true;
+            report = createReport(System.currentTimeMillis() - launchTime);
+        }
+
+        File file = getReportFile();
+        try
+        {
+            Writer writer = new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8");
+            try
+            {
+                writer.write(report);
+            }
+            finally
+            {
+                writer.close();
+            }
+            System.out.println("Startup profile written to " + file);
+        }
+        catch (IOException ioe)
+        {
+            System.err.println("Failed to write the startup profile to "
+                + file + ": " + ioe);
+            System.out.print(report);
+        }
+    }
+
+    /**
+     * Creates the report of the start of the bundles.
+     *
+     * @param launchDuration the time in milliseconds from the beginning of the
+     * launch to the start of the framework
+     * @return the text of the report
+     */
+    private String createReport(long launchDuration)
+    {
+        StringBuilder report = new StringBuilder();
+        String eol = System.getProperty("line.separator");
+
+        long activatorTotal = 0;
+        SortedMap<Integer, List<BundleTiming>> levels
+            = new TreeMap<Integer, List<BundleTiming>>();
+        for (BundleTiming timing : timings.values())
+        {
+            if (timing.end == 0)
+                continue;
+
+            activatorTotal += timing.getDuration();
+            List<BundleTiming> level = levels.get(timing.startLevel);
+            if (level == null)
+            {
+                level = new ArrayList<BundleTiming>();
+                levels.put(timing.startLevel, level);
+            }
+            level.add(timing);
+        }
+
+        report.append("Framework started in ").append(launchDuration)
+            .append(" ms, ").append(toMillis(activatorTotal))
+            .append(" ms in BundleActivator.start").append(eol).append(eol);
+
+        report.append("Start levels (critical path):").append(eol);
+        for (Map.Entry<Integer, List<BundleTiming>> e : levels.entrySet())
+        {
+            List<BundleTiming> level = e.getValue();
+            long begin = Long.MAX_VALUE;
+            long end = 0;
+            BundleTiming slowest = null;
+            for (BundleTiming timing : level)
+            {
+                begin = Math.min(begin, timing.begin);
+                end = Math.max(end, timing.end);
+                if (slowest == null
+                        || timing.getDuration() > slowest.getDuration())
+                    slowest = timing;
+            }
+
+            report.append("  level ").append(e.getKey()).append(": ")
+                .append(toMillis(end - begin)).append(" ms, ")
+                .append(level.size()).append(" bundles, slowest ")
+                .append(slowest.name).append(" (")
+                .append(toMillis(slowest.getDuration())).append(" ms)")
+                .append(eol);
+        }
+        report.append(eol);
+
+        List<BundleTiming> slowest = new ArrayList<BundleTiming>();
+        for (List<BundleTiming> level : levels.values())
+            slowest.addAll(level);
+        Collections.sort(slowest, new Comparator<BundleTiming>()
+        {
+            public int compare(BundleTiming t1, BundleTiming t2)
+            {
+                long d1 = t1.getDuration();
+                long d2 = t2.getDuration();
+                return (d1 < d2) ? 1 : ((d1 == d2) ? 0 : -1);
+            }
+        });
+
+        report.append("Slowest bundles:").append(eol);
+        for (int i = 0; i < slowest.size() && i < SLOWEST_BUNDLE_COUNT; i++)
+        {
+            BundleTiming timing = slowest.get(i);
+            report.append("  ").append(toMillis(timing.getDuration()))
+                .append(" ms ").append(timing.name)
+                .append(" (level ").append(timing.startLevel).append(")")
+                .append(eol);
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Returns the file the report is written to, in the log directory.
+     *
+     * @return the report file
+     */
+    private static File getReportFile()
+    {
+        File logDir
+            = new File(
+                    new File(
+                            System.getProperty(
+                                    SIPCommunicator.PNAME_SC_LOG_DIR_LOCATION),
+                            System.getProperty(
+                                    SIPCommunicator.PNAME_SC_HOME_DIR_NAME)),
+                    "log");
+
+        return new File(logDir, REPORT_FILE_NAME);
+    }
+
+    /**
+     * Returns the start level of a bundle.
+     *
+     * @param bundle the bundle
+     * @return the start level of <tt>bundle</tt> or <tt>0</tt> if unknown
+     */
+    private static int getStartLevel(Bundle bundle)
+    {
+        BundleStartLevel startLevel = bundle.adapt(BundleStartLevel.class);
+
+        return (startLevel == null) ? 0 : startLevel.getStartLevel();
+    }
+
+    private static long toMillis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+
+    /**
+     * The time the start of a bundle began and ended.
+     */
+    private static class BundleTiming
+    {
+        /**
+         * The name of the bundle.
+         */
+        final String name;
+
+        final int startLevel;
+
+        /**
+         * The time in nanoseconds the start began.
+         */
+        final long begin;
+
+        /**
+         * The time in nanoseconds the start ended, <tt>0</tt> while the
+         * bundle is starting.
+         */
+        long end = 0;
+
+        BundleTiming(Bundle bundle, int startLevel, long begin)
+        {
+            String name = bundle.getSymbolicName();
+
+            this.name = (name == null) ? bundle.getLocation() : name;
+            this.startLevel = startLevel;
+            this.begin = begin;
+        }
+
+        long getDuration()
+        {
+            return end - begin;
+        }
+    }
+}
@@ -46,6 +46,11 @@ public class PNContactSourceActivator
      */
     private static ProtocolProviderRegistrationListener ppRegListener;
 
+    /**
+     * Listens for <tt>ProtocolProviderService</tt> registrations.
+     */
+    private static ServiceListener ppServiceListener;
+
     /**
      * The contact source.
      */
@@ -62,6 +67,12 @@ public class PNContactSourceActivator
      */
     private static PhoneNumberI18nService phoneNumberI18nService;
 
+    /**
+     * The index of the phone numbers of the contacts of the phone number
+     * providers, which indexes a provider as soon as it is registered.
+     */
+    private static volatile PhoneNumberIndex phoneNumberIndex;
+
     /**
      * Starts this bundle.
      *
@@ -71,14 +82,71 @@ public class PNContactSourceActivator
     {
         bundleContext = context;
 
+        // the contact source looks up the index as soon as it is registered
+        phoneNumberIndex = new PhoneNumberIndex();
+        getPhoneNumberProviders();
+
         bundleContext.registerService(
             ContactSourceService.class.getName(),
             phoneNumberContactSource,
             null);
     }
 
+    /**
+     * Stops this bundle, removing the listeners it added and forgetting the
+     * providers found, so that they are looked up again if it is restarted.
+     *
+     * @param context the bundle context
+     */
     public void stop(BundleContext context) throws Exception
     {
+        if (ppServiceListener != null)
+        {
+            context.removeServiceListener(ppServiceListener);
+            ppServiceListener = null;
+        }
+
+        if (ppRegListener != null)
+        {
+            ServiceReference[] serRefs = null;
+            try
+            {
+                serRefs
+                    = context.getServiceReferences(
+                            ProtocolProviderService.class.getName(),
+                            null);
+            }
+            catch (InvalidSyntaxException e)
+            {
+                logger.error("PNContactSourceActivator : " + e);
+            }
+
+            if (serRefs != null)
+            {
+                for (ServiceReference serRef : serRefs)
+                {
+                    ProtocolProviderService protocolProvider
+                        = (ProtocolProviderService) context.getService(serRef);
+
+                    if (protocolProvider != null)
+                    {
+                        protocolProvider.removeRegistrationStateChangeListener(
+                            ppRegListener);
+                    }
+                }
+            }
+            ppRegListener = null;
+        }
+
+        phoneProviders = null;
+        resources = null;
+        phoneNumberI18nService = null;
+
+        PhoneNumberIndex index = phoneNumberIndex;
+
+        phoneNumberIndex = null;
+        if (index != null)
+            index.dispose();
     }
 
     /**
@@ -116,9 +184,9 @@ public class PNContactSourceActivator
         phoneProviders = new LinkedList<ProtocolProviderService>();
 
         ppRegListener = new ProtocolProviderRegistrationListener();
+        ppServiceListener = new ProtocolProviderServiceRegListener();
 
-        bundleContext.addServiceListener(
-            new ProtocolProviderServiceRegListener());
+        bundleContext.addServiceListener(ppServiceListener);
 
         ServiceReference[] serRefs = null;
         try
@@ -160,6 +228,18 @@ public class PNContactSourceActivator
         return phoneProviders;
     }
 
+    /**
+     * Returns the index of the phone numbers of the contacts of the phone
+     * number providers.
+     *
+     * @return the index of the phone numbers, or <tt>null</tt> if this bundle
+     * is stopped
+     */
+    public static PhoneNumberIndex getPhoneNumberIndex()
+    {
+        return phoneNumberIndex;
+    }
+
     /**
      * Listens for <tt>ProtocolProviderService</tt> registrations.
      */
@@ -213,6 +293,10 @@ public class PNContactSourceActivator
             if(protocolProvider.isRegistered())
             {
                 phoneProviders.add(protocolProvider);
+
+                PhoneNumberIndex index = phoneNumberIndex;
+                if (index != null)
+                    index.addProvider(protocolProvider);
             }
             else
             {
@@ -235,6 +319,10 @@ public class PNContactSourceActivator
         if (phoneProviders.contains(protocolProvider))
             phoneProviders.remove(protocolProvider);
 
+        PhoneNumberIndex index = phoneNumberIndex;
+        if (index != null)
+            index.removeProvider(protocolProvider);
+
         protocolProvider.removeRegistrationStateChangeListener(ppRegListener);
     }
 
@@ -265,10 +353,20 @@ public class PNContactSourceActivator
         {
             ProtocolProviderService protocolProvider = evt.getProvider();
 
+            List<ProtocolProviderService> providers = phoneProviders;
+
+            // the bundle was stopped
+            if (providers == null)
+                return;
+
             if (evt.getNewState() == RegistrationState.REGISTERED)
             {
-                if(!phoneProviders.contains(protocolProvider))
-                    phoneProviders.add(protocolProvider);
+                if(!providers.contains(protocolProvider))
+                    providers.add(protocolProvider);
+
+                PhoneNumberIndex index = phoneNumberIndex;
+                if (index != null)
+                    index.addProvider(protocolProvider);
             }
         }
     }
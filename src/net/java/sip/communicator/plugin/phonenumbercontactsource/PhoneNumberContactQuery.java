@@ -11,7 +11,6 @@ import java.util.regex.*;
 
 import net.java.sip.communicator.service.contactsource.*;
 import net.java.sip.communicator.service.protocol.*;
-import net.java.sip.communicator.service.protocol.ServerStoredDetails.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import org.jitsi.util.*;
 
@@ -86,9 +85,6 @@ public class PhoneNumberContactQuery
 
         while (providers.hasNext())
         {
-            if(contactCount > 0 && getQueryResultCount() > contactCount)
-                break;
-
             ProtocolProviderService provider = providers.next();
 
             OperationSetPersistentPresence persPresOpSet
@@ -104,19 +100,36 @@ public class PhoneNumberContactQuery
                 operationSetPersistentPresences.add(persPresOpSet);
 
             persPresOpSet.addContactPresenceStatusListener(this);
+        }
 
-            ContactGroup rootGroup
-                = persPresOpSet.getServerStoredContactListRoot();
+        PhoneNumberIndex index = PNContactSourceActivator.getPhoneNumberIndex();
 
-            addResultContactsForGroup(rootGroup);
+        // A phone number is looked up by the digits the numbers start or end
+        // with, anything else is matched against the indexed numbers and
+        // their contacts. The numbers of the contacts which are still being
+        // read are not waited for.
+        List<PhoneNumberIndex.Entry> entries;
 
-            Iterator<ContactGroup> subgroups = rootGroup.subgroups();
+        if (index == null)
+            entries = new ArrayList<PhoneNumberIndex.Entry>();
+        else if (isQueryPhoneNumber && !StringUtils.isNullOrEmpty(queryString))
+            entries = index.findEntries(queryString);
+        else
+            entries = index.getEntries();
 
-            while (subgroups.hasNext())
-            {
-                ContactGroup group = subgroups.next();
+        for (PhoneNumberIndex.Entry entry : entries)
+        {
+            if (getStatus() == QUERY_CANCELED
+                || (contactCount > 0 && getQueryResultCount() > contactCount))
+                break;
 
-                addResultContactsForGroup(group);
+            if(isQueryPhoneNumber
+                || StringUtils.isNullOrEmpty(queryString)
+                || query.matcher(entry.number).find()
+                || query.matcher(entry.contact.getDisplayName()).find()
+                || query.matcher(entry.contact.getAddress()).find())
+            {
+                addResultContact(entry);
             }
         }
 
@@ -125,134 +138,36 @@ public class PhoneNumberContactQuery
     }
 
     /**
-     * Adss the result contacts for the given group.
+     * Adds a result contact for the given phone number.
      *
-     * @param group the <tt>ContactGroup</tt> to check for matching contacts
+     * @param entry the phone number and its contact
      */
-    private void addResultContactsForGroup(ContactGroup group)
+    private void addResultContact(PhoneNumberIndex.Entry entry)
     {
-        Iterator<Contact> contacts = group.contacts();
-        while (contacts.hasNext())
-        {
-            if(contactCount > 0 && getQueryResultCount() > contactCount)
-                break;
-
-            Contact contact = contacts.next();
-
-            addAdditionalNumbers(contact);
-        }
-    }
-
-    /**
-     * Returns all additional phone numbers corresponding to the given
-     * contact.
-     *
-     * @param contact the <tt>contact</tt>, which phone details we're
-     * looking for
-     * @return a list of all additional phone numbers corresponding to the
-     * given contact
-     */
-    private void addAdditionalNumbers(Contact contact)
-    {
-        OperationSetServerStoredContactInfo infoOpSet
-            = contact.getProtocolProvider().getOperationSet(
-                OperationSetServerStoredContactInfo.class);
-
-        Iterator<GenericDetail> details;
-
-        if(infoOpSet != null)
-        {
-            details = infoOpSet.getAllDetailsForContact(contact);
-
-            while(details.hasNext())
-            {
-                if(contactCount > 0 && getQueryResultCount() > contactCount)
-                    break;
-
-                GenericDetail d = details.next();
-                if(d instanceof PhoneNumberDetail &&
-                    !(d instanceof PagerDetail) &&
-                    !(d instanceof FaxDetail))
-                {
-                    PhoneNumberDetail pnd = (PhoneNumberDetail)d;
-                    if(pnd.getNumber() != null &&
-                        pnd.getNumber().length() > 0)
-                    {
-                        String localizedType = null;
-
-                        if(d instanceof WorkPhoneDetail)
-                        {
-                            localizedType =
-                                PNContactSourceActivator.getResources()
-                                .getI18NString("service.gui.WORK_PHONE");
-                        }
-                        else if(d instanceof MobilePhoneDetail)
-                        {
-                            localizedType =
-                                PNContactSourceActivator.getResources()
-                                .getI18NString("service.gui.MOBILE_PHONE");
-                        }
-                        else if(d instanceof VideoDetail)
-                        {
-                            localizedType =
-                                PNContactSourceActivator.getResources().
-                                    getI18NString(
-                                        "service.gui.VIDEO_PHONE");
-                        }
-                        else
-                        {
-                            localizedType =
-                                PNContactSourceActivator.getResources()
-                                .getI18NString("service.gui.HOME");
-                        }
-
-                        String contactName = contact.getDisplayName();
-                        String contactAddress = contact.getAddress();
-                        String numberString = pnd.getNumber();
-
-                        if(StringUtils.isNullOrEmpty(queryString)
-                            || query.matcher(numberString).find()
-                            || query.matcher(contactName).find()
-                            || query.matcher(contactAddress).find()
-                            || (isQueryPhoneNumber
-                                && PNContactSourceActivator
-                                    .getPhoneNumberI18nService()
-                                    .phoneNumbersMatch(
-                                        queryString, numberString))
-                            )
-                        {
-                            ArrayList<ContactDetail> contactDetails
-                                = new ArrayList<ContactDetail>();
-
-                            String detailDisplayName
-                                = pnd.getNumber() + "(" + localizedType + ")";
-                            ContactDetail detail
-                                = new ContactDetail(pnd.getNumber(),
-                                                    detailDisplayName);
-
-                            ArrayList<Class<? extends OperationSet>>
-                                supportedOpSets
-                                = new ArrayList<Class<? extends OperationSet>>();
-                            supportedOpSets
-                                .add(OperationSetBasicTelephony.class);
-                            detail.setSupportedOpSets(supportedOpSets);
-
-                            contactDetails.add(detail);
-
-                            PhoneNumberSourceContact numberSourceContact
-                                = new PhoneNumberSourceContact(
-                                    this,
-                                    getContactSource(),
-                                    contact,
-                                    contactDetails,
-                                    detailDisplayName);
-
-                            addQueryResult(numberSourceContact);
-                        }
-                    }
-                }
-            }
-        }
+        ArrayList<ContactDetail> contactDetails
+            = new ArrayList<ContactDetail>();
+
+        String detailDisplayName
+            = entry.number + "(" + entry.localizedType + ")";
+        ContactDetail detail
+            = new ContactDetail(entry.number, detailDisplayName);
+
+        ArrayList<Class<? extends OperationSet>> supportedOpSets
+            = new ArrayList<Class<? extends OperationSet>>();
+        supportedOpSets.add(OperationSetBasicTelephony.class);
+        detail.setSupportedOpSets(supportedOpSets);
+
+        contactDetails.add(detail);
+
+        PhoneNumberSourceContact numberSourceContact
+            = new PhoneNumberSourceContact(
+                this,
+                getContactSource(),
+                entry.contact,
+                contactDetails,
+                detailDisplayName);
+
+        addQueryResult(numberSourceContact);
     }
 
     protected String normalizePhoneNumber(String phoneNumber)
@@ -0,0 +1,637 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.plugin.phonenumbercontactsource;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.ServerStoredDetails.*;
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Keeps the phone numbers of the server stored contact info of the contacts
+ * of the phone number providers so that the queries do not retrieve the
+ * details of every contact again.
+ * <p>
+ * The numbers are read on a background thread when a provider is added and
+ * read again for a contact when it is added, changed or resolved. The numbers
+ * are keyed on their digits, as normalized by the
+ * <tt>PhoneNumberI18nService</tt>, both in order and reversed so that the
+ * numbers starting or ending with the digits of a query are looked up
+ * without checking every number. The queries never wait for the numbers to be
+ * read, they get the numbers read so far.
+ */
+public class PhoneNumberIndex
+    implements SubscriptionListener,
+               ServerStoredGroupListener
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PhoneNumberIndex</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PhoneNumberIndex.class);
+
+    /**
+     * The executor reading the numbers of the contacts.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The presence operation sets of the indexed providers.
+     */
+    private final Map<ProtocolProviderService, OperationSetPersistentPresence>
+        providers
+            = new HashMap<ProtocolProviderService,
+                          OperationSetPersistentPresence>();
+
+    /**
+     * The numbers of the indexed contacts.
+     */
+    private final Map<Contact, List<Entry>> entriesByContact
+        = new LinkedHashMap<Contact, List<Entry>>();
+
+    /**
+     * The numbers by their digits.
+     */
+    private final TreeMap<String, List<Entry>> entriesByDigits
+        = new TreeMap<String, List<Entry>>();
+
+    /**
+     * The numbers by their digits reversed.
+     */
+    private final TreeMap<String, List<Entry>> entriesByReversedDigits
+        = new TreeMap<String, List<Entry>>();
+
+    /**
+     * The contacts waiting for their numbers to be read.
+     */
+    private final Set<Contact> pendingContacts = new HashSet<Contact>();
+
+    /**
+     * Initializes a new <tt>PhoneNumberIndex</tt>.
+     */
+    public PhoneNumberIndex()
+    {
+        executor
+            = new ThreadPoolExecutor(
+                    1, 1,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r,
+                                PhoneNumberIndex.class.getName());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts indexing the numbers of the contacts of a provider and listening
+     * for the changes of its contacts.
+     *
+     * @param provider the provider
+     */
+    public void addProvider(final ProtocolProviderService provider)
+    {
+        final OperationSetPersistentPresence persPresOpSet
+            = provider.getOperationSet(OperationSetPersistentPresence.class);
+
+        if (persPresOpSet == null)
+            return;
+
+        synchronized (this)
+        {
+            if (providers.containsKey(provider))
+                return;
+
+            providers.put(provider, persPresOpSet);
+        }
+
+        persPresOpSet.addSubscriptionListener(this);
+        persPresOpSet.addServerStoredGroupChangeListener(this);
+
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                ContactGroup rootGroup
+                    = persPresOpSet.getServerStoredContactListRoot();
+
+                if (rootGroup != null)
+                {
+                    indexGroup(rootGroup);
+
+                    Iterator<ContactGroup> subgroups = rootGroup.subgroups();
+
+                    while (subgroups.hasNext())
+                        indexGroup(subgroups.next());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops listening for the changes of the contacts of a provider and drops
+     * their numbers.
+     *
+     * @param provider the provider
+     */
+    public void removeProvider(ProtocolProviderService provider)
+    {
+        OperationSetPersistentPresence persPresOpSet;
+
+        synchronized (this)
+        {
+            persPresOpSet = providers.remove(provider);
+            if (persPresOpSet == null)
+                return;
+
+            Iterator<Contact> contacts = entriesByContact.keySet().iterator();
+
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                if (provider.equals(contact.getProtocolProvider()))
+                {
+                    removeEntries(entriesByContact.get(contact));
+                    contacts.remove();
+                }
+            }
+        }
+
+        persPresOpSet.removeSubscriptionListener(this);
+        persPresOpSet.removeServerStoredGroupChangeListener(this);
+    }
+
+    /**
+     * Returns all the numbers read so far.
+     *
+     * @return the numbers
+     */
+    public synchronized List<Entry> getEntries()
+    {
+        List<Entry> result = new ArrayList<Entry>();
+
+        for (List<Entry> entries : entriesByContact.values())
+            result.addAll(entries);
+        return result;
+    }
+
+    /**
+     * Returns the numbers read so far whose digits start or end with the
+     * digits of a phone number, those starting with them first. A national
+     * number also finds the numbers ending with its digits after its leading
+     * zeros, as the international forms of the number do.
+     *
+     * @param phoneNumber the phone number
+     * @return the numbers
+     */
+    public synchronized List<Entry> findEntries(String phoneNumber)
+    {
+        String digits = getDigits(phoneNumber);
+
+        if (digits.length() == 0)
+            return new ArrayList<Entry>();
+
+        Set<Entry> result = new LinkedHashSet<Entry>();
+
+        addRange(entriesByDigits, digits, result);
+        addRange(
+                entriesByReversedDigits,
+                new StringBuilder(digits).reverse().toString(),
+                result);
+
+        int significant = 0;
+
+        while ((significant < digits.length() - 1)
+                && (digits.charAt(significant) == '0'))
+            significant++;
+        if (significant > 0)
+        {
+            addRange(
+                    entriesByReversedDigits,
+                    new StringBuilder(digits.substring(significant))
+                        .reverse().toString(),
+                    result);
+        }
+
+        return new ArrayList<Entry>(result);
+    }
+
+    /**
+     * Stops the executor and the listening for the changes of the contacts.
+     */
+    public void dispose()
+    {
+        List<ProtocolProviderService> toRemove;
+
+        synchronized (this)
+        {
+            toRemove
+                = new ArrayList<ProtocolProviderService>(providers.keySet());
+        }
+        for (ProtocolProviderService provider : toRemove)
+            removeProvider(provider);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the digits of a phone number normalized by the
+     * <tt>PhoneNumberI18nService</tt>.
+     *
+     * @param phoneNumber the phone number
+     * @return the digits of <tt>phoneNumber</tt>
+     */
+    static String getDigits(String phoneNumber)
+    {
+        PhoneNumberI18nService phoneNumberI18nService
+            = PNContactSourceActivator.getPhoneNumberI18nService();
+        String normalized
+            = (phoneNumberI18nService == null)
+                ? phoneNumber
+                : phoneNumberI18nService.normalize(phoneNumber);
+        StringBuilder digits = new StringBuilder(normalized.length());
+
+        for (int i = 0; i < normalized.length(); i++)
+        {
+            char c = normalized.charAt(i);
+
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+        }
+        return digits.toString();
+    }
+
+    /**
+     * Adds the numbers whose keys start with a prefix.
+     *
+     * @param entries the numbers by key
+     * @param prefix the prefix
+     * @param result the list to add the numbers to
+     */
+    private static void addRange(TreeMap<String, List<Entry>> entries,
+                                 String prefix,
+                                 Set<Entry> result)
+    {
+        for (List<Entry> range
+                : entries.subMap(prefix, prefix + Character.MAX_VALUE)
+                    .values())
+            result.addAll(range);
+    }
+
+    /**
+     * Reads the numbers of the contacts of a group. Called on the thread of
+     * the executor.
+     *
+     * @param group the group
+     */
+    private void indexGroup(ContactGroup group)
+    {
+        Iterator<Contact> contacts = group.contacts();
+
+        while (contacts.hasNext())
+            indexContact(contacts.next());
+    }
+
+    /**
+     * Schedules the reading of the numbers of a contact.
+     *
+     * @param contact the contact
+     */
+    private void scheduleContact(final Contact contact)
+    {
+        synchronized (this)
+        {
+            if (!providers.containsKey(contact.getProtocolProvider())
+                    || !pendingContacts.add(contact))
+                return;
+        }
+
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                synchronized (PhoneNumberIndex.this)
+                {
+                    pendingContacts.remove(contact);
+                }
+                indexContact(contact);
+            }
+        });
+    }
+
+    /**
+     * Reads the numbers of a contact and replaces those it had. Called on the
+     * thread of the executor.
+     *
+     * @param contact the contact
+     */
+    private void indexContact(Contact contact)
+    {
+        OperationSetServerStoredContactInfo infoOpSet
+            = contact.getProtocolProvider().getOperationSet(
+                OperationSetServerStoredContactInfo.class);
+
+        if (infoOpSet == null)
+            return;
+
+        List<Entry> entries = new ArrayList<Entry>();
+
+        try
+        {
+            Iterator<GenericDetail> details
+                = infoOpSet.getAllDetailsForContact(contact);
+
+            while (details.hasNext())
+            {
+                GenericDetail d = details.next();
+
+                if (d instanceof PhoneNumberDetail
+                        && !(d instanceof PagerDetail)
+                        && !(d instanceof FaxDetail))
+                {
+                    String number = ((PhoneNumberDetail) d).getNumber();
+
+                    if (number != null && number.length() > 0)
+                    {
+                        entries.add(
+                                new Entry(
+                                        contact,
+                                        number,
+                                        getLocalizedType(d),
+                                        getDigits(number)));
+                    }
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+
+            logger.error("Failed to read the phone numbers of "
+                + contact.getAddress(), t);
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (!providers.containsKey(contact.getProtocolProvider()))
+                return;
+
+            removeEntries(entriesByContact.remove(contact));
+            if (entries.isEmpty())
+                return;
+
+            entriesByContact.put(contact, entries);
+            for (Entry entry : entries)
+            {
+                addEntry(entriesByDigits, entry.digits, entry);
+                addEntry(
+                        entriesByReversedDigits,
+                        new StringBuilder(entry.digits).reverse().toString(),
+                        entry);
+            }
+        }
+    }
+
+    /**
+     * Drops the numbers of a contact.
+     *
+     * @param contact the contact
+     */
+    private synchronized void removeContact(Contact contact)
+    {
+        removeEntries(entriesByContact.remove(contact));
+    }
+
+    /**
+     * Removes numbers from the maps keyed on their digits.
+     *
+     * @param entries the numbers, possibly <tt>null</tt>
+     */
+    private void removeEntries(List<Entry> entries)
+    {
+        if (entries == null)
+            return;
+
+        for (Entry entry : entries)
+        {
+            removeEntry(entriesByDigits, entry.digits, entry);
+            removeEntry(
+                    entriesByReversedDigits,
+                    new StringBuilder(entry.digits).reverse().toString(),
+                    entry);
+        }
+    }
+
+    private static void addEntry(Map<String, List<Entry>> entries,
+                                 String key,
+                                 Entry entry)
+    {
+        List<Entry> list = entries.get(key);
+
+        if (list == null)
+        {
+            list = new ArrayList<Entry>(1);
+            entries.put(key, list);
+        }
+        list.add(entry);
+    }
+
+    private static void removeEntry(Map<String, List<Entry>> entries,
+                                    String key,
+                                    Entry entry)
+    {
+        List<Entry> list = entries.get(key);
+
+        if ((list != null) && list.remove(entry) && list.isEmpty())
+            entries.remove(key);
+    }
+
+    /**
+     * Returns the localized type of a phone number detail.
+     *
+     * @param d the phone number detail
+     * @return the localized type of <tt>d</tt>
+     */
+    private static String getLocalizedType(GenericDetail d)
+    {
+        String key;
+
+        if (d instanceof WorkPhoneDetail)
+            key = "service.gui.WORK_PHONE";
+        else if (d instanceof MobilePhoneDetail)
+            key = "service.gui.MOBILE_PHONE";
+        else if (d instanceof VideoDetail)
+            key = "service.gui.VIDEO_PHONE";
+        else
+            key = "service.gui.HOME";
+
+        return PNContactSourceActivator.getResources().getI18NString(key);
+    }
+
+    /**
+     * Reads the numbers of a contact added to a provider.
+     *
+     * @param evt the <tt>SubscriptionEvent</tt>
+     */
+    public void subscriptionCreated(SubscriptionEvent evt)
+    {
+        scheduleContact(evt.getSourceContact());
+    }
+
+    /**
+     * Does nothing, the contact was not added.
+     *
+     * @param evt the <tt>SubscriptionEvent</tt>
+     */
+    public void subscriptionFailed(SubscriptionEvent evt)
+    {
+    }
+
+    /**
+     * Drops the numbers of a contact removed from a provider.
+     *
+     * @param evt the <tt>SubscriptionEvent</tt>
+     */
+    public void subscriptionRemoved(SubscriptionEvent evt)
+    {
+        removeContact(evt.getSourceContact());
+    }
+
+    /**
+     * Does nothing, the numbers do not depend on the group of the contact.
+     *
+     * @param evt the <tt>SubscriptionMovedEvent</tt>
+     */
+    public void subscriptionMoved(SubscriptionMovedEvent evt)
+    {
+    }
+
+    /**
+     * Reads the numbers of a contact resolved against the server.
+     *
+     * @param evt the <tt>SubscriptionEvent</tt>
+     */
+    public void subscriptionResolved(SubscriptionEvent evt)
+    {
+        scheduleContact(evt.getSourceContact());
+    }
+
+    /**
+     * Reads again the numbers of a contact whose properties changed.
+     *
+     * @param evt the <tt>ContactPropertyChangeEvent</tt>
+     */
+    public void contactModified(ContactPropertyChangeEvent evt)
+    {
+        scheduleContact(evt.getSourceContact());
+    }
+
+    /**
+     * Reads the numbers of the contacts of a group added to a provider.
+     *
+     * @param evt the <tt>ServerStoredGroupEvent</tt>
+     */
+    public void groupCreated(ServerStoredGroupEvent evt)
+    {
+        scheduleGroup(evt.getSourceGroup());
+    }
+
+    /**
+     * Drops the numbers of the contacts of a group removed from a provider.
+     *
+     * @param evt the <tt>ServerStoredGroupEvent</tt>
+     */
+    public void groupRemoved(ServerStoredGroupEvent evt)
+    {
+        Iterator<Contact> contacts = evt.getSourceGroup().contacts();
+
+        while (contacts.hasNext())
+            removeContact(contacts.next());
+    }
+
+    /**
+     * Does nothing, the numbers do not depend on the group of the contacts.
+     *
+     * @param evt the <tt>ServerStoredGroupEvent</tt>
+     */
+    public void groupNameChanged(ServerStoredGroupEvent evt)
+    {
+    }
+
+    /**
+     * Reads the numbers of the contacts of a group resolved against the
+     * server.
+     *
+     * @param evt the <tt>ServerStoredGroupEvent</tt>
+     */
+    public void groupResolved(ServerStoredGroupEvent evt)
+    {
+        scheduleGroup(evt.getSourceGroup());
+    }
+
+    /**
+     * Schedules the reading of the numbers of the contacts of a group.
+     *
+     * @param group the group
+     */
+    private void scheduleGroup(ContactGroup group)
+    {
+        Iterator<Contact> contacts = group.contacts();
+
+        while (contacts.hasNext())
+            scheduleContact(contacts.next());
+    }
+
+    /**
+     * A phone number of a contact.
+     */
+    public static class Entry
+    {
+        /**
+         * The contact.
+         */
+        final Contact contact;
+
+        /**
+         * The number as found in the details of the contact.
+         */
+        final String number;
+
+        /**
+         * The localized type of the number.
+         */
+        final String localizedType;
+
+        /**
+         * The digits of the normalized number.
+         */
+        final String digits;
+
+        Entry(Contact contact,
+              String number,
+              String localizedType,
+              String digits)
+        {
+            this.contact = contact;
+            this.number = number;
+            this.localizedType = localizedType;
+            this.digits = digits;
+        }
+    }
+}
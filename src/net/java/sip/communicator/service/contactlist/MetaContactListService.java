@@ -200,6 +200,23 @@ public interface MetaContactListService
      */
     public void removeMetaContactListListener(MetaContactListListener l);
 
+    /**
+     * Adds a listener for the <tt>MetaContactPresenceEvent</tt>s dispatched
+     * when the presence of meta contacts changes.
+     *
+     * @param l the listener to add
+     */
+    public void addMetaContactPresenceListener(MetaContactPresenceListener l);
+
+    /**
+     * Removes a listener previously added with
+     * <tt>addMetaContactPresenceListener</tt>.
+     *
+     * @param l the listener to remove
+     */
+    public void removeMetaContactPresenceListener(
+        MetaContactPresenceListener l);
+
     /**
      * Makes the specified <tt>contact</tt> a child of the
      * <tt>newParent</tt> MetaContact. If <tt>contact</tt> was
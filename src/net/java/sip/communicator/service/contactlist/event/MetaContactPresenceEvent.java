@@ -0,0 +1,97 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.contactlist.event;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+
+/**
+ * Indicates that the presence status of some meta contacts has changed. The
+ * protocol presence events received for the same meta contacts within a
+ * short time are delivered together in one such event, each meta contact
+ * appearing once.
+ */
+public class MetaContactPresenceEvent
+    extends EventObject
+{
+    /**
+     * Serial version UID.
+     */
+    private static final long serialVersionUID = 0L;
+
+    /**
+     * The meta contacts whose presence status has changed.
+     */
+    private final List<MetaContact> metaContacts;
+
+    /**
+     * The groups whose child contacts were reordered by the changes.
+     */
+    private final List<MetaContactGroup> reorderedGroups;
+
+    /**
+     * Creates a new <tt>MetaContactPresenceEvent</tt>.
+     *
+     * @param source the <tt>MetaContactListService</tt> dispatching the event
+     * @param metaContacts the meta contacts whose presence status has changed
+     * @param reorderedGroups the groups whose child contacts were reordered
+     * by the changes
+     */
+    public MetaContactPresenceEvent(MetaContactListService source,
+                                    List<MetaContact> metaContacts,
+                                    List<MetaContactGroup> reorderedGroups)
+    {
+        super(source);
+
+        this.metaContacts = Collections.unmodifiableList(metaContacts);
+        this.reorderedGroups = Collections.unmodifiableList(reorderedGroups);
+    }
+
+    /**
+     * Returns the <tt>MetaContactListService</tt> dispatching the event.
+     *
+     * @return the <tt>MetaContactListService</tt> dispatching the event
+     */
+    public MetaContactListService getSourceMetaContactList()
+    {
+        return (MetaContactListService) getSource();
+    }
+
+    /**
+     * Returns the meta contacts whose presence status has changed.
+     *
+     * @return an unmodifiable list of the meta contacts, each one once
+     */
+    public List<MetaContact> getMetaContacts()
+    {
+        return metaContacts;
+    }
+
+    /**
+     * Returns the groups whose child contacts were reordered by the presence
+     * changes.
+     *
+     * @return an unmodifiable list of the groups, each one once
+     */
+    public List<MetaContactGroup> getReorderedGroups()
+    {
+        return reorderedGroups;
+    }
+
+    /**
+     * Returns a string representation of this event.
+     *
+     * @return a string representation of this event
+     */
+    @Override
+    public String toString()
+    {
+        return "MetaContactPresenceEvent[metaContacts=" + metaContacts.size()
+            + " reorderedGroups=" + reorderedGroups.size() + "]";
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.contactlist.event;
+
+import java.util.*;
+
+/**
+ * A <tt>MetaContactPresenceListener</tt> can be registered with a
+ * <tt>MetaContactListService</tt> so that it will receive the presence
+ * changes of the meta contacts in batches rather than one protocol presence
+ * event at a time.
+ */
+public interface MetaContactPresenceListener
+    extends EventListener
+{
+    /**
+     * Indicates that the presence of one or more meta contacts has changed.
+     * The <tt>CHILD_CONTACTS_REORDERED</tt> events of the groups reordered by
+     * these changes are delivered to the <tt>MetaContactListListener</tt>s
+     * after this method returns.
+     *
+     * @param evt the <tt>MetaContactPresenceEvent</tt> listing the meta
+     * contacts and the reordered groups
+     */
+    public void metaContactsPresenceChanged(MetaContactPresenceEvent evt);
+}
@@ -11,7 +11,8 @@ import java.util.regex.*;
 
 /**
  * Provides an abstract implementation of a <tt>ContactQuery</tt> which runs in
- * a separate <tt>Thread</tt>.
+ * a separate <tt>Thread</tt>, one of the threads the
+ * <tt>ContactQueryExecutor</tt> shares between all the contact sources.
  *
  * @author Lyubomir Marinov
  * @param <T> the very type of <tt>ContactSourceService</tt> which performs the
@@ -47,10 +48,10 @@ public abstract class AsyncContactQuery<T extends ContactSourceService>
         = new LinkedList<SourceContact>();
 
     /**
-     * The <tt>Thread</tt> in which this <tt>AsyncContactQuery</tt> is
-     * performing {@link #query}.
+     * The indicator which determines whether this <tt>AsyncContactQuery</tt>
+     * has been started.
      */
-    private Thread thread;
+    private boolean started = false;
 
     /**
      * Initializes a new <tt>AsyncContactQuery</tt> instance which is to perform
@@ -295,42 +296,51 @@ public abstract class AsyncContactQuery<T extends ContactSourceService>
     protected abstract void run();
 
     /**
-     * Starts this <tt>AsyncContactQuery</tt>.
+     * Starts this <tt>AsyncContactQuery</tt>. It is performed after a short
+     * delay, unless it is cancelled in the meantime.
      */
     public synchronized void start()
     {
-        if (thread == null)
+        if (!started)
         {
-            thread
-                = new Thread()
-                {
-                    @Override
-                    public void run()
-                    {
-                        boolean completed = false;
-
-                        try
-                        {
-                            AsyncContactQuery.this.run();
-                            completed = true;
-                        }
-                        finally
-                        {
-                            synchronized (AsyncContactQuery.this)
-                            {
-                                if (thread == Thread.currentThread())
-                                    stopped(completed);
-                            }
-                        }
-                    }
-                };
-            thread.setDaemon(true);
-            thread.start();
+            started = true;
+            ContactQueryExecutor.submit(this);
         }
         else
             throw new IllegalStateException("thread");
     }
 
+    /**
+     * Performs this <tt>AsyncContactQuery</tt> in the current background
+     * <tt>Thread</tt> unless it has been cancelled before, and notifies it
+     * that it has stopped in either case.
+     *
+     * @return <tt>true</tt> if {@link #run()} was invoked, <tt>false</tt> if
+     * this <tt>ContactQuery</tt> had been cancelled
+     */
+    boolean perform()
+    {
+        boolean performed = (getStatus() != QUERY_CANCELED);
+        boolean completed = false;
+
+        try
+        {
+            if (performed)
+            {
+                run();
+                completed = true;
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                stopped(completed);
+            }
+        }
+        return performed;
+    }
+
     /**
      * Notifies this <tt>AsyncContactQuery</tt> that it has stopped performing
      * in the associated background <tt>Thread</tt>.
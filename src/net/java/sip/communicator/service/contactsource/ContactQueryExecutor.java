@@ -0,0 +1,451 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.contactsource;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Performs the <tt>AsyncContactQuery</tt>s of all the contact sources on a
+ * shared and bounded pool of threads.
+ * <p>
+ * A query starts a short while after it was started so that the queries
+ * superseded while the user types are cancelled before they run. A contact
+ * source performs a limited number of queries at the same time, its other
+ * queries waiting in the order they were started, and the waiting queries
+ * which were cancelled are dropped without being performed. The time the
+ * queries of each contact source wait and run is measured.
+ */
+public class ContactQueryExecutor
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ContactQueryExecutor</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ContactQueryExecutor.class);
+
+    /**
+     * The maximum number of queries performed at the same time by all the
+     * contact sources.
+     */
+    private static final int MAX_THREADS = 16;
+
+    /**
+     * The maximum number of queries performed at the same time by a contact
+     * source.
+     */
+    private static final int MAX_QUERIES_PER_SOURCE = 2;
+
+    /**
+     * The time in milliseconds a query waits after it was started before it
+     * is performed.
+     */
+    private static final long DEBOUNCE_DELAY = 100;
+
+    /**
+     * The executor performing the queries, created with the first query.
+     */
+    private static ScheduledThreadPoolExecutor executor = null;
+
+    /**
+     * The queries of the contact sources.
+     */
+    private static final Map<ContactSourceService, SourceQueries> sources
+        = new WeakHashMap<ContactSourceService, SourceQueries>();
+
+    /**
+     * Performs a query on a thread of the shared pool.
+     *
+     * @param query the query
+     */
+    static void submit(final AsyncContactQuery<?> query)
+    {
+        ContactSourceService contactSource = query.getContactSource();
+        final SourceQueries sourceQueries;
+
+        synchronized (sources)
+        {
+            SourceQueries existing = sources.get(contactSource);
+
+            if (existing == null)
+            {
+                existing = new SourceQueries(contactSource.getDisplayName());
+                sources.put(contactSource, existing);
+            }
+            sourceQueries = existing;
+        }
+
+        final long startTime = System.currentTimeMillis();
+
+        getExecutor().schedule(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        sourceQueries.queryReady(
+                                new PendingQuery(query, startTime));
+                    }
+                },
+                DEBOUNCE_DELAY,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the statistics of the queries of the contact sources which
+     * performed queries.
+     *
+     * @return the statistics of each contact source
+     */
+    public static List<QueryStatistics> getStatistics()
+    {
+        List<SourceQueries> sourceQueries;
+
+        synchronized (sources)
+        {
+            sourceQueries = new ArrayList<SourceQueries>(sources.values());
+        }
+
+        List<QueryStatistics> statistics
+            = new ArrayList<QueryStatistics>(sourceQueries.size());
+
+        for (SourceQueries s : sourceQueries)
+            statistics.add(s.getStatistics());
+        return statistics;
+    }
+
+    /**
+     * Returns the executor performing the queries.
+     *
+     * @return the executor
+     */
+    private static synchronized ScheduledExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            ScheduledThreadPoolExecutor executor
+                = new ScheduledThreadPoolExecutor(
+                    MAX_THREADS,
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r,
+                                ContactQueryExecutor.class.getName());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            ContactQueryExecutor.executor = executor;
+        }
+
+        return executor;
+    }
+
+    /**
+     * A query waiting to be performed.
+     */
+    private static class PendingQuery
+    {
+        /**
+         * The query.
+         */
+        final AsyncContactQuery<?> query;
+
+        /**
+         * The time in milliseconds the query was started.
+         */
+        final long startTime;
+
+        PendingQuery(AsyncContactQuery<?> query, long startTime)
+        {
+            this.query = query;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * The queries of a contact source.
+     */
+    private static class SourceQueries
+    {
+        /**
+         * The name of the contact source.
+         */
+        private final String name;
+
+        /**
+         * The queries waiting for the contact source to perform fewer than
+         * <tt>MAX_QUERIES_PER_SOURCE</tt> queries.
+         */
+        private final LinkedList<PendingQuery> pending
+            = new LinkedList<PendingQuery>();
+
+        /**
+         * The number of queries being performed.
+         */
+        private int running = 0;
+
+        /**
+         * The number of queries which were performed.
+         */
+        private long queryCount = 0;
+
+        /**
+         * The number of queries which were cancelled before they were
+         * performed.
+         */
+        private long skippedCount = 0;
+
+        /**
+         * The total time in milliseconds the performed queries waited.
+         */
+        private long totalWaitTime = 0;
+
+        /**
+         * The total time in milliseconds the performed queries ran.
+         */
+        private long totalRunTime = 0;
+
+        /**
+         * The longest time in milliseconds a query ran.
+         */
+        private long maxRunTime = 0;
+
+        SourceQueries(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Performs a query whose delay is over if the contact source is not
+         * performing too many queries, then the queries which wait for it.
+         *
+         * @param ready the query whose delay is over
+         */
+        void queryReady(PendingQuery ready)
+        {
+            List<PendingQuery> cancelled = new ArrayList<PendingQuery>();
+            PendingQuery next = null;
+
+            synchronized (this)
+            {
+                // drop the waiting queries superseded in the meantime
+                Iterator<PendingQuery> iter = pending.iterator();
+
+                while (iter.hasNext())
+                {
+                    PendingQuery p = iter.next();
+
+                    if (p.query.getStatus() == ContactQuery.QUERY_CANCELED)
+                    {
+                        iter.remove();
+                        cancelled.add(p);
+                    }
+                }
+
+                if (running < MAX_QUERIES_PER_SOURCE)
+                {
+                    running++;
+                    next = ready;
+                }
+                else
+                    pending.add(ready);
+            }
+
+            for (PendingQuery p : cancelled)
+                perform(p);
+
+            while (next != null)
+            {
+                perform(next);
+
+                synchronized (this)
+                {
+                    next = pending.poll();
+                    if (next == null)
+                        running--;
+                }
+            }
+        }
+
+        /**
+         * Performs a query unless it was cancelled and records the time it
+         * took.
+         *
+         * @param p the query
+         */
+        private void perform(PendingQuery p)
+        {
+            long beginTime = System.currentTimeMillis();
+            boolean performed = false;
+
+            try
+            {
+                performed = p.query.perform();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+
+                logger.error("Failed to perform a query of " + name, t);
+                performed = true;
+            }
+
+            long endTime = System.currentTimeMillis();
+
+            synchronized (this)
+            {
+                if (performed)
+                {
+                    long waitTime = beginTime - p.startTime;
+                    long runTime = endTime - beginTime;
+
+                    queryCount++;
+                    totalWaitTime += waitTime;
+                    totalRunTime += runTime;
+                    if (runTime > maxRunTime)
+                        maxRunTime = runTime;
+
+                    if (logger.isDebugEnabled())
+                        logger.debug("Query of " + name + " ran in "
+                            + runTime + " ms after waiting " + waitTime
+                            + " ms");
+                }
+                else
+                    skippedCount++;
+            }
+        }
+
+        /**
+         * Returns the statistics of the queries of the contact source.
+         *
+         * @return the statistics
+         */
+        synchronized QueryStatistics getStatistics()
+        {
+            return
+                new QueryStatistics(
+                        name,
+                        queryCount,
+                        skippedCount,
+                        (queryCount == 0) ? 0 : totalWaitTime / queryCount,
+                        (queryCount == 0) ? 0 : totalRunTime / queryCount,
+                        maxRunTime);
+        }
+    }
+
+    /**
+     * The statistics of the queries of a contact source.
+     */
+    public static class QueryStatistics
+    {
+        private final String sourceName;
+
+        private final long queryCount;
+
+        private final long skippedCount;
+
+        private final long averageWaitTime;
+
+        private final long averageRunTime;
+
+        private final long maxRunTime;
+
+        QueryStatistics(String sourceName,
+                        long queryCount,
+                        long skippedCount,
+                        long averageWaitTime,
+                        long averageRunTime,
+                        long maxRunTime)
+        {
+            this.sourceName = sourceName;
+            this.queryCount = queryCount;
+            this.skippedCount = skippedCount;
+            this.averageWaitTime = averageWaitTime;
+            this.averageRunTime = averageRunTime;
+            this.maxRunTime = maxRunTime;
+        }
+
+        /**
+         * Returns the display name of the contact source.
+         *
+         * @return the display name of the contact source
+         */
+        public String getSourceName()
+        {
+            return sourceName;
+        }
+
+        /**
+         * Returns the number of queries which were performed.
+         *
+         * @return the number of performed queries
+         */
+        public long getQueryCount()
+        {
+            return queryCount;
+        }
+
+        /**
+         * Returns the number of queries which were cancelled before they were
+         * performed.
+         *
+         * @return the number of skipped queries
+         */
+        public long getSkippedCount()
+        {
+            return skippedCount;
+        }
+
+        /**
+         * Returns the average time in milliseconds the performed queries
+         * waited between their start and their performing, including the
+         * debounce delay.
+         *
+         * @return the average wait time
+         */
+        public long getAverageWaitTime()
+        {
+            return averageWaitTime;
+        }
+
+        /**
+         * Returns the average time in milliseconds the performed queries ran.
+         *
+         * @return the average run time
+         */
+        public long getAverageRunTime()
+        {
+            return averageRunTime;
+        }
+
+        /**
+         * Returns the longest time in milliseconds a query ran.
+         *
+         * @return the maximum run time
+         */
+        public long getMaxRunTime()
+        {
+            return maxRunTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            return sourceName + ": " + queryCount + " queries ("
+                + skippedCount + " skipped), waited " + averageWaitTime
+                + " ms, ran " + averageRunTime + " ms on average, "
+                + maxRunTime + " ms at most";
+        }
+    }
+}
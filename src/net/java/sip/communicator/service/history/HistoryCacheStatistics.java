@@ -0,0 +1,102 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.history;
+
+/**
+ * A snapshot of the counters of the cache the history service keeps of the
+ * documents it read.
+ */
+public class HistoryCacheStatistics
+{
+    private final long hitCount;
+
+    private final long missCount;
+
+    private final long evictionCount;
+
+    private final int documentCount;
+
+    private final long size;
+
+    /**
+     * Creates a snapshot of the cache counters.
+     *
+     * @param hitCount the number of documents found in the cache
+     * @param missCount the number of documents which had to be read
+     * @param evictionCount the number of documents removed from the cache to
+     * respect its limits
+     * @param documentCount the number of documents in the cache
+     * @param size the size in bytes of the files of the cached documents
+     */
+    public HistoryCacheStatistics(long hitCount,
+                                  long missCount,
+                                  long evictionCount,
+                                  int documentCount,
+                                  long size)
+    {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.documentCount = documentCount;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of documents found in the cache.
+     * @return the number of documents found in the cache
+     */
+    public long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of documents which were not in the cache and had to
+     * be read.
+     * @return the number of documents which had to be read
+     */
+    public long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of documents removed from the cache to respect its
+     * limits.
+     * @return the number of evicted documents
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of documents currently in the cache.
+     * @return the number of cached documents
+     */
+    public int getDocumentCount()
+    {
+        return documentCount;
+    }
+
+    /**
+     * Returns the size in bytes of the files of the cached documents.
+     * @return the size of the cached documents
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + hitCount + " misses=" + missCount
+            + " evictions=" + evictionCount + " documents=" + documentCount
+            + " size=" + size;
+    }
+}
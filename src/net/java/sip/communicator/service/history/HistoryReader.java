@@ -237,4 +237,13 @@ public interface HistoryReader {
      */
     public int countRecords()
         throws UnsupportedOperationException;
+
+    /**
+     * Returns the number of records of the history, the timestamps of its
+     * oldest and newest records and the size of its files. The statistics
+     * are maintained by the history, getting them does not read the records.
+     *
+     * @return the statistics of the history
+     */
+    public HistoryStatistics getStatistics();
 }
@@ -26,10 +26,85 @@ public interface HistoryService {
      * Property and values used to be set in configuration
      * Used in implementation to cache every opened history document
      * or not to cache them and to access them on every read
+     * @deprecated the read documents are kept in a cache limited by
+     * <tt>CACHE_MAX_DOCUMENTS_PROPERTY</tt> and
+     * <tt>CACHE_MAX_SIZE_PROPERTY</tt>.
      */
+    @Deprecated
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to set the maximum number of documents kept in the cache
+     * of read history documents. A value of zero disables the cache.
+     */
+    public static final String CACHE_MAX_DOCUMENTS_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_DOCUMENTS";
+
+    /**
+     * Property used to set the maximum size, in kilobytes of the history
+     * files, of the documents kept in the cache of read history documents.
+     */
+    public static final String CACHE_MAX_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_SIZE";
+
+    /**
+     * Property used to enable writing the history files modified by added
+     * records in the background, so that adding a record does not wait for
+     * the file to be written. Disabled by default.
+     */
+    public static final String WRITE_BEHIND_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_ENABLED";
+
+    /**
+     * Property used to set the maximum time in milliseconds an added record
+     * waits to be written when writing behind.
+     */
+    public static final String WRITE_BEHIND_MAX_LATENCY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_MAX_LATENCY";
+
+    /**
+     * Property used to set the number of records added to a file which make
+     * it written without waiting for the maximum latency when writing
+     * behind.
+     */
+    public static final String WRITE_BEHIND_MAX_BATCH_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_MAX_BATCH";
+
+    /**
+     * Property used to enable the compaction of the stored histories in the
+     * background while they are not used. Disabled by default.
+     */
+    public static final String COMPACTION_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.COMPACTION_ENABLED";
+
+    /**
+     * Property used to set the time in minutes between two compactions of
+     * the stored histories.
+     */
+    public static final String COMPACTION_INTERVAL_PROPERTY =
+        "net.java.sip.communicator.service.history.COMPACTION_INTERVAL";
+
+    /**
+     * Property used to select the storage engine of the histories. The
+     * supported values are <tt>STORAGE_ENGINE_XML</tt>, the default, and
+     * <tt>STORAGE_ENGINE_SEGMENT</tt>.
+     */
+    public static final String STORAGE_ENGINE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_ENGINE";
+
+    /**
+     * Stores every history as xml documents of a limited number of records.
+     */
+    public static final String STORAGE_ENGINE_XML = "xml";
+
+    /**
+     * Stores every history in an append-only binary log of segments with a
+     * sparse timestamp index. Histories stored as xml are migrated the first
+     * time they are opened.
+     */
+    public static final String STORAGE_ENGINE_SEGMENT = "segment";
+
     /**
      * Date format used in the XML history database.
      */
@@ -120,4 +195,10 @@ public interface HistoryService {
      * @return whether a history is created and stored.
      */
     public boolean isHistoryCreated(HistoryID id);
+
+    /**
+     * Returns the current counters of the cache of read history documents.
+     * @return the counters of the document cache.
+     */
+    public HistoryCacheStatistics getCacheStatistics();
 }
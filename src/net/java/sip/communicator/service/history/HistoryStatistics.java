@@ -0,0 +1,92 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.history;
+
+import java.util.*;
+
+/**
+ * The number of records of a history, the timestamps of its oldest and
+ * newest records and the size of its files, known without reading the
+ * records.
+ */
+public class HistoryStatistics
+{
+    private final int recordCount;
+
+    private final Date firstTimestamp;
+
+    private final Date lastTimestamp;
+
+    private final long size;
+
+    /**
+     * Creates the statistics of a history.
+     *
+     * @param recordCount the number of records
+     * @param firstTimestamp the timestamp of the oldest record or
+     * <tt>null</tt>
+     * @param lastTimestamp the timestamp of the newest record or
+     * <tt>null</tt>
+     * @param size the size in bytes of the files of the history
+     */
+    public HistoryStatistics(int recordCount,
+                             Date firstTimestamp,
+                             Date lastTimestamp,
+                             long size)
+    {
+        this.recordCount = recordCount;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of records of the history.
+     * @return the number of records of the history
+     */
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Returns the timestamp of the oldest record of the history.
+     * @return the timestamp of the oldest record or <tt>null</tt> if the
+     * history has no records
+     */
+    public Date getFirstTimestamp()
+    {
+        return firstTimestamp;
+    }
+
+    /**
+     * Returns the timestamp of the newest record of the history.
+     * @return the timestamp of the newest record or <tt>null</tt> if the
+     * history has no records
+     */
+    public Date getLastTimestamp()
+    {
+        return lastTimestamp;
+    }
+
+    /**
+     * Returns the size in bytes of the files of the history, as currently
+     * written on disk.
+     * @return the size of the files of the history
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "records=" + recordCount + " first=" + firstTimestamp
+            + " last=" + lastTimestamp + " size=" + size;
+    }
+}
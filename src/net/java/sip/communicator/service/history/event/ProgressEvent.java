@@ -48,6 +48,11 @@ public class ProgressEvent
      */
     private int progress = 0;
 
+    /**
+     * Whether a listener asked to stop the search.
+     */
+    private boolean canceled = false;
+
     /**
      * Constructs a new <tt>ProgressEvent</tt>.
      *
@@ -142,4 +147,23 @@ public class ProgressEvent
         this.progress = progress;
     }
 
+    /**
+     * Asks the search which fired this event to stop. A search which can be
+     * stopped returns the records it found so far.
+     */
+    public void cancel()
+    {
+        canceled = true;
+    }
+
+    /**
+     * Returns whether a listener asked to stop the search which fired this
+     * event.
+     * @return <tt>true</tt> if the search was asked to stop
+     */
+    public boolean isCanceled()
+    {
+        return canceled;
+    }
+
 }
@@ -213,7 +213,9 @@ public interface MetaHistoryService
         throws RuntimeException;
 
     /**
-     * Adding progress listener for monitoring progress of search process
+     * Adding progress listener for monitoring progress of search process.
+     * A listener stops a search by canceling one of its progress events, the
+     * search then returns the records found so far.
      *
      * @param listener HistorySearchProgressListener
      */
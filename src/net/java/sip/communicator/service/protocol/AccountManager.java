@@ -32,6 +32,22 @@ public class AccountManager
      */
     private static final long LOAD_STORED_ACCOUNTS_TIMEOUT = 30000;
 
+    /**
+     * The name of the property which specifies the maximum number of
+     * <tt>ProtocolProviderFactory</tt> services which have their stored
+     * accounts loaded at the same time. The accounts of a single factory are
+     * always loaded one after the other, in the order they are stored.
+     */
+    public static final String LOAD_STORED_ACCOUNTS_THREADS_PROP
+        = "net.java.sip.communicator.service.protocol"
+            + ".LOAD_STORED_ACCOUNTS_THREADS";
+
+    /**
+     * The default maximum number of <tt>ProtocolProviderFactory</tt> services
+     * which have their stored accounts loaded at the same time.
+     */
+    private static final int DEFAULT_LOAD_STORED_ACCOUNTS_THREADS = 4;
+
     /**
      * The <tt>BundleContext</tt> this service is registered in.
      */
@@ -52,11 +68,26 @@ public class AccountManager
         new LinkedList<ProtocolProviderFactory>();
 
     /**
-     * The <tt>Thread</tt> loading the stored accounts of the
+     * The <tt>ProtocolProviderFactory</tt> services which currently have
+     * their stored accounts loaded. A factory queued again while its accounts
+     * are loaded waits in {@link #loadStoredAccountsQueue} until they are.
+     */
+    private final Set<ProtocolProviderFactory> loadingStoredAccounts
+        = new HashSet<ProtocolProviderFactory>();
+
+    /**
+     * The number of <tt>Thread</tt>s loading the stored accounts of the
      * <tt>ProtocolProviderFactory</tt> services waiting in
      * {@link #loadStoredAccountsQueue}.
      */
-    private Thread loadStoredAccountsThread;
+    private int loadStoredAccountsThreadCount = 0;
+
+    /**
+     * The time in milliseconds it took to load each stored account, by
+     * account unique ID.
+     */
+    private final Map<String, Long> accountLoadTimes
+        = new LinkedHashMap<String, Long>();
 
     /**
      * The <tt>Logger</tt> used by this <tt>AccountManagerImpl</tt> instance for
@@ -128,10 +159,13 @@ public class AccountManager
             logger.debug("Discovered " + accounts.size() + " stored "
                     + factoryPackage + " accounts");
 
+        long factoryStartTime = System.currentTimeMillis();
+
         for (Iterator<String> storedAccountIter = accounts.iterator();
                 storedAccountIter.hasNext();)
         {
             String storedAccount = storedAccountIter.next();
+            long startTime = System.currentTimeMillis();
 
             // If the property is not related to an account we skip it.
             int dotIndex = storedAccount.lastIndexOf(".");
@@ -202,6 +236,16 @@ public class AccountManager
                 }
                 if (!disabled)
                     factory.loadAccount(accountID);
+
+                long loadTime = System.currentTimeMillis() - startTime;
+                synchronized (accountLoadTimes)
+                {
+                    accountLoadTimes.put(
+                        accountID.getAccountUniqueID(), loadTime);
+                }
+                if (logger.isDebugEnabled())
+                    logger.debug("Loaded account " + accountID + " in "
+                        + loadTime + " ms");
             }
             catch (Exception ex)
             {
@@ -213,6 +257,26 @@ public class AccountManager
                 logger.error("Failed to load account " + accountProperties, ex);
             }
         }
+
+        if (logger.isInfoEnabled())
+            logger.info("Loaded the stored " + factoryPackage + " accounts in "
+                + (System.currentTimeMillis() - factoryStartTime) + " ms");
+    }
+
+    /**
+     * Returns the time it took to load each of the stored accounts loaded so
+     * far, from the reading of its properties to the registration of its
+     * <tt>ProtocolProviderService</tt>.
+     *
+     * @return the time in milliseconds by account unique ID, in the order
+     * the accounts were loaded
+     */
+    public Map<String, Long> getAccountLoadTimes()
+    {
+        synchronized (accountLoadTimes)
+        {
+            return new LinkedHashMap<String, Long>(accountLoadTimes);
+        }
     }
 
     /**
@@ -465,7 +529,9 @@ public class AccountManager
 
     /**
      * Queues a specific <tt>ProtocolProviderFactory</tt> to have its stored
-     * accounts loaded as soon as possible.
+     * accounts loaded as soon as possible. A new <tt>Thread</tt> is started
+     * for it unless {@link #LOAD_STORED_ACCOUNTS_THREADS_PROP} are already
+     * running, so that the accounts of different factories load in parallel.
      *
      * @param factory the <tt>ProtocolProviderFactory</tt> to be queued for
      *            loading its stored accounts as soon as possible
@@ -477,9 +543,9 @@ public class AccountManager
             loadStoredAccountsQueue.add(factory);
             loadStoredAccountsQueue.notifyAll();
 
-            if (loadStoredAccountsThread == null)
+            if (loadStoredAccountsThreadCount < getLoadStoredAccountsThreads())
             {
-                loadStoredAccountsThread = new Thread()
+                Thread loadStoredAccountsThread = new Thread()
                 {
                     @Override
                     public void run()
@@ -489,12 +555,60 @@ public class AccountManager
                 };
                 loadStoredAccountsThread.setDaemon(true);
                 loadStoredAccountsThread.setName(
-                        "AccountManager.loadStoredAccounts");
+                        "AccountManager.loadStoredAccounts-"
+                            + loadStoredAccountsThreadCount);
+                loadStoredAccountsThreadCount++;
                 loadStoredAccountsThread.start();
             }
         }
     }
 
+    /**
+     * Returns the maximum number of <tt>Thread</tt>s loading stored accounts
+     * at the same time.
+     *
+     * @return the value of {@link #LOAD_STORED_ACCOUNTS_THREADS_PROP}, at
+     * least <tt>1</tt>
+     */
+    private int getLoadStoredAccountsThreads()
+    {
+        ConfigurationService configService
+            = ProtocolProviderActivator.getConfigurationService();
+        int threads = (configService == null)
+            ? DEFAULT_LOAD_STORED_ACCOUNTS_THREADS
+            : configService.getInt(
+                    LOAD_STORED_ACCOUNTS_THREADS_PROP,
+                    DEFAULT_LOAD_STORED_ACCOUNTS_THREADS);
+
+        return Math.max(1, threads);
+    }
+
+    /**
+     * Takes the first <tt>ProtocolProviderFactory</tt> out of
+     * {@link #loadStoredAccountsQueue} which does not have its stored
+     * accounts loaded by another <tt>Thread</tt> at the moment. Must be
+     * called while holding the lock of the queue.
+     *
+     * @return the factory or <tt>null</tt> if there is none
+     */
+    private ProtocolProviderFactory pollLoadStoredAccountsQueue()
+    {
+        for (Iterator<ProtocolProviderFactory> i
+                    = loadStoredAccountsQueue.iterator();
+                i.hasNext();)
+        {
+            ProtocolProviderFactory factory = i.next();
+
+            if (!loadingStoredAccounts.contains(factory))
+            {
+                i.remove();
+                loadingStoredAccounts.add(factory);
+                return factory;
+            }
+        }
+        return null;
+    }
+
     /**
      * Implements AccountManager#removeListener(AccountManagerListener).
      * @param listener the <tt>AccountManagerListener</tt> to remove
@@ -508,8 +622,9 @@ public class AccountManager
     }
 
     /**
-     * Running in {@link #loadStoredAccountsThread}, loads the stored accounts
-     * of the <tt>ProtocolProviderFactory</tt> services waiting in
+     * Running in one of the <tt>Thread</tt>s counted by
+     * {@link #loadStoredAccountsThreadCount}, loads the stored accounts of the
+     * <tt>ProtocolProviderFactory</tt> services waiting in
      * {@link #loadStoredAccountsQueue}
      */
     private void runInLoadStoredAccountsThread()
@@ -523,7 +638,7 @@ public class AccountManager
 
                 synchronized (loadStoredAccountsQueue)
                 {
-                    factory = loadStoredAccountsQueue.poll();
+                    factory = pollLoadStoredAccountsQueue();
                     if (factory == null)
                     {
                         /*
@@ -549,7 +664,7 @@ public class AccountManager
                             interrupted = true;
                             break;
                         }
-                        factory = loadStoredAccountsQueue.poll();
+                        factory = pollLoadStoredAccountsQueue();
                     }
                     if (factory != null)
                         loadStoredAccountsQueue.notifyAll();
@@ -572,19 +687,24 @@ public class AccountManager
                         logger.error("Failed to load accounts for " + factory,
                             ex);
                     }
+                    finally
+                    {
+                        synchronized (loadStoredAccountsQueue)
+                        {
+                            loadingStoredAccounts.remove(factory);
+                            loadStoredAccountsQueue.notifyAll();
+                        }
+                    }
                 }
             }
             finally
             {
                 synchronized (loadStoredAccountsQueue)
                 {
-                    if (!interrupted && (loadStoredAccountsQueue.size() <= 0))
+                    if (interrupted || (loadStoredAccountsQueue.size() <= 0))
                     {
-                        if (loadStoredAccountsThread == Thread.currentThread())
-                        {
-                            loadStoredAccountsThread = null;
-                            loadStoredAccountsQueue.notifyAll();
-                        }
+                        loadStoredAccountsThreadCount--;
+                        loadStoredAccountsQueue.notifyAll();
                         break;
                     }
                 }
@@ -889,13 +1009,13 @@ public class AccountManager
         synchronized (loadStoredAccountsQueue)
         {
             /*
-             * Wait for the Thread which loads the stored account to complete so
-             * that we can be sure later on that it will not load a stored
+             * Wait for the Threads which load the stored accounts to complete
+             * so that we can be sure later on that they will not load a stored
              * account while we are deleting it or another one for that matter.
              */
             boolean interrupted = false;
 
-            while (loadStoredAccountsThread != null)
+            while (loadStoredAccountsThreadCount > 0)
                 try
                 {
                     loadStoredAccountsQueue.wait(LOAD_STORED_ACCOUNTS_TIMEOUT);
@@ -0,0 +1,201 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the replay of the records of <tt>MclStorageJournal</tt> and the
+ * truncation of a journal whose end was not completely written.
+ */
+public class MclStorageJournalTest
+    extends TestCase
+{
+    private File file;
+
+    private MclStorageJournal journal;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        file = File.createTempFile("contactlist", ".journal");
+        file.delete();
+        journal = new MclStorageJournal(file);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testMissingJournalIsEmpty()
+    {
+        assertTrue(journal.read().isEmpty());
+        assertFalse(file.exists());
+    }
+
+    public void testRecordsAreReplayedInOrder()
+        throws Exception
+    {
+        journal.append(Arrays.asList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.PUT_GROUP, "g1", "root", "<group/>"),
+            new MclStorageJournal.Record(
+                MclStorageJournal.PUT_META_CONTACT, "c1", "g1",
+                "<meta-contact>é</meta-contact>")));
+        journal.append(Arrays.asList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.RENAME_GROUP, "g1", "Friends", null),
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_META_CONTACT, "c1", null, null)));
+
+        List<MclStorageJournal.Record> records
+            = new MclStorageJournal(file).read();
+
+        assertEquals(4, records.size());
+        assertRecord(records.get(0),
+            MclStorageJournal.PUT_GROUP, "g1", "root", "<group/>");
+        assertRecord(records.get(1),
+            MclStorageJournal.PUT_META_CONTACT, "c1", "g1",
+            "<meta-contact>é</meta-contact>");
+        assertRecord(records.get(2),
+            MclStorageJournal.RENAME_GROUP, "g1", "Friends", null);
+        assertRecord(records.get(3),
+            MclStorageJournal.REMOVE_META_CONTACT, "c1", null, null);
+    }
+
+    public void testTornRecordIsCutOff()
+        throws Exception
+    {
+        journal.append(Collections.singletonList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_GROUP, "g1", null, null)));
+
+        long validLength = file.length();
+
+        journal.append(Collections.singletonList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.PUT_META_CONTACT, "c1", "g1",
+                "<meta-contact/>")));
+        setLength(file.length() - 3);
+
+        List<MclStorageJournal.Record> records = journal.read();
+
+        assertEquals(1, records.size());
+        assertRecord(records.get(0),
+            MclStorageJournal.REMOVE_GROUP, "g1", null, null);
+        assertEquals(validLength, file.length());
+
+        // records appended after the truncation are read back
+        journal.append(Collections.singletonList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_META_CONTACT, "c2", null, null)));
+        assertEquals(2, journal.read().size());
+    }
+
+    public void testTornLengthIsCutOff()
+        throws Exception
+    {
+        journal.append(Collections.singletonList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_GROUP, "g1", null, null)));
+
+        long validLength = file.length();
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            out.write(new byte[] { 0, 0 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        assertEquals(1, journal.read().size());
+        assertEquals(validLength, file.length());
+    }
+
+    public void testCorruptRecordIsCutOffWithFollowingOnes()
+        throws Exception
+    {
+        journal.append(Collections.singletonList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_GROUP, "g1", null, null)));
+
+        long validLength = file.length();
+
+        journal.append(Arrays.asList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_GROUP, "g2", null, null),
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_GROUP, "g3", null, null)));
+
+        // flip a byte of the payload of the second record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(validLength + 8);
+            int b = raf.read();
+            raf.seek(validLength + 8);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        List<MclStorageJournal.Record> records = journal.read();
+
+        assertEquals(1, records.size());
+        assertEquals("g1", records.get(0).uid);
+        assertEquals(validLength, file.length());
+    }
+
+    public void testClear()
+        throws Exception
+    {
+        journal.append(Collections.singletonList(
+            new MclStorageJournal.Record(
+                MclStorageJournal.REMOVE_GROUP, "g1", null, null)));
+        journal.clear();
+
+        assertEquals(0, journal.length());
+        assertTrue(journal.read().isEmpty());
+    }
+
+    private void setLength(long length)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static void assertRecord(MclStorageJournal.Record record,
+                                     byte type,
+                                     String uid,
+                                     String value,
+                                     String xml)
+    {
+        assertEquals(type, record.type);
+        assertEquals(uid, record.uid);
+        assertEquals(value, record.value);
+        assertEquals(xml, record.xml);
+    }
+}
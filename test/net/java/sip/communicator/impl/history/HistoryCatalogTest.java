@@ -0,0 +1,260 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+
+/**
+ * Tests that <tt>HistoryCatalog</tt> finds the histories of a directory tree
+ * and lists again only the directories which changed.
+ */
+public class HistoryCatalogTest
+    extends TestCase
+{
+    /**
+     * A modification time old enough for a directory not to be listed again
+     * until its modification time changes.
+     */
+    private static final long OLD = System.currentTimeMillis() - 600000;
+
+    private File root;
+
+    private File catalogFile;
+
+    private HistoryServiceImpl historyService;
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected void setUp()
+        throws Exception
+    {
+        root = File.createTempFile("history", "");
+        root.delete();
+        root.mkdir();
+        catalogFile = File.createTempFile("history", ".cat");
+        catalogFile.delete();
+
+        BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
+        ConfigurationService config
+            = EasyMock.createNiceMock(ConfigurationService.class);
+        ServiceReference configRef
+            = EasyMock.createNiceMock(ServiceReference.class);
+
+        EasyMock.expect(bc.getServiceReference(
+                ConfigurationService.class.getName()))
+            .andReturn(configRef).anyTimes();
+        EasyMock.expect(bc.getService(configRef)).andReturn(config).anyTimes();
+        EasyMock.replay(bc, config, configRef);
+
+        historyService = new HistoryServiceImpl(bc);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete(root);
+        catalogFile.delete();
+    }
+
+    public void testFindsHistories()
+        throws Exception
+    {
+        File a = writeHistory("a", "x", "msg");
+        File b = writeHistory("a/b", "y", "msg", "dir");
+        new File(b, "1.xml").createNewFile();
+        new File(b, "notes.txt").createNewFile();
+        setOld(root, a, b);
+
+        List<HistoryCatalog.Directory> dirs
+            = new HistoryCatalog(catalogFile, historyService)
+                .getDirectories(root);
+
+        assertEquals(3, dirs.size());
+        assertEquals(root, dirs.get(0).getFile());
+        assertNull(dirs.get(0).getID());
+
+        HistoryCatalog.Directory dirB = find(dirs, b);
+
+        assertEquals(HistoryID.createFromRawStrings(new String[] { "y" }),
+            dirB.getID());
+        assertEquals(Arrays.asList("msg", "dir"),
+            Arrays.asList(dirB.getStructure().getPropertyNames()));
+        assertEquals(Arrays.asList("1.xml"),
+            Arrays.asList(dirB.getDataFiles()));
+        assertNotNull(find(dirs, a).getID());
+        assertTrue(catalogFile.exists());
+    }
+
+    public void testUnchangedDirectoriesAreReadFromCatalogFile()
+        throws Exception
+    {
+        File a = writeHistory("a", "x", "msg");
+        setOld(root, a);
+        new HistoryCatalog(catalogFile, historyService).getDirectories(root);
+
+        // a dbstruct file written in place does not modify its directory
+        writeStruct(a, "z", "msg");
+        setOld(root, a);
+
+        List<HistoryCatalog.Directory> dirs
+            = new HistoryCatalog(catalogFile, historyService)
+                .getDirectories(root);
+
+        assertEquals(HistoryID.createFromRawStrings(new String[] { "x" }),
+            find(dirs, a).getID());
+    }
+
+    public void testInvalidatedDirectoryIsListedAgain()
+        throws Exception
+    {
+        File a = writeHistory("a", "x", "msg");
+        setOld(root, a);
+
+        HistoryCatalog catalog
+            = new HistoryCatalog(catalogFile, historyService);
+
+        catalog.getDirectories(root);
+        writeStruct(a, "z", "msg");
+        setOld(root, a);
+        catalog.invalidate(a);
+
+        assertEquals(HistoryID.createFromRawStrings(new String[] { "z" }),
+            find(catalog.getDirectories(root), a).getID());
+
+        // the invalidation was stored
+        assertEquals(HistoryID.createFromRawStrings(new String[] { "z" }),
+            find(new HistoryCatalog(catalogFile, historyService)
+                    .getDirectories(root),
+                a).getID());
+    }
+
+    public void testAddedAndRemovedDirectories()
+        throws Exception
+    {
+        File a = writeHistory("a", "x", "msg");
+        setOld(root, a);
+
+        HistoryCatalog catalog
+            = new HistoryCatalog(catalogFile, historyService);
+
+        assertEquals(2, catalog.getDirectories(root).size());
+
+        File c = writeHistory("c", "w", "msg");
+        setOld(c);
+        root.setLastModified(OLD + 1000);
+
+        List<HistoryCatalog.Directory> dirs = catalog.getDirectories(root);
+
+        assertEquals(3, dirs.size());
+        assertNotNull(find(dirs, c));
+
+        delete(a);
+        root.setLastModified(OLD + 2000);
+
+        dirs = catalog.getDirectories(root);
+        assertEquals(2, dirs.size());
+        assertNull(find(dirs, a));
+    }
+
+    public void testUnreadableCatalogFileIsBuiltAgain()
+        throws Exception
+    {
+        File a = writeHistory("a", "x", "msg");
+        setOld(root, a);
+
+        OutputStream out = new FileOutputStream(catalogFile);
+        try
+        {
+            out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 9 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        List<HistoryCatalog.Directory> dirs
+            = new HistoryCatalog(catalogFile, historyService)
+                .getDirectories(root);
+
+        assertEquals(2, dirs.size());
+        assertNotNull(find(dirs, a).getID());
+    }
+
+    private File writeHistory(String path, String id, String... properties)
+        throws IOException
+    {
+        File dir = new File(root, path);
+
+        dir.mkdirs();
+        writeStruct(dir, id, properties);
+        return dir;
+    }
+
+    private static void writeStruct(File dir, String id, String... properties)
+        throws IOException
+    {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<dbstruct version=\"1.0\"><structure>");
+        for (String property : properties)
+            xml.append("<property name=\"").append(property).append("\"/>");
+        xml.append("</structure><id><component value=\"").append(id)
+            .append("\"/></id></dbstruct>");
+
+        Writer out
+            = new OutputStreamWriter(
+                new FileOutputStream(
+                    new File(dir, HistoryServiceImpl.DATA_FILE)),
+                "UTF-8");
+        try
+        {
+            out.write(xml.toString());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static void setOld(File... dirs)
+    {
+        for (File dir : dirs)
+            dir.setLastModified(OLD);
+    }
+
+    private static HistoryCatalog.Directory find(
+            List<HistoryCatalog.Directory> dirs,
+            File file)
+    {
+        for (HistoryCatalog.Directory dir : dirs)
+        {
+            if (dir.getFile().equals(file))
+                return dir;
+        }
+        return null;
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+
+        if (files != null)
+        {
+            for (File f : files)
+                delete(f);
+        }
+        file.delete();
+    }
+}
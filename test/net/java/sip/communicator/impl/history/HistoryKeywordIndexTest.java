@@ -0,0 +1,125 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the lookups and the journal of <tt>HistoryKeywordIndex</tt>.
+ */
+public class HistoryKeywordIndexTest
+    extends TestCase
+{
+    private File file;
+
+    private HistoryKeywordIndex index;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        file = File.createTempFile("keywords", ".idx");
+        file.delete();
+
+        index = new HistoryKeywordIndex(file);
+        index.addRecord("a.xml", new String[] { "msg" },
+            new String[] { "Hello big World" });
+        index.addRecord("b.xml", new String[] { "msg" },
+            new String[] { "bigger worlds" });
+        index.addRecord("c.xml", new String[] { "msg", "dir" },
+            new String[] { "unhelpful", "in" });
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testSingleWordMatchesAnyPartOfAWord()
+    {
+        assertEquals(units("a.xml", "c.xml"),
+            index.findUnits("msg", new String[] { "hel" }));
+        assertEquals(units("a.xml", "b.xml"),
+            index.findUnits("msg", new String[] { "ORLD" }));
+    }
+
+    public void testWholeWordsOfAKeyword()
+    {
+        // "big" is a whole word of the value, "hello" may end a word and
+        // "wor" may start one
+        assertEquals(units("a.xml"),
+            index.findUnits("msg", new String[] { "hello big wor" }));
+        // a keyword starting with a separator starts a word
+        assertEquals(units("a.xml", "b.xml"),
+            index.findUnits("msg", new String[] { " big" }));
+        // and one ending with a separator ends a word
+        assertEquals(units("a.xml"),
+            index.findUnits("msg", new String[] { "big " }));
+        assertEquals(units("c.xml"),
+            index.findUnits("msg", new String[] { "unhelp" }));
+    }
+
+    public void testAllKeywordsMatch()
+    {
+        assertEquals(units("a.xml"),
+            index.findUnits("msg", new String[] { "hello", "big" }));
+        assertEquals(units(),
+            index.findUnits("msg", new String[] { "hello", "unhelpful" }));
+    }
+
+    public void testPropertiesAreIndexedSeparately()
+    {
+        assertEquals(units("c.xml"),
+            index.findUnits("dir", new String[] { "in" }));
+        assertEquals(units(),
+            index.findUnits("dir", new String[] { "hello" }));
+    }
+
+    public void testKeywordWithoutWordsIsNotAnswered()
+    {
+        assertNull(index.findUnits("msg", new String[] { "?!" }));
+    }
+
+    public void testFlushedJournalIsReloaded()
+    {
+        index.setIndexed("a.xml");
+        index.flush();
+
+        HistoryKeywordIndex reloaded = new HistoryKeywordIndex(file);
+
+        assertTrue(reloaded.isIndexed("a.xml"));
+        assertFalse(reloaded.isIndexed("b.xml"));
+        assertEquals(units("a.xml", "b.xml"),
+            reloaded.findUnits("msg", new String[] { "big" }));
+    }
+
+    public void testEntriesAreBufferedUntilFlushed()
+    {
+        index.setIndexed("a.xml");
+
+        assertFalse(file.exists());
+        assertFalse(new HistoryKeywordIndex(file).isIndexed("a.xml"));
+    }
+
+    public void testNotIndexedMarkIsWrittenAtOnce()
+    {
+        index.setIndexed("a.xml");
+        index.flush();
+        index.setNotIndexed("a.xml");
+
+        assertFalse(new HistoryKeywordIndex(file).isIndexed("a.xml"));
+    }
+
+    private static Set<String> units(String... units)
+    {
+        return new HashSet<String>(Arrays.asList(units));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Tests that <tt>HistoryRecordScanner</tt> reads the same records from a
+ * history file and from its parsed document, and stops when asked to.
+ */
+public class HistoryRecordScannerTest
+    extends TestCase
+{
+    private File file;
+
+    private Document doc;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        String ts = new SimpleDateFormat(DATE_FORMAT).format(new Date(2000));
+        String xml
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<history>\n"
+                + "  <record timestamp=\"1000\">\n"
+                + "    <dir>in</dir>\n"
+                + "    <msg><![CDATA[a < b]]></msg>\n"
+                + "    <subject/>\n"
+                + "  </record>\n"
+                + "  <record timestamp=\"" + ts + "\">\n"
+                + "    <dir>out</dir>\n"
+                + "    <msg>x &amp; y</msg>\n"
+                + "  </record>\n"
+                + "  <record timestamp=\"3000\">\n"
+                + "    <dir>in</dir>\n"
+                + "  </record>\n"
+                + "</history>\n";
+
+        file = File.createTempFile("history", ".xml");
+
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(xml.getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(file);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testFileAndDocumentGiveSameRecords()
+        throws Exception
+    {
+        Collector fromFile = new Collector(-1);
+        HistoryRecordScanner fileScanner = new HistoryRecordScanner();
+
+        fileScanner.scan(file, fromFile);
+
+        Collector fromDoc = new Collector(-1);
+        HistoryRecordScanner docScanner = new HistoryRecordScanner();
+
+        docScanner.scan(doc, fromDoc);
+
+        assertEquals(
+            Arrays.asList(
+                "1000 dir=in msg=a < b subject=null",
+                "2000 dir=out msg=x & y",
+                "3000 dir=in"),
+            fromFile.records);
+        assertEquals(fromFile.records, fromDoc.records);
+
+        assertTrue(fileScanner.isComplete());
+        assertTrue(docScanner.isComplete());
+        assertEquals(3, fileScanner.getRecordCount());
+
+        HistoryTimeIndex.Entry entry
+            = fileScanner.createTimeIndexEntry(file.length(), 0);
+
+        assertEquals(1000, entry.getMinTimestamp());
+        assertEquals(3000, entry.getMaxTimestamp());
+        assertEquals(3, entry.getRecordCount());
+    }
+
+    public void testHandlerStopsScan()
+        throws Exception
+    {
+        Collector fromFile = new Collector(2);
+        HistoryRecordScanner fileScanner = new HistoryRecordScanner();
+
+        fileScanner.scan(file, fromFile);
+
+        assertEquals(2, fromFile.records.size());
+        assertEquals(2, fileScanner.getRecordCount());
+        assertFalse(fileScanner.isComplete());
+
+        Collector fromDoc = new Collector(1);
+        HistoryRecordScanner docScanner = new HistoryRecordScanner();
+
+        docScanner.scan(doc, fromDoc);
+
+        assertEquals(1, fromDoc.records.size());
+        assertFalse(docScanner.isComplete());
+    }
+
+    /**
+     * Collects the records it handles as strings, up to a number of them.
+     */
+    private static class Collector
+        implements HistoryRecordScanner.Handler
+    {
+        final List<String> records = new ArrayList<String>();
+
+        /**
+         * The number of records to handle, <tt>-1</tt> for all.
+         */
+        private final int limit;
+
+        Collector(int limit)
+        {
+            this.limit = limit;
+        }
+
+        public boolean handleRecord(Date timestamp,
+                                    String[] propertyNames,
+                                    String[] propertyValues)
+        {
+            StringBuilder record = new StringBuilder();
+
+            record.append(timestamp.getTime());
+            for (int i = 0; i < propertyNames.length; i++)
+            {
+                record.append(' ').append(propertyNames[i]).append('=')
+                    .append(propertyValues[i]);
+            }
+            records.add(record.toString());
+            return (limit < 0) || (records.size() < limit);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Tests the entries and the journal of <tt>HistoryTimeIndex</tt>.
+ */
+public class HistoryTimeIndexTest
+    extends TestCase
+{
+    private File dir;
+
+    private File file;
+
+    private File historyFile;
+
+    private Document doc;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, HistoryTimeIndex.INDEX_FILE);
+        historyFile = new File(dir, "1.xml");
+
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+        doc.appendChild(doc.createElement("history"));
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    public void testEntryOfWrittenDocument()
+        throws Exception
+    {
+        addRecord(300);
+        addRecord(100);
+        addRecord(200);
+        write();
+
+        HistoryTimeIndex.Entry entry
+            = new HistoryTimeIndex(file).put("1.xml", historyFile, doc);
+
+        assertEquals(3, entry.getRecordCount());
+        assertEquals(100, entry.getMinTimestamp());
+        assertEquals(300, entry.getMaxTimestamp());
+        assertTrue(entry.overlaps(new Date(300), null));
+        assertFalse(entry.overlaps(new Date(301), null));
+        assertFalse(entry.overlaps(null, new Date(100)));
+    }
+
+    public void testJournalIsReloaded()
+        throws Exception
+    {
+        addRecord(100);
+        write();
+        new HistoryTimeIndex(file).put("1.xml", historyFile, doc);
+
+        HistoryTimeIndex.Entry entry
+            = new HistoryTimeIndex(file).get("1.xml", historyFile);
+
+        assertNotNull(entry);
+        assertEquals(1, entry.getRecordCount());
+    }
+
+    public void testEntryOfChangedFileIsIgnored()
+        throws Exception
+    {
+        addRecord(100);
+        write();
+        HistoryTimeIndex index = new HistoryTimeIndex(file);
+        index.put("1.xml", historyFile, doc);
+
+        addRecord(200);
+        write();
+
+        assertNull(index.get("1.xml", historyFile));
+    }
+
+    public void testAppendedRecordsUpdateTheEntry()
+        throws Exception
+    {
+        HistoryTimeIndex index = new HistoryTimeIndex(file);
+
+        // a document which was never written
+        addRecord(200);
+        index.recordAppended("1.xml", historyFile, 200);
+        assertEquals(1, index.getAppended("1.xml").getRecordCount());
+        write();
+        index.put("1.xml", historyFile, doc);
+        assertNull(index.getAppended("1.xml"));
+
+        addRecord(100);
+        index.recordAppended("1.xml", historyFile, 100);
+        addRecord(300);
+        index.recordAppended("1.xml", historyFile, 300);
+        write();
+
+        // the entry is not computed from the document
+        Document empty = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        empty.appendChild(empty.createElement("history"));
+        HistoryTimeIndex.Entry entry
+            = index.put("1.xml", historyFile, empty);
+
+        assertEquals(3, entry.getRecordCount());
+        assertEquals(100, entry.getMinTimestamp());
+        assertEquals(300, entry.getMaxTimestamp());
+        assertSame(entry, index.get("1.xml", historyFile));
+    }
+
+    public void testChangedDocumentIsParsed()
+        throws Exception
+    {
+        HistoryTimeIndex index = new HistoryTimeIndex(file);
+
+        addRecord(100);
+        write();
+        index.put("1.xml", historyFile, doc);
+
+        index.recordAppended("1.xml", historyFile, 200);
+        index.documentChanged("1.xml");
+        index.recordAppended("1.xml", historyFile, 300);
+        assertNull(index.getAppended("1.xml"));
+
+        addRecord(400);
+        write();
+        HistoryTimeIndex.Entry entry = index.put("1.xml", historyFile, doc);
+
+        assertEquals(2, entry.getRecordCount());
+        assertEquals(400, entry.getMaxTimestamp());
+    }
+
+    public void testRecordAppendedToUnindexedFile()
+        throws Exception
+    {
+        addRecord(100);
+        write();
+
+        HistoryTimeIndex index = new HistoryTimeIndex(file);
+        index.recordAppended("1.xml", historyFile, 200);
+
+        assertNull(index.getAppended("1.xml"));
+    }
+
+    public void testJournalIsCompactedWhileWritten()
+        throws Exception
+    {
+        addRecord(100);
+        write();
+
+        HistoryTimeIndex index = new HistoryTimeIndex(file);
+        for (int i = 0; i < 1000; i++)
+            index.put("1.xml", historyFile, doc);
+
+        assertTrue(countLines(file) <= 2 + 64 + 1);
+        assertNotNull(new HistoryTimeIndex(file).get("1.xml", historyFile));
+    }
+
+    private void addRecord(long timestamp)
+    {
+        Element record = doc.createElement("record");
+        record.setAttribute("timestamp",
+            new SimpleDateFormat(DATE_FORMAT).format(new Date(timestamp)));
+        doc.getFirstChild().appendChild(record);
+    }
+
+    /**
+     * Changes the file the way writing the document does, it is not parsed.
+     */
+    private void write()
+        throws IOException
+    {
+        long lastModified = historyFile.lastModified();
+        Writer out = new FileWriter(historyFile, true);
+        try
+        {
+            out.write("<record/>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+        historyFile.setLastModified(lastModified + 1000);
+    }
+
+    private static int countLines(File f)
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        try
+        {
+            int lines = 0;
+            while (in.readLine() != null)
+                lines++;
+            return lines;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the cancellation of the pending writes of <tt>HistoryWriteBehind</tt>.
+ */
+public class HistoryWriteBehindTest
+    extends TestCase
+{
+    private File root;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        root = File.createTempFile("history", "");
+        root.delete();
+        root.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete(root);
+    }
+
+    public void testCancelDropsPendingFilesOfDirectory()
+        throws Exception
+    {
+        File dir = new File(root, "a");
+        File subDir = new File(dir, "b");
+        File otherDir = new File(root, "ab");
+
+        subDir.mkdirs();
+        otherDir.mkdirs();
+
+        RecordingHistory history = new RecordingHistory(dir);
+        RecordingHistory subHistory = new RecordingHistory(subDir);
+        RecordingHistory otherHistory = new RecordingHistory(otherDir);
+        HistoryWriteBehind writeBehind
+            = new HistoryWriteBehind(60000, 100, 1000);
+
+        try
+        {
+            writeBehind.schedule(history, "1.xml", new File(dir, "1.xml"));
+            writeBehind.schedule(history, "1.xml", new File(dir, "1.xml"));
+            writeBehind.schedule(
+                subHistory, "2.xml", new File(subDir, "2.xml"));
+            writeBehind.schedule(
+                otherHistory, "3.xml", new File(otherDir, "3.xml"));
+
+            assertEquals(
+                new HashSet<HistoryImpl>(Arrays.asList(history, subHistory)),
+                writeBehind.cancel(dir));
+            assertTrue(writeBehind.cancel(dir).isEmpty());
+
+            writeBehind.flush();
+        }
+        finally
+        {
+            writeBehind.stop();
+        }
+
+        // only the file of the other directory is written
+        assertTrue(history.flushed.isEmpty());
+        assertTrue(subHistory.flushed.isEmpty());
+        assertEquals(Arrays.asList("3.xml"), otherHistory.flushed);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+
+        if (files != null)
+        {
+            for (File f : files)
+                delete(f);
+        }
+        file.delete();
+    }
+
+    /**
+     * Records the files it is asked to write instead of writing them.
+     */
+    private static class RecordingHistory
+        extends HistoryImpl
+    {
+        final List<String> flushed = new ArrayList<String>();
+
+        RecordingHistory(File directory)
+        {
+            super(null, directory, null, null);
+        }
+
+        @Override
+        void flushFile(String filename)
+        {
+            flushed.add(filename);
+        }
+    }
+}
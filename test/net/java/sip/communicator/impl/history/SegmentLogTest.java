@@ -0,0 +1,384 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the appending, reading, deleting and compacting of the records of
+ * <tt>SegmentLog</tt> and its recovery when it is opened again.
+ */
+public class SegmentLogTest
+    extends TestCase
+{
+    private static final String[] NAMES = { "dir", "msg", "subject" };
+
+    private File dir;
+
+    private SegmentLog log;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdir();
+        log = new SegmentLog(dir);
+        log.initialize();
+        log.writeManifest();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    public void testAppendAndRead()
+        throws Exception
+    {
+        assertNull(log.getLastBlock());
+
+        int count = SegmentLog.INDEX_INTERVAL + 5;
+
+        for (int i = 0; i < count; i++)
+            append(1000 + i, "m" + i);
+
+        assertTrue(log.exists());
+        assertEquals(count, log.getLiveCount());
+
+        List<SegmentLog.Block> blocks = log.getBlocks();
+
+        assertEquals(2, blocks.size());
+        assertSame(blocks.get(1), log.getLastBlock());
+        assertEquals(SegmentLog.INDEX_INTERVAL, blocks.get(0).getRecordCount());
+        assertEquals(1000, blocks.get(0).getMinTimestamp());
+        assertEquals(1000 + SegmentLog.INDEX_INTERVAL - 1,
+            blocks.get(0).getMaxTimestamp());
+        assertTrue(blocks.get(1).overlaps(1000 + count - 1, Long.MAX_VALUE));
+        assertFalse(blocks.get(1).overlaps(Long.MIN_VALUE, 1000));
+
+        assertEquals(messages(count), readAll(log));
+
+        // null values are not stored
+        SegmentLog.StoredRecord record = log.readBlock(blocks.get(0)).get(0);
+
+        assertEquals(Arrays.asList("dir", "msg"),
+            Arrays.asList(record.getPropertyNames()));
+        assertEquals("in", record.getPropertyValue("dir"));
+        assertNull(record.getPropertyValue("subject"));
+    }
+
+    public void testReopen()
+        throws Exception
+    {
+        int count = SegmentLog.INDEX_INTERVAL * 2 + 1;
+
+        for (int i = 0; i < count; i++)
+            append(1000 + i, "m" + i);
+
+        SegmentLog reopened = new SegmentLog(dir);
+
+        reopened.open();
+        assertEquals(count, reopened.getLiveCount());
+        assertEquals(3, reopened.getBlocks().size());
+        assertEquals(messages(count), readAll(reopened));
+    }
+
+    public void testTornRecordIsTruncated()
+        throws Exception
+    {
+        append(1000, "m0");
+        append(1001, "m1");
+        append(1002, "m2");
+
+        File segment = getSegmentFiles().get(0);
+        long length = segment.length();
+
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try
+        {
+            raf.setLength(length - 3);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        SegmentLog reopened = new SegmentLog(dir);
+
+        reopened.open();
+        assertEquals(messages(2), readAll(reopened));
+        assertTrue(segment.length() < length - 3);
+
+        // records appended after the truncation are read back
+        reopened.append(NAMES, new String[] { "in", "m2", null }, 1003);
+
+        SegmentLog again = new SegmentLog(dir);
+
+        again.open();
+        assertEquals(messages(3), readAll(again));
+    }
+
+    public void testCorruptRecordIsTruncated()
+        throws Exception
+    {
+        append(1000, "m0");
+
+        long validLength = getSegmentFiles().get(0).length();
+
+        append(1001, "m1");
+        append(1002, "m2");
+
+        // flip a byte of the payload of the second record
+        RandomAccessFile raf
+            = new RandomAccessFile(getSegmentFiles().get(0), "rw");
+        try
+        {
+            raf.seek(validLength + 10);
+            int b = raf.read();
+            raf.seek(validLength + 10);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        SegmentLog reopened = new SegmentLog(dir);
+
+        reopened.open();
+        assertEquals(messages(1), readAll(reopened));
+        assertEquals(validLength, getSegmentFiles().get(0).length());
+    }
+
+    public void testDeletedRecordsAreSkipped()
+        throws Exception
+    {
+        append(1000, "m0");
+        SegmentLog.StoredRecord record = append(1001, "m1");
+        append(1002, "m2");
+
+        log.delete(record);
+
+        assertEquals(2, log.getLiveCount());
+        assertEquals(Arrays.asList("m0", "m2"), readAll(log));
+        assertEquals(3, log.getLastBlock().getRecordCount());
+
+        SegmentLog reopened = new SegmentLog(dir);
+
+        reopened.open();
+        assertEquals(2, reopened.getLiveCount());
+        assertEquals(Arrays.asList("m0", "m2"), readAll(reopened));
+    }
+
+    public void testSealAndCompact()
+        throws Exception
+    {
+        List<SegmentLog.StoredRecord> records
+            = new ArrayList<SegmentLog.StoredRecord>();
+        List<String> expected = new ArrayList<String>();
+        int i = 0;
+
+        // fill two sealed segments and start a third one
+        while (getSegmentFiles().size() < 3)
+        {
+            records.add(
+                log.append(NAMES, new String[] { "in", big(i), null },
+                    1000 + i));
+            expected.add(big(i));
+            i++;
+        }
+
+        File first = getSegmentFiles().get(0);
+        File second = getSegmentFiles().get(1);
+
+        assertTrue(
+            new File(dir, getSegmentName(first) + SegmentLog.INDEX_SUFFIX)
+                .exists());
+
+        // every other record of the first segment and all of the second
+        List<SegmentLog.Block> oldBlocks = log.getBlocks();
+        int firstCount = 0;
+        int deleted = 0;
+
+        for (SegmentLog.StoredRecord record : records)
+        {
+            String name = record.getBlock().getId();
+
+            if (name.startsWith(getSegmentName(first) + "@"))
+            {
+                if (firstCount++ % 2 == 0)
+                {
+                    log.delete(record);
+                    expected.remove(record.getPropertyValue("msg"));
+                    deleted++;
+                }
+            }
+            else if (name.startsWith(getSegmentName(second) + "@"))
+            {
+                log.delete(record);
+                expected.remove(record.getPropertyValue("msg"));
+                deleted++;
+            }
+        }
+
+        int live = log.getLiveCount();
+        long size = log.getSize();
+
+        assertEquals(records.size() - deleted, live);
+        assertTrue(log.compact() > 0);
+        assertTrue(log.getSize() < size);
+        assertEquals(live, log.getLiveCount());
+        assertEquals(expected, readAll(log));
+        assertFalse(second.exists());
+
+        // the blocks returned before the compaction read the moved records
+        assertEquals(expected, readAll(log, oldBlocks));
+        try
+        {
+            log.delete(records.get(1));
+            fail("A moved record was deleted");
+        }
+        catch (IOException e)
+        {
+        }
+
+        // compact the rewritten segment again
+        SegmentLog.StoredRecord moved = log.readBlock(log.getBlocks().get(0))
+            .get(1);
+
+        log.delete(moved);
+        expected.remove(moved.getPropertyValue("msg"));
+        assertTrue(log.compact() > 0);
+        assertEquals(expected, readAll(log, oldBlocks));
+        assertEquals(expected, readAll(log));
+
+        SegmentLog reopened = new SegmentLog(dir);
+
+        reopened.open();
+        assertEquals(live - 1, reopened.getLiveCount());
+        assertEquals(expected, readAll(reopened));
+    }
+
+    public void testInitializeRemovesSegments()
+        throws Exception
+    {
+        append(1000, "m0");
+
+        SegmentLog initialized = new SegmentLog(dir);
+
+        initialized.initialize();
+        assertTrue(getSegmentFiles().isEmpty());
+        assertEquals(0, initialized.getLiveCount());
+    }
+
+    public void testUncommittedLogDoesNotExist()
+        throws Exception
+    {
+        SegmentLog initialized = new SegmentLog(dir);
+
+        initialized.initialize();
+        assertFalse(initialized.exists());
+
+        // records appended before the commit do not write the manifest
+        for (int i = 0; i < SegmentLog.INDEX_INTERVAL + 1; i++)
+            initialized.append(NAMES, new String[] { "in", "m" + i, null }, i);
+        assertFalse(new SegmentLog(dir).exists());
+
+        initialized.writeManifest();
+
+        SegmentLog reopened = new SegmentLog(dir);
+
+        assertTrue(reopened.exists());
+        reopened.open();
+        assertEquals(messages(SegmentLog.INDEX_INTERVAL + 1),
+            readAll(reopened));
+    }
+
+    private SegmentLog.StoredRecord append(long timestamp, String msg)
+        throws IOException
+    {
+        return log.append(NAMES, new String[] { "in", msg, null }, timestamp);
+    }
+
+    private static List<String> readAll(SegmentLog log)
+        throws IOException
+    {
+        return readAll(log, log.getBlocks());
+    }
+
+    private static List<String> readAll(SegmentLog log,
+                                        List<SegmentLog.Block> blocks)
+        throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (SegmentLog.Block block : blocks)
+        {
+            for (SegmentLog.StoredRecord record : log.readBlock(block))
+                result.add(record.getPropertyValue("msg"));
+        }
+        return result;
+    }
+
+    private static List<String> messages(int count)
+    {
+        List<String> result = new ArrayList<String>();
+
+        for (int i = 0; i < count; i++)
+            result.add("m" + i);
+        return result;
+    }
+
+    /**
+     * Returns a message large enough to fill a segment with a few records.
+     */
+    private static String big(int i)
+    {
+        char[] chars = new char[SegmentLog.MAX_SEGMENT_SIZE / 10];
+
+        Arrays.fill(chars, (char) ('a' + i % 26));
+        return i + new String(chars);
+    }
+
+    private List<File> getSegmentFiles()
+    {
+        List<File> result = new ArrayList<File>();
+
+        for (File f : dir.listFiles())
+        {
+            if (f.getName().endsWith(SegmentLog.SEGMENT_SUFFIX))
+                result.add(f);
+        }
+        Collections.sort(result, new Comparator<File>()
+        {
+            public int compare(File f1, File f2)
+            {
+                long n1 = Long.parseLong(getSegmentName(f1));
+                long n2 = Long.parseLong(getSegmentName(f2));
+
+                return (n1 < n2) ? -1 : ((n1 == n2) ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    private static String getSegmentName(File segment)
+    {
+        String name = segment.getName();
+
+        return name.substring(
+            0, name.length() - SegmentLog.SEGMENT_SUFFIX.length());
+    }
+}
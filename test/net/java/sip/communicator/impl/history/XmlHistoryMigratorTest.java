@@ -0,0 +1,156 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+
+/**
+ * Tests that <tt>XmlHistoryMigrator</tt> fixes broken xml files, removes only
+ * the migrated files and migrates the files left over when a history is
+ * opened.
+ */
+public class XmlHistoryMigratorTest
+    extends TestCase
+{
+    private File dir;
+
+    private HistoryServiceImpl historyService;
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdir();
+
+        BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
+        ConfigurationService config
+            = EasyMock.createNiceMock(ConfigurationService.class);
+        ServiceReference configRef
+            = EasyMock.createNiceMock(ServiceReference.class);
+
+        EasyMock.expect(bc.getServiceReference(
+                ConfigurationService.class.getName()))
+            .andReturn(configRef).anyTimes();
+        EasyMock.expect(bc.getService(configRef)).andReturn(config).anyTimes();
+        EasyMock.replay(bc, config, configRef);
+
+        historyService = new HistoryServiceImpl(bc);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    public void testMigratesAndRemovesFiles()
+        throws Exception
+    {
+        writeFile("1.xml", record(1000, "m0") + record(1001, "m1"));
+        writeFile("2.xml", record(2000, "m2"));
+
+        SegmentLog log = new SegmentLog(dir);
+
+        new XmlHistoryMigrator(historyService).migrate(dir, log);
+
+        assertTrue(log.exists());
+        assertEquals(Arrays.asList("m0", "m1", "m2"), readAll(dir));
+        assertFalse(new File(dir, "1.xml").exists());
+        assertFalse(new File(dir, "2.xml").exists());
+        assertFalse(new File(dir, XmlHistoryMigrator.MIGRATED_FILE).exists());
+    }
+
+    public void testBrokenFileIsFixed()
+        throws Exception
+    {
+        // the last record was not written completely
+        writeFile("1.xml",
+            record(1000, "m0") + record(1001, "m1") + "<record timestamp=");
+
+        new XmlHistoryMigrator(historyService)
+            .migrate(dir, new SegmentLog(dir));
+
+        assertEquals(Arrays.asList("m0", "m1"), readAll(dir));
+        assertFalse(new File(dir, "1.xml").exists());
+    }
+
+    public void testRemainingFilesAreMigratedWhenOpened()
+        throws Exception
+    {
+        writeFile("1.xml", record(1000, "m0"));
+        new XmlHistoryMigrator(historyService)
+            .migrate(dir, new SegmentLog(dir));
+
+        // a file which could not be migrated before
+        writeFile("2.xml", record(2000, "m1"));
+
+        SegmentLog log = new SegmentLog(dir);
+
+        log.open();
+        new XmlHistoryMigrator(historyService).migrateRemaining(dir, log);
+
+        assertEquals(Arrays.asList("m0", "m1"), readAll(dir));
+        assertFalse(new File(dir, "2.xml").exists());
+    }
+
+    private static String record(long timestamp, String msg)
+    {
+        return "<record timestamp=\"" + timestamp + "\">\n"
+            + "<dir>in</dir>\n"
+            + "<msg>" + msg + "</msg>\n"
+            + "</record>\n";
+    }
+
+    private void writeFile(String name, String records)
+        throws IOException
+    {
+        Writer out
+            = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, name)), "UTF-8");
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<history>\n" + records);
+            if (!records.endsWith("="))
+                out.write("</history>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the messages of the log committed in a directory.
+     */
+    private static List<String> readAll(File dir)
+        throws IOException
+    {
+        SegmentLog log = new SegmentLog(dir);
+        List<String> result = new ArrayList<String>();
+
+        log.open();
+        for (SegmentLog.Block block : log.getBlocks())
+        {
+            for (SegmentLog.StoredRecord record : log.readBlock(block))
+                result.add(record.getPropertyValue("msg"));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests which searches <tt>LdapResultCache</tt> answers from the results of
+ * previous searches.
+ */
+public class LdapResultCacheTest
+    extends TestCase
+{
+    private static final int SCOPE = 2;
+
+    private LdapResultCache cache;
+
+    @Override
+    protected void setUp()
+    {
+        cache = new LdapResultCache();
+    }
+
+    public void testSameSearchIgnoringCase()
+    {
+        List<LdapResultCache.Entry> entries = entries(2);
+
+        cache.put(SCOPE, "*John*", 0, entries);
+
+        assertSame(entries, cache.get(SCOPE, "*john*", 0, true));
+        assertSame(entries, cache.get(SCOPE, "*JOHN*", 0, false));
+        assertNull(cache.get(SCOPE + 1, "*john*", 0, true));
+    }
+
+    public void testLongerQueryUsesPrefix()
+    {
+        List<LdapResultCache.Entry> j = entries(5);
+        List<LdapResultCache.Entry> jo = entries(3);
+
+        cache.put(SCOPE, "*j*", 0, j);
+        cache.put(SCOPE, "*jo*", 0, jo);
+
+        // the longest prefix is used
+        assertSame(jo, cache.get(SCOPE, "*john*", 0, true));
+        assertSame(j, cache.get(SCOPE, "*ja*", 0, true));
+        assertNull(cache.get(SCOPE, "*a*", 0, true));
+    }
+
+    public void testPrefixNotUsedWithoutPrefixReuse()
+    {
+        cache.put(SCOPE, "*jo*", 0, entries(3));
+
+        assertNull(cache.get(SCOPE, "*john*", 0, false));
+    }
+
+    public void testPrefixNotUsedForOtherWildcards()
+    {
+        cache.put(SCOPE, "*jo*", 0, entries(3));
+        cache.put(SCOPE, "jo*", 0, entries(3));
+
+        assertNull(cache.get(SCOPE, "john*", 0, true));
+        assertNull(cache.get(SCOPE, "*jo*n*", 0, true));
+        assertNull(cache.get(SCOPE, "*john", 0, true));
+    }
+
+    public void testTruncatedPrefixNotUsed()
+    {
+        List<LdapResultCache.Entry> j = entries(5);
+
+        cache.put(SCOPE, "*j*", 0, j);
+        cache.put(SCOPE, "*jo*", 3, entries(3));
+
+        // a truncated prefix is skipped for a shorter complete one
+        assertSame(j, cache.get(SCOPE, "*john*", 3, true));
+
+        cache.clear();
+        cache.put(SCOPE, "*jo*", 3, entries(3));
+        assertNull(cache.get(SCOPE, "*john*", 3, true));
+
+        // a result below its count limit is complete
+        List<LdapResultCache.Entry> jo = entries(2);
+
+        cache.put(SCOPE, "*jo*", 3, jo);
+        assertSame(jo, cache.get(SCOPE, "*john*", 3, true));
+    }
+
+    public void testTruncatedResultUsedWithSameCountLimit()
+    {
+        List<LdapResultCache.Entry> entries = entries(3);
+
+        cache.put(SCOPE, "*john*", 3, entries);
+
+        assertSame(entries, cache.get(SCOPE, "*john*", 3, true));
+        assertNull(cache.get(SCOPE, "*john*", 10, true));
+        assertNull(cache.get(SCOPE, "*john*", 0, true));
+    }
+
+    public void testLeastRecentlyUsedResultIsDropped()
+    {
+        for (int i = 0; i < 32; i++)
+            cache.put(SCOPE, "*q" + i + "*", 0, entries(1));
+
+        // q0 is now the most recently used
+        assertNotNull(cache.get(SCOPE, "*q0*", 0, false));
+        cache.put(SCOPE, "*q32*", 0, entries(1));
+
+        assertNotNull(cache.get(SCOPE, "*q0*", 0, false));
+        assertNull(cache.get(SCOPE, "*q1*", 0, false));
+        assertNotNull(cache.get(SCOPE, "*q32*", 0, false));
+    }
+
+    public void testClear()
+    {
+        cache.put(SCOPE, "*jo*", 0, entries(1));
+        cache.clear();
+
+        assertNull(cache.get(SCOPE, "*jo*", 0, true));
+        assertNull(cache.get(SCOPE, "*john*", 0, true));
+    }
+
+    private static List<LdapResultCache.Entry> entries(int count)
+    {
+        List<LdapResultCache.Entry> entries
+            = new ArrayList<LdapResultCache.Entry>();
+
+        for (int i = 0; i < count; i++)
+        {
+            entries.add(
+                new LdapResultCache.Entry(
+                    "cn=" + i,
+                    new HashMap<String, Set<Object>>()));
+        }
+        return entries;
+    }
+}
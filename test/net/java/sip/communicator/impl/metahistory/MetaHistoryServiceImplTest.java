@@ -0,0 +1,232 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.callhistory.*;
+import net.java.sip.communicator.service.callhistory.event.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.filehistory.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.event.ProgressEvent;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+
+/**
+ * Tests the merge of the records of the services and how a search of
+ * <tt>MetaHistoryServiceImpl</tt> stops early.
+ */
+public class MetaHistoryServiceImplTest
+    extends TestCase
+{
+    private static final String[] FILE_AND_CALLS = new String[] {
+        FileHistoryService.class.getName(),
+        CallHistoryService.class.getName() };
+
+    private static final String[] CALLS_AND_FILE = new String[] {
+        CallHistoryService.class.getName(),
+        FileHistoryService.class.getName() };
+
+    private final MetaContact metaContact
+        = EasyMock.createNiceMock(MetaContact.class);
+
+    private final FileHistoryService fileHistory
+        = EasyMock.createMock(FileHistoryService.class);
+
+    private final CallHistoryService callHistory
+        = EasyMock.createMock(CallHistoryService.class);
+
+    public void testMergeKeepsFirstOfEqualRecords()
+    {
+        FileRecord file10 = file(10);
+        FileRecord file20 = file(20);
+        CallRecord call20 = call(20);
+        CallRecord call30 = call(30);
+
+        assertEquals(
+            Arrays.<Object>asList(file10, file20, call30),
+            MetaHistoryServiceImpl.merge(
+                results(records(file10, file20), records(call20, call30)),
+                true, -1, false));
+        // of the records with the same timestamp, the one of the first
+        // service comes first
+        assertEquals(
+            Arrays.<Object>asList(file10, file20, call20, call30),
+            MetaHistoryServiceImpl.merge(
+                results(records(file10, file20), records(call20, call30)),
+                false, -1, false));
+    }
+
+    public void testMergeReturnsCountRecords()
+    {
+        FileRecord file10 = file(10);
+        FileRecord file20 = file(20);
+        CallRecord call15 = call(15);
+        CallRecord call20 = call(20);
+        CallRecord call30 = call(30);
+
+        assertEquals(
+            Arrays.<Object>asList(file10, call15),
+            MetaHistoryServiceImpl.merge(
+                results(records(file10, file20),
+                    records(call15, call20, call30)),
+                true, 2, false));
+        // backwards the newest records are returned, still in order
+        assertEquals(
+            Arrays.<Object>asList(file20, call30),
+            MetaHistoryServiceImpl.merge(
+                results(records(file10, file20),
+                    records(call15, call20, call30)),
+                true, 2, true));
+    }
+
+    public void testServiceReadsOnlyRecordsWhichMayBeReturned()
+        throws Exception
+    {
+        Date date = new Date(5);
+        FileRecord file10 = file(10);
+        CallRecord call15 = call(15);
+
+        EasyMock.expect(
+                fileHistory.findFirstRecordsAfter(metaContact, date, 2))
+            .andReturn(Arrays.asList(file(20), file10));
+        callHistory.addSearchProgressListener(
+            EasyMock.<CallHistorySearchProgressListener>anyObject());
+        // the file history returned 2 records, the calls after the newest
+        // of them are not read
+        EasyMock.expect(callHistory.findByPeriod(date, new Date(21)))
+            .andReturn(Arrays.asList(call15, call(20)));
+        callHistory.removeSearchProgressListener(
+            EasyMock.<CallHistorySearchProgressListener>anyObject());
+        EasyMock.replay(fileHistory, callHistory);
+
+        MetaHistoryServiceImpl metaHistory = createService();
+
+        assertEquals(Arrays.<Object>asList(file10, call15),
+            new ArrayList<Object>(metaHistory.findFirstMessagesAfter(
+                FILE_AND_CALLS, metaContact, date, 2)));
+        EasyMock.verify(fileHistory, callHistory);
+    }
+
+    public void testProgressListenerCancelsSearch()
+        throws Exception
+    {
+        final Date date = new Date(100);
+        final Capture<CallHistorySearchProgressListener> callListener
+            = new Capture<CallHistorySearchProgressListener>();
+        CallRecord call10 = call(10);
+
+        callHistory.addSearchProgressListener(
+            EasyMock.capture(callListener));
+        EasyMock.expect(callHistory.findByEndDate(date)).andAnswer(
+            new IAnswer<Collection<CallRecord>>()
+            {
+                public Collection<CallRecord> answer()
+                {
+                    callListener.getValue().progressChanged(
+                        new net.java.sip.communicator.service.callhistory
+                            .event.ProgressEvent(
+                                callHistory,
+                                new ProgressEvent(
+                                    callHistory, null, date),
+                                50));
+                    return Collections.emptyList();
+                }
+            });
+        callHistory.removeSearchProgressListener(
+            EasyMock.<CallHistorySearchProgressListener>anyObject());
+        // the file history is not queried once the search is canceled
+        EasyMock.replay(fileHistory, callHistory);
+
+        final List<Integer> progress = new ArrayList<Integer>();
+        MetaHistoryServiceImpl metaHistory = createService();
+
+        metaHistory.addSearchProgressListener(
+            new HistorySearchProgressListener()
+            {
+                public void progressChanged(ProgressEvent evt)
+                {
+                    progress.add(evt.getProgress());
+                    evt.cancel();
+                }
+            });
+
+        assertTrue(metaHistory.findByEndDate(
+            CALLS_AND_FILE, metaContact, date).isEmpty());
+        EasyMock.verify(fileHistory, callHistory);
+        // the listeners still receive the last progress
+        assertEquals(
+            HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
+            progress.get(progress.size() - 1).intValue());
+    }
+
+    /**
+     * Creates a service querying the services one after the other.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private MetaHistoryServiceImpl createService()
+    {
+        BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
+        ConfigurationService config
+            = EasyMock.createNiceMock(ConfigurationService.class);
+        ServiceReference<ConfigurationService> configRef
+            = EasyMock.createNiceMock(ServiceReference.class);
+        ServiceReference fileRef
+            = EasyMock.createNiceMock(ServiceReference.class);
+        ServiceReference callRef
+            = EasyMock.createNiceMock(ServiceReference.class);
+
+        EasyMock.expect(config.getInt(
+                EasyMock.eq(MetaHistoryServiceImpl.PNAME_SEARCH_THREADS),
+                EasyMock.anyInt()))
+            .andReturn(1);
+        EasyMock.expect(bc.getServiceReference(ConfigurationService.class))
+            .andReturn(configRef);
+        EasyMock.expect(bc.getService(configRef)).andReturn(config);
+        EasyMock.expect((ServiceReference) bc.getServiceReference(
+                FileHistoryService.class.getName()))
+            .andReturn(fileRef).anyTimes();
+        EasyMock.expect(bc.getService(fileRef))
+            .andReturn(fileHistory).anyTimes();
+        EasyMock.expect((ServiceReference) bc.getServiceReference(
+                CallHistoryService.class.getName()))
+            .andReturn(callRef).anyTimes();
+        EasyMock.expect(bc.getService(callRef))
+            .andReturn(callHistory).anyTimes();
+        EasyMock.replay(bc, config, configRef, fileRef, callRef);
+
+        MetaHistoryServiceImpl metaHistory = new MetaHistoryServiceImpl();
+        metaHistory.start(bc);
+        return metaHistory;
+    }
+
+    private static FileRecord file(long date)
+    {
+        return new FileRecord(
+            Long.toString(date), null, FileRecord.IN, new Date(date), null,
+            FileRecord.COMPLETED);
+    }
+
+    private static CallRecord call(long date)
+    {
+        return new CallRecord(CallRecord.IN, new Date(date), new Date(date));
+    }
+
+    private static List<Object> records(Object... records)
+    {
+        return new ArrayList<Object>(Arrays.asList(records));
+    }
+
+    private static List<List<Object>> results(List<Object>... results)
+    {
+        return new ArrayList<List<Object>>(Arrays.asList(results));
+    }
+}
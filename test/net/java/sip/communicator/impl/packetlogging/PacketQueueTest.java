@@ -0,0 +1,154 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the order, the wrap-around and the dropping of the elements of
+ * <tt>PacketQueue</tt>.
+ */
+public class PacketQueueTest
+    extends TestCase
+{
+    public void testEmptyQueue()
+    {
+        PacketQueue<Integer> queue = new PacketQueue<Integer>(4);
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    public void testCapacityIsRoundedUpToPowerOfTwo()
+    {
+        PacketQueue<Integer> queue = new PacketQueue<Integer>(3);
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(i));
+        assertFalse(queue.offer(4));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    public void testFullQueueDropsAndCounts()
+    {
+        PacketQueue<Integer> queue = new PacketQueue<Integer>(4);
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(i));
+        assertFalse(queue.offer(4));
+        assertFalse(queue.offer(5));
+        assertEquals(2, queue.getDroppedCount());
+
+        // the dropped elements did not replace the queued ones
+        for (int i = 0; i < 4; i++)
+            assertEquals(Integer.valueOf(i), queue.poll());
+        assertTrue(queue.isEmpty());
+
+        // a slot freed by a poll is reused
+        assertTrue(queue.offer(6));
+        assertEquals(Integer.valueOf(6), queue.poll());
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    public void testRingWrapsAround()
+    {
+        PacketQueue<Integer> queue = new PacketQueue<Integer>(4);
+        int next = 0;
+        int expected = 0;
+
+        // keep the queue partly filled over many rounds of the ring
+        for (int round = 0; round < 100; round++)
+        {
+            for (int i = 0; i < 3; i++)
+                assertTrue(queue.offer(next++));
+            for (int i = 0; i < 2; i++)
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+
+            if (round % 2 == 1)
+            {
+                // fill the free slots and one more, which is dropped
+                while (queue.offer(next))
+                    next++;
+                while (!queue.isEmpty())
+                    assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+        }
+        while (!queue.isEmpty())
+            assertEquals(Integer.valueOf(expected++), queue.poll());
+
+        assertEquals(next, expected);
+        assertEquals(50, queue.getDroppedCount());
+    }
+
+    public void testConcurrentOffers()
+        throws Exception
+    {
+        final int threadCount = 4;
+        final int perThread = 10000;
+        final PacketQueue<Integer> queue = new PacketQueue<Integer>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++)
+                        queue.offer(thread * perThread + i);
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+
+        int[] last = new int[threadCount];
+        Arrays.fill(last, -1);
+        long taken = 0;
+        boolean running = true;
+
+        while (running || !queue.isEmpty())
+        {
+            running = false;
+            for (Thread thread : threads)
+                running |= thread.isAlive();
+
+            Integer element;
+
+            while ((element = queue.poll()) != null)
+            {
+                int thread = element / perThread;
+                int i = element % perThread;
+
+                // the elements of a thread come out in the order it added them
+                assertTrue(i > last[thread]);
+                last[thread] = i;
+                taken++;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(threadCount * perThread, taken + queue.getDroppedCount());
+    }
+}